@@ -21,6 +21,42 @@ public enum Formats
 	Error_State_EnableFailed("Component %s failed to enable."),
 	Error_State_DisableFailed("Component %s failed to disable."),
 	Error_State_ReloadFailed("Component %s failed to reload."),
+
+	// Error/Backend
+	Error_Backend_WriteFailed("Failed to write %s to the permissions backend."),
+	Error_Backend_BatchFailed("Failed to write a batch of %d mutations to the permissions backend."),
+
+	// Error/Journal
+	Error_Journal_ReadFailed("Failed to read permissions journal file: %s"),
+	Error_Journal_WriteFailed("Failed to write permissions journal file: %s"),
+	Error_Journal_DamagedRecord("Discarded damaged records from offset %d of permissions journal file: %s"),
+	Error_Journal_DamagedHeader("Discarded permissions journal file with a damaged header: %s"),
+
+	// Error/Sql
+	Error_Sql_SchemaFailed("Failed to create permissions tables with prefix: %s"),
+	Error_Sql_ReadFailed("Failed to read %s from the permissions database."),
+	Error_Sql_CloseFailed("Failed to close a connection to the permissions database."),
+
+	// Error/Invalidation
+	Error_Invalidation_OpenFailed("Failed to open permission invalidation channel: %s"),
+	Error_Invalidation_SendFailed("Failed to send permission invalidations to %s"),
+	Error_Invalidation_ReceiveFailed("Failed to receive permission invalidations from %s"),
+	Error_Invalidation_MalformedPacket("Discarded a malformed permission invalidation packet from %s"),
+
+	// Error/Image
+	Error_Image_Damaged("Permissions image file is damaged: %s"),
+
+	// Error/Codec
+	Error_Codec_TagInUse("Metadata codec tag %d is already in use."),
+	Error_Codec_UnknownTag("Unknown metadata codec tag: %d"),
+	Error_Codec_Malformed("Malformed metadata value."),
+
+	// Error/Preload
+	Error_Preload_Failed("Failed to preload permissions for player %s."),
+	Error_Preload_TimedOut("Timed out preloading permissions for player %s after %d ms."),
+
+	// Preload
+	Preload_Kick("Your permissions could not be loaded.  Please try again shortly."),
 	;
 
 	public static final char NODE_SEPARATOR = '/';
@@ -0,0 +1,185 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+
+
+/**
+ * Records backend calls so that they can be shipped to the backend as a single batch.
+ *
+ * <p>
+ * A transaction begins when it is instantiated.  Pass it wherever a backend is expected, then {@link #commit()} it.  Loads are not
+ * recorded; they are passed straight to the target backend.
+ * </p>
+ */
+public class BackendTransaction implements ILoadingPermissionsBackend
+{
+	/**
+	 * Gets the backend to which the batch is committed.
+	 *
+	 * @return the target backend
+	 */
+	@Getter
+	private final IPermissionsBackend backend;
+
+	/**
+	 * Recorded mutations, in order.
+	 */
+	private final List<Mutation> mutations = new ArrayList<>();
+
+	/**
+	 * Begins a new transaction.
+	 *
+	 * @param backend the backend to which the batch is committed
+	 */
+	public BackendTransaction(final IPermissionsBackend backend)
+	{
+		assert backend != null;
+
+		this.backend = backend;
+	}
+
+	/**
+	 * Gets the mutations recorded so far.
+	 *
+	 * @return an unmodifiable view of recorded mutations, in order
+	 */
+	public List<Mutation> getMutations()
+	{
+		return Collections.unmodifiableList(mutations);
+	}
+
+	/**
+	 * Ships every recorded mutation to the backend as one batch, then starts over with an empty batch.
+	 */
+	public void commit()
+	{
+		if (mutations.isEmpty())
+		{
+			return;
+		}
+
+		final List<Mutation> batch = new ArrayList<>(mutations);
+		mutations.clear();
+		BatchAdapter.of(backend).apply(batch);
+	}
+
+	/**
+	 * Discards every recorded mutation.
+	 */
+	public void rollback()
+	{
+		mutations.clear();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public GroupRecord loadGroup(final GroupId id)
+	{
+		return backend instanceof ILoadingPermissionsBackend ? ((ILoadingPermissionsBackend)backend).loadGroup(id) : null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createGroup(final Group group)
+	{
+		mutations.add(Mutation.createGroup(group));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createNode(final NodeInfo node)
+	{
+		mutations.add(Mutation.createNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroup(final Group group)
+	{
+		mutations.add(Mutation.removeGroup(group));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeNode(final NodeInfo node)
+	{
+		mutations.add(Mutation.removeNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateNode(final NodeInfo node)
+	{
+		mutations.add(Mutation.updateNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addInheritedGroup(final Group parent, final Group child)
+	{
+		mutations.add(Mutation.inheritance(parent, child, true));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeInheritedGroup(final Group parent, final Group child)
+	{
+		mutations.add(Mutation.inheritance(parent, child, false));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updatePrimaryParent(final Group self, final Group parent)
+	{
+		mutations.add(Mutation.updatePrimaryParent(self, parent));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void addGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		mutations.add(Mutation.setGroupData(group, key, type, value, false));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void updateGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		mutations.add(Mutation.setGroupData(group, key, type, value, true));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroupData(final Group group, final String key)
+	{
+		mutations.add(Mutation.removeGroupData(group, key));
+	}
+}
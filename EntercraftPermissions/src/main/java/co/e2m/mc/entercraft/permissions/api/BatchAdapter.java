@@ -0,0 +1,172 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.io.Serializable;
+import java.util.List;
+import lombok.Getter;
+
+
+/**
+ * Adapts a backend that only supports single calls to {@link IBatchPermissionsBackend}.
+ */
+public final class BatchAdapter implements IBatchPermissionsBackend, ILoadingPermissionsBackend
+{
+	/**
+	 * Gets the adapted backend.
+	 *
+	 * @return the adapted backend
+	 */
+	@Getter
+	private final IPermissionsBackend backend;
+
+	/**
+	 * Instantiates a new adapter.
+	 *
+	 * @param backend the backend to adapt
+	 */
+	private BatchAdapter(final IPermissionsBackend backend)
+	{
+		assert backend != null;
+
+		this.backend = backend;
+	}
+
+	/**
+	 * Gets a batch-capable view of a backend.
+	 *
+	 * @param backend the backend
+	 * @return the backend itself if it supports batches; otherwise, an adapter
+	 */
+	public static IBatchPermissionsBackend of(final IPermissionsBackend backend)
+	{
+		if (backend instanceof IBatchPermissionsBackend)
+		{
+			return (IBatchPermissionsBackend)backend;
+		}
+
+		return new BatchAdapter(backend);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Mutations are applied one at a time, so a failure may leave earlier mutations applied.
+	 * </p>
+	 */
+	@Override
+	public void apply(final List<Mutation> mutations)
+	{
+		for (final Mutation mutation : mutations)
+		{
+			mutation.apply(backend);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public GroupRecord loadGroup(final GroupId id)
+	{
+		return backend instanceof ILoadingPermissionsBackend ? ((ILoadingPermissionsBackend)backend).loadGroup(id) : null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createGroup(final Group group)
+	{
+		backend.createGroup(group);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createNode(final NodeInfo node)
+	{
+		backend.createNode(node);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroup(final Group group)
+	{
+		backend.removeGroup(group);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeNode(final NodeInfo node)
+	{
+		backend.removeNode(node);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateNode(final NodeInfo node)
+	{
+		backend.updateNode(node);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addInheritedGroup(final Group parent, final Group child)
+	{
+		backend.addInheritedGroup(parent, child);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeInheritedGroup(final Group parent, final Group child)
+	{
+		backend.removeInheritedGroup(parent, child);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updatePrimaryParent(final Group self, final Group parent)
+	{
+		backend.updatePrimaryParent(self, parent);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void addGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		backend.addGroupData(group, key, type, value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void updateGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		backend.updateGroupData(group, key, type, value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroupData(final Group group, final String key)
+	{
+		backend.removeGroupData(group, key);
+	}
+}
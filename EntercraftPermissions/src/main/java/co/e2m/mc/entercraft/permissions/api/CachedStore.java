@@ -21,7 +21,7 @@ public abstract class CachedStore
 	 * @return cache version, used to ensure that the cache is up-to-date
 	 */
 	@Getter
-	private transient long cacheVersion;
+	private transient volatile long cacheVersion;
 
 	/**
 	 * Gets the permissions manager with which this store is associated.
@@ -0,0 +1,34 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+
+/**
+ * An entry in a backend's change feed: a group that was written, and the kind of write.
+ */
+@Data
+@AllArgsConstructor
+public final class Change
+{
+	/**
+	 * Gets the feed version at which the change was recorded.  Versions increase with each change.
+	 *
+	 * @return the change's version
+	 */
+	private final long version;
+
+	/**
+	 * Gets the identifier of the changed group.
+	 *
+	 * @return the group's identifier
+	 */
+	private final GroupId id;
+
+	/**
+	 * Gets the kind of write, as the last mutation of the group in its batch.
+	 *
+	 * @return the mutation type
+	 */
+	private final Mutation.Type type;
+}
@@ -0,0 +1,47 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+
+/**
+ * The changes a backend recorded after a given version of its change feed.
+ */
+@Data
+@AllArgsConstructor
+public final class ChangeSet
+{
+	/**
+	 * Gets the feed version that the changes lead up to.  Passing it to {@link IChangeFeedBackend#getChangesSince(long)} fetches the
+	 * changes that follow.
+	 *
+	 * @return the latest version covered
+	 */
+	private final long version;
+
+	/**
+	 * Gets the changes, oldest first.
+	 *
+	 * @return the changes
+	 */
+	private final List<Change> changes;
+
+	/**
+	 * Gets the identifiers of every changed group.
+	 *
+	 * @return the changed groups, in order of their first change
+	 */
+	public Set<GroupId> getChangedGroups()
+	{
+		final Set<GroupId> ids = new LinkedHashSet<>();
+		for (final Change change : changes)
+		{
+			ids.add(change.getId());
+		}
+
+		return ids;
+	}
+}
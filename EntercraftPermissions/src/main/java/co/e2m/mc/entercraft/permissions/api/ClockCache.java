@@ -0,0 +1,293 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * A bounded map for memoizing lookups, which evicts entries one at a time with the CLOCK policy once it is full.
+ *
+ * <p>
+ * Entries sit in a ring.  A lookup that finds an entry marks it as referenced, which is the only write on the hit path, and is skipped
+ * once the mark is set.  When room is needed, a hand sweeps the ring, clearing marks as it passes, and evicts the first entry that has
+ * not been referenced since the hand last passed it.  Entries in steady use therefore survive, unlike when the whole map is discarded
+ * at once.
+ * </p>
+ *
+ * <p>
+ * Lookups are lock-free.  Insertions and removals lock the cache, so they should follow a miss that costs more than the lock.  The
+ * ring grows as entries are added, up to the capacity, so that caches that only ever hold a few entries stay small.
+ * </p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+final class ClockCache<K, V>
+{
+	/**
+	 * Initial number of slots in the ring.
+	 */
+	private static final int INITIAL_SLOTS = 16;
+
+	/**
+	 * Entries by key.
+	 */
+	private final ConcurrentMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Entries by slot; {@literal null} marks a free slot.  Guarded by {@code this}.
+	 */
+	private Entry<K, V>[] ring = newRing(INITIAL_SLOTS);
+
+	/**
+	 * Number of slots in the ring that have ever been used, so the hand only sweeps those.  Guarded by {@code this}.
+	 */
+	private int used;
+
+	/**
+	 * Free slots below {@link #used}, as a stack.  Guarded by {@code this}.
+	 */
+	private int[] free = new int[INITIAL_SLOTS];
+
+	/**
+	 * Number of free slots on the stack.  Guarded by {@code this}.
+	 */
+	private int freeCount;
+
+	/**
+	 * Slot at which the next sweep starts.  Guarded by {@code this}.
+	 */
+	private int hand;
+
+	/**
+	 * Maximum number of entries.
+	 */
+	private volatile int capacity;
+
+	/**
+	 * Instantiates an empty cache.
+	 *
+	 * @param capacity the maximum number of entries
+	 */
+	ClockCache(final int capacity)
+	{
+		setCapacity(capacity);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Entry<K, V>[] newRing(final int slots)
+	{
+		return new Entry[slots];
+	}
+
+	/**
+	 * Sets the maximum number of entries.  Takes effect on the next insertion.
+	 *
+	 * @param capacity the maximum number of entries
+	 */
+	void setCapacity(final int capacity)
+	{
+		assert capacity > 0;
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the number of entries
+	 */
+	int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Looks up an entry, marking it as referenced.
+	 *
+	 * @param key the key
+	 * @return the entry's value, or {@literal null} if there is no entry for the key
+	 */
+	V get(final K key)
+	{
+		final Entry<K, V> entry = entries.get(key);
+		if (entry == null)
+		{
+			return null;
+		}
+
+		if (!entry.isReferenced)
+		{
+			entry.isReferenced = true;
+		}
+
+		return entry.value;
+	}
+
+	/**
+	 * Adds an entry unless there already is one for the key, evicting another entry if the cache is full.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the value now cached for the key, which is {@code value} unless another thread added an entry first
+	 */
+	synchronized V put(final K key, final V value)
+	{
+		assert key != null;
+		assert value != null;
+
+		final Entry<K, V> existing = entries.get(key);
+		if (existing != null)
+		{
+			return existing.value;
+		}
+
+		while (entries.size() >= capacity)
+		{
+			release(evict());
+		}
+
+		final int slot;
+		if (freeCount > 0)
+		{
+			slot = free[--freeCount];
+		}
+		else if (used < ring.length)
+		{
+			slot = used++;
+		}
+		else if (ring.length < capacity)
+		{
+			final int slots = (int)Math.min(capacity, ring.length * 2L);
+			ring = Arrays.copyOf(ring, slots);
+			free = Arrays.copyOf(free, slots);
+			slot = used++;
+		}
+		else
+		{
+			slot = evict();
+		}
+
+		final Entry<K, V> entry = new Entry<>(key, value, slot);
+		ring[slot] = entry;
+		entries.put(key, entry);
+		return value;
+	}
+
+	/**
+	 * Removes an entry if it exists.
+	 *
+	 * @param key the key
+	 */
+	synchronized void remove(final K key)
+	{
+		final Entry<K, V> entry = entries.remove(key);
+		if (entry != null)
+		{
+			ring[entry.slot] = null;
+			release(entry.slot);
+		}
+	}
+
+	/**
+	 * Removes every entry.
+	 */
+	synchronized void clear()
+	{
+		entries.clear();
+		ring = newRing(INITIAL_SLOTS);
+		used = 0;
+		hand = 0;
+		free = new int[INITIAL_SLOTS];
+		freeCount = 0;
+	}
+
+	/**
+	 * Pushes a slot onto the stack of free slots.
+	 *
+	 * @param slot the slot, which must be empty
+	 */
+	private void release(final int slot)
+	{
+		assert ring[slot] == null;
+
+		free[freeCount++] = slot;
+	}
+
+	/**
+	 * Advances the hand to the next unreferenced entry and evicts it.  Referenced entries that the hand passes lose their mark.  Returns
+	 * within two turns of the ring, since the first turn clears every mark.
+	 *
+	 * @return the evicted entry's slot, which is now empty
+	 */
+	private int evict()
+	{
+		assert !entries.isEmpty();
+
+		while (true)
+		{
+			final int slot = hand;
+			hand = (hand + 1) % used;
+
+			final Entry<K, V> entry = ring[slot];
+			if (entry == null)
+			{
+				continue;
+			}
+
+			if (entry.isReferenced)
+			{
+				entry.isReferenced = false;
+				continue;
+			}
+
+			entries.remove(entry.key, entry);
+			ring[slot] = null;
+			return slot;
+		}
+	}
+
+	/**
+	 * A cached value and its place in the ring.
+	 *
+	 * @param <K> the type of keys
+	 * @param <V> the type of values
+	 */
+	private static final class Entry<K, V>
+	{
+		/**
+		 * The key.
+		 */
+		final K key;
+
+		/**
+		 * The value.
+		 */
+		final V value;
+
+		/**
+		 * The entry's slot in the ring.
+		 */
+		final int slot;
+
+		/**
+		 * Whether the entry has been looked up since the hand last passed it.
+		 */
+		volatile boolean isReferenced;
+
+		/**
+		 * Instantiates an entry.
+		 *
+		 * @param key the key
+		 * @param value the value
+		 * @param slot the entry's slot in the ring
+		 */
+		Entry(final K key, final V value, final int slot)
+		{
+			this.key = key;
+			this.value = value;
+			this.slot = slot;
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+
+
+/**
+ * Compiled view of the permissions in effect for a group, including all inherited groups.
+ *
+ * <p>
+ * The view is built once from the flattened inheritance graph and remembers the cache version of every contributing group and
+ * permission tree.  Resolved rules are kept by permission, so repeated checks are answered with a single hash lookup.  Once any
+ * contributing version changes, the view is no longer current and must be rebuilt.
+ * </p>
+ *
+ * <p>
+ * A view may also be {@link #compile() compiled} into one automaton for all contributing trees, after which permissions that are not yet
+ * resolved cost one transition per segment, regardless of the number of groups and wildcards.
+ * </p>
+ *
+ * <p>
+ * Views are safe to share between threads.  A rule resolved while a contributing tree changes may be remembered, but the change then
+ * touches the tree, so the view stops being current and the rule is discarded with it.
+ * </p>
+ */
+public class EffectivePermissions
+{
+	/**
+	 * Maximum number of resolved permissions to keep.  Once there are more, those resolved least often are discarded.
+	 */
+	public static final int MAX_RESOLVED = 4096;
+
+	/**
+	 * Gets the group for which the view was compiled.
+	 *
+	 * @return the compiled group
+	 */
+	@Getter
+	private final Group group;
+
+	/**
+	 * The compiled group and all inherited groups, direct or indirect.
+	 */
+	private final Group[] sources;
+
+	/**
+	 * Cache versions of each source group, followed by the cache version of its permission tree.
+	 */
+	private final long[] versions;
+
+	/**
+	 * Whether the lineage was unchanged after the versions were recorded.  If it changed concurrently, the versions may be newer than
+	 * the sources, so the view must never be considered current.
+	 */
+	private final boolean isConsistent;
+
+	/**
+	 * Resolved rules by unparsed permission.
+	 */
+	private final ClockCache<String, Rule> resolved = new ClockCache<>(MAX_RESOLVED);
+
+	/**
+	 * The contributing trees compiled into one automaton, or {@literal null} if the view has not been compiled.
+	 */
+	private volatile PermissionAutomaton automaton;
+
+	/**
+	 * Compiles a view of a group's effective permissions.
+	 *
+	 * @param group the group to compile
+	 */
+	public EffectivePermissions(final Group group)
+	{
+		assert group != null;
+
+		this.group = group;
+		this.sources = group.getLineage();
+		this.versions = new long[sources.length * 2];
+
+		for (int i = 0; i < sources.length; i++)
+		{
+			versions[i * 2] = sources[i].getCacheVersion();
+			versions[i * 2 + 1] = sources[i].getPermissions().getCacheVersion();
+		}
+
+		this.isConsistent = group.getLineage() == sources;
+	}
+
+	/**
+	 * Determines whether the view still reflects every contributing group and permission tree.
+	 *
+	 * @return true if no contributing cache version has changed; otherwise, false
+	 */
+	public boolean isCurrent()
+	{
+		if (!isConsistent)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < sources.length; i++)
+		{
+			if (versions[i * 2] != sources[i].getCacheVersion() || versions[i * 2 + 1] != sources[i].getPermissions().getCacheVersion())
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Determines whether the compiled group permits or denies a prepared permission.  Rules are resolved from the key's segments, so the
+	 * permission is never split.
+	 *
+	 * @param key the permission to assess
+	 * @return the dominant rule among all contributing groups
+	 */
+	public Rule getRule(final PermissionKey key)
+	{
+		assert key != null;
+
+		final Rule rule = resolved.get(key.getPermission());
+		if (rule != null)
+		{
+			return rule;
+		}
+
+		final int[] segments = key.getSegments();
+		return resolved.put(key.getPermission(), resolve(segments, segments.length));
+	}
+
+	/**
+	 * Compiles every contributing permission tree into one automaton, which answers permissions that have not yet been resolved.
+	 *
+	 * <p>
+	 * If a contributing tree changes while it is compiled, the view stops being current, so the automaton is discarded with it.
+	 * </p>
+	 */
+	public void compile()
+	{
+		final List<NodeTree> trees = new ArrayList<>(sources.length);
+		for (final Group source : sources)
+		{
+			trees.add(source.getPermissions());
+		}
+
+		automaton = PermissionAutomaton.compile(trees);
+	}
+
+	/**
+	 * Gets whether the view has been compiled into an automaton.
+	 *
+	 * @return true if the view has been compiled; otherwise, false
+	 */
+	public boolean isCompiled()
+	{
+		return automaton != null;
+	}
+
+	/**
+	 * Determines whether the compiled group permits or denies the specified permission.
+	 *
+	 * @param permission the permission to assess
+	 * @return the dominant rule among all contributing groups
+	 */
+	public Rule getRule(final String permission)
+	{
+		assert permission != null;
+
+		final Rule rule = resolved.get(permission);
+		if (rule != null)
+		{
+			return rule;
+		}
+
+		final int[] segments = new int[NodeTree.MAX_DEPTH + 1];
+		return resolved.put(permission, resolve(segments, PathTokenizer.tokenize(permission, segments)));
+	}
+
+	/**
+	 * Determines whether the compiled group permits or denies each permission of a query, walking each contributing tree once for all
+	 * of them.  Resolved rules are neither consulted nor remembered.
+	 *
+	 * @param query the permissions to assess
+	 * @return the dominant {@link Rule#pack() packed} rule of each permission, in the query's order
+	 */
+	public long[] getPackedRules(final PermissionQuery query)
+	{
+		assert query != null;
+
+		final PermissionQuery.Paths paths = query.getPaths();
+		final long[] results = new long[query.size()];
+
+		final PermissionAutomaton compiled = automaton;
+		if (compiled != null)
+		{
+			compiled.mergePackedRules(paths, results);
+			return results;
+		}
+
+		for (final Group source : sources)
+		{
+			source.getPermissions().mergePackedRules(paths, results);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Resolves a permission against every contributing permission tree.
+	 *
+	 * @param segments the permission to assess, as ordered segment identifiers
+	 * @param length the number of segments in {@code segments} to assess
+	 * @return the dominant rule among all contributing groups
+	 */
+	private Rule resolve(final int[] segments, final int length)
+	{
+		final PermissionAutomaton compiled = automaton;
+		if (compiled != null)
+		{
+			return compiled.getRule(segments, length);
+		}
+
+		long effective = Rule.NONE_PACKED;
+
+		for (final Group source : sources)
+		{
+			effective = Math.max(effective, source.getPermissions().getPackedRule(segments, length));
+		}
+
+		return Rule.unpack(effective);
+	}
+}
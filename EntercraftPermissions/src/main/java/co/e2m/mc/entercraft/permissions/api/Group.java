@@ -2,26 +2,41 @@ package co.e2m.mc.entercraft.permissions.api;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import lombok.Getter;
 
 
 /**
  * Permissions model for an individual group.
+ *
+ * <p>
+ * Groups may be read from any thread without locking.  Changes are serialized by the manager's {@link IPermissionsManager#getLock(GroupId)
+ * lock} for the group, and collections are replaced or updated atomically so that readers always see a consistent state.
+ * </p>
  */
 public class Group extends CachedStore
 {
 	/**
-	 * Gets a set of groups from which this group inherits permissions.
+	 * Gets a set of groups from which this group inherits permissions.  Kept in insertion order so that inheritance is deterministic, and
+	 * copied on write, since groups have few parents but are read constantly.
 	 *
 	 * @return a set of inherited groups
 	 */
-	private final Set<Group> parents = new HashSet<>();
+	private final Set<Group> parents = new CopyOnWriteArraySet<>();
+
+	/**
+	 * Groups that directly inherit from this group.  Used to invalidate their lineage when this group's inheritance changes.
+	 */
+	private final Set<Group> inheritors = Collections.newSetFromMap(new ConcurrentHashMap<Group, Boolean>());
 
 	/**
 	 * Gets the group's own permission tree.
@@ -42,7 +57,7 @@ public class Group extends CachedStore
 	/**
 	 * Group metadata, such as prefix, suffix, primary group (for users), etc.
 	 */
-	private final Map<String, Serializable> data = new HashMap<>();
+	private final Map<String, Serializable> data = new ConcurrentHashMap<>();
 
 	/**
 	 * Gets the group's primary parent.  Metadata is only inherited from this group.
@@ -54,7 +69,44 @@ public class Group extends CachedStore
 	 * @return the group's primary parent
 	 */
 	@Getter
-	private Group primaryParent;
+	private volatile Group primaryParent;
+
+	/**
+	 * Compiled view of this group's effective permissions, or {@literal null} if it has not been compiled yet.
+	 */
+	private transient volatile EffectivePermissions effectivePermissions;
+
+	/**
+	 * Cache for {@link #getLineage()} and {@link #getMembership()}.  Cleared whenever this group or any of its ancestors changes
+	 * inheritance.
+	 */
+	private transient volatile Lineage lineage;
+
+	/**
+	 * Incremented whenever {@link #lineage} is cleared, so that a lineage computed concurrently with a change is not cached.
+	 */
+	private transient volatile int lineageStamp;
+
+	/**
+	 * Guards {@link #lineageStamp} and {@link #index} changes.
+	 */
+	private final transient Object lineageLock = new Object();
+
+	/**
+	 * Index assigned by the manager's {@link GroupIndex}, or -1 if none has been assigned.  Only normal groups are indexed.
+	 */
+	private transient volatile int index = -1;
+
+	/**
+	 * Resolution of {@link #lastAccess}, in milliseconds.  Coarse, so that lookups rarely write to the group.
+	 */
+	private static final long ACCESS_RESOLUTION = 1000;
+
+	/**
+	 * Time at which the group was last looked up in the manager's cache, in milliseconds, to within {@link #ACCESS_RESOLUTION}.  Used to
+	 * choose groups to evict.
+	 */
+	private transient volatile long lastAccess;
 
 	/**
 	 * Creates a new permissions group from a group identifier.
@@ -88,18 +140,32 @@ public class Group extends CachedStore
 	 */
 	public void setPrimaryParent(final Group group)
 	{
-		if (getPrimaryParent() == group)
+		synchronized (getLock())
 		{
-			return;
-		}
+			if (getPrimaryParent() == group)
+			{
+				return;
+			}
 
-		if (group != null && !parents.contains(group))
-		{
-			inherit(group);
+			if (group != null && !parents.contains(group))
+			{
+				inherit(group);
+			}
+
+			primaryParent = group;
+			touch();
+			getBackend().updatePrimaryParent(this, group);
 		}
+	}
 
-		primaryParent = group;
-		getBackend().updatePrimaryParent(this, group);
+	/**
+	 * Gets the lock that serializes changes to this group.
+	 *
+	 * @return the group's write lock
+	 */
+	private Object getLock()
+	{
+		return getManager().getLock(id);
 	}
 
 	/**
@@ -116,11 +182,6 @@ public class Group extends CachedStore
 	 */
 	public <T extends Serializable> T getData(final String key, final Class<T> type)
 	{
-		if (!data.containsKey(key))
-		{
-			return null;
-		}
-
 		final Serializable value = data.get(key);
 		if (value == null || !type.isAssignableFrom(value.getClass()))
 		{
@@ -146,21 +207,22 @@ public class Group extends CachedStore
 			return;
 		}
 
-		final boolean isUpdate = data.containsKey(key);
-		if (isUpdate && value.equals(data.get(key)))
+		synchronized (getLock())
 		{
-			return;
-		}
-
-		data.put(key, value);
+			final Serializable previous = data.put(key, value);
+			if (value.equals(previous))
+			{
+				return;
+			}
 
-		if (isUpdate)
-		{
-			getBackend().updateGroupData(this, key, type, value);
-		}
-		else
-		{
-			getBackend().addGroupData(this, key, type, value);
+			if (previous != null)
+			{
+				getBackend().updateGroupData(this, key, type, value);
+			}
+			else
+			{
+				getBackend().addGroupData(this, key, type, value);
+			}
 		}
 	}
 
@@ -171,20 +233,30 @@ public class Group extends CachedStore
 	 */
 	public void removeData(final String key)
 	{
-		if (!data.containsKey(key))
+		synchronized (getLock())
 		{
-			return;
+			if (data.remove(key) != null)
+			{
+				getBackend().removeGroupData(this, key);
+			}
 		}
+	}
 
-		data.remove(key);
-		getBackend().removeGroupData(this, key);
+	/**
+	 * Gets all of the group's own metadata.
+	 *
+	 * @return an unmodifiable, live view of the group's metadata
+	 */
+	Map<String, Serializable> getDataMap()
+	{
+		return Collections.unmodifiableMap(data);
 	}
 
 	/**
 	 * Determines whether this group inherits from another group.
 	 *
 	 * @param group the group from which this group may inherit
-	 * @return true if this group inherits from the specified group; otherwise, false
+	 * @return true if this group inherits from the specified group, directly or indirectly; otherwise, false
 	 */
 	public boolean isInherited(final Group group)
 	{
@@ -193,87 +265,428 @@ public class Group extends CachedStore
 			return true;
 		}
 
-		final Set<Group> checkedGroups = new HashSet<>();
-		checkedGroups.add(this);
-		return isInherited(group, checkedGroups);
+		if (group != this && group != null && group.getId().getType() == GroupType.NORMAL)
+		{
+			return hasMembership(group);
+		}
+
+		final Group[] groups = getLineage();
+		for (int i = 1; i < groups.length; i++)
+		{
+			if (groups[i] == group)
+			{
+				return true;
+			}
+		}
+
+		return false;
 	}
 
 	/**
-	 * Determines whether this group inherits from another group.
+	 * Determines whether this group is, or inherits from, another group.
 	 *
-	 * @param group the group from which this group may inherit
-	 * @param checkedGroups groups that have already been checked, to prevent infinite recursion
-	 * @return true if this group inherits from the specified group; otherwise, false
+	 * <p>
+	 * For normal groups, this is a single test against the {@link #getMembership() membership bitset}.
+	 * </p>
+	 *
+	 * @param group the group to test
+	 * @return true if the specified group is this group or is inherited by it, directly or indirectly; otherwise, false
 	 */
-	private boolean isInherited(final Group group, final Set<Group> checkedGroups)
+	public boolean isMemberOf(final Group group)
 	{
-		assert group != null;
-		assert checkedGroups != null;
+		if (group == this)
+		{
+			return true;
+		}
 
-		if (getPermissions().isEmpty())
+		if (group != null && group.getId().getType() == GroupType.NORMAL)
 		{
-			return false;
+			return hasMembership(group);
 		}
 
-		final Set<Group> groupsToCheck = new HashSet<>(parents);
-		groupsToCheck.removeAll(checkedGroups);
-		checkedGroups.addAll(groupsToCheck);
+		return isInherited(group);
+	}
+
+	/**
+	 * Tests the membership bitset for a normal group.
+	 *
+	 * @param group the normal group to test
+	 * @return true if the group's bit is set; otherwise, false
+	 */
+	private boolean hasMembership(final Group group)
+	{
+		final int bit = group.getIndex();
+		final long[] bits = getMembership();
+		final int word = bit >>> 6;
+		return word < bits.length && (bits[word] & (1L << bit)) != 0;
+	}
+
+	/**
+	 * Gets the groups from which this group directly inherits.
+	 *
+	 * @return an unmodifiable set of directly inherited groups
+	 */
+	public Set<Group> getParents()
+	{
+		return Collections.unmodifiableSet(parents);
+	}
 
-		for (final Group g : groupsToCheck)
+	/**
+	 * Gets the groups that directly inherit from this group.
+	 *
+	 * @return an unmodifiable set of groups that directly inherit from this group
+	 */
+	public Set<Group> getInheritors()
+	{
+		return Collections.unmodifiableSet(inheritors);
+	}
+
+	/**
+	 * Gets all groups that inherit from this group, directly or indirectly.
+	 *
+	 * <p>
+	 * Only the groups below this one in the inheritance graph are visited.
+	 * </p>
+	 *
+	 * @return all groups that inherit from this group, excluding this group
+	 */
+	public Set<Group> getDescendants()
+	{
+		final Set<Group> descendants = new LinkedHashSet<>();
+		final List<Group> pending = new ArrayList<>(inheritors);
+
+		while (!pending.isEmpty())
 		{
-			if (g.isInherited(group, checkedGroups))
+			final Group group = pending.remove(pending.size() - 1);
+			if (group != this && descendants.add(group))
 			{
-				return true;
+				pending.addAll(group.inheritors);
 			}
 		}
 
-		return false;
+		return descendants;
 	}
 
 	/**
-	 * Gets this group and all inherited groups, direct or indirect.
+	 * Removes this group from the inheritor index of each of its parents, so a removed group is not kept reachable, and unindexes its
+	 * permissions.
 	 *
-	 * @return this group and all inherited groups
+	 * <p>
+	 * The backend is not notified; the group itself is expected to be removed from the backend.
+	 * </p>
 	 */
-	public Set<Group> getGroups()
+	void detachFromParents()
+	{
+		for (final Group parent : parents)
+		{
+			parent.inheritors.remove(this);
+		}
+
+		getManager().getPermissionIndex().removeChildren(permissions);
+
+		synchronized (lineageLock)
+		{
+			if (index >= 0)
+			{
+				getManager().getGroupIndex().release(index);
+				index = -1;
+			}
+		}
+	}
+
+	/**
+	 * Restores inheritance and metadata loaded from the backend, without notifying the backend.
+	 *
+	 * @param parents the groups from which this group directly inherits, in inheritance order
+	 * @param primaryParent the primary parent, or {@literal null} if there is none; must be among {@code parents}
+	 * @param data metadata to restore
+	 */
+	void restore(final List<Group> parents, final Group primaryParent, final Map<String, Serializable> data)
 	{
-		final Set<Group> groups = new HashSet<>();
-		groups.add(this);
+		synchronized (getLock())
+		{
+			for (final Group parent : parents)
+			{
+				if (this.parents.add(parent))
+				{
+					parent.inheritors.add(this);
+				}
+			}
+
+			if (primaryParent != null && this.parents.contains(primaryParent))
+			{
+				this.primaryParent = primaryParent;
+			}
+
+			for (final Map.Entry<String, Serializable> entry : data.entrySet())
+			{
+				if (entry.getValue() != null)
+				{
+					this.data.put(entry.getKey(), entry.getValue());
+				}
+			}
+
+			invalidateLineage();
+			touch();
+		}
+	}
 
-		for (final Group group : parents)
+	/**
+	 * Replaces the group's nodes, inheritance and metadata with state reloaded from the backend, without notifying the backend.
+	 *
+	 * <p>
+	 * Only what differs is replaced, and the group is only touched if anything did.  Parents that are kept keep their position; new
+	 * parents are inherited last.
+	 * </p>
+	 *
+	 * @param parents the groups from which this group directly inherits, in inheritance order
+	 * @param primaryParent the primary parent, or {@literal null} if there is none; must be among {@code parents}
+	 * @param data the group's metadata
+	 * @param nodes the group's nodes, ancestors first
+	 * @return true if the group changed; otherwise, false
+	 */
+	boolean reload(final List<Group> parents, final Group primaryParent, final Map<String, Serializable> data,
+		final Collection<NodeInfo> nodes)
+	{
+		synchronized (getLock())
 		{
-			if (groups.contains(group))
+			boolean isInheritanceChanged = false;
+			for (final Group parent : this.parents)
 			{
-				continue;
+				if (!parents.contains(parent))
+				{
+					this.parents.remove(parent);
+					parent.inheritors.remove(this);
+					isInheritanceChanged = true;
+				}
 			}
 
-			groups.addAll(group.getGroups());
+			for (final Group parent : parents)
+			{
+				if (this.parents.add(parent))
+				{
+					parent.inheritors.add(this);
+					isInheritanceChanged = true;
+				}
+			}
+
+			final Group newPrimaryParent = primaryParent != null && this.parents.contains(primaryParent) ? primaryParent : null;
+			boolean isChanged = isInheritanceChanged || newPrimaryParent != this.primaryParent;
+			this.primaryParent = newPrimaryParent;
+
+			if (!this.data.equals(data))
+			{
+				this.data.keySet().retainAll(data.keySet());
+				for (final Map.Entry<String, Serializable> entry : data.entrySet())
+				{
+					if (entry.getValue() != null)
+					{
+						this.data.put(entry.getKey(), entry.getValue());
+					}
+				}
+
+				isChanged = true;
+			}
+
+			if (permissions.replaceTree(nodes))
+			{
+				isChanged = true;
+			}
+
+			if (isInheritanceChanged)
+			{
+				invalidateLineage();
+			}
+
+			if (isChanged)
+			{
+				touch();
+			}
+
+			return isChanged;
+		}
+	}
+
+	/**
+	 * Records that the group was just looked up in the manager's cache.  The access time is only written once it is a full
+	 * {@link #ACCESS_RESOLUTION} out of date, so that lookups on different cores don't keep invalidating each other's cached copy of it.
+	 *
+	 * @param now the current time, in milliseconds
+	 */
+	void markAccessed(final long now)
+	{
+		if (now - lastAccess >= ACCESS_RESOLUTION)
+		{
+			lastAccess = now;
+		}
+	}
+
+	/**
+	 * Gets the time at which the group was last looked up in the manager's cache.
+	 *
+	 * @return the time of the last lookup, in milliseconds
+	 */
+	long getLastAccess()
+	{
+		return lastAccess;
+	}
+
+	/**
+	 * Gets the index of this group in the manager's {@link GroupIndex}, assigning one if necessary.
+	 *
+	 * @return the group's index, or -1 if this is not a normal group
+	 */
+	int getIndex()
+	{
+		if (index < 0 && getId().getType() == GroupType.NORMAL)
+		{
+			synchronized (lineageLock)
+			{
+				if (index < 0)
+				{
+					index = getManager().getGroupIndex().register(this);
+				}
+			}
 		}
 
-		return Collections.unmodifiableSet(groups);
+		return index;
+	}
+
+	/**
+	 * Gets a bitset of the {@link #getIndex() indices} of every normal group in the {@link #getLineage() lineage}.
+	 *
+	 * <p>
+	 * The bitset is cached along with the lineage and must not be modified.
+	 * </p>
+	 *
+	 * @return the membership bitset
+	 */
+	long[] getMembership()
+	{
+		return getCachedLineage().membership;
+	}
+
+	/**
+	 * Gets this group and all inherited groups, direct or indirect.
+	 *
+	 * @return this group and all inherited groups, in the same order as {@link #getLineage()}
+	 */
+	public Set<Group> getGroups()
+	{
+		final Group[] groups = getLineage();
+		final Set<Group> set = new LinkedHashSet<>(groups.length * 2);
+		Collections.addAll(set, groups);
+		return Collections.unmodifiableSet(set);
 	}
 
 	/**
 	 * Gets this group name and all inherited group names, direct or indirect.
 	 *
-	 * @return this group and all inherited group names
+	 * @return this group and all inherited group names, in the same order as {@link #getLineage()}
 	 */
 	public Set<String> getGroupNames()
 	{
-		final Set<String> groups = new HashSet<>();
-		groups.add(getId().getCanonicalName());
+		final Group[] groups = getLineage();
+		final Set<String> names = new LinkedHashSet<>(groups.length * 2);
 
-		for (final Group group : parents)
+		for (final Group group : groups)
 		{
-			if (groups.contains(group.getId().getCanonicalName()))
+			names.add(group.getId().getCanonicalName());
+		}
+
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * Gets this group followed by all inherited groups, direct or indirect, without duplicates.
+	 *
+	 * <p>
+	 * Groups are ordered depth-first, visiting parents in the order in which they were inherited.  The array is cached until this
+	 * group or one of its ancestors changes inheritance, and must not be modified.
+	 * </p>
+	 *
+	 * @return this group and all inherited groups
+	 */
+	Group[] getLineage()
+	{
+		return getCachedLineage().groups;
+	}
+
+	/**
+	 * Gets the cached lineage, computing it if necessary.
+	 *
+	 * <p>
+	 * The lineage is computed without locking.  It is only cached if no inheritance change invalidated it in the meantime, so a stale
+	 * lineage is never kept.
+	 * </p>
+	 *
+	 * @return the lineage and membership of this group
+	 */
+	private Lineage getCachedLineage()
+	{
+		Lineage current = lineage;
+
+		if (current == null)
+		{
+			final int stamp = lineageStamp;
+			final Set<Group> visited = new LinkedHashSet<>();
+			collectLineage(this, visited);
+			current = new Lineage(visited.toArray(new Group[visited.size()]));
+
+			synchronized (lineageLock)
 			{
-				continue;
+				if (stamp == lineageStamp)
+				{
+					lineage = current;
+				}
 			}
+		}
+
+		return current;
+	}
 
-			groups.addAll(group.getGroupNames());
+	/**
+	 * Adds a group and its ancestors to a lineage, depth-first.
+	 *
+	 * @param group the group to add
+	 * @param visited the lineage collected so far; also prevents infinite recursion
+	 */
+	private static void collectLineage(final Group group, final Set<Group> visited)
+	{
+		if (!visited.add(group))
+		{
+			return;
 		}
 
-		return Collections.unmodifiableSet(groups);
+		for (final Group parent : group.parents)
+		{
+			collectLineage(parent, visited);
+		}
+	}
+
+	/**
+	 * Clears the cached lineage and membership of this group and every group that inherits from it, directly or indirectly.
+	 */
+	private void invalidateLineage()
+	{
+		final Set<Group> visited = new HashSet<>();
+		final List<Group> pending = new ArrayList<>();
+		pending.add(this);
+
+		while (!pending.isEmpty())
+		{
+			final Group group = pending.remove(pending.size() - 1);
+			if (visited.add(group))
+			{
+				synchronized (group.lineageLock)
+				{
+					group.lineageStamp++;
+					group.lineage = null;
+				}
+
+				pending.addAll(group.inheritors);
+			}
+		}
 	}
 
 	/**
@@ -286,14 +699,20 @@ public class Group extends CachedStore
 	{
 		assert group != null;
 
-		if (parents.contains(group))
+		synchronized (getLock())
 		{
-			return false;
-		}
+			if (!parents.add(group))
+			{
+				return false;
+			}
 
-		parents.add(group);
-		getBackend().addInheritedGroup(this, group);
-		return true;
+			group.inheritors.add(this);
+			invalidateLineage();
+			touch();
+			getManager().onGroupModified(id);
+			getBackend().addInheritedGroup(this, group);
+			return true;
+		}
 	}
 
 	/**
@@ -306,14 +725,42 @@ public class Group extends CachedStore
 	{
 		assert group != null;
 
-		if (!parents.contains(group))
+		synchronized (getLock())
 		{
-			return false;
+			if (!parents.remove(group))
+			{
+				return false;
+			}
+
+			group.inheritors.remove(this);
+			invalidateLineage();
+			touch();
+			getManager().onGroupModified(id);
+			getBackend().removeInheritedGroup(this, group);
+			return true;
+		}
+	}
+
+	/**
+	 * Gets a compiled view of this group's effective permissions, compiling it again if any contributing group has changed.
+	 *
+	 * @return the compiled view of this group's effective permissions
+	 */
+	public EffectivePermissions getEffectivePermissions()
+	{
+		EffectivePermissions view = effectivePermissions;
+
+		if (view == null || !view.isCurrent())
+		{
+			view = new EffectivePermissions(this);
+			if (getManager().isCompilingAutomata())
+			{
+				view.compile();
+			}
+			effectivePermissions = view;
 		}
 
-		parents.remove(group);
-		getBackend().removeInheritedGroup(this, group);
-		return true;
+		return view;
 	}
 
 	/**
@@ -326,14 +773,84 @@ public class Group extends CachedStore
 	{
 		assert permission != null;
 
-		final String[] nodes = NodeTree.splitNodes(permission);
-		final List<Rule> rules = new ArrayList<>();
+		final int[] segments = new int[NodeTree.MAX_DEPTH + 1];
+		return getRule(segments, PathTokenizer.tokenize(permission, segments));
+	}
+
+	/**
+	 * Determines whether the group permits or denies a prepared permission.
+	 *
+	 * @param key the permission to assess
+	 * @return a rule based on the tree's effect on the permission
+	 */
+	public Rule getRule(final PermissionKey key)
+	{
+		assert key != null;
+
+		final int[] segments = key.getSegments();
+		return getRule(segments, segments.length);
+	}
 
-		for (final Group group : getGroups())
+	/**
+	 * Determines whether the group permits or denies a permission, including all inherited groups.
+	 *
+	 * @param segments the permission to assess, as ordered segment identifiers
+	 * @param length the number of segments in {@code segments} to assess
+	 * @return a rule based on the tree's effect on the permission
+	 */
+	private Rule getRule(final int[] segments, final int length)
+	{
+		long effective = Rule.NONE_PACKED;
+
+		for (final Group group : getLineage())
 		{
-			rules.add(group.getPermissions().getRule(nodes));
+			effective = Math.max(effective, group.getPermissions().getPackedRule(segments, length));
 		}
 
-		return Rule.getEffective(rules);
+		return Rule.unpack(effective);
+	}
+
+	/**
+	 * Immutable pair of a lineage and its membership bitset, published together.
+	 */
+	private static final class Lineage
+	{
+		/**
+		 * This group followed by all inherited groups.
+		 */
+		private final Group[] groups;
+
+		/**
+		 * Bitset of the indices of every normal group in {@link #groups}.
+		 */
+		private final long[] membership;
+
+		/**
+		 * Instantiates a lineage, computing its membership bitset.
+		 *
+		 * @param groups this group followed by all inherited groups
+		 */
+		Lineage(final Group[] groups)
+		{
+			long[] bits = new long[0];
+			for (final Group group : groups)
+			{
+				final int bit = group.getIndex();
+				if (bit < 0)
+				{
+					continue;
+				}
+
+				final int word = bit >>> 6;
+				if (word >= bits.length)
+				{
+					bits = Arrays.copyOf(bits, word + 1);
+				}
+				bits[word] |= 1L << bit;
+			}
+
+			this.groups = groups;
+			this.membership = bits;
+		}
 	}
 }
@@ -0,0 +1,773 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.Setter;
+
+
+/**
+ * Caches groups by identifier, evicting the least recently used user groups once there are too many.
+ *
+ * <p>
+ * Groups are partitioned by world ID.  A world's partition is created on first access to the world, and its groups are loaded on
+ * demand.  Once no player is in a world and none of its groups has been looked up for {@link #getWorldIdleTimeout()}, its groups can
+ * be unloaded as a whole.
+ * </p>
+ *
+ * <p>
+ * Normal groups are never evicted, nor are pinned user groups, such as those of online players.  Recency is approximated with a
+ * coarse access time per group, and eviction runs in batches on the thread that overfilled the cache once it has released its write
+ * lock, so lookups stay lock-free.
+ * Identifiers that the backend reported as nonexistent are remembered separately, up to the maximum number of user groups, so that
+ * repeated checks for unknown players don't reach the backend.
+ * </p>
+ */
+public class GroupCache
+{
+	/**
+	 * Default maximum number of unpinned user groups to keep.
+	 */
+	public static final int DEFAULT_MAX_USER_GROUPS = 10000;
+
+	/**
+	 * Fraction of the maximum to which an eviction batch shrinks the user groups, to avoid evicting on every insertion.
+	 */
+	private static final double EVICTION_TARGET = 0.9;
+
+	/**
+	 * Default time a world must go without players or lookups before it can be unloaded, in milliseconds.
+	 */
+	public static final long DEFAULT_WORLD_IDLE_TIMEOUT = 10 * 60 * 1000L;
+
+	/**
+	 * Resolution of a world's last activity time, in milliseconds.  Coarse, so that lookups rarely write to the partition.
+	 */
+	private static final long ACTIVITY_RESOLUTION = 1000;
+
+	/**
+	 * Cached groups by world ID.
+	 */
+	private final ConcurrentMap<String, Partition> worlds = new ConcurrentHashMap<>();
+
+	/**
+	 * Identifiers known not to exist in the backend.
+	 */
+	private final ClockCache<GroupId, Boolean> absent = new ClockCache<>(DEFAULT_MAX_USER_GROUPS);
+
+	/**
+	 * Number of cached user groups.
+	 */
+	private final AtomicInteger userGroupCount = new AtomicInteger();
+
+	/**
+	 * Whether an eviction batch is in progress.
+	 */
+	private final AtomicBoolean isEvicting = new AtomicBoolean();
+
+	/**
+	 * Number of lookups that found a cached group.  Striped, since every permission check counts one.
+	 */
+	private final StripedCounter hits = new StripedCounter();
+
+	/**
+	 * Number of lookups that found no cached group.
+	 */
+	private final StripedCounter misses = new StripedCounter();
+
+	/**
+	 * Number of groups evicted.
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Gets the maximum number of user groups to keep cached.  Pinned groups count towards the total, but are never evicted.
+	 *
+	 * @return the maximum number of user groups
+	 */
+	@Getter
+	/**
+	 * Sets the maximum number of user groups to keep cached.  Takes effect on the next insertion.
+	 *
+	 * @param maxUserGroups the maximum number of user groups
+	 */
+	@Setter
+	private volatile int maxUserGroups = DEFAULT_MAX_USER_GROUPS;
+
+	/**
+	 * Gets the time a world must go without players or lookups before it can be unloaded.
+	 *
+	 * @return the idle timeout, in milliseconds
+	 */
+	@Getter
+	/**
+	 * Sets the time a world must go without players or lookups before it can be unloaded.
+	 *
+	 * @param worldIdleTimeout the idle timeout, in milliseconds
+	 */
+	@Setter
+	private volatile long worldIdleTimeout = DEFAULT_WORLD_IDLE_TIMEOUT;
+
+	/**
+	 * Gets the number of worlds unloaded.
+	 *
+	 * @return the number of unloaded worlds
+	 */
+	@Getter
+	private volatile long unloadedWorldCount;
+
+	/**
+	 * Gets a world's partition, creating it if necessary.
+	 *
+	 * @param world the world ID
+	 * @return the world's partition
+	 */
+	private Partition partition(final String world)
+	{
+		Partition partition = worlds.get(world);
+		if (partition == null)
+		{
+			final Partition created = new Partition();
+			partition = worlds.putIfAbsent(world, created);
+			if (partition == null)
+			{
+				partition = created;
+			}
+		}
+
+		return partition;
+	}
+
+	/**
+	 * Gets a cached group, recording a hit or miss.
+	 *
+	 * @param id the group's identifier
+	 * @return the cached group, or {@literal null} if it is not cached
+	 */
+	public Group get(final GroupId id)
+	{
+		final Partition partition = worlds.get(id.getWorld());
+		final Group group = partition == null ? null : partition.groups.get(id);
+
+		if (group == null)
+		{
+			misses.increment();
+		}
+		else
+		{
+			final long now = System.currentTimeMillis();
+			hits.increment();
+			group.markAccessed(now);
+			partition.markActive(now);
+		}
+
+		return group;
+	}
+
+	/**
+	 * Gets a cached group without recording an access.
+	 *
+	 * @param id the group's identifier
+	 * @return the cached group, or {@literal null} if it is not cached
+	 */
+	public Group peek(final GroupId id)
+	{
+		final Partition partition = worlds.get(id.getWorld());
+		return partition == null ? null : partition.groups.get(id);
+	}
+
+	/**
+	 * Determines whether a group is cached.
+	 *
+	 * @param id the group's identifier
+	 * @return true if the group is cached; otherwise, false
+	 */
+	public boolean containsKey(final GroupId id)
+	{
+		final Partition partition = worlds.get(id.getWorld());
+		return partition != null && partition.groups.containsKey(id);
+	}
+
+	/**
+	 * Caches a group.  The caller should {@link #evict(IPermissionsManager) evict} once it no longer holds the group's write lock, in
+	 * case the cache is now full.
+	 *
+	 * @param id the group's identifier
+	 * @param group the group to cache
+	 * @return the previously cached group, or {@literal null} if there was none
+	 */
+	public Group put(final GroupId id, final Group group)
+	{
+		assert id != null;
+		assert group != null;
+
+		absent.remove(id);
+
+		final long now = System.currentTimeMillis();
+		final Partition partition = partition(id.getWorld());
+		group.markAccessed(now);
+		partition.markActive(now);
+
+		final Group previous = partition.groups.put(id, group);
+		if (previous == null && id.getType() == GroupType.USER)
+		{
+			userGroupCount.incrementAndGet();
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Removes a group from the cache.
+	 *
+	 * @param id the group's identifier
+	 * @return the removed group, or {@literal null} if it was not cached
+	 */
+	public Group remove(final GroupId id)
+	{
+		final Partition partition = worlds.get(id.getWorld());
+		final Group removed = partition == null ? null : partition.groups.remove(id);
+		if (removed != null && id.getType() == GroupType.USER)
+		{
+			userGroupCount.decrementAndGet();
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Gets the number of cached groups.
+	 *
+	 * @return the number of cached groups
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (final Partition partition : worlds.values())
+		{
+			size += partition.groups.size();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Gets the identifiers of all cached groups.
+	 *
+	 * @return a live, unmodifiable view of cached group identifiers
+	 */
+	public Set<GroupId> keySet()
+	{
+		return new AbstractSet<GroupId>()
+		{
+			@Override
+			public Iterator<GroupId> iterator()
+			{
+				return new PartitionIterator<GroupId>()
+				{
+					@Override
+					protected Iterator<GroupId> iterate(final Partition partition)
+					{
+						return partition.groups.keySet().iterator();
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(final Object o)
+			{
+				return o instanceof GroupId && containsKey((GroupId)o);
+			}
+
+			@Override
+			public int size()
+			{
+				return GroupCache.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Gets all cached groups.
+	 *
+	 * @return a live, unmodifiable view of cached groups
+	 */
+	public Collection<Group> values()
+	{
+		return new AbstractCollection<Group>()
+		{
+			@Override
+			public Iterator<Group> iterator()
+			{
+				return new PartitionIterator<Group>()
+				{
+					@Override
+					protected Iterator<Group> iterate(final Partition partition)
+					{
+						return partition.groups.values().iterator();
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return GroupCache.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Gets the IDs of worlds that have a partition.
+	 *
+	 * @return a live, unmodifiable view of loaded world IDs
+	 */
+	public Set<String> getWorlds()
+	{
+		return Collections.unmodifiableSet(worlds.keySet());
+	}
+
+	/**
+	 * Gets the groups cached for a world.
+	 *
+	 * @param world the world ID
+	 * @return a live, unmodifiable view of the world's cached groups
+	 */
+	public Collection<Group> values(final String world)
+	{
+		final Partition partition = worlds.get(world);
+		return partition == null ? Collections.<Group>emptyList() : Collections.unmodifiableCollection(partition.groups.values());
+	}
+
+	/**
+	 * Prevents a group from being evicted.
+	 *
+	 * <p>
+	 * Pins are counted, so that overlapping holders, such as two sessions of the same player, each keep the group pinned until they
+	 * {@link #unpin(GroupId) unpin} it.
+	 * </p>
+	 *
+	 * @param id the group's identifier
+	 */
+	public void pin(final GroupId id)
+	{
+		final ConcurrentMap<GroupId, Integer> pinned = partition(id.getWorld()).pinned;
+
+		while (true)
+		{
+			final Integer count = pinned.get(id);
+			if (count == null ? pinned.putIfAbsent(id, 1) == null : pinned.replace(id, count, count + 1))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Releases one pin of a group.  Once every pin is released, the group can be evicted again.
+	 *
+	 * @param id the group's identifier
+	 */
+	public void unpin(final GroupId id)
+	{
+		final Partition partition = worlds.get(id.getWorld());
+		if (partition == null)
+		{
+			return;
+		}
+
+		while (true)
+		{
+			final Integer count = partition.pinned.get(id);
+			if (count == null)
+			{
+				return;
+			}
+
+			if (count > 1)
+			{
+				if (partition.pinned.replace(id, count, count - 1))
+				{
+					return;
+				}
+			}
+			else if (partition.pinned.remove(id, count))
+			{
+				partition.markActive(System.currentTimeMillis());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gets the groups pinned in a world.
+	 *
+	 * @param world the world ID
+	 * @return a live, unmodifiable view of the identifiers of the world's pinned groups
+	 */
+	public Set<GroupId> getPinned(final String world)
+	{
+		final Partition partition = worlds.get(world);
+		return partition == null ? Collections.<GroupId>emptySet() : Collections.unmodifiableSet(partition.pinned.keySet());
+	}
+
+	/**
+	 * Determines whether a group is pinned.
+	 *
+	 * @param id the group's identifier
+	 * @return true if the group cannot be evicted; otherwise, false
+	 */
+	public boolean isPinned(final GroupId id)
+	{
+		final Partition partition = worlds.get(id.getWorld());
+		return partition != null && partition.pinned.containsKey(id);
+	}
+
+	/**
+	 * Remembers that a group does not exist in the backend.
+	 *
+	 * @param id the group's identifier
+	 */
+	public void markAbsent(final GroupId id)
+	{
+		absent.setCapacity(Math.max(maxUserGroups, 1));
+		absent.put(id, Boolean.TRUE);
+	}
+
+	/**
+	 * Forgets that a group does not exist in the backend, such as once another server has created it.
+	 *
+	 * @param id the group's identifier
+	 */
+	public void forgetAbsent(final GroupId id)
+	{
+		absent.remove(id);
+	}
+
+	/**
+	 * Forgets every group that was reported as nonexistent.
+	 */
+	public void clearAbsent()
+	{
+		absent.clear();
+	}
+
+	/**
+	 * Determines whether a group is known not to exist in the backend.
+	 *
+	 * @param id the group's identifier
+	 * @return true if the backend reported the group as nonexistent since it was last cached; otherwise, false
+	 */
+	public boolean isAbsent(final GroupId id)
+	{
+		return absent.get(id) != null;
+	}
+
+	/**
+	 * Gets the number of lookups that found a cached group.
+	 *
+	 * @return the number of cache hits
+	 */
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups that found no cached group.
+	 *
+	 * @return the number of cache misses
+	 */
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of groups evicted.
+	 *
+	 * @return the number of evictions
+	 */
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of cached user groups.
+	 *
+	 * @return the number of user groups
+	 */
+	public int getUserGroupCount()
+	{
+		return userGroupCount.get();
+	}
+
+	/**
+	 * Evicts the least recently used, unpinned user groups until the cache is comfortably below its maximum, if it is full.
+	 *
+	 * <p>
+	 * Only one thread evicts at a time; others simply carry on, since the cache may briefly exceed its maximum.  Groups that other groups
+	 * inherit from are kept, as are pinned groups.  Evicted groups are detached from their parents, so they can be collected.
+	 * </p>
+	 *
+	 * <p>
+	 * Each group is removed and detached while holding its write lock, so that a concurrent change can't attach it to a parent again
+	 * after it was detached.  The caller must not hold any write lock, since locks would otherwise be taken out of order.
+	 * </p>
+	 *
+	 * @param manager the manager whose write locks guard the cached groups
+	 */
+	void evict(final IPermissionsManager manager)
+	{
+		assert manager != null;
+
+		if (userGroupCount.get() <= maxUserGroups || !isEvicting.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		try
+		{
+			final int target = (int)(maxUserGroups * EVICTION_TARGET);
+			int excess = userGroupCount.get() - target;
+			if (excess <= 0)
+			{
+				return;
+			}
+
+			final List<Group> candidates = new ArrayList<>();
+			for (final Partition partition : worlds.values())
+			{
+				for (final Group group : partition.groups.values())
+				{
+					final GroupId id = group.getId();
+					if (id.getType() == GroupType.USER && !partition.pinned.containsKey(id) && group.getInheritors().isEmpty())
+					{
+						candidates.add(group);
+					}
+				}
+			}
+
+			Collections.sort(candidates, new Comparator<Group>()
+			{
+				@Override
+				public int compare(final Group a, final Group b)
+				{
+					return Long.compare(a.getLastAccess(), b.getLastAccess());
+				}
+			});
+
+			for (int i = 0; i < candidates.size() && excess > 0; i++)
+			{
+				final Group group = candidates.get(i);
+				final GroupId id = group.getId();
+				synchronized (manager.getLock(id))
+				{
+					// The group may have been replaced, pinned or inherited from since it was chosen.
+					final Partition partition = worlds.get(id.getWorld());
+					if (peek(id) == group && !partition.pinned.containsKey(id) && group.getInheritors().isEmpty())
+					{
+						remove(id);
+						group.detachFromParents();
+						evictions.incrementAndGet();
+						excess--;
+					}
+				}
+			}
+		}
+		finally
+		{
+			isEvicting.set(false);
+		}
+	}
+
+	/**
+	 * Unloads every world that has had no players or lookups for {@link #getWorldIdleTimeout()}.
+	 *
+	 * <p>
+	 * A world's groups are dropped, except those that groups in other worlds still inherit from, along with their own parents.  Dropped
+	 * groups are detached from their parents, so they can be collected, and load again on the next access to the world.  The caller must
+	 * prevent groups from being cached concurrently, such as by holding every write lock.
+	 * </p>
+	 *
+	 * <p>
+	 * Each group is removed and detached while holding its write lock, as in {@link #evict(IPermissionsManager)}.
+	 * </p>
+	 *
+	 * @param manager the manager whose write locks guard the cached groups
+	 * @return the number of groups unloaded
+	 */
+	int unloadIdleWorlds(final IPermissionsManager manager)
+	{
+		assert manager != null;
+
+		final long cutoff = System.currentTimeMillis() - worldIdleTimeout;
+		int unloaded = 0;
+
+		for (final Map.Entry<String, Partition> entry : worlds.entrySet())
+		{
+			final Partition partition = entry.getValue();
+			if (!partition.pinned.isEmpty() || partition.lastActive > cutoff)
+			{
+				continue;
+			}
+
+			final String world = entry.getKey();
+			final Set<Group> kept = new HashSet<>();
+			final List<Group> pending = new ArrayList<>();
+			for (final Group group : partition.groups.values())
+			{
+				for (final Group inheritor : group.getInheritors())
+				{
+					if (!world.equals(inheritor.getId().getWorld()))
+					{
+						pending.add(group);
+						break;
+					}
+				}
+			}
+
+			while (!pending.isEmpty())
+			{
+				final Group group = pending.remove(pending.size() - 1);
+				if (kept.add(group))
+				{
+					for (final Group parent : group.getParents())
+					{
+						if (world.equals(parent.getId().getWorld()))
+						{
+							pending.add(parent);
+						}
+					}
+				}
+			}
+
+			for (final Group group : new ArrayList<>(partition.groups.values()))
+			{
+				if (kept.contains(group))
+				{
+					continue;
+				}
+
+				final GroupId id = group.getId();
+				synchronized (manager.getLock(id))
+				{
+					if (peek(id) == group)
+					{
+						remove(id);
+						group.detachFromParents();
+						unloaded++;
+					}
+				}
+			}
+
+			if (partition.groups.isEmpty() && partition.pinned.isEmpty())
+			{
+				worlds.remove(world, partition);
+			}
+
+			unloadedWorldCount++;
+		}
+
+		return unloaded;
+	}
+
+	/**
+	 * Cached groups of one world.
+	 */
+	private static final class Partition
+	{
+		/**
+		 * Cached groups by identifier.
+		 */
+		private final ConcurrentMap<GroupId, Group> groups = new ConcurrentHashMap<>();
+
+		/**
+		 * Number of pins by identifier of groups that must not be evicted, such as those of players in the world.
+		 */
+		private final ConcurrentMap<GroupId, Integer> pinned = new ConcurrentHashMap<>();
+
+		/**
+		 * Time at which the world was created, a group in it was looked up or cached, or a player left it, in milliseconds, to within
+		 * {@link #ACTIVITY_RESOLUTION}.
+		 */
+		private volatile long lastActive = System.currentTimeMillis();
+
+		/**
+		 * Records activity in the world.  The time is only written once it is a full {@link #ACTIVITY_RESOLUTION} out of date, since
+		 * every permission check in the world passes through here.
+		 *
+		 * @param now the current time, in milliseconds
+		 */
+		void markActive(final long now)
+		{
+			if (now - lastActive >= ACTIVITY_RESOLUTION)
+			{
+				lastActive = now;
+			}
+		}
+	}
+
+	/**
+	 * Iterates over an element of every partition in turn.
+	 *
+	 * @param <E> the type of element
+	 */
+	private abstract class PartitionIterator<E> implements Iterator<E>
+	{
+		private final Iterator<Partition> partitions = worlds.values().iterator();
+		private Iterator<E> current = Collections.<E>emptyList().iterator();
+
+		/**
+		 * Gets an iterator over a partition's elements.
+		 *
+		 * @param partition the partition
+		 * @return the iterator
+		 */
+		protected abstract Iterator<E> iterate(Partition partition);
+
+		@Override
+		public boolean hasNext()
+		{
+			while (!current.hasNext() && partitions.hasNext())
+			{
+				current = iterate(partitions.next());
+			}
+
+			return current.hasNext();
+		}
+
+		@Override
+		public E next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+
+			return current.next();
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Arrays;
+
+
+/**
+ * Assigns dense integer indices to normal groups, so that group membership can be stored as a compact bitset.
+ *
+ * <p>
+ * Indices of removed groups are released and reused.  This is safe because removing a group uninherits it everywhere, which
+ * invalidates every membership bitset that could refer to it.
+ * </p>
+ */
+public class GroupIndex
+{
+	/**
+	 * Initial number of groups that can be indexed before the tables grow.
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Indexed groups by index; {@literal null} for unused indices.
+	 */
+	private volatile Group[] groups = new Group[INITIAL_CAPACITY];
+
+	/**
+	 * Canonical names of indexed groups by index; {@literal null} for unused indices.
+	 */
+	private volatile String[] names = new String[INITIAL_CAPACITY];
+
+	/**
+	 * Released indices available for reuse.
+	 */
+	private int[] free = new int[0];
+
+	/**
+	 * Number of released indices in {@link #free}.
+	 */
+	private int freeCount;
+
+	/**
+	 * One more than the highest index ever assigned.
+	 */
+	private int size;
+
+	/**
+	 * Assigns an index to a group.
+	 *
+	 * @param group the group to index
+	 * @return the group's new index
+	 */
+	public synchronized int register(final Group group)
+	{
+		assert group != null;
+
+		final int index;
+		if (freeCount > 0)
+		{
+			index = free[--freeCount];
+		}
+		else
+		{
+			index = size++;
+			if (index >= groups.length)
+			{
+				names = Arrays.copyOf(names, groups.length * 2);
+				groups = Arrays.copyOf(groups, groups.length * 2);
+			}
+		}
+
+		names[index] = group.getId().getCanonicalName();
+		groups[index] = group;
+		return index;
+	}
+
+	/**
+	 * Releases an index so that it can be reused by another group.
+	 *
+	 * @param index the index to release
+	 */
+	public synchronized void release(final int index)
+	{
+		if (index < 0 || index >= size || groups[index] == null)
+		{
+			return;
+		}
+
+		groups[index] = null;
+		names[index] = null;
+
+		if (freeCount == free.length)
+		{
+			free = Arrays.copyOf(free, Math.max(8, free.length * 2));
+		}
+		free[freeCount++] = index;
+	}
+
+	/**
+	 * Gets an indexed group.
+	 *
+	 * @param index the group's index
+	 * @return the group, or {@literal null} if the index is unused
+	 */
+	public Group get(final int index)
+	{
+		final Group[] table = groups;
+		return index >= 0 && index < table.length ? table[index] : null;
+	}
+
+	/**
+	 * Gets the canonical names of every group in a membership bitset.
+	 *
+	 * @param membership bitset of group indices, as returned by {@link Group#getMembership()}
+	 * @return canonical group names, ordered by index
+	 */
+	public String[] getNames(final long[] membership)
+	{
+		assert membership != null;
+
+		final String[] table = names;
+
+		int count = 0;
+		for (final long word : membership)
+		{
+			count += Long.bitCount(word);
+		}
+
+		final String[] result = new String[count];
+		int found = 0;
+		for (int w = 0; w < membership.length; w++)
+		{
+			for (long word = membership[w]; word != 0; word &= word - 1)
+			{
+				final int index = w * Long.SIZE + Long.numberOfTrailingZeros(word);
+				if (index < table.length && table[index] != null)
+				{
+					result[found++] = table[index];
+				}
+			}
+		}
+
+		return found == count ? result : Arrays.copyOf(result, found);
+	}
+}
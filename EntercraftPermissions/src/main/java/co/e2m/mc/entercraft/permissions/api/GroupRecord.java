@@ -0,0 +1,194 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Data;
+
+
+/**
+ * Persisted state of a group, as loaded from a backend.
+ *
+ * <p>
+ * Records are plain data.  They are materialized into a {@link Group} by the permissions manager, either silently when loaded or as a
+ * single batch of backend changes when imported.
+ * </p>
+ */
+@Data
+public class GroupRecord
+{
+	/**
+	 * Gets the ID of the group.
+	 *
+	 * @return the group's identifier
+	 */
+	private final GroupId id;
+
+	/**
+	 * Gets the groups from which this group directly inherits, in inheritance order.
+	 *
+	 * @return a mutable list of parent group identifiers
+	 */
+	private final List<GroupId> parents = new ArrayList<>();
+
+	/**
+	 * Gets the group's primary parent.
+	 *
+	 * @return the primary parent's identifier, or {@literal null} if there is none
+	 */
+	private GroupId primaryParent;
+
+	/**
+	 * Gets the group's metadata.
+	 *
+	 * @return a mutable map of metadata
+	 */
+	private final Map<String, Serializable> data = new LinkedHashMap<>();
+
+	/**
+	 * Gets the group's permission nodes.  Each node carries its ancestors, excluding the implied root node, and ancestors must be listed
+	 * before their descendants.
+	 *
+	 * @return a mutable list of permission nodes
+	 */
+	private final List<NodeInfo> nodes = new ArrayList<>();
+
+	/**
+	 * Captures the current state of a group.
+	 *
+	 * @param group the group to capture
+	 * @return a record of the group's own inheritance, metadata and permission nodes
+	 */
+	public static GroupRecord of(final Group group)
+	{
+		assert group != null;
+
+		final GroupRecord record = new GroupRecord(group.getId());
+		for (final Group parent : group.getParents())
+		{
+			record.getParents().add(parent.getId());
+		}
+
+		final Group primaryParent = group.getPrimaryParent();
+		record.setPrimaryParent(primaryParent == null ? null : primaryParent.getId());
+		record.getData().putAll(group.getDataMap());
+		addNodes(group.getPermissions(), record.getNodes());
+		return record;
+	}
+
+	/**
+	 * Appends every node below a tree node in pre-order, so that ancestors come before their descendants.
+	 *
+	 * @param tree the tree node whose descendants to add
+	 * @param nodes the list to which nodes are appended
+	 */
+	private static void addNodes(final NodeTree tree, final List<NodeInfo> nodes)
+	{
+		final NodeChildren children = tree.getChildren();
+		if (children == null)
+		{
+			return;
+		}
+
+		for (int i = 0; i < children.capacity(); i++)
+		{
+			final NodeTree child = children.getAt(i);
+			if (child != null)
+			{
+				nodes.add(child.getInfo());
+				addNodes(child, nodes);
+			}
+		}
+	}
+
+	/**
+	 * Adds nodes identified by the names along their paths, creating node objects for this record's group.
+	 *
+	 * <p>
+	 * Ancestors must come before their descendants.  A node whose ancestors are missing could not have been created, so it is skipped.
+	 * </p>
+	 *
+	 * @param paths each node's effect and priority by the names along its path, excluding the root node
+	 */
+	public void addNodes(final Map<List<String>, Rule> paths)
+	{
+		final Map<List<String>, NodeInfo> infos = new HashMap<>(paths.size() * 2);
+		final NodeInfo root = new NodeInfo(id, new ArrayList<NodeInfo>(), NodeInfo.ROOT_NAME);
+
+		for (final Map.Entry<List<String>, Rule> entry : paths.entrySet())
+		{
+			final List<String> path = entry.getKey();
+			final List<NodeInfo> ancestors = new ArrayList<>(path.size());
+			ancestors.add(root);
+
+			for (int i = 1; i < path.size() && ancestors.size() == i; i++)
+			{
+				final NodeInfo ancestor = infos.get(path.subList(0, i));
+				if (ancestor != null)
+				{
+					ancestors.add(ancestor);
+				}
+			}
+
+			if (path.isEmpty() || ancestors.size() < path.size())
+			{
+				continue;
+			}
+
+			final Rule rule = entry.getValue();
+			final NodeInfo info = new NodeInfo(path.get(path.size() - 1), rule.getEffect(), rule.getPriority(),
+				Collections.unmodifiableList(ancestors), id);
+			infos.put(path, info);
+			nodes.add(info);
+		}
+	}
+
+	/**
+	 * Copies this record under a different group identifier, re-creating its nodes for the new group.
+	 *
+	 * @param id the new group's identifier
+	 * @return a copy of this record for the specified group
+	 */
+	public GroupRecord withId(final GroupId id)
+	{
+		assert id != null;
+
+		final GroupRecord record = new GroupRecord(id);
+		record.getParents().addAll(parents);
+		record.setPrimaryParent(primaryParent);
+		record.getData().putAll(data);
+
+		// Ancestors precede descendants, so each node's new ancestors have already been copied when it is reached.  Ancestors are matched
+		// by name, since a node's ancestors needn't be the very instances held by the tree.
+		final Map<List<String>, NodeInfo> copies = new HashMap<>();
+		final NodeInfo root = new NodeInfo(id, new ArrayList<NodeInfo>(), NodeInfo.ROOT_NAME);
+		for (final NodeInfo node : nodes)
+		{
+			final List<String> names = new ArrayList<>();
+			final List<NodeInfo> ancestors = new ArrayList<>();
+			ancestors.add(root);
+
+			for (final NodeInfo ancestor : node.getAncestors())
+			{
+				if (!ancestor.isRoot())
+				{
+					names.add(ancestor.getName());
+					final NodeInfo copy = copies.get(names);
+					assert copy != null;
+					ancestors.add(copy);
+				}
+			}
+
+			names.add(node.getName());
+			final NodeInfo copy = new NodeInfo(node.getName(), node.getEffect(), node.getPriority(), Collections.unmodifiableList(ancestors), id);
+			copies.put(new ArrayList<>(names), copy);
+			record.getNodes().add(copy);
+		}
+
+		return record;
+	}
+}
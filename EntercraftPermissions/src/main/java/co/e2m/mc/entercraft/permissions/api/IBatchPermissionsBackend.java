@@ -0,0 +1,21 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.List;
+
+
+/**
+ * A backend that can apply many mutations at once, such as in a single database transaction.
+ *
+ * <p>
+ * Backends that only implement {@link IPermissionsBackend} are adapted by {@link BatchAdapter}, which applies mutations one at a time.
+ * </p>
+ */
+public interface IBatchPermissionsBackend extends IPermissionsBackend
+{
+	/**
+	 * Applies mutations in order, atomically if the backend supports it.
+	 *
+	 * @param mutations the mutations to apply
+	 */
+	void apply(List<Mutation> mutations);
+}
@@ -0,0 +1,28 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+
+/**
+ * A backend that keeps a feed of the groups it has written, so that a model can catch up by reloading only what changed.
+ *
+ * <p>
+ * Decorators may implement this interface without a feed of their own; they report {@literal null} changes when the backend they
+ * decorate has no feed, which makes callers fall back to reloading everything.
+ * </p>
+ */
+public interface IChangeFeedBackend extends IPermissionsBackend
+{
+	/**
+	 * Gets the latest version of the feed.
+	 *
+	 * @return the current version, or -1 if there is no feed
+	 */
+	long getChangeVersion();
+
+	/**
+	 * Gets the changes recorded after a version.
+	 *
+	 * @param version the version that the caller has already seen
+	 * @return the changes, or {@literal null} if the feed no longer reaches back to {@code version}, or there is no feed
+	 */
+	ChangeSet getChangesSince(long version);
+}
@@ -0,0 +1,29 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Collection;
+
+
+/**
+ * Carries invalidations between servers that share one permissions backend.
+ *
+ * <p>
+ * Channels batch invalidations and deduplicate bursts, so that many changes to one group cost a single notice.  A channel never
+ * delivers an invalidation back to the server that published it.
+ * </p>
+ */
+public interface IInvalidationChannel
+{
+	/**
+	 * Sends invalidations to every other server.  The channel may hold them briefly, to send them along with others.
+	 *
+	 * @param invalidations the changed groups
+	 */
+	void publish(Collection<Invalidation> invalidations);
+
+	/**
+	 * Sets the listener to which invalidations from other servers are delivered.
+	 *
+	 * @param listener the listener, or {@literal null} to discard received invalidations
+	 */
+	void setListener(IInvalidationListener listener);
+}
@@ -0,0 +1,17 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Collection;
+
+
+/**
+ * Receives invalidations from an {@link IInvalidationChannel}.
+ */
+public interface IInvalidationListener
+{
+	/**
+	 * Called when other servers have changed groups.  May be called on any thread.
+	 *
+	 * @param invalidations the changed groups, at most one per group
+	 */
+	void onInvalidated(Collection<Invalidation> invalidations);
+}
@@ -0,0 +1,22 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+
+/**
+ * A backend that can load a group's persisted state, so that groups that aren't cached, such as evicted user groups, can be loaded
+ * again.
+ *
+ * <p>
+ * Backends that only implement {@link IPermissionsBackend} can't load groups; groups that aren't cached are then treated as
+ * nonexistent.
+ * </p>
+ */
+public interface ILoadingPermissionsBackend extends IPermissionsBackend
+{
+	/**
+	 * Loads a group's persisted state.  Called when a group that isn't cached is looked up, such as a user group that was evicted.
+	 *
+	 * @param id the group to load
+	 * @return the group's state, or {@literal null} if the group does not exist or the backend cannot load groups
+	 */
+	GroupRecord loadGroup(GroupId id);
+}
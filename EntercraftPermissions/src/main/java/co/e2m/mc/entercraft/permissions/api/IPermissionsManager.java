@@ -22,4 +22,45 @@ public interface IPermissionsManager extends IPermission
 	 * @return the database backend
 	 */
 	IPermissionsBackend getBackend();
+
+	/**
+	 * Gets the registry that assigns dense indices to normal groups for membership bitsets.
+	 *
+	 * @return the group index
+	 */
+	GroupIndex getGroupIndex();
+
+	/**
+	 * Gets the inverted index from permission paths to the groups whose permission trees have a node there.
+	 *
+	 * @return the permission index
+	 */
+	PermissionIndex getPermissionIndex();
+
+	/**
+	 * Gets whether groups' effective permissions are compiled into a {@link PermissionAutomaton} whenever they are rebuilt.
+	 *
+	 * @return true to compile effective permissions; false to assess each permission against every permission tree
+	 */
+	boolean isCompilingAutomata();
+
+	/**
+	 * Gets the lock that serializes changes to a group and its permission tree.
+	 *
+	 * <p>
+	 * Locks are striped, so unrelated groups may share a lock.  Reads never need to lock.
+	 * </p>
+	 *
+	 * @param id the group's identifier
+	 * @return the group's write lock
+	 */
+	Object getLock(GroupId id);
+
+	/**
+	 * Notifies the manager that a group's permissions or inheritance were changed by a mutation, as opposed to being restored from the
+	 * backend.  Called while holding the group's write lock.
+	 *
+	 * @param id the modified group's identifier
+	 */
+	void onGroupModified(GroupId id);
 }
@@ -0,0 +1,45 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+
+/**
+ * Encodes group metadata values of one type to a compact binary form for storage.
+ *
+ * <p>
+ * A codec only writes the value itself; backends prefix it with the tag under which the codec was registered, so the value can be
+ * decoded without knowing its type in advance.
+ * </p>
+ *
+ * @param <T> the type of value encoded
+ */
+public interface IValueCodec<T extends Serializable>
+{
+	/**
+	 * Gets the exact class of the values encoded.  Values of subclasses are not encoded by this codec.
+	 *
+	 * @return the value type
+	 */
+	Class<T> getType();
+
+	/**
+	 * Writes a value.
+	 *
+	 * @param out the output to write
+	 * @param value the value to write
+	 * @throws IOException if the output cannot be written
+	 */
+	void write(DataOutput out, T value) throws IOException;
+
+	/**
+	 * Reads a value written by {@link #write(DataOutput, Serializable)}.
+	 *
+	 * @param in the input to read
+	 * @return the value
+	 * @throws IOException if the input cannot be read, or is malformed
+	 */
+	T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,48 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+
+/**
+ * Notice that a group was changed in the shared backend, sent to other servers so that they reload it.
+ */
+@Data
+@AllArgsConstructor
+public final class Invalidation
+{
+	/**
+	 * Gets the identifier of the changed group.
+	 *
+	 * @return the group's identifier
+	 */
+	private final GroupId id;
+
+	/**
+	 * Gets the cache version assigned to the change.  Versions are random, like {@link CachedStore#getCacheVersion()}, so a notice
+	 * that was received twice can be recognized by its version.
+	 *
+	 * @return the change's version
+	 */
+	private final long version;
+
+	/**
+	 * Deduplicates a burst of invalidations, keeping the latest one for each group.
+	 *
+	 * @param invalidations the invalidations, oldest first
+	 * @return at most one invalidation per group, in order of each group's first invalidation
+	 */
+	public static Collection<Invalidation> coalesce(final Collection<Invalidation> invalidations)
+	{
+		final Map<GroupId, Invalidation> latest = new LinkedHashMap<>(invalidations.size() * 2);
+		for (final Invalidation invalidation : invalidations)
+		{
+			latest.put(invalidation.getId(), invalidation);
+		}
+
+		return latest.values();
+	}
+}
@@ -0,0 +1,298 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.io.Serializable;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+
+/**
+ * A single call to {@link IPermissionsBackend}, captured so that it can be queued, coalesced or batched.
+ *
+ * <p>
+ * Groups and nodes are referenced, not copied, so a node update that is applied late carries the node's latest effect and priority.
+ * Metadata values are captured when the mutation is created.
+ * </p>
+ */
+@Data
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public final class Mutation
+{
+	/**
+	 * Kinds of backend calls.
+	 */
+	public enum Type
+	{
+		/**
+		 * {@link IPermissionsBackend#createGroup(Group)}.
+		 */
+		CREATE_GROUP,
+		/**
+		 * {@link IPermissionsBackend#removeGroup(Group)}.
+		 */
+		REMOVE_GROUP,
+		/**
+		 * {@link IPermissionsBackend#createNode(NodeInfo)}.
+		 */
+		CREATE_NODE,
+		/**
+		 * {@link IPermissionsBackend#removeNode(NodeInfo)}.
+		 */
+		REMOVE_NODE,
+		/**
+		 * {@link IPermissionsBackend#updateNode(NodeInfo)}.
+		 */
+		UPDATE_NODE,
+		/**
+		 * {@link IPermissionsBackend#addInheritedGroup(Group, Group)}.
+		 */
+		ADD_INHERITED_GROUP,
+		/**
+		 * {@link IPermissionsBackend#removeInheritedGroup(Group, Group)}.
+		 */
+		REMOVE_INHERITED_GROUP,
+		/**
+		 * {@link IPermissionsBackend#updatePrimaryParent(Group, Group)}.
+		 */
+		UPDATE_PRIMARY_PARENT,
+		/**
+		 * {@link IPermissionsBackend#addGroupData(Group, String, Class, Serializable)}.
+		 */
+		ADD_GROUP_DATA,
+		/**
+		 * {@link IPermissionsBackend#updateGroupData(Group, String, Class, Serializable)}.
+		 */
+		UPDATE_GROUP_DATA,
+		/**
+		 * {@link IPermissionsBackend#removeGroupData(Group, String)}.
+		 */
+		REMOVE_GROUP_DATA,
+	}
+
+	/**
+	 * Gets the kind of call.
+	 *
+	 * @return the mutation type
+	 */
+	private final Type type;
+
+	/**
+	 * Gets the group being modified, or {@literal null} for node mutations.
+	 *
+	 * @return the modified group
+	 */
+	private final Group group;
+
+	/**
+	 * Gets the other group involved, such as an inherited group or primary parent.
+	 *
+	 * @return the other group, or {@literal null} if not applicable
+	 */
+	private final Group other;
+
+	/**
+	 * Gets the node being modified.
+	 *
+	 * @return the modified node, or {@literal null} if not applicable
+	 */
+	private final NodeInfo node;
+
+	/**
+	 * Gets the metadata key.
+	 *
+	 * @return the metadata key, or {@literal null} if not applicable
+	 */
+	private final String key;
+
+	/**
+	 * Gets the metadata type.
+	 *
+	 * @return the metadata type, or {@literal null} if not applicable
+	 */
+	private final Class<? extends Serializable> dataType;
+
+	/**
+	 * Gets the metadata value.
+	 *
+	 * @return the metadata value, or {@literal null} if not applicable
+	 */
+	private final Serializable value;
+
+	/**
+	 * Gets the identifier of the group affected by the mutation.
+	 *
+	 * @return the identifier of the modified group, or of the node's group for node mutations
+	 */
+	public GroupId getGroupId()
+	{
+		return group != null ? group.getId() : node.getGroup();
+	}
+
+	/**
+	 * Replays the mutation against a backend.
+	 *
+	 * @param backend the backend to call
+	 */
+	@SuppressWarnings("unchecked")
+	public void apply(final IPermissionsBackend backend)
+	{
+		switch (type)
+		{
+		case CREATE_GROUP:
+			backend.createGroup(group);
+			break;
+
+		case REMOVE_GROUP:
+			backend.removeGroup(group);
+			break;
+
+		case CREATE_NODE:
+			backend.createNode(node);
+			break;
+
+		case REMOVE_NODE:
+			backend.removeNode(node);
+			break;
+
+		case UPDATE_NODE:
+			backend.updateNode(node);
+			break;
+
+		case ADD_INHERITED_GROUP:
+			backend.addInheritedGroup(group, other);
+			break;
+
+		case REMOVE_INHERITED_GROUP:
+			backend.removeInheritedGroup(group, other);
+			break;
+
+		case UPDATE_PRIMARY_PARENT:
+			backend.updatePrimaryParent(group, other);
+			break;
+
+		case ADD_GROUP_DATA:
+			backend.addGroupData(group, key, (Class<Serializable>)dataType, value);
+			break;
+
+		case UPDATE_GROUP_DATA:
+			backend.updateGroupData(group, key, (Class<Serializable>)dataType, value);
+			break;
+
+		case REMOVE_GROUP_DATA:
+			backend.removeGroupData(group, key);
+			break;
+
+		default:
+			throw new IllegalStateException(type.name());
+		}
+	}
+
+	/**
+	 * Captures a group creation.
+	 *
+	 * @param group the group to create
+	 * @return the mutation
+	 */
+	public static Mutation createGroup(final Group group)
+	{
+		return new Mutation(Type.CREATE_GROUP, group, null, null, null, null, null);
+	}
+
+	/**
+	 * Captures a group removal.
+	 *
+	 * @param group the group to remove
+	 * @return the mutation
+	 */
+	public static Mutation removeGroup(final Group group)
+	{
+		return new Mutation(Type.REMOVE_GROUP, group, null, null, null, null, null);
+	}
+
+	/**
+	 * Captures a node creation.
+	 *
+	 * @param node the node to create
+	 * @return the mutation
+	 */
+	public static Mutation createNode(final NodeInfo node)
+	{
+		return new Mutation(Type.CREATE_NODE, null, null, node, null, null, null);
+	}
+
+	/**
+	 * Captures a node removal.
+	 *
+	 * @param node the node to remove
+	 * @return the mutation
+	 */
+	public static Mutation removeNode(final NodeInfo node)
+	{
+		return new Mutation(Type.REMOVE_NODE, null, null, node, null, null, null);
+	}
+
+	/**
+	 * Captures a node update.
+	 *
+	 * @param node the node to update
+	 * @return the mutation
+	 */
+	public static Mutation updateNode(final NodeInfo node)
+	{
+		return new Mutation(Type.UPDATE_NODE, null, null, node, null, null, null);
+	}
+
+	/**
+	 * Captures an inheritance change.
+	 *
+	 * @param group the group to modify
+	 * @param other the inherited group
+	 * @param isAdded true if the group is inherited; false if it is uninherited
+	 * @return the mutation
+	 */
+	public static Mutation inheritance(final Group group, final Group other, final boolean isAdded)
+	{
+		return new Mutation(isAdded ? Type.ADD_INHERITED_GROUP : Type.REMOVE_INHERITED_GROUP, group, other, null, null, null, null);
+	}
+
+	/**
+	 * Captures a primary parent change.
+	 *
+	 * @param group the group to modify
+	 * @param parent the new primary parent, or {@literal null}
+	 * @return the mutation
+	 */
+	public static Mutation updatePrimaryParent(final Group group, final Group parent)
+	{
+		return new Mutation(Type.UPDATE_PRIMARY_PARENT, group, parent, null, null, null, null);
+	}
+
+	/**
+	 * Captures a metadata addition or update.
+	 *
+	 * @param <T> the type of data to store
+	 * @param group the group that is being modified
+	 * @param key the metadata key
+	 * @param type the type of data to store
+	 * @param value the data to store
+	 * @param isUpdate true if the key already exists; false if it is new
+	 * @return the mutation
+	 */
+	public static <T extends Serializable> Mutation setGroupData(final Group group, final String key, final Class<T> type, final T value,
+		final boolean isUpdate)
+	{
+		return new Mutation(isUpdate ? Type.UPDATE_GROUP_DATA : Type.ADD_GROUP_DATA, group, null, null, key, type, value);
+	}
+
+	/**
+	 * Captures a metadata removal.
+	 *
+	 * @param group the group that is being modified
+	 * @param key the metadata key
+	 * @return the mutation
+	 */
+	public static Mutation removeGroupData(final Group group, final String key)
+	{
+		return new Mutation(Type.REMOVE_GROUP_DATA, group, null, null, key, null, null);
+	}
+}
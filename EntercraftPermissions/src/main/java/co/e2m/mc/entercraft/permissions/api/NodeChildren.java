@@ -0,0 +1,650 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Arrays;
+
+
+/**
+ * Holds the children of a {@link NodeTree}, keyed by segment identifier.
+ *
+ * <p>
+ * Most nodes have no children or a single child, so the container adapts to its size: an empty singleton, a single entry, a small
+ * sorted array, and finally an open-addressing hash table.
+ * </p>
+ *
+ * <p>
+ * Containers are immutable once published.  Mutators return a new container, which the owner publishes through a volatile field,
+ * so readers on any thread can walk the tree without locking while writers copy on write.
+ * </p>
+ *
+ * <p>
+ * Copying a hash table on every insertion would make loading a node with many children quadratic, so a tree that is built in bulk
+ * before it is published passes a builder token to {@link #put(int, NodeTree, Object)}.  Hash tables created for a token are updated in
+ * place by later insertions with the same token, until the table has to grow.  Once the tree is published, its token is never passed
+ * again, so its tables are copied on write like any other.
+ * </p>
+ */
+abstract class NodeChildren
+{
+	/**
+	 * Shared container for nodes without children.
+	 */
+	static final NodeChildren EMPTY = new Empty();
+
+	/**
+	 * Largest number of children kept in a sorted array before switching to a hash table.
+	 */
+	static final int MAX_SORTED = 8;
+
+	/**
+	 * Largest number of children at which a hash table shrinks back to a sorted array.
+	 */
+	static final int MIN_HASHED = MAX_SORTED / 2;
+
+	/**
+	 * Gets the number of children.
+	 *
+	 * @return the number of children
+	 */
+	abstract int size();
+
+	/**
+	 * Gets a child node.
+	 *
+	 * @param segment the segment identifier of the child; may be {@link SegmentTable#UNKNOWN}
+	 * @return the child if it exists; otherwise, {@literal null}
+	 */
+	abstract NodeTree get(int segment);
+
+	/**
+	 * Adds or replaces a child node.
+	 *
+	 * @param segment the segment identifier of the child
+	 * @param node the child node
+	 * @return a container with the child; this container is left unchanged
+	 */
+	NodeChildren put(final int segment, final NodeTree node)
+	{
+		return put(segment, node, null);
+	}
+
+	/**
+	 * Adds or replaces a child node, possibly in place if this container belongs to an unpublished tree.
+	 *
+	 * @param segment the segment identifier of the child
+	 * @param node the child node
+	 * @param builder the token of the bulk load building the unpublished tree that owns this container, or {@literal null} if the
+	 * container may be visible to readers
+	 * @return a container with the child; this container is left unchanged unless it was created for {@code builder}
+	 */
+	abstract NodeChildren put(int segment, NodeTree node, Object builder);
+
+	/**
+	 * Removes a child node if it exists.
+	 *
+	 * @param segment the segment identifier of the child
+	 * @return a container without the child; this container is left unchanged
+	 */
+	abstract NodeChildren remove(int segment);
+
+	/**
+	 * Gets the number of slots that can be passed to {@link #getAt(int)}.
+	 *
+	 * @return the number of slots
+	 */
+	abstract int capacity();
+
+	/**
+	 * Gets the child stored in a slot, for iteration.
+	 *
+	 * @param slot a slot index between zero and {@link #capacity()}
+	 * @return the child in the slot, or {@literal null} if the slot is unused
+	 */
+	abstract NodeTree getAt(int slot);
+
+	/**
+	 * Container without children.
+	 */
+	private static final class Empty extends NodeChildren
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		int size()
+		{
+			return 0;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeTree get(final int segment)
+		{
+			return null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeChildren put(final int segment, final NodeTree node, final Object builder)
+		{
+			return new Single(segment, node);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeChildren remove(final int segment)
+		{
+			return this;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		int capacity()
+		{
+			return 0;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeTree getAt(final int slot)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Container with exactly one child.
+	 */
+	private static final class Single extends NodeChildren
+	{
+		/**
+		 * Segment identifier of the child.
+		 */
+		private final int segment;
+
+		/**
+		 * The child node.
+		 */
+		private final NodeTree node;
+
+		/**
+		 * Instantiates a container with one child.
+		 *
+		 * @param segment the segment identifier of the child
+		 * @param node the child node
+		 */
+		Single(final int segment, final NodeTree node)
+		{
+			this.segment = segment;
+			this.node = node;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		int size()
+		{
+			return 1;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeTree get(final int segment)
+		{
+			return segment == this.segment ? node : null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeChildren put(final int segment, final NodeTree node, final Object builder)
+		{
+			if (segment == this.segment)
+			{
+				return new Single(segment, node);
+			}
+
+			return new Sorted(new int[] { this.segment }, new NodeTree[] { this.node }).put(segment, node, builder);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeChildren remove(final int segment)
+		{
+			return segment == this.segment ? EMPTY : this;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		int capacity()
+		{
+			return 1;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeTree getAt(final int slot)
+		{
+			return node;
+		}
+	}
+
+	/**
+	 * Container with a few children, kept in exactly sized arrays sorted by segment identifier.
+	 */
+	private static final class Sorted extends NodeChildren
+	{
+		/**
+		 * Segment identifiers of the children, in ascending order.
+		 */
+		private final int[] segments;
+
+		/**
+		 * Children, in the same order as {@link #segments}.
+		 */
+		private final NodeTree[] nodes;
+
+		/**
+		 * Instantiates a container that takes ownership of the provided arrays.
+		 *
+		 * @param segments segment identifiers, in ascending order
+		 * @param nodes children, in the same order as {@code segments}
+		 */
+		Sorted(final int[] segments, final NodeTree[] nodes)
+		{
+			assert segments.length == nodes.length;
+
+			this.segments = segments;
+			this.nodes = nodes;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		int size()
+		{
+			return segments.length;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeTree get(final int segment)
+		{
+			final int index = Arrays.binarySearch(segments, segment);
+			return index >= 0 ? nodes[index] : null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeChildren put(final int segment, final NodeTree node, final Object builder)
+		{
+			final int index = Arrays.binarySearch(segments, segment);
+			if (index >= 0)
+			{
+				final NodeTree[] newNodes = nodes.clone();
+				newNodes[index] = node;
+				return new Sorted(segments, newNodes);
+			}
+
+			final int size = segments.length;
+			if (size >= MAX_SORTED)
+			{
+				final Hashed hashed = new Hashed(MAX_SORTED * 4, builder);
+				for (int i = 0; i < size; i++)
+				{
+					hashed.insert(segments[i], nodes[i]);
+				}
+
+				hashed.insert(segment, node);
+				return hashed;
+			}
+
+			final int insertion = -index - 1;
+			final int[] newSegments = new int[size + 1];
+			final NodeTree[] newNodes = new NodeTree[size + 1];
+			System.arraycopy(segments, 0, newSegments, 0, insertion);
+			System.arraycopy(nodes, 0, newNodes, 0, insertion);
+			newSegments[insertion] = segment;
+			newNodes[insertion] = node;
+			System.arraycopy(segments, insertion, newSegments, insertion + 1, size - insertion);
+			System.arraycopy(nodes, insertion, newNodes, insertion + 1, size - insertion);
+			return new Sorted(newSegments, newNodes);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeChildren remove(final int segment)
+		{
+			final int index = Arrays.binarySearch(segments, segment);
+			if (index < 0)
+			{
+				return this;
+			}
+
+			final int size = segments.length;
+			if (size == 2)
+			{
+				return new Single(segments[1 - index], nodes[1 - index]);
+			}
+
+			final int[] newSegments = new int[size - 1];
+			final NodeTree[] newNodes = new NodeTree[size - 1];
+			System.arraycopy(segments, 0, newSegments, 0, index);
+			System.arraycopy(nodes, 0, newNodes, 0, index);
+			System.arraycopy(segments, index + 1, newSegments, index, size - index - 1);
+			System.arraycopy(nodes, index + 1, newNodes, index, size - index - 1);
+			return new Sorted(newSegments, newNodes);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		int capacity()
+		{
+			return segments.length;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeTree getAt(final int slot)
+		{
+			return nodes[slot];
+		}
+	}
+
+	/**
+	 * Container with many children, kept in an open-addressing hash table with linear probing.
+	 *
+	 * <p>
+	 * Only {@link #insert(int, NodeTree)} and {@link #delete(int)} modify a table, and only before it is published or while its tree is
+	 * still being built by its {@link #builder}.
+	 * </p>
+	 */
+	private static final class Hashed extends NodeChildren
+	{
+		/**
+		 * Segment identifiers of the children, by slot.
+		 */
+		private final int[] segments;
+
+		/**
+		 * Children, by slot; {@literal null} marks an unused slot.
+		 */
+		private final NodeTree[] nodes;
+
+		/**
+		 * Token of the bulk load whose insertions may update this table in place, or {@literal null} if every insertion copies it.
+		 */
+		private final Object builder;
+
+		/**
+		 * Number of children.
+		 */
+		private int size;
+
+		/**
+		 * Instantiates an empty hash table.
+		 *
+		 * @param capacity the number of slots; must be a power of two
+		 * @param builder the token of the bulk load that may update the table in place, or {@literal null}
+		 */
+		Hashed(final int capacity, final Object builder)
+		{
+			assert Integer.bitCount(capacity) == 1;
+
+			segments = new int[capacity];
+			nodes = new NodeTree[capacity];
+			this.builder = builder;
+		}
+
+		/**
+		 * Instantiates a copy of another hash table.
+		 *
+		 * @param other the table to copy
+		 * @param builder the token of the bulk load that may update the copy in place, or {@literal null}
+		 */
+		private Hashed(final Hashed other, final Object builder)
+		{
+			segments = other.segments.clone();
+			nodes = other.nodes.clone();
+			size = other.size;
+			this.builder = builder;
+		}
+
+		/**
+		 * Gets the preferred slot for a segment.
+		 *
+		 * @param segment the segment identifier
+		 * @return the preferred slot
+		 */
+		private int slotOf(final int segment)
+		{
+			final int hash = segment * 0x9E3779B9;
+			return (hash ^ (hash >>> 16)) & (nodes.length - 1);
+		}
+
+		/**
+		 * Finds the slot holding a segment.
+		 *
+		 * @param segment the segment identifier
+		 * @return the slot holding the segment, or the empty slot that ends its probe sequence
+		 */
+		private int find(final int segment)
+		{
+			final int mask = nodes.length - 1;
+			int slot = slotOf(segment);
+
+			while (nodes[slot] != null && segments[slot] != segment)
+			{
+				slot = (slot + 1) & mask;
+			}
+
+			return slot;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		int size()
+		{
+			return size;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeTree get(final int segment)
+		{
+			return nodes[find(segment)];
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeChildren put(final int segment, final NodeTree node, final Object builder)
+		{
+			assert node != null;
+
+			final Hashed copy;
+			if (nodes[find(segment)] == null && (size + 1) * 2 > nodes.length)
+			{
+				copy = new Hashed(nodes.length * 2, builder);
+				for (int i = 0; i < nodes.length; i++)
+				{
+					if (nodes[i] != null)
+					{
+						copy.insert(segments[i], nodes[i]);
+					}
+				}
+			}
+			else if (builder != null && builder == this.builder)
+			{
+				insert(segment, node);
+				return this;
+			}
+			else
+			{
+				copy = new Hashed(this, builder);
+			}
+
+			copy.insert(segment, node);
+			return copy;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeChildren remove(final int segment)
+		{
+			if (nodes[find(segment)] == null)
+			{
+				return this;
+			}
+
+			if (size - 1 <= MIN_HASHED)
+			{
+				final int[] sortedSegments = new int[size - 1];
+				final NodeTree[] sortedNodes = new NodeTree[size - 1];
+				int count = 0;
+				for (int i = 0; i < nodes.length; i++)
+				{
+					if (nodes[i] != null && segments[i] != segment)
+					{
+						sortedSegments[count] = segments[i];
+						sortedNodes[count] = nodes[i];
+						count++;
+					}
+				}
+
+				sortInPlace(sortedSegments, sortedNodes);
+				return new Sorted(sortedSegments, sortedNodes);
+			}
+
+			final Hashed copy = new Hashed(this, null);
+			copy.delete(segment);
+			return copy;
+		}
+
+		/**
+		 * Adds or replaces a child in this unpublished table.  The table must have a free slot.
+		 *
+		 * @param segment the segment identifier of the child
+		 * @param node the child node
+		 */
+		private void insert(final int segment, final NodeTree node)
+		{
+			final int slot = find(segment);
+			if (nodes[slot] == null)
+			{
+				segments[slot] = segment;
+				size++;
+			}
+
+			nodes[slot] = node;
+		}
+
+		/**
+		 * Removes an existing child from this unpublished table.
+		 *
+		 * @param segment the segment identifier of the child
+		 */
+		private void delete(final int segment)
+		{
+			final int mask = nodes.length - 1;
+			int slot = find(segment);
+
+			nodes[slot] = null;
+			size--;
+
+			// Shift later entries of the probe sequence back so that lookups never stop early.
+			for (int next = (slot + 1) & mask; nodes[next] != null; next = (next + 1) & mask)
+			{
+				final int preferred = slotOf(segments[next]);
+				if (((next - preferred) & mask) >= ((next - slot) & mask))
+				{
+					segments[slot] = segments[next];
+					nodes[slot] = nodes[next];
+					nodes[next] = null;
+					slot = next;
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		int capacity()
+		{
+			return nodes.length;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		NodeTree getAt(final int slot)
+		{
+			return nodes[slot];
+		}
+
+		/**
+		 * Sorts parallel arrays by segment identifier.  Only used for the handful of entries left when a table shrinks.
+		 *
+		 * @param segments segment identifiers to sort
+		 * @param nodes children to reorder along with {@code segments}
+		 */
+		private static void sortInPlace(final int[] segments, final NodeTree[] nodes)
+		{
+			for (int i = 1; i < segments.length; i++)
+			{
+				final int segment = segments[i];
+				final NodeTree node = nodes[i];
+				int j = i - 1;
+
+				while (j >= 0 && segments[j] > segment)
+				{
+					segments[j + 1] = segments[j];
+					nodes[j + 1] = nodes[j];
+					j--;
+				}
+
+				segments[j + 1] = segment;
+				nodes[j + 1] = node;
+			}
+		}
+	}
+}
@@ -1,19 +1,20 @@
 package co.e2m.mc.entercraft.permissions.api;
 
-import co.e2m.mc.entercraft.i18n.I18n;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.regex.Pattern;
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 
 
 /**
  * One-dimensional information about a node.
  */
 @Data
-@AllArgsConstructor
+@ToString(exclude = "owner")
 public class NodeInfo
 {
 	/**
@@ -32,9 +33,14 @@ public class NodeInfo
 	public static final String EXCLUDE_PREFIX = "-";
 
 	/**
-	 * Used to locate priority modifiers in node text.
+	 * Segment identifier of {@link #ALL_NAME}.
 	 */
-	private static final Pattern priorityRegex = Pattern.compile(":+");
+	public static final int ALL_SEGMENT = SegmentTable.intern(ALL_NAME);
+
+	/**
+	 * Segment identifier of {@link #ROOT_NAME}.
+	 */
+	public static final int ROOT_SEGMENT = SegmentTable.intern(ROOT_NAME);
 
 	/**
 	 * Gets the identifying name of the node.  Always lowercase.
@@ -43,19 +49,26 @@ public class NodeInfo
 	 */
 	private final String name;
 
+	/**
+	 * Gets the identifier of the node's name in the {@link SegmentTable}.
+	 *
+	 * @return the segment identifier of the node
+	 */
+	private final int segment;
+
 	/**
 	 * Gets the effect of the node (include or exclude).
 	 *
 	 * @return the effect of the node
 	 */
-	private NodeEffect effect;
+	private volatile NodeEffect effect;
 
 	/**
 	 * Gets the priority of the node, where a higher number indicates a higher priority.
 	 *
 	 * @return the priority of the node
 	 */
-	private int priority;
+	private volatile int priority;
 
 	/**
 	 * Gets the path to the node, minus the current node itself.
@@ -71,6 +84,48 @@ public class NodeInfo
 	 */
 	private final GroupId group;
 
+	/**
+	 * Cache for {@link #getRule()}.  Replaced whenever the effect or priority changes, so readers never see a partial update.
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	private transient volatile Rule ruleCache;
+
+	/**
+	 * Cache for {@link #getPackedRule()}.  Replaced along with {@link #ruleCache}.
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	private transient volatile long packedRuleCache;
+
+	/**
+	 * Node that holds this information, which is touched whenever the effect or priority changes.  {@literal null} until the
+	 * information is added to a tree.
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	private transient volatile NodeTree owner;
+
+	/**
+	 * Instantiates a new node information object from pre-parsed values.
+	 *
+	 * @param name the identifying name of the node; should be lowercase
+	 * @param effect the effect of the node
+	 * @param priority the priority of the node
+	 * @param ancestors ancestors to the current node
+	 * @param group the associated group
+	 */
+	public NodeInfo(final String name, final NodeEffect effect, final int priority, final List<NodeInfo> ancestors, final GroupId group)
+	{
+		this.segment = SegmentTable.intern(name);
+		this.name = SegmentTable.getName(segment);
+		this.effect = effect;
+		this.priority = priority;
+		this.ancestors = ancestors;
+		this.group = group;
+		cacheRule();
+	}
+
 	/**
 	 * Instantiates a new node information object by parsing the provided text.
 	 *
@@ -79,51 +134,45 @@ public class NodeInfo
 	 * @param text raw node text to parse
 	 */
 	public NodeInfo(final GroupId group, final List<NodeInfo> ancestors, final String text)
+	{
+		this(group, ancestors, parseSegment(text));
+	}
+
+	/**
+	 * Instantiates a new node information object from the current segment of a tokenizer.
+	 *
+	 * @param group the associated group
+	 * @param ancestors ancestors to the current node
+	 * @param token tokenizer positioned at the segment to use
+	 */
+	NodeInfo(final GroupId group, final List<NodeInfo> ancestors, final PathTokenizer token)
 	{
 		assert group != null;
 		assert ancestors != null;
-		assert text != null;
+		assert token != null;
 
 		this.group = group;
 		this.ancestors = Collections.unmodifiableList(ancestors);
+		this.segment = token.getSegment();
+		this.name = token.getName();
+		this.effect = token.getEffect();
+		this.priority = token.isPrioritized() ? token.getPriority() : getDefaultPriority(name, effect);
+		cacheRule();
+	}
 
-		String name = text.toLowerCase(I18n.INVARIANT_LOCALE);
-		final String[] tokens = priorityRegex.split(name, 2);
-
-		Integer priority = null;
-		if (tokens.length >= 2)
-		{
-			try
-			{
-				priority = Integer.parseInt(tokens[0]);
-			}
-			catch (final NumberFormatException ex)
-			{
-				priority = null;
-			}
-
-			name = tokens[1];
-		}
-
-		final NodeEffect effect;
-		if (name.startsWith(EXCLUDE_PREFIX))
-		{
-			effect = NodeEffect.DENY;
-			name = name.substring(1);
-		}
-		else
-		{
-			effect = NodeEffect.ALLOW;
-		}
-
-		if (priority == null)
-		{
-			priority = getDefaultPriority(name, effect);
-		}
+	/**
+	 * Parses raw node text as a single segment.
+	 *
+	 * @param text raw node text to parse
+	 * @return a tokenizer positioned at the parsed segment
+	 */
+	private static PathTokenizer parseSegment(final String text)
+	{
+		assert text != null;
 
-		this.name = name.intern();
-		this.effect = effect;
-		this.priority = priority;
+		final PathTokenizer token = new PathTokenizer(text, true);
+		token.next();
+		return token;
 	}
 
 	/**
@@ -133,7 +182,7 @@ public class NodeInfo
 	 */
 	public boolean isRoot()
 	{
-		return ROOT_NAME.equals(name);
+		return segment == ROOT_SEGMENT;
 	}
 
 	/**
@@ -143,45 +192,115 @@ public class NodeInfo
 	 */
 	public boolean isAll()
 	{
-		return ALL_NAME.equals(name);
+		return segment == ALL_SEGMENT;
 	}
 
 	/**
 	 * Merges with another node info object based on priority.
 	 *
 	 * @param other node info object with which to merge
+	 * @return true if this node's priority or effect changed; otherwise, false
 	 */
-	public void merge(final NodeInfo other)
+	public synchronized boolean merge(final NodeInfo other)
 	{
 		assert other != null;
 
 		if (priority > other.priority)
 		{
-			return;
+			return false;
 		}
 
 		if (priority == other.priority && getDefaultPriority(name, effect) >= getDefaultPriority(other.name, other.effect))
 		{
-			return;
+			return false;
 		}
 
-		setPriority(other.priority);
-		setEffect(other.effect);
+		// Both are replaced before the rule is, so readers never see the new priority with the old effect.
+		this.priority = other.priority;
+		this.effect = other.effect;
+		cacheRule();
+		touchOwner();
+		return true;
+	}
+
+	/**
+	 * Sets the effect of the node (include or exclude).
+	 *
+	 * @param effect the new effect of the node
+	 */
+	public synchronized void setEffect(final NodeEffect effect)
+	{
+		this.effect = effect;
+		cacheRule();
+		touchOwner();
+	}
+
+	/**
+	 * Sets the priority of the node, where a higher number indicates a higher priority.
+	 *
+	 * @param priority the new priority of the node
+	 */
+	public synchronized void setPriority(final int priority)
+	{
+		this.priority = priority;
+		cacheRule();
+		touchOwner();
+	}
+
+	/**
+	 * Associates this information with the node that holds it.
+	 *
+	 * @param node the node
+	 */
+	void attach(final NodeTree node)
+	{
+		owner = node;
+	}
+
+	/**
+	 * Touches the node that holds this information, along with the root of its tree, so that compiled views are rebuilt.
+	 */
+	private void touchOwner()
+	{
+		final NodeTree node = owner;
+		if (node != null)
+		{
+			node.touchTree();
+		}
 	}
 
 	/**
 	 * Gets the rule that results from this info object.
 	 *
+	 * <p>
+	 * The rule is immutable and replaced whenever the node's effect or priority changes, so repeated lookups don't allocate.
+	 * </p>
+	 *
 	 * @return the effective rule, or {@link Rule#NONE} if the node is inactive
 	 */
 	public Rule getRule()
 	{
-		if (effect == NodeEffect.NONE)
-		{
-			return Rule.NONE;
-		}
+		return ruleCache;
+	}
+
+	/**
+	 * Gets the rule that results from this info object, {@link Rule#pack() packed}.
+	 *
+	 * @return the effective packed rule, or {@link Rule#NONE_PACKED} if the node is inactive
+	 */
+	public long getPackedRule()
+	{
+		return packedRuleCache;
+	}
 
-		return new Rule(effect, priority);
+	/**
+	 * Replaces the cached rules with the rule that results from the node's effect and priority.
+	 */
+	private void cacheRule()
+	{
+		final Rule rule = effect == NodeEffect.NONE ? Rule.NONE : new Rule(effect, priority);
+		packedRuleCache = rule.pack();
+		ruleCache = rule;
 	}
 
 	/**
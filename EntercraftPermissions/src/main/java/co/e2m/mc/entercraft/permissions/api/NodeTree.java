@@ -1,11 +1,11 @@
 package co.e2m.mc.entercraft.permissions.api;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
 import lombok.Getter;
 
 
@@ -19,11 +19,6 @@ public class NodeTree extends CachedStore
 	 */
 	public static final int MAX_DEPTH = 32;
 
-	/**
-	 * Used to split nodes in a path.
-	 */
-	public static final Pattern pathRegex = Pattern.compile("\\.+");
-
 	/**
 	 * Gets the node's information.
 	 *
@@ -33,9 +28,25 @@ public class NodeTree extends CachedStore
 	private final NodeInfo info;
 
 	/**
-	 * Indirectly includes all descendent nodes.
+	 * Indirectly includes all descendent nodes, keyed by segment identifier.  {@literal null} if this node cannot have children.
+	 *
+	 * <p>
+	 * The container is immutable and replaced on every change, so readers never need to lock.
+	 * </p>
+	 */
+	private volatile NodeChildren tree;
+
+	/**
+	 * Root node of the tree to which this node belongs, which is touched along with any node that changes, so that views validated
+	 * against the root's cache version see changes made anywhere in the tree.
+	 */
+	private volatile NodeTree root = this;
+
+	/**
+	 * Token of the bulk load building this tree, set on the root node while the tree is not yet visible to readers, so that its
+	 * children can be added in place.  {@literal null} otherwise.  Guarded by the group's write lock, or by the tree being private.
 	 */
-	private final Map<String, NodeTree> tree;
+	private Object builder;
 
 	/**
 	 * Instantiates a new node object by parsing node text.
@@ -61,6 +72,7 @@ public class NodeTree extends CachedStore
 		super(manager);
 
 		this.info = info;
+		info.attach(this);
 
 		if (info.isAll())
 		{
@@ -68,7 +80,7 @@ public class NodeTree extends CachedStore
 		}
 		else
 		{
-			this.tree = new HashMap<>();
+			this.tree = NodeChildren.EMPTY;
 		}
 	}
 
@@ -84,9 +96,14 @@ public class NodeTree extends CachedStore
 	{
 		final NodeTree root = createRoot(manager, group);
 
-		for (final String path : paths)
+		root.beginBulkLoad();
+		try
 		{
-			root.addPath(path);
+			root.addPaths(paths);
+		}
+		finally
+		{
+			root.endBulkLoad();
 		}
 
 		return root;
@@ -112,16 +129,27 @@ public class NodeTree extends CachedStore
 	 */
 	private NodeInfo[] splitInfo(final String path)
 	{
-		final String[] nodeTexts = splitNodes(path);
-		final NodeInfo[] nodes = new NodeInfo[Math.min(nodeTexts.length, MAX_DEPTH)];
+		final List<NodeInfo> nodes = new ArrayList<>();
+		final PathTokenizer tokens = new PathTokenizer(path, false);
 
 		NodeInfo previousNode = info;
-		for (int i = 0; i < nodes.length; i++)
+		while (nodes.size() < MAX_DEPTH && tokens.next())
 		{
-			nodes[i] = new NodeInfo(previousNode.getGroup(), previousNode.getPath(), nodeTexts[i]);
+			previousNode = new NodeInfo(previousNode.getGroup(), previousNode.getPath(), tokens);
+			nodes.add(previousNode);
 		}
 
-		return nodes;
+		return nodes.toArray(new NodeInfo[nodes.size()]);
+	}
+
+	/**
+	 * Gets the lock that serializes changes to the associated group, including this tree.
+	 *
+	 * @return the group's write lock
+	 */
+	private Object getLock()
+	{
+		return getManager().getLock(info.getGroup());
 	}
 
 	/**
@@ -131,7 +159,8 @@ public class NodeTree extends CachedStore
 	 */
 	public boolean isEmpty()
 	{
-		return tree == null || tree.isEmpty();
+		final NodeChildren children = tree;
+		return children == null || children.size() == 0;
 	}
 
 	/**
@@ -144,21 +173,44 @@ public class NodeTree extends CachedStore
 		return tree != null;
 	}
 
+	/**
+	 * Gets the node's children as currently published.
+	 *
+	 * @return the immutable container of children, or {@literal null} if this node cannot have children
+	 */
+	NodeChildren getChildren()
+	{
+		return tree;
+	}
+
 	/**
 	 * Gets the node's tree.
 	 *
-	 * @return the node's tree if this node is capable of having one; otherwise, null
+	 * <p>
+	 * The map is a copy; changes to the node are not reflected in it.
+	 * </p>
+	 *
+	 * @return the node's tree by child name if this node is capable of having one; otherwise, null
 	 */
 	public Map<String, NodeTree> getTree()
 	{
+		final NodeChildren tree = this.tree;
 		if (tree == null)
 		{
 			return null;
 		}
-		else
+
+		final Map<String, NodeTree> children = new HashMap<>(tree.size() * 2);
+		for (int i = 0; i < tree.capacity(); i++)
 		{
-			return Collections.unmodifiableMap(tree);
+			final NodeTree child = tree.getAt(i);
+			if (child != null)
+			{
+				children.put(child.info.getName(), child);
+			}
 		}
+
+		return Collections.unmodifiableMap(children);
 	}
 
 	/**
@@ -171,10 +223,24 @@ public class NodeTree extends CachedStore
 		assert path != null;
 
 		final NodeInfo[] info = splitInfo(path);
+		if (info.length == 0)
+		{
+			return;
+		}
 
-		if (info.length > 0)
+		synchronized (getLock())
 		{
-			removeTree(info[info.length - 1]);
+			NodeTree parent = this;
+			for (int i = 0; i < info.length - 1 && parent != null; i++)
+			{
+				final NodeChildren children = parent.tree;
+				parent = children != null ? children.get(info[i].getSegment()) : null;
+			}
+
+			if (parent != null && parent.removeTree(info[info.length - 1]) && parent != this)
+			{
+				touchTree();
+			}
 		}
 	}
 
@@ -182,18 +248,33 @@ public class NodeTree extends CachedStore
 	 * Removes an entire child tree from the current node.
 	 *
 	 * @param node the tree to remove
+	 * @return true if the tree existed and was removed; otherwise, false
 	 */
-	public void removeTree(final NodeInfo node)
+	public boolean removeTree(final NodeInfo node)
 	{
 		assert node != null;
 
-		final NodeTree tree = this.tree.remove(node.getName());
-		if (tree == null)
+		synchronized (getLock())
 		{
-			return;
+			final NodeChildren children = this.tree;
+			if (children == null)
+			{
+				return false;
+			}
+
+			final NodeTree tree = children.get(node.getSegment());
+			if (tree == null)
+			{
+				return false;
+			}
+
+			this.tree = children.remove(node.getSegment());
+			getManager().getPermissionIndex().remove(tree);
+			touchTree();
+			getManager().onGroupModified(info.getGroup());
+			getBackend().removeNode(tree.getInfo());
+			return true;
 		}
-
-		getBackend().removeNode(tree.getInfo());
 	}
 
 	/**
@@ -207,9 +288,39 @@ public class NodeTree extends CachedStore
 
 		final NodeInfo[] info = splitInfo(path);
 
-		if (info.length > 0)
+		addPath(info);
+	}
+
+	/**
+	 * Adds many paths of nodes, creating any descendent nodes as necessary, and ships every resulting change to the backend as one batch.
+	 *
+	 * @param paths period-delimited paths of unparsed nodes
+	 */
+	public void addPaths(final String[] paths)
+	{
+		assert paths != null;
+
+		synchronized (getLock())
 		{
-			addPath(info, 0);
+			final BackendTransaction transaction = new BackendTransaction(getBackend());
+			boolean isChanged = false;
+
+			for (final String path : paths)
+			{
+				final NodeInfo[] info = splitInfo(path);
+				if (info.length > 0 && addPath(info, 0, transaction))
+				{
+					isChanged = true;
+				}
+			}
+
+			if (isChanged)
+			{
+				touchTree();
+			}
+
+			// Committed under the lock, so that the batch reaches the backend before any later change to the group.
+			transaction.commit();
 		}
 	}
 
@@ -219,10 +330,194 @@ public class NodeTree extends CachedStore
 	 * @param info the ordered path of nodes
 	 */
 	public void addPath(final NodeInfo[] info)
+	{
+		addPath(info, getBackend());
+	}
+
+	/**
+	 * Restores a path of nodes loaded from the backend, creating any descendent nodes as necessary, without notifying the backend.
+	 *
+	 * @param info the ordered path of nodes, excluding the root node
+	 */
+	void restorePath(final NodeInfo[] info)
+	{
+		addPath(info, null);
+	}
+
+	/**
+	 * Starts loading nodes in bulk into this root node's tree, which must not yet be visible to readers on other threads.  Until
+	 * {@link #endBulkLoad()}, children are added to their containers in place rather than copying them on every insertion.
+	 */
+	void beginBulkLoad()
+	{
+		assert root == this;
+
+		builder = new Object();
+	}
+
+	/**
+	 * Finishes loading nodes in bulk, after which every change copies on write again.  Must be called before the tree is published.
+	 */
+	void endBulkLoad()
+	{
+		assert root == this;
+
+		builder = null;
+	}
+
+	/**
+	 * Replaces every node in the tree with nodes loaded from the backend, without notifying the backend.
+	 *
+	 * <p>
+	 * The new tree is built aside and swapped in at once, so readers see either the old nodes or the new ones, never a mix.  If it has
+	 * the same nodes as the current tree, the tree is left as it is and not touched.
+	 * </p>
+	 *
+	 * @param nodes the nodes to restore, ancestors first, each with its full path
+	 * @return true if the tree changed; otherwise, false
+	 */
+	boolean replaceTree(final Collection<NodeInfo> nodes)
+	{
+		final NodeTree replacement = createRoot(getManager(), info.getGroup());
+		replacement.beginBulkLoad();
+		try
+		{
+			for (final NodeInfo node : nodes)
+			{
+				final List<NodeInfo> path = node.getPath();
+				if (!path.isEmpty() && path.get(0).isRoot())
+				{
+					path.remove(0);
+				}
+
+				if (!path.isEmpty())
+				{
+					replacement.addPath(path.toArray(new NodeInfo[path.size()]), 0, null);
+				}
+			}
+		}
+		finally
+		{
+			replacement.endBulkLoad();
+		}
+
+		synchronized (getLock())
+		{
+			// The replacement indexed its nodes as it was built, so whichever tree is discarded is unindexed.
+			final PermissionIndex index = getManager().getPermissionIndex();
+			if (replacement.getRules().equals(getRules()))
+			{
+				index.removeChildren(replacement);
+				return false;
+			}
+
+			index.removeChildren(this);
+			tree = replacement.tree;
+			adopt(root);
+			touchTree();
+			return true;
+		}
+	}
+
+	/**
+	 * Touches this node and the root node of its tree.
+	 */
+	void touchTree()
+	{
+		touch();
+
+		final NodeTree top = root;
+		if (top != this)
+		{
+			top.touch();
+		}
+	}
+
+	/**
+	 * Makes every node below this one belong to a root, such as after its children were built under another root and swapped in.
+	 *
+	 * @param owner the root node of the tree
+	 */
+	private void adopt(final NodeTree owner)
+	{
+		final NodeChildren children = tree;
+		if (children == null)
+		{
+			return;
+		}
+
+		for (int i = 0; i < children.capacity(); i++)
+		{
+			final NodeTree child = children.getAt(i);
+			if (child != null)
+			{
+				child.root = owner;
+				child.adopt(owner);
+			}
+		}
+	}
+
+	/**
+	 * Gets the rule of every node below this one.
+	 *
+	 * @return the rules by the names along each node's path, relative to this node
+	 */
+	private Map<List<String>, Rule> getRules()
+	{
+		final Map<List<String>, Rule> rules = new HashMap<>();
+		collectRules(new ArrayList<String>(), rules);
+		return rules;
+	}
+
+	/**
+	 * Collects the rule of every node below this one.
+	 *
+	 * @param path the names along the path to this node
+	 * @param rules receives the rules by path
+	 */
+	private void collectRules(final List<String> path, final Map<List<String>, Rule> rules)
+	{
+		final NodeChildren children = tree;
+		if (children == null)
+		{
+			return;
+		}
+
+		for (int i = 0; i < children.capacity(); i++)
+		{
+			final NodeTree child = children.getAt(i);
+			if (child != null)
+			{
+				final List<String> childPath = new ArrayList<>(path);
+				childPath.add(child.info.getName());
+				rules.put(childPath, new Rule(child.info.getEffect(), child.info.getPriority()));
+				child.collectRules(childPath, rules);
+			}
+		}
+	}
+
+	/**
+	 * Adds a path of nodes, creating any descendent nodes as necessary.
+	 *
+	 * @param info the ordered path of nodes
+	 * @param backend the backend to notify of changes, or {@literal null} to change the tree silently
+	 */
+	void addPath(final NodeInfo[] info, final IPermissionsBackend backend)
 	{
 		assert info != null;
 
-		addPath(info, 0);
+		if (info.length == 0)
+		{
+			return;
+		}
+
+		synchronized (getLock())
+		{
+			if (addPath(info, 0, backend))
+			{
+				touchTree();
+			}
+		}
 	}
 
 	/**
@@ -230,66 +525,86 @@ public class NodeTree extends CachedStore
 	 *
 	 * @param info the ordered path of nodes
 	 * @param infoIndex the index of the node in {@code info} to add
+	 * @param backend the backend to notify of changes, or {@literal null} to change the tree silently
+	 * @return true if any node was created or changed; otherwise, false
 	 */
-	private void addPath(final NodeInfo[] info, final int infoIndex)
+	private boolean addPath(final NodeInfo[] info, final int infoIndex, final IPermissionsBackend backend)
 	{
 		assert info != null;
-		assert info.length < infoIndex;
+		assert infoIndex < info.length;
 		assert infoIndex >= 0;
 
 		final NodeInfo currentInfo = info[infoIndex];
-		final NodeTree node = ensureNode(currentInfo);
+		final long version = getCacheVersion();
+		final NodeTree node = ensureNode(currentInfo, backend);
+		boolean isChanged = version != getCacheVersion();
 
 		if (!node.isTree())
 		{
-			return;
+			return isChanged;
 		}
 
 		final int nextIndex = infoIndex + 1;
-		if (nextIndex < info.length)
+		if (nextIndex < info.length && node.addPath(info, nextIndex, backend))
 		{
-			node.addPath(info, nextIndex);
+			isChanged = true;
 		}
+
+		return isChanged;
 	}
 
 	/**
 	 * Ensures that a node exists and returns it.
 	 *
 	 * If the node already exists, its information is merged with the provided node info object.  Otherwise, a new node is created.
+	 * Either way, the current node is touched if anything changed.  Must be called while holding the group's write lock.
 	 *
 	 * @param info the info used to populate the new node if it does not yet exist
+	 * @param backend the backend to notify of changes, or {@literal null} to change the tree silently
 	 * @return an existing node with the same name as {@code info} and merged info, or a new node
 	 */
-	private NodeTree ensureNode(final NodeInfo info)
+	private NodeTree ensureNode(final NodeInfo info, final IPermissionsBackend backend)
 	{
-		final NodeTree node;
+		NodeTree node = tree.get(info.getSegment());
 
-		if (tree.containsKey(info.getName()))
+		if (node != null)
 		{
-			node = tree.get(info.getName());
-			node.info.merge(info);
+			if (node.info.merge(info))
+			{
+				touchTree();
+				if (backend != null)
+				{
+					getManager().onGroupModified(info.getGroup());
+					backend.updateNode(node.info);
+				}
+			}
 		}
 		else
 		{
 			node = new NodeTree(getManager(), info);
-			tree.put(info.getName(), node);
-
-			touch();
-			getBackend().createNode(info);
+			node.root = root;
+			tree = tree.put(info.getSegment(), node, root.builder);
+			getManager().getPermissionIndex().add(info);
+
+			touchTree();
+			if (backend != null)
+			{
+				getManager().onGroupModified(info.getGroup());
+				backend.createNode(info);
+			}
 		}
 
 		return node;
 	}
 
 	/**
-	 * Splits a permission path into separate nodes, without parsing individual nodes.
+	 * Compiles the tree as it is now into an automaton, which assesses permissions without checking for wildcards at each level.
 	 *
-	 * @param permission path to split
-	 * @return ordered array of nodes in the path
+	 * @return the compiled tree
 	 */
-	static String[] splitNodes(final String permission)
+	public PermissionAutomaton compile()
 	{
-		return pathRegex.split(permission, MAX_DEPTH + 1);
+		return PermissionAutomaton.compile(Collections.singletonList(this));
 	}
 
 	/**
@@ -302,7 +617,9 @@ public class NodeTree extends CachedStore
 	{
 		assert permission != null;
 
-		return getRule(splitNodes(permission));
+		final int[] segments = new int[MAX_DEPTH + 1];
+		final int length = PathTokenizer.tokenize(permission, segments);
+		return getRule(segments, length);
 	}
 
 	/**
@@ -313,42 +630,121 @@ public class NodeTree extends CachedStore
 	 */
 	public Rule getRule(final String[] nodeNames)
 	{
-		return getRule(nodeNames, 0);
+		assert nodeNames != null;
+
+		final int[] segments = new int[nodeNames.length];
+		for (int i = 0; i < segments.length; i++)
+		{
+			segments[i] = SegmentTable.find(nodeNames[i], 0, nodeNames[i].length());
+		}
+
+		return getRule(segments, segments.length);
 	}
 
 	/**
 	 * Determines whether the current tree permits or denies the specified permission.
 	 *
-	 * @param nodeNames the permission to assess, broken down by node and ordered
-	 * @param nodeIndex the current node to compare
+	 * @param segments the permission to assess, as ordered segment identifiers from {@link PathTokenizer#tokenize(String, int[])}
+	 * @param length the number of segments in {@code segments} to assess
 	 * @return a rule based on the tree's effect on {@code permission}
 	 */
-	private Rule getRule(final String[] nodeNames, final int nodeIndex)
+	public Rule getRule(final int[] segments, final int length)
 	{
-		assert nodeNames != null;
-		assert nodeIndex >= 0;
+		return Rule.unpack(getPackedRule(segments, length));
+	}
+
+	/**
+	 * Determines whether the current tree permits or denies the specified permission.
+	 *
+	 * <p>
+	 * The tree is walked iteratively, keeping only the dominant packed rule found so far, so nothing is allocated or compared through
+	 * {@link Rule#compareTo(Rule)}.
+	 * </p>
+	 *
+	 * @param segments the permission to assess, as ordered segment identifiers from {@link PathTokenizer#tokenize(String, int[])}
+	 * @param length the number of segments in {@code segments} to assess
+	 * @return a {@link Rule#pack() packed} rule based on the tree's effect on {@code permission}
+	 */
+	public long getPackedRule(final int[] segments, final int length)
+	{
+		assert segments != null;
+		assert length >= 0 && length <= segments.length;
+
+		long effective = Rule.NONE_PACKED;
+		NodeTree node = this;
 
-		if (nodeIndex >= nodeNames.length)
+		for (int i = 0; i < length; i++)
 		{
-			return info.getRule();
+			final NodeChildren children = node.tree;
+			if (children == null)
+			{
+				return effective;
+			}
+
+			final NodeTree all = children.get(NodeInfo.ALL_SEGMENT);
+			if (all != null)
+			{
+				effective = Math.max(effective, all.info.getPackedRule());
+			}
+
+			node = children.get(segments[i]);
+			if (node == null)
+			{
+				return effective;
+			}
 		}
 
-		assert isTree();
+		return Math.max(effective, node.info.getPackedRule());
+	}
 
-		final String nodeName = nodeNames[nodeIndex];
-		final List<Rule> rules = new ArrayList<>();
+	/**
+	 * Determines whether the current tree permits or denies each permission of a query, in one walk.
+	 *
+	 * <p>
+	 * The nodes reached by each permission are kept by depth, so the next permission resumes after the prefix it shares with the one
+	 * before it.  The rule found for each permission is {@link Rule#pack() packed} and merged into {@code results} with
+	 * {@link Math#max(long, long)}, so several trees may contribute to the same results.
+	 * </p>
+	 *
+	 * @param paths the query's permissions, split and ordered
+	 * @param results receives the dominant packed rule of each permission, in the query's order
+	 */
+	void mergePackedRules(final PermissionQuery.Paths paths, final long[] results)
+	{
+		final NodeTree[] nodes = new NodeTree[MAX_DEPTH + 2];
+		final long[] effective = new long[MAX_DEPTH + 2];
+		nodes[0] = this;
+		effective[0] = Rule.NONE_PACKED;
 
-		if (tree.containsKey(nodeName))
-		{
-			final NodeTree node = tree.get(nodeName);
-			rules.add(node.getRule(nodeNames, nodeIndex + 1));
-		}
-		if (tree.containsKey(NodeInfo.ALL_NAME))
+		for (int k = 0; k < paths.segments.length; k++)
 		{
-			final NodeTree node = tree.get(NodeInfo.ALL_NAME);
-			rules.add(node.info.getRule());
+			final int[] path = paths.segments[k];
+
+			for (int d = paths.shared[k]; d < path.length; d++)
+			{
+				final NodeTree node = nodes[d];
+				final NodeChildren children = node != null ? node.tree : null;
+				long rule = effective[d];
+				NodeTree next = null;
+
+				if (children != null)
+				{
+					final NodeTree all = children.get(NodeInfo.ALL_SEGMENT);
+					if (all != null)
+					{
+						rule = Math.max(rule, all.info.getPackedRule());
+					}
+					next = children.get(path[d]);
+				}
+
+				nodes[d + 1] = next;
+				effective[d + 1] = rule;
+			}
+
+			final NodeTree end = nodes[path.length];
+			final long rule = end != null ? Math.max(effective[path.length], end.info.getPackedRule()) : effective[path.length];
+			final int index = paths.order[k];
+			results[index] = Math.max(results[index], rule);
 		}
-
-		return Rule.getEffective(rules);
 	}
 }
@@ -0,0 +1,273 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import lombok.Getter;
+
+
+/**
+ * Splits permission paths into segments in a single pass, without regular expressions.
+ *
+ * <p>
+ * Segments are separated by one or more periods; empty segments are skipped.  When parsing modifiers, each segment may be prefixed
+ * with a priority followed by one or more colons, and then with {@link NodeInfo#EXCLUDE_PREFIX}, as in {@code 500:-node}.  Every
+ * segment name is lowercased and mapped to its identifier in the {@link SegmentTable}.
+ * </p>
+ */
+public final class PathTokenizer
+{
+	/**
+	 * Separates segments in a path.
+	 */
+	public static final char SEPARATOR = '.';
+
+	/**
+	 * Separates a priority modifier from the rest of a segment.
+	 */
+	public static final char PRIORITY_SEPARATOR = ':';
+
+	/**
+	 * The text being tokenized.
+	 */
+	private final String text;
+
+	/**
+	 * Whether the entire text is a single segment, in which case periods are not separators.
+	 */
+	private final boolean isSingleSegment;
+
+	/**
+	 * Index at which to resume scanning.
+	 */
+	private int position;
+
+	/**
+	 * Whether every segment has been read.
+	 */
+	private boolean isExhausted;
+
+	/**
+	 * Gets the identifier of the current segment's name.
+	 *
+	 * @return the segment identifier
+	 */
+	@Getter
+	private int segment;
+
+	/**
+	 * Gets the effect of the current segment, based on whether it is prefixed as an exclude.
+	 *
+	 * @return the segment's effect
+	 */
+	@Getter
+	private NodeEffect effect;
+
+	/**
+	 * Gets whether the current segment specifies a valid priority.
+	 *
+	 * @return true if a priority was specified; otherwise, false
+	 */
+	@Getter
+	private boolean isPrioritized;
+
+	/**
+	 * Gets the priority specified by the current segment.  Only meaningful if {@link #isPrioritized()} is true.
+	 *
+	 * @return the specified priority
+	 */
+	@Getter
+	private int priority;
+
+	/**
+	 * Instantiates a new tokenizer that parses modifiers.
+	 *
+	 * @param text the text to tokenize
+	 * @param isSingleSegment true if the entire text is a single segment; false if it is a period-delimited path
+	 */
+	public PathTokenizer(final String text, final boolean isSingleSegment)
+	{
+		assert text != null;
+
+		this.text = text;
+		this.isSingleSegment = isSingleSegment;
+	}
+
+	/**
+	 * Gets the canonical name of the current segment.
+	 *
+	 * @return the lowercase segment name, without modifiers
+	 */
+	public String getName()
+	{
+		return SegmentTable.getName(segment);
+	}
+
+	/**
+	 * Advances to the next segment, parsing its modifiers and interning its name.
+	 *
+	 * @return true if a segment was found; false if the end of the text has been reached
+	 */
+	public boolean next()
+	{
+		if (isExhausted)
+		{
+			return false;
+		}
+
+		final int length = text.length();
+		int start = position;
+
+		if (isSingleSegment)
+		{
+			isExhausted = true;
+		}
+		else
+		{
+			while (start < length && text.charAt(start) == SEPARATOR)
+			{
+				start++;
+			}
+			if (start >= length)
+			{
+				isExhausted = true;
+				return false;
+			}
+		}
+
+		int end = start;
+		int colon = -1;
+		while (end < length && (isSingleSegment || text.charAt(end) != SEPARATOR))
+		{
+			if (colon < 0 && text.charAt(end) == PRIORITY_SEPARATOR)
+			{
+				colon = end;
+			}
+			end++;
+		}
+		position = end;
+
+		int nameStart = start;
+		isPrioritized = false;
+		if (colon >= 0)
+		{
+			isPrioritized = parsePriority(start, colon);
+
+			nameStart = colon;
+			while (nameStart < end && text.charAt(nameStart) == PRIORITY_SEPARATOR)
+			{
+				nameStart++;
+			}
+		}
+
+		if (nameStart < end && text.startsWith(NodeInfo.EXCLUDE_PREFIX, nameStart))
+		{
+			effect = NodeEffect.DENY;
+			nameStart += NodeInfo.EXCLUDE_PREFIX.length();
+		}
+		else
+		{
+			effect = NodeEffect.ALLOW;
+		}
+
+		segment = SegmentTable.intern(text, nameStart, end);
+		return true;
+	}
+
+	/**
+	 * Parses a priority modifier.
+	 *
+	 * @param start index of the first character of the modifier
+	 * @param end index after the last character of the modifier
+	 * @return true if the modifier is a valid integer; otherwise, false
+	 */
+	private boolean parsePriority(final int start, final int end)
+	{
+		if (start >= end)
+		{
+			return false;
+		}
+
+		int i = start;
+		final boolean isNegative = text.charAt(i) == '-';
+		if (isNegative || text.charAt(i) == '+')
+		{
+			i++;
+			if (i >= end)
+			{
+				return false;
+			}
+		}
+
+		long value = 0;
+		for (; i < end; i++)
+		{
+			final char c = text.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				return false;
+			}
+
+			value = value * 10 + (c - '0');
+			if (value > (long)Integer.MAX_VALUE + 1)
+			{
+				return false;
+			}
+		}
+
+		value = isNegative ? -value : value;
+		if (value > Integer.MAX_VALUE)
+		{
+			return false;
+		}
+
+		priority = (int)value;
+		return true;
+	}
+
+	/**
+	 * Splits a permission into segment identifiers without parsing modifiers or interning anything.
+	 *
+	 * <p>
+	 * Segments that have never been interned are reported as {@link SegmentTable#UNKNOWN}.  If the permission is deeper than
+	 * {@link NodeTree#MAX_DEPTH}, one final {@link SegmentTable#UNKNOWN} stands in for the remainder, which only a wildcard can match.
+	 * No objects are allocated for ASCII permissions.
+	 * </p>
+	 *
+	 * @param permission the permission to split
+	 * @param segments receives the segment identifiers; must hold at least {@link NodeTree#MAX_DEPTH} + 1 elements
+	 * @return the number of segments written
+	 */
+	public static int tokenize(final String permission, final int[] segments)
+	{
+		assert permission != null;
+		assert segments != null && segments.length > NodeTree.MAX_DEPTH;
+
+		final int length = permission.length();
+		int count = 0;
+		int start = 0;
+
+		while (start < length)
+		{
+			if (permission.charAt(start) == SEPARATOR)
+			{
+				start++;
+				continue;
+			}
+
+			if (count >= NodeTree.MAX_DEPTH)
+			{
+				segments[count++] = SegmentTable.UNKNOWN;
+				break;
+			}
+
+			int end = start + 1;
+			while (end < length && permission.charAt(end) != SEPARATOR)
+			{
+				end++;
+			}
+
+			segments[count++] = SegmentTable.find(permission, start, end);
+			start = end;
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,394 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * One or more permission trees compiled into a minimal deterministic automaton over segment identifiers.
+ *
+ * <p>
+ * Each state carries the dominant rule for permissions that end in it, with wildcards, denials and priorities across every compiled
+ * tree already resolved.  A permission is assessed by following one transition per segment and reading the final state's rule, with
+ * no wildcard lookups along the way.  Once a permission leaves every tree, it lands in a state that loops on every segment, so the
+ * rest of it is ignored.
+ * </p>
+ *
+ * <p>
+ * Automata are immutable and safe to share between threads.  They reflect the trees as they were when compiled; changes made later
+ * are not seen.
+ * </p>
+ */
+public final class PermissionAutomaton
+{
+	private static final int[] NO_KEYS = new int[0];
+
+	/**
+	 * The state in which every permission starts.
+	 */
+	private final int start;
+
+	/**
+	 * Dominant rule by state, for permissions that end in it.
+	 */
+	private final Rule[] rules;
+
+	/**
+	 * {@link Rule#pack() Packed} dominant rule by state.
+	 */
+	private final long[] packedRules;
+
+	/**
+	 * Segments with their own transitions by state, in ascending order.
+	 */
+	private final int[][] keys;
+
+	/**
+	 * Targets of the transitions in {@link #keys} by state.
+	 */
+	private final int[][] targets;
+
+	/**
+	 * Target of every other segment by state.
+	 */
+	private final int[] defaults;
+
+	private PermissionAutomaton(final Builder builder, final int start)
+	{
+		final int count = builder.rules.size();
+
+		this.start = start;
+		this.rules = builder.rules.toArray(new Rule[count]);
+		this.keys = builder.keys.toArray(new int[count][]);
+		this.targets = builder.targets.toArray(new int[count][]);
+		this.defaults = new int[count];
+		this.packedRules = new long[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			defaults[i] = builder.defaults.get(i);
+			packedRules[i] = rules[i].pack();
+		}
+	}
+
+	/**
+	 * Compiles permission trees into one automaton that yields the dominant rule among all of them.
+	 *
+	 * @param trees the root nodes of the trees to compile
+	 * @return the compiled automaton
+	 */
+	public static PermissionAutomaton compile(final List<NodeTree> trees)
+	{
+		assert trees != null;
+
+		final NodeTree[] nodes = trees.toArray(new NodeTree[trees.size()]);
+		final long[] accumulated = new long[nodes.length];
+		Arrays.fill(accumulated, Rule.NONE_PACKED);
+
+		final Builder builder = new Builder();
+		final int start = builder.build(nodes, accumulated);
+		return new PermissionAutomaton(builder, start);
+	}
+
+	/**
+	 * Gets the number of states in the automaton.
+	 *
+	 * @return the state count
+	 */
+	public int getStateCount()
+	{
+		return rules.length;
+	}
+
+	/**
+	 * Determines whether the compiled trees permit or deny the specified permission.
+	 *
+	 * @param permission the permission to assess
+	 * @return the dominant rule among all compiled trees
+	 */
+	public Rule getRule(final String permission)
+	{
+		assert permission != null;
+
+		final int[] segments = new int[NodeTree.MAX_DEPTH + 1];
+		final int length = PathTokenizer.tokenize(permission, segments);
+		return getRule(segments, length);
+	}
+
+	/**
+	 * Determines whether the compiled trees permit or deny the specified permission.
+	 *
+	 * @param segments the permission to assess, as ordered segment identifiers from {@link PathTokenizer#tokenize(String, int[])}
+	 * @param length the number of segments in {@code segments} to assess
+	 * @return the dominant rule among all compiled trees
+	 */
+	public Rule getRule(final int[] segments, final int length)
+	{
+		assert segments != null;
+		assert length >= 0 && length <= segments.length;
+
+		int state = start;
+		for (int i = 0; i < length; i++)
+		{
+			final int index = Arrays.binarySearch(keys[state], segments[i]);
+			state = index >= 0 ? targets[state][index] : defaults[state];
+		}
+
+		return rules[state];
+	}
+
+	/**
+	 * Determines whether the compiled trees permit or deny each permission of a query, resuming each permission from the state reached
+	 * by the prefix it shares with the one before it.
+	 *
+	 * @param paths the query's permissions, split and ordered
+	 * @param results receives the dominant packed rule of each permission, in the query's order
+	 */
+	void mergePackedRules(final PermissionQuery.Paths paths, final long[] results)
+	{
+		final int[] states = new int[NodeTree.MAX_DEPTH + 2];
+		states[0] = start;
+
+		for (int k = 0; k < paths.segments.length; k++)
+		{
+			final int[] path = paths.segments[k];
+
+			for (int d = paths.shared[k]; d < path.length; d++)
+			{
+				final int state = states[d];
+				final int index = Arrays.binarySearch(keys[state], path[d]);
+				states[d + 1] = index >= 0 ? targets[state][index] : defaults[state];
+			}
+
+			final int index = paths.order[k];
+			results[index] = Math.max(results[index], packedRules[states[path.length]]);
+		}
+	}
+
+	/**
+	 * Builds the states of an automaton, merging equivalent states as they are built.
+	 *
+	 * <p>
+	 * Trees have no cycles, so states are built depth first, and every state's targets are final before the state itself is.  A state is
+	 * identified by its rule and its transitions, so two states that behave alike are always built as one, and the result is minimal.
+	 * </p>
+	 */
+	private static final class Builder
+	{
+		private final List<Rule> rules = new ArrayList<>();
+		private final List<int[]> keys = new ArrayList<>();
+		private final List<int[]> targets = new ArrayList<>();
+		private final List<Integer> defaults = new ArrayList<>();
+		private final Map<Signature, Integer> states = new HashMap<>();
+		private final Map<Long, Integer> sinks = new HashMap<>();
+
+		/**
+		 * Builds the state reached in every tree at once.
+		 *
+		 * @param nodes the node reached in each tree, or {@literal null} for trees the permission has left
+		 * @param accumulated the dominant packed wildcard rule passed on the way in each tree
+		 * @return the state's index
+		 */
+		int build(final NodeTree[] nodes, final long[] accumulated)
+		{
+			final long[] next = new long[nodes.length];
+			final NodeChildren[] children = new NodeChildren[nodes.length];
+			long rule = Rule.NONE_PACKED;
+			long fallen = Rule.NONE_PACKED;
+			int keyCount = 0;
+
+			for (int j = 0; j < nodes.length; j++)
+			{
+				next[j] = accumulated[j];
+				if (nodes[j] == null)
+				{
+					rule = Math.max(rule, accumulated[j]);
+					fallen = Math.max(fallen, accumulated[j]);
+					continue;
+				}
+
+				rule = Math.max(rule, Math.max(accumulated[j], nodes[j].getInfo().getPackedRule()));
+
+				children[j] = nodes[j].getChildren();
+				if (children[j] != null)
+				{
+					final NodeTree all = children[j].get(NodeInfo.ALL_SEGMENT);
+					if (all != null)
+					{
+						next[j] = Math.max(next[j], all.getInfo().getPackedRule());
+					}
+					keyCount += children[j].size();
+				}
+
+				fallen = Math.max(fallen, next[j]);
+			}
+
+			if (keyCount == 0 && rule == fallen)
+			{
+				return sink(fallen);
+			}
+
+			final int[] segments = getSegments(children, keyCount);
+			final int fallback = sink(fallen);
+			final int[] stateKeys = new int[segments.length];
+			final int[] stateTargets = new int[segments.length];
+			int count = 0;
+
+			final NodeTree[] nextNodes = new NodeTree[nodes.length];
+			for (final int segment : segments)
+			{
+				for (int j = 0; j < nodes.length; j++)
+				{
+					nextNodes[j] = children[j] != null ? children[j].get(segment) : null;
+				}
+
+				final int target = build(nextNodes, next);
+				if (target != fallback)
+				{
+					stateKeys[count] = segment;
+					stateTargets[count] = target;
+					count++;
+				}
+			}
+
+			if (count == 0 && rule == fallen)
+			{
+				return fallback;
+			}
+
+			return intern(new Signature(rule, Arrays.copyOf(stateKeys, count), Arrays.copyOf(stateTargets, count), fallback));
+		}
+
+		/**
+		 * Gets the state that every permission ends in once it has left every tree.
+		 *
+		 * @param rule the dominant packed rule of the state
+		 * @return the state's index
+		 */
+		private int sink(final long rule)
+		{
+			Integer state = sinks.get(rule);
+			if (state == null)
+			{
+				state = add(rule, NO_KEYS, NO_KEYS, rules.size());
+				sinks.put(rule, state);
+			}
+
+			return state;
+		}
+
+		/**
+		 * Gets the state with a signature, adding it if no equivalent state exists.
+		 *
+		 * @param signature the state's rule and transitions
+		 * @return the state's index
+		 */
+		private int intern(final Signature signature)
+		{
+			Integer state = states.get(signature);
+			if (state == null)
+			{
+				state = add(signature.rule, signature.keys, signature.targets, signature.fallback);
+				states.put(signature, state);
+			}
+
+			return state;
+		}
+
+		private int add(final long rule, final int[] stateKeys, final int[] stateTargets, final int fallback)
+		{
+			rules.add(Rule.unpack(rule));
+			keys.add(stateKeys);
+			targets.add(stateTargets);
+			defaults.add(fallback);
+			return rules.size() - 1;
+		}
+
+		/**
+		 * Gets every segment with a child in any of the containers.
+		 *
+		 * @param children the containers, some of which may be {@literal null}
+		 * @param capacity an upper bound on the number of segments
+		 * @return the distinct segments, in ascending order
+		 */
+		private static int[] getSegments(final NodeChildren[] children, final int capacity)
+		{
+			final int[] segments = new int[capacity];
+			int count = 0;
+
+			for (final NodeChildren container : children)
+			{
+				if (container == null)
+				{
+					continue;
+				}
+
+				for (int i = 0; i < container.capacity(); i++)
+				{
+					final NodeTree child = container.getAt(i);
+					if (child != null)
+					{
+						segments[count++] = child.getInfo().getSegment();
+					}
+				}
+			}
+
+			Arrays.sort(segments, 0, count);
+
+			int distinct = 0;
+			for (int i = 0; i < count; i++)
+			{
+				if (distinct == 0 || segments[distinct - 1] != segments[i])
+				{
+					segments[distinct++] = segments[i];
+				}
+			}
+
+			return Arrays.copyOf(segments, distinct);
+		}
+	}
+
+	/**
+	 * Identifies a state by everything that determines its behaviour.
+	 */
+	private static final class Signature
+	{
+		private final long rule;
+		private final int[] keys;
+		private final int[] targets;
+		private final int fallback;
+
+		Signature(final long rule, final int[] keys, final int[] targets, final int fallback)
+		{
+			this.rule = rule;
+			this.keys = keys;
+			this.targets = targets;
+			this.fallback = fallback;
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (!(o instanceof Signature))
+			{
+				return false;
+			}
+
+			final Signature other = (Signature)o;
+			return fallback == other.fallback && rule == other.rule && Arrays.equals(keys, other.keys)
+				&& Arrays.equals(targets, other.targets);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = (int)(rule ^ (rule >>> 32));
+			hash = hash * 31 + fallback;
+			hash = hash * 31 + Arrays.hashCode(keys);
+			return hash * 31 + Arrays.hashCode(targets);
+		}
+	}
+}
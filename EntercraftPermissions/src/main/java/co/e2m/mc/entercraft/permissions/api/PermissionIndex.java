@@ -0,0 +1,354 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Inverted index from permission paths to the groups whose trees have a node there, for finding the groups that grant or deny a
+ * permission without visiting every group.
+ *
+ * <p>
+ * Entries form a trie over segment identifiers that mirrors every loaded tree at once.  Wildcard nodes are indexed under the
+ * {@link NodeInfo#ALL_SEGMENT} segment, and a lookup collects them at every level it passes, so finding the groups that affect a
+ * permission takes one step per segment plus one per group found.  {@link NodeTree} keeps the index up to date as nodes are created
+ * and removed.
+ * </p>
+ *
+ * <p>
+ * Each entry counts the nodes that each group has at its path, so that an evicted group being unindexed does not hide a reloaded copy
+ * of the same group.  An entry is pruned once no group has a node at its path and it has no children, so that the index does not grow
+ * with every path that was ever loaded.  A pruned entry is marked as detached under its lock, and indexing a node starts over from the
+ * root if it reaches a detached entry.
+ * </p>
+ */
+public class PermissionIndex
+{
+	/**
+	 * Entry for the root node, which no permission ends in.
+	 */
+	private final Entry root = new Entry();
+
+	/**
+	 * Indexes a node that was just added to its group's tree.
+	 *
+	 * @param info the node's information, including its path
+	 */
+	void add(final NodeInfo info)
+	{
+		assert info != null;
+
+		final List<NodeInfo> path = info.getPath();
+		while (!tryAdd(path, info.getGroup()))
+		{
+			// An entry along the path was pruned concurrently; walk the path again.
+		}
+	}
+
+	/**
+	 * Indexes a node unless an entry along its path has been pruned.
+	 *
+	 * @param path the node's path
+	 * @param group the node's group
+	 * @return {@literal true} if the node was indexed, or {@literal false} if it must be retried
+	 */
+	private boolean tryAdd(final List<NodeInfo> path, final GroupId group)
+	{
+		Entry entry = root;
+		for (final NodeInfo node : path)
+		{
+			if (!node.isRoot())
+			{
+				entry = entry.ensureChild(node.getSegment());
+				if (entry == null)
+				{
+					return false;
+				}
+			}
+		}
+
+		return entry.acquire(group);
+	}
+
+	/**
+	 * Unindexes a node that was just removed from its group's tree, along with all of its descendants.
+	 *
+	 * @param tree the removed node
+	 */
+	void remove(final NodeTree tree)
+	{
+		assert tree != null;
+
+		final List<Entry> entries = new ArrayList<>();
+		final List<Integer> segments = new ArrayList<>();
+		Entry entry = root;
+		for (final NodeInfo node : tree.getInfo().getPath())
+		{
+			if (!node.isRoot())
+			{
+				entry = entry.children.get(node.getSegment());
+				if (entry == null)
+				{
+					return;
+				}
+
+				entries.add(entry);
+				segments.add(node.getSegment());
+			}
+		}
+
+		release(entry, tree, tree.getInfo().getGroup());
+
+		// Prune upward until an entry is still in use.
+		for (int i = entries.size() - 1; i >= 0; i--)
+		{
+			final Entry parent = i == 0 ? root : entries.get(i - 1);
+			if (!parent.prune(segments.get(i), entries.get(i)))
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Unindexes every node below a root node, such as when the tree is replaced or its group is dropped.
+	 *
+	 * @param tree the root node of the tree
+	 */
+	void removeChildren(final NodeTree tree)
+	{
+		assert tree != null;
+
+		releaseChildren(root, tree, tree.getInfo().getGroup());
+	}
+
+	/**
+	 * Gets every group that may grant or deny a permission, whether through a node for the permission itself or through a wildcard
+	 * above it.
+	 *
+	 * <p>
+	 * The result may include groups whose node has no effect, or that have since been dropped; callers check each group's tree.
+	 * </p>
+	 *
+	 * @param segments the permission's segment identifiers, from {@link PathTokenizer#tokenize(String, int[])}
+	 * @param length the number of segments in {@code segments}
+	 * @return the identifiers of the groups found
+	 */
+	Set<GroupId> getGroups(final int[] segments, final int length)
+	{
+		assert segments != null;
+		assert length >= 0 && length <= segments.length;
+
+		final Set<GroupId> groups = new HashSet<>();
+		Entry entry = root;
+
+		for (int i = 0; i < length; i++)
+		{
+			final Entry all = entry.children.get(NodeInfo.ALL_SEGMENT);
+			if (all != null)
+			{
+				groups.addAll(all.groups.keySet());
+			}
+
+			entry = segments[i] == SegmentTable.UNKNOWN ? null : entry.children.get(segments[i]);
+			if (entry == null)
+			{
+				return groups;
+			}
+		}
+
+		if (entry != root)
+		{
+			groups.addAll(entry.groups.keySet());
+		}
+
+		return groups;
+	}
+
+	/**
+	 * Counts the entries in the index, excluding the root entry.
+	 *
+	 * @return the number of paths indexed
+	 */
+	int size()
+	{
+		return count(root) - 1;
+	}
+
+	/**
+	 * Counts an entry and its descendants.
+	 *
+	 * @param entry the entry
+	 * @return the number of entries
+	 */
+	private static int count(final Entry entry)
+	{
+		int count = 1;
+		for (final Entry child : entry.children.values())
+		{
+			count += count(child);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Releases a group's count for a node and its descendants, pruning the descendants' entries that fall out of use.
+	 *
+	 * @param entry the node's entry
+	 * @param tree the node
+	 * @param group the node's group
+	 */
+	private static void release(final Entry entry, final NodeTree tree, final GroupId group)
+	{
+		entry.release(group);
+		releaseChildren(entry, tree, group);
+	}
+
+	/**
+	 * Releases a group's count for the descendants of a node, pruning their entries that fall out of use.
+	 *
+	 * @param entry the node's entry
+	 * @param tree the node
+	 * @param group the node's group
+	 */
+	private static void releaseChildren(final Entry entry, final NodeTree tree, final GroupId group)
+	{
+		final NodeChildren children = tree.getChildren();
+		if (children == null)
+		{
+			return;
+		}
+
+		for (int i = 0; i < children.capacity(); i++)
+		{
+			final NodeTree child = children.getAt(i);
+			if (child != null)
+			{
+				final int segment = child.getInfo().getSegment();
+				final Entry childEntry = entry.children.get(segment);
+				if (childEntry != null)
+				{
+					release(childEntry, child, group);
+					entry.prune(segment, childEntry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A path in the index, with the groups that have a node there.
+	 */
+	private static final class Entry
+	{
+		/**
+		 * Child entries by segment identifier.  Added to only while holding the entry's lock.
+		 */
+		private final ConcurrentMap<Integer, Entry> children = new ConcurrentHashMap<>();
+
+		/**
+		 * Number of nodes at this path by group.  Changed only while holding the entry's lock.
+		 */
+		private final ConcurrentMap<GroupId, Integer> groups = new ConcurrentHashMap<>();
+
+		/**
+		 * Whether the entry has been pruned from its parent, after which it never changes again.  Guarded by the entry's lock.
+		 */
+		private boolean isDetached;
+
+		/**
+		 * Gets a child entry, creating it if necessary.
+		 *
+		 * @param segment the child's segment identifier
+		 * @return the child entry, or {@literal null} if this entry has been pruned
+		 */
+		Entry ensureChild(final int segment)
+		{
+			final Entry child = children.get(segment);
+			if (child != null)
+			{
+				return child;
+			}
+
+			synchronized (this)
+			{
+				if (isDetached)
+				{
+					return null;
+				}
+
+				Entry created = children.get(segment);
+				if (created == null)
+				{
+					created = new Entry();
+					children.put(segment, created);
+				}
+
+				return created;
+			}
+		}
+
+		/**
+		 * Counts a node of a group at this path.
+		 *
+		 * @param group the node's group
+		 * @return {@literal true} if the node was counted, or {@literal false} if this entry has been pruned
+		 */
+		synchronized boolean acquire(final GroupId group)
+		{
+			if (isDetached)
+			{
+				return false;
+			}
+
+			final Integer count = groups.get(group);
+			groups.put(group, count == null ? 1 : count + 1);
+			return true;
+		}
+
+		/**
+		 * Uncounts a node of a group at this path.
+		 *
+		 * @param group the node's group
+		 */
+		synchronized void release(final GroupId group)
+		{
+			final Integer count = groups.get(group);
+			if (count == null || count <= 1)
+			{
+				groups.remove(group);
+			}
+			else
+			{
+				groups.put(group, count - 1);
+			}
+		}
+
+		/**
+		 * Prunes a child entry if no group has a node at its path and it has no children.
+		 *
+		 * @param segment the child's segment identifier
+		 * @param child the child entry
+		 * @return {@literal true} if the child was pruned
+		 */
+		boolean prune(final int segment, final Entry child)
+		{
+			synchronized (child)
+			{
+				if (child.isDetached || !child.groups.isEmpty() || !child.children.isEmpty())
+				{
+					return false;
+				}
+
+				child.isDetached = true;
+			}
+
+			children.remove(segment, child);
+			return true;
+		}
+	}
+}
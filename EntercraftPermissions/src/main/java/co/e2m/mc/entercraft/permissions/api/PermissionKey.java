@@ -0,0 +1,145 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import co.e2m.mc.entercraft.i18n.I18n;
+import java.util.Arrays;
+import lombok.Getter;
+
+
+/**
+ * A permission split into segment identifiers ahead of time, for permissions that are checked over and over.
+ *
+ * <p>
+ * Keys are obtained from {@link PermissionsManager#prepare(String)} and are best kept in a constant by the plugin that checks them.
+ * Checking a key skips splitting and lowercasing the permission.  Keys compare equal if their permissions match, ignoring case, and
+ * their hash is computed once.  A key is immutable and may be shared between threads.
+ * </p>
+ */
+public final class PermissionKey
+{
+	/**
+	 * Gets the permission, as it was given.
+	 *
+	 * @return the permission
+	 */
+	@Getter
+	private final String permission;
+
+	/**
+	 * The lowercase permission, which determines equality.
+	 */
+	private final String canonical;
+
+	/**
+	 * Hash code of {@link #canonical}.
+	 */
+	private final int hash;
+
+	/**
+	 * The permission split into segments.  Replaced if segments that were unknown when it was split have since been interned.
+	 */
+	private volatile Split split;
+
+	/**
+	 * Instantiates a new key.
+	 *
+	 * @param permission the permission
+	 */
+	PermissionKey(final String permission)
+	{
+		assert permission != null;
+
+		this.permission = permission;
+		this.canonical = permission.toLowerCase(I18n.INVARIANT_LOCALE);
+		this.hash = canonical.hashCode();
+		this.split = new Split(permission);
+	}
+
+	/**
+	 * Gets the permission's segment identifiers, splitting it again if any of its unknown segments may since have been interned.
+	 *
+	 * @return the segment identifiers; must not be modified
+	 */
+	int[] getSegments()
+	{
+		Split current = split;
+		if (current.isStale())
+		{
+			current = new Split(permission);
+			split = current;
+		}
+
+		return current.segments;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(final Object o)
+	{
+		return o instanceof PermissionKey && hash == ((PermissionKey)o).hash && canonical.equals(((PermissionKey)o).canonical);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString()
+	{
+		return permission;
+	}
+
+	/**
+	 * A permission split into segment identifiers.
+	 */
+	private static final class Split
+	{
+		/**
+		 * Segment identifiers of the permission.
+		 */
+		private final int[] segments;
+
+		/**
+		 * Size of the segment table when the permission was split, or -1 if every segment was known.
+		 */
+		private final int tableSize;
+
+		Split(final String permission)
+		{
+			final int tableSize = SegmentTable.size();
+			final int[] buffer = new int[NodeTree.MAX_DEPTH + 1];
+			final int length = PathTokenizer.tokenize(permission, buffer);
+			boolean hasUnknown = false;
+
+			for (int i = 0; i < length; i++)
+			{
+				if (buffer[i] == SegmentTable.UNKNOWN)
+				{
+					hasUnknown = true;
+				}
+			}
+
+			this.segments = Arrays.copyOf(buffer, length);
+			this.tableSize = hasUnknown ? tableSize : -1;
+		}
+
+		/**
+		 * Gets whether segments that were unknown when the permission was split may since have been interned.
+		 *
+		 * @return true if the permission should be split again; otherwise, false
+		 */
+		boolean isStale()
+		{
+			return tableSize >= 0 && tableSize != SegmentTable.size();
+		}
+	}
+}
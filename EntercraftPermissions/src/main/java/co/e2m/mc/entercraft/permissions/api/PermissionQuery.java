@@ -0,0 +1,183 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * A prepared set of permissions to check together, such as every entry of a menu.
+ *
+ * <p>
+ * Permissions are split into segments once, when the query is prepared, and ordered so that permissions sharing a prefix are adjacent.
+ * Checking the query walks each permission tree once for all of them, resuming each permission from the nodes reached by the shared
+ * prefix of the one before it.  A query is immutable and may be reused for any number of players, from any thread.
+ * </p>
+ */
+public final class PermissionQuery
+{
+	/**
+	 * The permissions, in the order in which results are reported.
+	 */
+	private final String[] permissions;
+
+	/**
+	 * The permissions split into segments.  Replaced if segments that were unknown when it was built have since been interned.
+	 */
+	private volatile Paths paths;
+
+	/**
+	 * Prepares a query.
+	 *
+	 * @param permissions the permissions to check
+	 */
+	public PermissionQuery(final String... permissions)
+	{
+		assert permissions != null;
+
+		this.permissions = permissions.clone();
+		this.paths = new Paths(this.permissions);
+	}
+
+	/**
+	 * Gets the number of permissions in the query.
+	 *
+	 * @return the permission count
+	 */
+	public int size()
+	{
+		return permissions.length;
+	}
+
+	/**
+	 * Gets a permission of the query.
+	 *
+	 * @param index the permission's index, in the order given when the query was prepared
+	 * @return the permission
+	 */
+	public String getPermission(final int index)
+	{
+		return permissions[index];
+	}
+
+	/**
+	 * Gets the permissions split into segments, splitting them again if any of their unknown segments may since have been interned.
+	 *
+	 * @return the split permissions
+	 */
+	Paths getPaths()
+	{
+		Paths current = paths;
+		if (current.isStale())
+		{
+			current = new Paths(permissions);
+			paths = current;
+		}
+
+		return current;
+	}
+
+	/**
+	 * Permissions split into segment identifiers and ordered so that shared prefixes are adjacent.
+	 */
+	static final class Paths
+	{
+		/**
+		 * Segment identifiers of each permission, in walking order.
+		 */
+		final int[][] segments;
+
+		/**
+		 * Index of each permission in walking order, in the order given when the query was prepared.
+		 */
+		final int[] order;
+
+		/**
+		 * Number of leading segments that each permission in walking order shares with the permission before it.
+		 */
+		final int[] shared;
+
+		/**
+		 * Size of the segment table when the permissions were split, or -1 if every segment was known.
+		 */
+		private final int tableSize;
+
+		Paths(final String[] permissions)
+		{
+			final int tableSize = SegmentTable.size();
+			final int[][] split = new int[permissions.length][];
+			final int[] buffer = new int[NodeTree.MAX_DEPTH + 1];
+			boolean hasUnknown = false;
+
+			for (int i = 0; i < permissions.length; i++)
+			{
+				final int length = PathTokenizer.tokenize(permissions[i], buffer);
+				split[i] = Arrays.copyOf(buffer, length);
+
+				for (int d = 0; d < length; d++)
+				{
+					if (buffer[d] == SegmentTable.UNKNOWN)
+					{
+						hasUnknown = true;
+					}
+				}
+			}
+
+			final Integer[] sorted = new Integer[permissions.length];
+			for (int i = 0; i < sorted.length; i++)
+			{
+				sorted[i] = i;
+			}
+
+			Arrays.sort(sorted, new Comparator<Integer>()
+			{
+				@Override
+				public int compare(final Integer a, final Integer b)
+				{
+					final int[] x = split[a];
+					final int[] y = split[b];
+					for (int d = 0; d < x.length && d < y.length; d++)
+					{
+						if (x[d] != y[d])
+						{
+							return x[d] < y[d] ? -1 : 1;
+						}
+					}
+
+					return x.length - y.length;
+				}
+			});
+
+			this.segments = new int[sorted.length][];
+			this.order = new int[sorted.length];
+			this.shared = new int[sorted.length];
+			this.tableSize = hasUnknown ? tableSize : -1;
+
+			for (int k = 0; k < sorted.length; k++)
+			{
+				order[k] = sorted[k];
+				segments[k] = split[sorted[k]];
+
+				if (k > 0)
+				{
+					final int[] previous = segments[k - 1];
+					int common = 0;
+					while (common < previous.length && common < segments[k].length && previous[common] == segments[k][common])
+					{
+						common++;
+					}
+					shared[k] = common;
+				}
+			}
+		}
+
+		/**
+		 * Gets whether segments that were unknown when the permissions were split may since have been interned.
+		 *
+		 * @return true if the permissions should be split again; otherwise, false
+		 */
+		boolean isStale()
+		{
+			return tableSize >= 0 && tableSize != SegmentTable.size();
+		}
+	}
+}
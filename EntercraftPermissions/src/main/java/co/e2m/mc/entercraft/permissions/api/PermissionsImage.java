@@ -0,0 +1,774 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import co.e2m.mc.entercraft.i18n.Formats;
+import static co.e2m.mc.entercraft.i18n.I18n.i;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import lombok.Getter;
+
+
+/**
+ * Read-only, memory-mapped binary image of a set of groups, answering lookups straight from the mapped file.
+ *
+ * <p>
+ * The image holds the segment names it uses, a directory of groups sorted by a hash of their canonical names, flattened lineages, and
+ * the permission trees packed into fixed-size node records laid out as in {@link PermissionsSnapshot}.  Groups are found by bisecting
+ * the directory in place, and nothing but the segment names is copied out of the file.
+ * </p>
+ *
+ * <p>
+ * Mapping an image checks its checksum and every offset and number in it once, so that a damaged or truncated file is rejected up
+ * front rather than failing on whichever lookup first reaches the damage.  Lookups then read the file without further checks.
+ * </p>
+ *
+ * <p>
+ * File layout, all integers big-endian: a header of {@link #HEADER_INTS} integers, the segment table, the directory, the lineage pool,
+ * the node records, the group name pool and a CRC-32 of everything before it.
+ * </p>
+ */
+public final class PermissionsImage
+{
+	/**
+	 * Identifies an image file.
+	 */
+	private static final int MAGIC = 0x45435049;
+
+	/**
+	 * Version of the file format.
+	 */
+	private static final int FORMAT_VERSION = 2;
+
+	/**
+	 * Number of integers in the header: magic number, version, segment, group and node counts, and the offsets of each section.
+	 */
+	private static final int HEADER_INTS = 10;
+
+	/**
+	 * Size of a directory entry: name hash, name offset, root node, lineage start and lineage length.
+	 */
+	private static final int ENTRY_SIZE = 24;
+
+	/**
+	 * Size of a node record: segment, first child, child count, wildcard child, effect and priority.
+	 */
+	private static final int NODE_SIZE = 24;
+
+	/**
+	 * Size of the trailing checksum.
+	 */
+	private static final int CHECKSUM_SIZE = 4;
+
+	/**
+	 * Number of bytes checksummed at a time when mapping an image.
+	 */
+	private static final int CHECKSUM_CHUNK = 8192;
+
+	/**
+	 * Node effects by ordinal.
+	 */
+	private static final NodeEffect[] EFFECTS = NodeEffect.values();
+
+	/**
+	 * The mapped file.  Only absolute reads are used, so it can be shared between threads.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Image segment identifiers by process segment identifier, or {@link SegmentTable#UNKNOWN} for segments the image doesn't use.
+	 */
+	private final int[] segmentMap;
+
+	/**
+	 * Gets the number of groups in the image.
+	 *
+	 * @return the number of groups
+	 */
+	@Getter
+	private final int groupCount;
+
+	/**
+	 * Gets the number of nodes in the image, including each group's root node.
+	 *
+	 * @return the number of nodes
+	 */
+	@Getter
+	private final int nodeCount;
+
+	/**
+	 * Offset of the directory.
+	 */
+	private final int directoryOffset;
+
+	/**
+	 * Offset of the lineage pool.
+	 */
+	private final int lineageOffset;
+
+	/**
+	 * Offset of the node records.
+	 */
+	private final int nodeOffset;
+
+	/**
+	 * Offset of the group name pool.
+	 */
+	private final int nameOffset;
+
+	/**
+	 * Instantiates an image over a mapped file, validating it and reading its segment table.
+	 *
+	 * @param file the image file, for error messages
+	 * @param buffer the mapped file
+	 * @throws IOException if the file is not a valid image
+	 */
+	private PermissionsImage(final File file, final ByteBuffer buffer) throws IOException
+	{
+		this.buffer = buffer;
+
+		final int end = buffer.capacity() - CHECKSUM_SIZE;
+		if (end < HEADER_INTS * 4 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+		{
+			throw new IOException(i(Formats.Error_Generic_CannotOpenFile, file));
+		}
+
+		if (buffer.getInt(end) != (int)checksum(buffer, end))
+		{
+			throw new IOException(i(Formats.Error_Image_Damaged, file));
+		}
+
+		final int segmentCount = buffer.getInt(8);
+		groupCount = buffer.getInt(12);
+		nodeCount = buffer.getInt(16);
+		final int segmentOffset = buffer.getInt(20);
+		directoryOffset = buffer.getInt(24);
+		lineageOffset = buffer.getInt(28);
+		nodeOffset = buffer.getInt(32);
+		nameOffset = buffer.getInt(36);
+
+		// Sections are contiguous and in order, so each offset follows from the one before.
+		if (segmentCount < 0 || groupCount < 0 || nodeCount < 0 || segmentOffset != HEADER_INTS * 4 || directoryOffset < segmentOffset
+			|| lineageOffset != directoryOffset + (long)groupCount * ENTRY_SIZE || nodeOffset < lineageOffset
+			|| (nodeOffset - lineageOffset) % 4 != 0 || nameOffset != nodeOffset + (long)nodeCount * NODE_SIZE || nameOffset > end)
+		{
+			throw new IOException(i(Formats.Error_Image_Damaged, file));
+		}
+
+		// Segment identifiers differ between processes, so the image's own are translated once, here.
+		final int[] processIds = new int[segmentCount];
+		int position = segmentOffset;
+		int maxId = -1;
+		for (int i = 0; i < segmentCount; i++)
+		{
+			if (!isString(position, directoryOffset))
+			{
+				throw new IOException(i(Formats.Error_Image_Damaged, file));
+			}
+
+			final String name = readString(position);
+			position += 2 + (buffer.getShort(position) & 0xffff);
+			processIds[i] = SegmentTable.intern(name);
+			maxId = Math.max(maxId, processIds[i]);
+		}
+
+		if (position != directoryOffset || !isValidDirectory(end) || !isValidNodes(segmentCount))
+		{
+			throw new IOException(i(Formats.Error_Image_Damaged, file));
+		}
+
+		segmentMap = new int[maxId + 1];
+		Arrays.fill(segmentMap, SegmentTable.UNKNOWN);
+		for (int i = 0; i < segmentCount; i++)
+		{
+			segmentMap[processIds[i]] = i;
+		}
+	}
+
+	/**
+	 * Computes the CRC-32 of the start of a buffer.
+	 *
+	 * @param buffer the buffer
+	 * @param length the number of bytes to checksum
+	 * @return the checksum
+	 */
+	private static long checksum(final ByteBuffer buffer, final int length)
+	{
+		final CRC32 checksum = new CRC32();
+		final ByteBuffer view = buffer.duplicate();
+		view.clear();
+
+		final byte[] chunk = new byte[Math.min(length, CHECKSUM_CHUNK)];
+		for (int remaining = length; remaining > 0; remaining -= chunk.length)
+		{
+			final int size = Math.min(remaining, chunk.length);
+			view.get(chunk, 0, size);
+			checksum.update(chunk, 0, size);
+		}
+
+		return checksum.getValue();
+	}
+
+	/**
+	 * Determines whether a length-prefixed string lies entirely before a limit.
+	 *
+	 * @param position the offset of the string's length
+	 * @param limit the offset that the string must not extend past
+	 * @return true if the string fits; otherwise, false
+	 */
+	private boolean isString(final int position, final int limit)
+	{
+		return position >= 0 && position <= limit - 2 && position + 2 + (buffer.getShort(position) & 0xffff) <= limit;
+	}
+
+	/**
+	 * Determines whether every directory entry is in hash order and refers to a name, a root node and a lineage within the image.
+	 *
+	 * @param end the offset of the trailing checksum, where the name pool ends
+	 * @return true if the directory is valid; otherwise, false
+	 */
+	private boolean isValidDirectory(final int end)
+	{
+		final int lineageInts = (nodeOffset - lineageOffset) / 4;
+		for (int n = 0; n < groupCount; n++)
+		{
+			final int entry = directoryOffset + n * ENTRY_SIZE;
+			if (n > 0 && buffer.getLong(entry - ENTRY_SIZE) > buffer.getLong(entry))
+			{
+				return false;
+			}
+
+			final int name = buffer.getInt(entry + 8);
+			final int root = buffer.getInt(entry + 12);
+			final int start = buffer.getInt(entry + 16);
+			final int length = buffer.getInt(entry + 20);
+			if (name < 0 || !isString(nameOffset + name, end) || root < 0 || root >= nodeCount || start < 0 || length < 1
+				|| start > lineageInts - length)
+			{
+				return false;
+			}
+
+			for (int i = 0; i < length; i++)
+			{
+				final int inherited = buffer.getInt(lineageOffset + (start + i) * 4);
+				if (inherited < 0 || inherited >= groupCount)
+				{
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Determines whether every node record refers to a segment, children, a wildcard child and an effect within the image.
+	 *
+	 * @param segmentCount the number of segments in the segment table
+	 * @return true if the node records are valid; otherwise, false
+	 */
+	private boolean isValidNodes(final int segmentCount)
+	{
+		for (int n = 0; n < nodeCount; n++)
+		{
+			final int record = nodeOffset + n * NODE_SIZE;
+			final int segment = buffer.getInt(record);
+			final int first = buffer.getInt(record + 4);
+			final int count = buffer.getInt(record + 8);
+			final int wildcard = buffer.getInt(record + 12);
+			final int effect = buffer.getInt(record + 16);
+
+			if (segment < 0 || segment >= segmentCount || effect < 0 || effect >= EFFECTS.length)
+			{
+				return false;
+			}
+
+			if (count != PermissionsSnapshot.NONE && (count < 0 || first < 0 || first > nodeCount - count))
+			{
+				return false;
+			}
+
+			if (wildcard != PermissionsSnapshot.NONE && (wildcard < 0 || wildcard >= nodeCount))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Maps an image file into memory.
+	 *
+	 * @param file the image file
+	 * @return the mapped image
+	 * @throws IOException if the file cannot be mapped, or is not a valid image
+	 */
+	public static PermissionsImage map(final File file) throws IOException
+	{
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			// The mapping stays valid once the channel is closed.
+			return new PermissionsImage(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Writes an image of a set of groups and every group they inherit from, replacing the file atomically.
+	 *
+	 * <p>
+	 * The groups should not change while the image is written; otherwise, the image may reflect some changes but not others.
+	 * </p>
+	 *
+	 * @param file the image file to write
+	 * @param groups the groups to include
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(final File file, final Collection<Group> groups) throws IOException
+	{
+		final PermissionsSnapshot snapshot = new PermissionsSnapshot(0, groups);
+		final GroupId[] ids = snapshot.getGroupIds();
+		final int[][] lineages = snapshot.getLineages();
+		final int[] segments = snapshot.getSegments();
+		final int nodeCount = segments.length;
+
+		// Image segment identifiers are ranks of process identifiers, so children stay sorted.
+		final int[] used = segments.clone();
+		Arrays.sort(used);
+		int segmentCount = 0;
+		for (int i = 0; i < used.length; i++)
+		{
+			if (i == 0 || used[i] != used[i - 1])
+			{
+				used[segmentCount++] = used[i];
+			}
+		}
+
+		final ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+		final DataOutputStream segmentTable = new DataOutputStream(segmentBytes);
+		for (int i = 0; i < segmentCount; i++)
+		{
+			writeString(segmentTable, SegmentTable.getName(used[i]));
+		}
+
+		// The directory is sorted by name hash; group numbers in lineages are renumbered to match.
+		final Integer[] order = new Integer[ids.length];
+		final long[] hashes = new long[ids.length];
+		for (int i = 0; i < ids.length; i++)
+		{
+			order[i] = i;
+			hashes[i] = hash(ids[i].getCanonicalName());
+		}
+
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(final Integer a, final Integer b)
+			{
+				return Long.compare(hashes[a], hashes[b]);
+			}
+		});
+
+		final int[] positions = new int[ids.length];
+		for (int i = 0; i < order.length; i++)
+		{
+			positions[order[i]] = i;
+		}
+
+		final ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream(ids.length * ENTRY_SIZE);
+		final DataOutputStream directory = new DataOutputStream(directoryBytes);
+		final ByteArrayOutputStream lineageBytes = new ByteArrayOutputStream();
+		final DataOutputStream lineagePool = new DataOutputStream(lineageBytes);
+		final ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+		final DataOutputStream namePool = new DataOutputStream(nameBytes);
+
+		for (final int number : order)
+		{
+			directory.writeLong(hashes[number]);
+			directory.writeInt(namePool.size());
+			directory.writeInt(snapshot.getRoots()[number]);
+			directory.writeInt(lineagePool.size() / 4);
+			directory.writeInt(lineages[number].length);
+
+			for (final int inherited : lineages[number])
+			{
+				lineagePool.writeInt(positions[inherited]);
+			}
+
+			writeString(namePool, ids[number].getCanonicalName());
+		}
+
+		final int segmentOffset = HEADER_INTS * 4;
+		final int directoryOffset = segmentOffset + segmentBytes.size();
+		final int lineageOffset = directoryOffset + directoryBytes.size();
+		final int nodeOffset = lineageOffset + lineageBytes.size();
+		final int nameOffset = nodeOffset + nodeCount * NODE_SIZE;
+
+		final File temporary = new File(file.getPath() + ".tmp");
+		try (final OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temporary.toPath())))
+		{
+			final CheckedOutputStream checked = new CheckedOutputStream(stream, new CRC32());
+			final DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(segmentCount);
+			out.writeInt(ids.length);
+			out.writeInt(nodeCount);
+			out.writeInt(segmentOffset);
+			out.writeInt(directoryOffset);
+			out.writeInt(lineageOffset);
+			out.writeInt(nodeOffset);
+			out.writeInt(nameOffset);
+			segmentBytes.writeTo(out);
+			directoryBytes.writeTo(out);
+			lineageBytes.writeTo(out);
+
+			final int[] firstChildren = snapshot.getFirstChildren();
+			final int[] childCounts = snapshot.getChildCounts();
+			final int[] wildcards = snapshot.getWildcards();
+			final long[] rules = snapshot.getRules();
+			for (int n = 0; n < nodeCount; n++)
+			{
+				out.writeInt(Arrays.binarySearch(used, 0, segmentCount, segments[n]));
+				out.writeInt(firstChildren[n]);
+				out.writeInt(childCounts[n]);
+				out.writeInt(wildcards[n]);
+				out.writeInt(Rule.getEffect(rules[n]).ordinal());
+				out.writeInt(Rule.getPriority(rules[n]));
+			}
+
+			nameBytes.writeTo(out);
+			new DataOutputStream(stream).writeInt((int)checked.getChecksum().getValue());
+		}
+
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Gets the number of a group in the image.
+	 *
+	 * @param id the group's identifier
+	 * @return the group's number, or -1 if the group is not in the image
+	 */
+	public int getGroupNumber(final GroupId id)
+	{
+		final String name = id.getCanonicalName();
+		final long hash = hash(name);
+
+		int low = 0;
+		int high = groupCount;
+		while (low < high)
+		{
+			final int middle = (low + high) >>> 1;
+			if (buffer.getLong(directoryOffset + middle * ENTRY_SIZE) < hash)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+
+		for (int i = low; i < groupCount && buffer.getLong(directoryOffset + i * ENTRY_SIZE) == hash; i++)
+		{
+			if (name.equals(readString(nameOffset + buffer.getInt(directoryOffset + i * ENTRY_SIZE + 8))))
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Gets the numbers of a group and all groups it inherits from.
+	 *
+	 * @param number the group's number
+	 * @return the group's number followed by the numbers of all inherited groups
+	 */
+	public int[] getLineage(final int number)
+	{
+		final int entry = directoryOffset + number * ENTRY_SIZE;
+		final int start = buffer.getInt(entry + 16);
+		final int[] lineage = new int[buffer.getInt(entry + 20)];
+
+		for (int i = 0; i < lineage.length; i++)
+		{
+			lineage[i] = buffer.getInt(lineageOffset + (start + i) * 4);
+		}
+
+		return lineage;
+	}
+
+	/**
+	 * Determines whether a group is, or inherits from, another group.
+	 *
+	 * @param number the group's number
+	 * @param inherited the number of the group that may be inherited
+	 * @return true if the group is or inherits from the other group; otherwise, false
+	 */
+	public boolean isMemberOf(final int number, final int inherited)
+	{
+		for (final int n : getLineage(number))
+		{
+			if (n == inherited)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Determines whether a group permits or denies the specified permission, including all inherited groups.
+	 *
+	 * @param number the group's number
+	 * @param permission the permission to assess
+	 * @return the dominant rule among all contributing groups
+	 */
+	public Rule getRule(final int number, final String permission)
+	{
+		assert permission != null;
+
+		final int[] path = new int[NodeTree.MAX_DEPTH + 1];
+		return getRule(number, path, PathTokenizer.tokenize(permission, path));
+	}
+
+	/**
+	 * Determines whether a group permits or denies a prepared permission, including all inherited groups.
+	 *
+	 * @param number the group's number
+	 * @param key the permission to assess
+	 * @return the dominant rule among all contributing groups
+	 */
+	public Rule getRule(final int number, final PermissionKey key)
+	{
+		assert key != null;
+
+		final int[] segments = key.getSegments();
+		return getRule(number, Arrays.copyOf(segments, segments.length), segments.length);
+	}
+
+	/**
+	 * Determines whether a group permits or denies a permission, including all inherited groups.
+	 *
+	 * @param number the group's number
+	 * @param path the permission to assess, as ordered segment identifiers; mapped to image segment identifiers in place
+	 * @param length the number of segments in {@code path} to assess
+	 * @return the dominant rule among all contributing groups
+	 */
+	private Rule getRule(final int number, final int[] path, final int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			final int id = path[i];
+			path[i] = id >= 0 && id < segmentMap.length ? segmentMap[id] : SegmentTable.UNKNOWN;
+		}
+
+		long effective = Rule.NONE_PACKED;
+		for (final int n : getLineage(number))
+		{
+			final int root = buffer.getInt(directoryOffset + n * ENTRY_SIZE + 12);
+			effective = Math.max(effective, getPackedRule(root, path, length));
+		}
+
+		return Rule.unpack(effective);
+	}
+
+	/**
+	 * Determines whether a group permits or denies each permission of a query, including all inherited groups.
+	 *
+	 * @param number the group's number
+	 * @param query the permissions to assess
+	 * @return the dominant {@link Rule#pack() packed} rule of each permission, in the query's order
+	 */
+	public long[] getPackedRules(final int number, final PermissionQuery query)
+	{
+		assert query != null;
+
+		final PermissionQuery.Paths paths = query.getPaths();
+		final int[][] mapped = new int[paths.segments.length][];
+		for (int k = 0; k < mapped.length; k++)
+		{
+			final int[] path = paths.segments[k];
+			mapped[k] = new int[path.length];
+			for (int i = 0; i < path.length; i++)
+			{
+				final int id = path[i];
+				mapped[k][i] = id >= 0 && id < segmentMap.length ? segmentMap[id] : SegmentTable.UNKNOWN;
+			}
+		}
+
+		final long[] results = new long[query.size()];
+		for (final int n : getLineage(number))
+		{
+			final int root = buffer.getInt(directoryOffset + n * ENTRY_SIZE + 12);
+			for (int k = 0; k < mapped.length; k++)
+			{
+				final int index = paths.order[k];
+				results[index] = Math.max(results[index], getPackedRule(root, mapped[k], mapped[k].length));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Determines whether a single packed tree permits or denies the specified permission.
+	 *
+	 * <p>
+	 * Mirrors {@link NodeTree#getPackedRule(int[], int)}.
+	 * </p>
+	 *
+	 * @param root the number of the tree's root node
+	 * @param path the permission to assess, as ordered image segment identifiers
+	 * @param length the number of segments in {@code path} to assess
+	 * @return a packed rule based on the tree's effect on the permission
+	 */
+	private long getPackedRule(final int root, final int[] path, final int length)
+	{
+		long effective = Rule.NONE_PACKED;
+		int node = root;
+
+		for (int i = 0; i < length; i++)
+		{
+			final int record = nodeOffset + node * NODE_SIZE;
+			final int count = buffer.getInt(record + 8);
+			if (count == PermissionsSnapshot.NONE)
+			{
+				return effective;
+			}
+
+			final int wildcard = buffer.getInt(record + 12);
+			if (wildcard != PermissionsSnapshot.NONE)
+			{
+				effective = Math.max(effective, readRule(wildcard));
+			}
+
+			final int child = findChild(buffer.getInt(record + 4), count, path[i]);
+			if (child < 0)
+			{
+				return effective;
+			}
+
+			node = child;
+		}
+
+		return Math.max(effective, readRule(node));
+	}
+
+	/**
+	 * Bisects a run of sibling nodes for a segment.
+	 *
+	 * @param first the number of the first sibling
+	 * @param count the number of siblings
+	 * @param segment the image segment identifier to find
+	 * @return the number of the matching node, or -1 if there is none
+	 */
+	private int findChild(final int first, final int count, final int segment)
+	{
+		if (segment == SegmentTable.UNKNOWN)
+		{
+			return -1;
+		}
+
+		int low = first;
+		int high = first + count - 1;
+		while (low <= high)
+		{
+			final int middle = (low + high) >>> 1;
+			final int value = buffer.getInt(nodeOffset + middle * NODE_SIZE);
+			if (value < segment)
+			{
+				low = middle + 1;
+			}
+			else if (value > segment)
+			{
+				high = middle - 1;
+			}
+			else
+			{
+				return middle;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Reads the rule of a node.
+	 *
+	 * @param node the node's number
+	 * @return the node's packed rule
+	 */
+	private long readRule(final int node)
+	{
+		final int record = nodeOffset + node * NODE_SIZE;
+		final NodeEffect effect = EFFECTS[buffer.getInt(record + 16)];
+		return effect == NodeEffect.NONE ? Rule.NONE_PACKED : Rule.pack(effect, buffer.getInt(record + 20));
+	}
+
+	/**
+	 * Reads a length-prefixed UTF-8 string.
+	 *
+	 * @param position the offset of the string's length
+	 * @return the string
+	 */
+	private String readString(final int position)
+	{
+		final byte[] bytes = new byte[buffer.getShort(position) & 0xffff];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = buffer.get(position + 2 + i);
+		}
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a length-prefixed UTF-8 string.
+	 *
+	 * @param out the stream to write
+	 * @param value the string to write
+	 * @throws IOException if the stream cannot be written
+	 */
+	private static void writeString(final DataOutputStream out, final String value) throws IOException
+	{
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Hashes a canonical group name with 64-bit FNV-1a.
+	 *
+	 * @param name the canonical name
+	 * @return the name's hash
+	 */
+	private static long hash(final String name)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++)
+		{
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+}
@@ -1,31 +1,136 @@
 package co.e2m.mc.entercraft.permissions.api;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import net.milkbowl.vault.permission.Permission;
+import org.bukkit.entity.Player;
 
 
 /**
  * Base for Entercraft's cloud-based permissions handlers.
  */
-public abstract class PermissionsManager extends Permission implements IPermissionsManager
+public abstract class PermissionsManager extends Permission implements IPermissionsManager, IInvalidationListener
 {
 	/**
 	 * The default default ID.  No, that's not a typo.  The default ID can be changed via configuration.
 	 */
 	private static final String DEFAULT_ID = "default";
 
+	/**
+	 * Number of locks among which group writes are striped.  Must be a power of two.
+	 */
+	private static final int LOCK_STRIPES = 64;
+
+	/**
+	 * Number of groups whose latest invalidation version is remembered.
+	 */
+	private static final int MAX_INVALIDATION_VERSIONS = 4096;
+
+	/**
+	 * Maximum number of keys prepared for string permissions to keep.
+	 */
+	public static final int MAX_PREPARED_KEYS = 4096;
+
 	/**
 	 * Gets the group cache.
 	 *
 	 * @return the group cache
 	 */
-	@Getter(AccessLevel.PROTECTED)
-	private final Map<GroupId, Group> cache = new HashMap<>();
+	@Getter
+	private final GroupCache cache = new GroupCache();
+
+	/**
+	 * Locks that serialize group writes, striped by group identifier.
+	 */
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	/**
+	 * Gets the snapshot that permission checks read in epoch mode.
+	 *
+	 * @return the most recently published snapshot, or {@literal null} if epoch mode is disabled
+	 */
+	@Getter
+	private volatile PermissionsSnapshot snapshot;
+
+	/**
+	 * Epoch of the most recently published snapshot.  Guarded by every write lock.
+	 */
+	private long epoch;
+
+	/**
+	 * Gets the mapped image that answers checks for groups that aren't cached.
+	 *
+	 * @return the mapped image, or {@literal null} if none is mapped
+	 */
+	@Getter
+	private volatile PermissionsImage image;
+
+	/**
+	 * Numbers of image groups that were modified since the image was mapped, and whose image data is therefore stale.
+	 */
+	private final Set<Integer> imageOverrides = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/**
+	 * Latest applied invalidation version per group, for the most recently invalidated groups.  Used to skip duplicate invalidations.
+	 */
+	private final Map<GroupId, Long> invalidationVersions = new LinkedHashMap<GroupId, Long>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<GroupId, Long> eldest)
+		{
+			return size() > MAX_INVALIDATION_VERSIONS;
+		}
+	};
+
+	/**
+	 * Number of preloads in progress by user group identifier.  Until the groups are cached, checks use the default group rather than
+	 * loading them again.
+	 */
+	private final ConcurrentMap<GroupId, Integer> preloading = new ConcurrentHashMap<>();
+
+	/**
+	 * Change feed version up to which cached groups reflect the backend, or -1 if unknown.  Guarded by {@link #syncLock}.
+	 */
+	private long syncVersion = -1;
+
+	/**
+	 * Serializes {@link #synchronize()}.
+	 */
+	private final Object syncLock = new Object();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Getter
+	private final GroupIndex groupIndex = new GroupIndex();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Getter
+	private final PermissionIndex permissionIndex = new PermissionIndex();
+
+	/**
+	 * Keys prepared for permissions checked by string, so that each is split only once.
+	 */
+	private final ClockCache<String, PermissionKey> preparedKeys = new ClockCache<>(MAX_PREPARED_KEYS);
 
 	/**
 	 * Gets a mapping of world names to world IDs.
@@ -33,7 +138,7 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	 * @return map of world names to world IDs
 	 */
 	@Getter(AccessLevel.PROTECTED)
-	private final Map<String, String> worldIds = new HashMap<>();
+	private final Map<String, String> worldIds = new ConcurrentHashMap<>();
 
 	/**
 	 * Gets the default world ID.  Used if a world doesn't have an associated ID.
@@ -50,98 +155,839 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	private String defaultWorldId = DEFAULT_ID;
 
 	/**
-	 * Gets the default group ID.  If this group exists, users default to this group.
+	 * Gets the default group ID.  If this group exists, users default to this group.
+	 *
+	 * @return the default group ID
+	 */
+	@Getter(AccessLevel.PROTECTED)
+	/**
+	 * Sets the default group ID.  If this group exists, users default to this group.
+	 *
+	 * @param defaultGroupId the default group ID
+	 */
+	@Setter(AccessLevel.PROTECTED)
+	private GroupId defaultGroupId = new GroupId(defaultWorldId, GroupType.NORMAL, DEFAULT_ID);
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Getter
+	/**
+	 * {@inheritDoc}
+	 */
+	@Setter
+	private boolean enabled;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Getter
+	/**
+	 * Sets whether groups' effective permissions are compiled into a {@link PermissionAutomaton} whenever they are rebuilt.
+	 *
+	 * <p>
+	 * Compiling costs time proportional to the size of a group's permission trees, so it pays off when groups change rarely and are
+	 * checked often.  Views already built are not affected.
+	 * </p>
+	 *
+	 * @param compilingAutomata true to compile effective permissions; otherwise, false
+	 */
+	@Setter
+	private volatile boolean compilingAutomata;
+
+	/**
+	 * Instantiates a new permissions handler.
+	 */
+	protected PermissionsManager()
+	{
+		for (int i = 0; i < locks.length; i++)
+		{
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object getLock(final GroupId id)
+	{
+		final int hash = id.hashCode();
+		return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * Gets whether permission checks read the published snapshot rather than the live model.
+	 *
+	 * @return true if epoch mode is enabled; otherwise, false
+	 */
+	public boolean isEpochMode()
+	{
+		return snapshot != null;
+	}
+
+	/**
+	 * Enables or disables epoch mode.
+	 *
+	 * <p>
+	 * In epoch mode, changes accumulate in the live model, which serves as the builder for the next snapshot, and permission checks
+	 * only see them once {@link #publishSnapshot()} is called.  Every check reads one immutable snapshot, so checks are consistent with
+	 * each other regardless of the thread on which they run.
+	 * </p>
+	 *
+	 * @param value true to enable epoch mode, publishing an initial snapshot; false to read the live model again
+	 */
+	public void setEpochMode(final boolean value)
+	{
+		if (value)
+		{
+			publishSnapshot();
+		}
+		else
+		{
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * Compiles the cached groups into a new snapshot and publishes it atomically, enabling epoch mode if necessary.
+	 *
+	 * <p>
+	 * Every write lock is held during compilation, so the snapshot reflects either all or none of each change.
+	 * </p>
+	 *
+	 * @return the published snapshot
+	 */
+	public PermissionsSnapshot publishSnapshot()
+	{
+		return publishSnapshot(0);
+	}
+
+	/**
+	 * Acquires the remaining write locks in order, then compiles and publishes a snapshot.
+	 *
+	 * @param stripe the next lock to acquire
+	 * @return the published snapshot
+	 */
+	private PermissionsSnapshot publishSnapshot(final int stripe)
+	{
+		if (stripe < locks.length)
+		{
+			synchronized (locks[stripe])
+			{
+				return publishSnapshot(stripe + 1);
+			}
+		}
+
+		final PermissionsSnapshot published = new PermissionsSnapshot(++epoch, cache.values());
+		snapshot = published;
+		return published;
+	}
+
+	/**
+	 * Unloads the groups of every world that has had no players or lookups for the cache's
+	 * {@link GroupCache#getWorldIdleTimeout() idle timeout}.  Meant to be called periodically, such as from a scheduled task.
+	 *
+	 * <p>
+	 * Every write lock is held while unloading, so no group is loaded into a world as it is being unloaded.
+	 * </p>
+	 *
+	 * @return the number of groups unloaded
+	 */
+	public int unloadIdleWorlds()
+	{
+		return unloadIdleWorlds(0);
+	}
+
+	/**
+	 * Acquires the remaining write locks in order, then unloads idle worlds.
+	 *
+	 * @param stripe the next lock to acquire
+	 * @return the number of groups unloaded
+	 */
+	private int unloadIdleWorlds(final int stripe)
+	{
+		if (stripe < locks.length)
+		{
+			synchronized (locks[stripe])
+			{
+				return unloadIdleWorlds(stripe + 1);
+			}
+		}
+
+		return cache.unloadIdleWorlds(this);
+	}
+
+	/**
+	 * Maps a binary image, so that checks for groups that aren't cached are answered from the image without loading them.
+	 *
+	 * <p>
+	 * Groups are still loaded from the backend as soon as they are mutated, and from then on, checks involving them use the live model.
+	 * The image must reflect the backend's state when it is mapped.
+	 * </p>
+	 *
+	 * @param file the image file
+	 * @throws IOException if the image cannot be mapped
+	 */
+	public void mapImage(final File file) throws IOException
+	{
+		final PermissionsImage mapped = PermissionsImage.map(file);
+		imageOverrides.clear();
+		image = mapped;
+	}
+
+	/**
+	 * Stops answering checks from the mapped image.
+	 */
+	public void unmapImage()
+	{
+		image = null;
+		imageOverrides.clear();
+	}
+
+	/**
+	 * Writes a binary image of every cached group and every group they inherit from.
+	 *
+	 * @param file the image file to write
+	 * @throws IOException if the image cannot be written
+	 */
+	public void writeImage(final File file) throws IOException
+	{
+		PermissionsImage.write(file, new ArrayList<>(cache.values()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Keeps the mapped image from answering checks that involve the group.
+	 * </p>
+	 */
+	@Override
+	public void onGroupModified(final GroupId id)
+	{
+		final PermissionsImage mapped = image;
+		if (mapped != null)
+		{
+			final int number = mapped.getGroupNumber(id);
+			if (number >= 0)
+			{
+				imageOverrides.add(number);
+			}
+		}
+	}
+
+	/**
+	 * Gets the image number of a group that the mapped image can answer checks for.
+	 *
+	 * @param mapped the mapped image
+	 * @param id the group's identifier
+	 * @return the group's number, or -1 if the group is cached, not in the image, or it or any group it inherits from was modified
+	 */
+	private int getImageNumber(final PermissionsImage mapped, final GroupId id)
+	{
+		// Cached groups are always current, and cheaper to check than the image.
+		if (cache.containsKey(id))
+		{
+			return -1;
+		}
+
+		final int number = mapped.getGroupNumber(id);
+		if (number < 0 || imageOverrides.isEmpty())
+		{
+			return number;
+		}
+
+		for (final int n : mapped.getLineage(number))
+		{
+			if (imageOverrides.contains(n))
+			{
+				return -1;
+			}
+		}
+
+		return number;
+	}
+
+	/**
+	 * @{inheritDoc}
+	 */
+	@Override
+	public boolean hasSuperPermsCompat()
+	{
+		return false;
+	}
+
+	/**
+	 * Converts a world name to world ID.
+	 *
+	 * @param world the name of the world
+	 * @return the ID of the world
+	 */
+	protected String getWorldId(final String world)
+	{
+		final String id = world != null ? worldIds.get(world) : null;
+		if (id != null)
+		{
+			return id;
+		}
+		else
+		{
+			return defaultWorldId;
+		}
+	}
+
+	/**
+	 * Gets a group identifier.
+	 *
+	 * @param world world name, not ID
+	 * @param type group type
+	 * @param name relative group name
+	 * @return server-unique group identifier
+	 */
+	protected GroupId getGroupId(final String world, final GroupType type, final String name)
+	{
+		return new GroupId(getWorldId(world), type, name);
+	}
+
+	/**
+	 * Gets a group permission tree.
+	 *
+	 * @param world world name, not ID
+	 * @param type group type
+	 * @param name relative group name
+	 * @return the group if it exists; otherwise, null
+	 */
+	protected Group getGroup(final String world, final GroupType type, final String name)
+	{
+		return getGroup(getGroupId(world, type, name));
+	}
+
+	/**
+	 * Gets a group permission tree.
+	 *
+	 * @param id the group's identifier
+	 * @return the group if it exists; otherwise, null
+	 */
+	protected Group getGroup(final GroupId id)
+	{
+		final Group group = cache.get(id);
+		if (group != null || cache.isAbsent(id))
+		{
+			return group;
+		}
+
+		return loadGroup(id, new HashSet<GroupId>(), null);
+	}
+
+	/**
+	 * Loads a group from the backend and caches it, along with any parents that aren't cached.
+	 *
+	 * <p>
+	 * Parents are resolved before the group's write lock is taken, so that no thread ever holds more than one write lock while loading.
+	 * The loaded state is materialized without being written back to the backend.
+	 * </p>
+	 *
+	 * @param id the group's identifier
+	 * @param loading groups being loaded by this thread, to break inheritance cycles
+	 * @param preloaded records already fetched from the backend, or {@literal null}
+	 * @return the loaded group, or {@literal null} if the backend doesn't have it
+	 */
+	private Group loadGroup(final GroupId id, final Set<GroupId> loading, final Map<GroupId, GroupRecord> preloaded)
+	{
+		if (!loading.add(id))
+		{
+			return null;
+		}
+
+		final GroupRecord fetched = preloaded != null ? preloaded.get(id) : null;
+		final IPermissionsBackend backend = getBackend();
+		final GroupRecord record = fetched != null ? fetched
+			: backend instanceof ILoadingPermissionsBackend ? ((ILoadingPermissionsBackend)backend).loadGroup(id) : null;
+		if (record == null)
+		{
+			synchronized (getLock(id))
+			{
+				// A group created meanwhile must not be hidden by a stale negative entry.
+				if (cache.peek(id) == null)
+				{
+					cache.markAbsent(id);
+				}
+			}
+
+			return null;
+		}
+
+		final Group group = materialize(record, loading, preloaded, false);
+		cache.evict(this);
+		return group;
+	}
+
+	/**
+	 * Creates and caches a group from a record, along with any parents that aren't cached.
+	 *
+	 * @param record the group's persisted state
+	 * @param loading groups being loaded by this thread, to break inheritance cycles
+	 * @param preloaded records already fetched from the backend, from which parents are taken first, or {@literal null}
+	 * @param isImport true to ship the group's state to the backend as one batch; false to materialize it silently
+	 * @return the new group; if the group is already cached, the cached group when loading, or {@literal null} when importing
+	 */
+	private Group materialize(final GroupRecord record, final Set<GroupId> loading, final Map<GroupId, GroupRecord> preloaded,
+		final boolean isImport)
+	{
+		final GroupId id = record.getId();
+		final List<Group> parents = new ArrayList<>(record.getParents().size());
+		final Group primaryParent = resolveParents(record, loading, preloaded, parents);
+
+		synchronized (getLock(id))
+		{
+			Group group = cache.peek(id);
+			if (group != null)
+			{
+				return isImport ? null : group;
+			}
+
+			group = new Group(this, id);
+			final BackendTransaction transaction = isImport ? new BackendTransaction(getBackend()) : null;
+			if (transaction != null)
+			{
+				onGroupModified(id);
+				transaction.createGroup(group);
+			}
+
+			// The group is not cached yet, so its tree is private to this thread until it is.
+			final NodeTree permissions = group.getPermissions();
+			permissions.beginBulkLoad();
+			try
+			{
+				for (final NodeInfo node : record.getNodes())
+				{
+					final List<NodeInfo> path = node.getPath();
+					if (!path.isEmpty() && path.get(0).isRoot())
+					{
+						path.remove(0);
+					}
+
+					permissions.addPath(path.toArray(new NodeInfo[path.size()]), transaction);
+				}
+			}
+			finally
+			{
+				permissions.endBulkLoad();
+			}
+
+			group.restore(parents, primaryParent, record.getData());
+			cache.put(id, group);
+
+			if (transaction != null)
+			{
+				for (final Group parent : parents)
+				{
+					transaction.addInheritedGroup(group, parent);
+				}
+
+				if (primaryParent != null)
+				{
+					transaction.updatePrimaryParent(group, primaryParent);
+				}
+
+				for (final Map.Entry<String, Serializable> entry : record.getData().entrySet())
+				{
+					addGroupData(transaction, group, entry.getKey(), entry.getValue());
+				}
+
+				transaction.commit();
+			}
+
+			return group;
+		}
+	}
+
+	/**
+	 * Gets or loads the parents of a group that is being materialized.
+	 *
+	 * @param record the group's persisted state
+	 * @param loading groups being loaded by this thread, to break inheritance cycles
+	 * @param preloaded records already fetched from the backend, or {@literal null}
+	 * @param parents receives the parents that exist, in inheritance order
+	 * @return the primary parent, or {@literal null} if it is not set or does not exist
+	 */
+	private Group resolveParents(final GroupRecord record, final Set<GroupId> loading, final Map<GroupId, GroupRecord> preloaded,
+		final List<Group> parents)
+	{
+		Group primaryParent = null;
+		for (final GroupId parentId : record.getParents())
+		{
+			Group parent = cache.peek(parentId);
+			if (parent == null && !cache.isAbsent(parentId))
+			{
+				parent = loadGroup(parentId, loading, preloaded);
+			}
+
+			if (parent != null)
+			{
+				parents.add(parent);
+				if (parentId.equals(record.getPrimaryParent()))
+				{
+					primaryParent = parent;
+				}
+			}
+		}
+
+		return primaryParent;
+	}
+
+	/**
+	 * Records a metadata addition with the value's own type.
+	 *
+	 * @param <T> the type of data to store
+	 * @param backend the backend to notify
+	 * @param group the group that is being modified
+	 * @param key the metadata key
+	 * @param value the data to store
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends Serializable> void addGroupData(final IPermissionsBackend backend, final Group group, final String key,
+		final T value)
+	{
+		backend.addGroupData(group, key, (Class<T>)value.getClass(), value);
+	}
+
+	/**
+	 * Caches many groups at once from records that were fetched from the backend in bulk, such as by a few set-based queries.
+	 *
+	 * <p>
+	 * Groups that are already cached are left as they are.  Parents missing from the records are loaded from the backend as usual.
+	 * </p>
+	 *
+	 * @param records the groups' persisted state
+	 */
+	public void preload(final Collection<GroupRecord> records)
+	{
+		final Map<GroupId, GroupRecord> byId = new HashMap<>(records.size() * 2);
+		for (final GroupRecord record : records)
+		{
+			byId.put(record.getId(), record);
+		}
+
+		for (final GroupRecord record : records)
+		{
+			if (cache.peek(record.getId()) == null)
+			{
+				loadGroup(record.getId(), new HashSet<GroupId>(), byId);
+			}
+		}
+	}
+
+	/**
+	 * Creates a group from a record, such as one exported from another server, and ships its whole state to the backend as one batch.
+	 *
+	 * <p>
+	 * Parents that don't exist are skipped.  Existing groups are never overwritten.
+	 * </p>
+	 *
+	 * @param record the group's state
+	 * @return the new group, or {@literal null} if a group with the same identifier already exists
+	 */
+	public Group importGroup(final GroupRecord record)
+	{
+		assert record != null;
+
+		if (getGroup(record.getId()) != null)
+		{
+			return null;
+		}
+
+		final Set<GroupId> loading = new HashSet<>();
+		loading.add(record.getId());
+		final Group group = materialize(record, loading, null, true);
+		cache.evict(this);
+		return group;
+	}
+
+	/**
+	 * Moves a group to a new identifier, keeping its permissions, inheritance and metadata, and its inheritors.
+	 *
+	 * <p>
+	 * The renamed group is imported as one batch; the old group is then removed.
+	 * </p>
+	 *
+	 * @param group the group to rename
+	 * @param id the group's new identifier
+	 * @return the renamed group, or {@literal null} if a group with the new identifier already exists
+	 */
+	public Group renameGroup(final Group group, final GroupId id)
+	{
+		assert group != null;
+		assert id != null;
+
+		final Group renamed = importGroup(GroupRecord.of(group).withId(id));
+		if (renamed == null)
+		{
+			return null;
+		}
+
+		for (final Group inheritor : group.getInheritors().toArray(new Group[0]))
+		{
+			inheritor.inherit(renamed);
+			if (inheritor.getPrimaryParent() == group)
+			{
+				inheritor.setPrimaryParent(renamed);
+			}
+
+			inheritor.uninherit(group);
+		}
+
+		synchronized (getLock(group.getId()))
+		{
+			cache.remove(group.getId());
+		}
+
+		// Outside the lock, since inheritors that appeared meanwhile are updated under their own locks.
+		onGroupRemoved(group);
+		return renamed;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Reloads each group that another server changed, skipping invalidations that were already applied.
+	 * </p>
+	 */
+	@Override
+	public void onInvalidated(final Collection<Invalidation> invalidations)
+	{
+		for (final Invalidation invalidation : invalidations)
+		{
+			final Long previous;
+			synchronized (invalidationVersions)
+			{
+				previous = invalidationVersions.put(invalidation.getId(), invalidation.getVersion());
+			}
+
+			if (previous == null || previous != invalidation.getVersion())
+			{
+				reloadGroup(invalidation.getId());
+			}
+		}
+	}
+
+	/**
+	 * Replaces a cached group's state with the backend's, such as after another server changed it.  The backend is not written to.
+	 *
+	 * <p>
+	 * The group is reloaded in place, so groups that inherit from it see the change as soon as their compiled permissions are next
+	 * validated.  If the backend no longer has the group, it is dropped from the cache and the groups that inherited from it are reloaded
+	 * in turn.  Groups that aren't cached are left to be loaded on demand, and nothing is reloaded if the backend can't
+	 * {@link ILoadingPermissionsBackend load groups}.
+	 * </p>
+	 *
+	 * @param id the group's identifier
+	 * @return true if the cached group changed or was dropped; otherwise, false
+	 */
+	public boolean reloadGroup(final GroupId id)
+	{
+		onGroupModified(id);
+
+		final Group group = cache.peek(id);
+		if (group == null)
+		{
+			cache.forgetAbsent(id);
+			return false;
+		}
+
+		final IPermissionsBackend backend = getBackend();
+		if (!(backend instanceof ILoadingPermissionsBackend))
+		{
+			return false;
+		}
+
+		final GroupRecord record = ((ILoadingPermissionsBackend)backend).loadGroup(id);
+		if (record == null)
+		{
+			final Group[] inheritors;
+			synchronized (getLock(id))
+			{
+				if (cache.peek(id) != group)
+				{
+					return false;
+				}
+
+				inheritors = group.getInheritors().toArray(new Group[0]);
+				cache.remove(id);
+				group.detachFromParents();
+				group.touch();
+			}
+
+			for (final Group inheritor : inheritors)
+			{
+				reloadGroup(inheritor.getId());
+			}
+
+			return true;
+		}
+
+		final Set<GroupId> loading = new HashSet<>();
+		loading.add(id);
+		final List<Group> parents = new ArrayList<>(record.getParents().size());
+		final Group primaryParent = resolveParents(record, loading, null, parents);
+
+		synchronized (getLock(id))
+		{
+			return cache.peek(id) == group && group.reload(parents, primaryParent, record.getData(), record.getNodes());
+		}
+	}
+
+	/**
+	 * Brings cached groups up to date with the backend, such as on reload, keeping them cached.
 	 *
-	 * @return the default group ID
-	 */
-	@Getter(AccessLevel.PROTECTED)
-	/**
-	 * Sets the default group ID.  If this group exists, users default to this group.
+	 * <p>
+	 * If the backend keeps a {@link IChangeFeedBackend change feed}, only groups changed since the last synchronization are reloaded, so
+	 * the cost is proportional to the amount changed.  Otherwise, or on the first synchronization, every cached group is reloaded.  Either
+	 * way, groups are reloaded in place, and only those that actually differ are touched.
+	 * </p>
 	 *
-	 * @param defaultGroupId the default group ID
+	 * @return the number of cached groups that changed or were dropped
 	 */
-	@Setter(AccessLevel.PROTECTED)
-	private GroupId defaultGroupId = new GroupId(defaultWorldId, GroupType.NORMAL, DEFAULT_ID);
+	public int synchronize()
+	{
+		synchronized (syncLock)
+		{
+			final IPermissionsBackend backend = getBackend();
+			final IChangeFeedBackend feed = backend instanceof IChangeFeedBackend ? (IChangeFeedBackend)backend : null;
+			final ChangeSet changes = feed != null && syncVersion >= 0 ? feed.getChangesSince(syncVersion) : null;
 
-	/**
-	 * {@inheritDoc}
-	 */
-	@Getter
-	/**
-	 * {@inheritDoc}
-	 */
-	@Setter
-	private boolean enabled;
+			final Collection<GroupId> ids;
+			final long version;
+			if (changes != null)
+			{
+				ids = changes.getChangedGroups();
+				version = changes.getVersion();
+			}
+			else
+			{
+				// Read first, so that changes made while reloading are caught by the next synchronization.
+				version = feed != null ? feed.getChangeVersion() : -1;
+				ids = new ArrayList<>(cache.keySet());
+				cache.clearAbsent();
+			}
+
+			int changed = 0;
+			for (final GroupId id : ids)
+			{
+				if (reloadGroup(id))
+				{
+					changed++;
+				}
+			}
+
+			syncVersion = version;
+			return changed;
+		}
+	}
 
 	/**
-	 * @{inheritDoc}
+	 * Keeps a player's group cached once it is loaded, such as while the player is online.  Each pin must be released with
+	 * {@link #unpinPlayer(String, String)}.
+	 *
+	 * <p>
+	 * The group is not loaded, so that pinning needs no I/O and can be done on any thread; see {@link #preloadPlayer(String, String)}.
+	 * </p>
+	 *
+	 * @param world world name, not ID
+	 * @param player the player's name
 	 */
-	@Override
-	public boolean hasSuperPermsCompat()
+	public void pinPlayer(final String world, final String player)
 	{
-		return false;
+		cache.pin(getGroupId(world, GroupType.USER, player));
 	}
 
 	/**
-	 * Converts a world name to world ID.
+	 * Loads a player's group, along with every group it inherits from, and compiles its effective permissions, so that the player's
+	 * first check needs no I/O.  Meant to be called off the main thread, such as before the player joins.
 	 *
-	 * @param world the name of the world
-	 * @return the ID of the world
+	 * <p>
+	 * While the group is loading, checks for the player use the default group instead of waiting for it.  The group is not pinned; the
+	 * caller should {@link #pinPlayer(String, String) pin} it beforehand, so that a load that is abandoned can't leave a pin behind.
+	 * </p>
+	 *
+	 * @param world world name, not ID
+	 * @param player the player's name
+	 * @return the player's group, or {@literal null} if the player has none yet
 	 */
-	protected String getWorldId(final String world)
+	public Group preloadPlayer(final String world, final String player)
 	{
-		if (world != null && worldIds.containsKey(world))
+		final GroupId id = getGroupId(world, GroupType.USER, player);
+
+		// The default group answers checks until the player's group is ready, and for players who have none.
+		final Group fallback = getDefaultGroup();
+		if (fallback != null)
 		{
-			return worldIds.get(world);
+			fallback.getEffectivePermissions();
 		}
-		else
+
+		beginPreload(id);
+		try
 		{
-			return defaultWorldId;
+			final Group group = getGroup(id);
+			if (group != null)
+			{
+				group.getEffectivePermissions();
+			}
+
+			return group;
+		}
+		finally
+		{
+			endPreload(id);
 		}
 	}
 
 	/**
-	 * Gets a group identifier.
+	 * Counts a preload of a user group, so that checks use the default group until every overlapping preload has finished.
 	 *
-	 * @param world world name, not ID
-	 * @param type group type
-	 * @param name relative group name
-	 * @return server-unique group identifier
+	 * @param id the group's identifier
 	 */
-	protected GroupId getGroupId(final String world, final GroupType type, final String name)
+	private void beginPreload(final GroupId id)
 	{
-		return new GroupId(getWorldId(world), type, name);
+		while (true)
+		{
+			final Integer count = preloading.get(id);
+			if (count == null ? preloading.putIfAbsent(id, 1) == null : preloading.replace(id, count, count + 1))
+			{
+				return;
+			}
+		}
 	}
 
 	/**
-	 * Gets a group permission tree.
+	 * Uncounts a preload of a user group.
 	 *
-	 * @param world world name, not ID
-	 * @param type group type
-	 * @param name relative group name
-	 * @return the group if it exists; otherwise, null
+	 * @param id the group's identifier
 	 */
-	protected Group getGroup(final String world, final GroupType type, final String name)
+	private void endPreload(final GroupId id)
 	{
-		return getGroup(getGroupId(world, type, name));
+		while (true)
+		{
+			final Integer count = preloading.get(id);
+			if (count == null || (count > 1 ? preloading.replace(id, count, count - 1) : preloading.remove(id, count)))
+			{
+				return;
+			}
+		}
 	}
 
 	/**
-	 * Gets a group permission tree.
+	 * Releases a pin of a player's group, such as once the player goes offline.  Once every pin is released, the group can be evicted
+	 * again.
 	 *
-	 * @param id the group's identifier
-	 * @return the group if it exists; otherwise, null
+	 * @param world world name, not ID
+	 * @param player the player's name
 	 */
-	protected Group getGroup(final GroupId id)
+	public void unpinPlayer(final String world, final String player)
 	{
-		if (cache.containsKey(id))
-		{
-			return cache.get(id);
-		}
-		else
-		{
-			return null;
-		}
+		cache.unpin(getGroupId(world, GroupType.USER, player));
 	}
 
 	/**
@@ -172,11 +1018,12 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	 * Gets a group permission tree.
 	 *
 	 * @param id the group's identifier
-	 * @return the group if it exists; otherwise, the default group
+	 * @return the group if it exists and is not still being {@link #preloadPlayer(String, String) preloaded}; otherwise, the default
+	 * group
 	 */
 	protected Group getGroupOrDefault(final GroupId id)
 	{
-		final Group group = getGroup(id);
+		final Group group = preloading.containsKey(id) ? cache.get(id) : getGroup(id);
 		if (group == null)
 		{
 			return getDefaultGroup();
@@ -201,7 +1048,7 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	}
 
 	/**
-	 * Gets a group permission tree, creating it if it doesn't already exist.
+	 * Gets a group permission tree, creating and caching it if it doesn't already exist.
 	 *
 	 * @param id the group's identifier
 	 * @return the group if it exists; otherwise, a new group
@@ -212,8 +1059,18 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 
 		if (group == null)
 		{
-			group = new Group(this, id);
-			onGroupCreated(group);
+			synchronized (getLock(id))
+			{
+				group = cache.peek(id);
+				if (group == null)
+				{
+					group = new Group(this, id);
+					cache.put(id, group);
+					onGroupCreated(group);
+				}
+			}
+
+			cache.evict(this);
 		}
 
 		return group;
@@ -226,6 +1083,7 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	 */
 	protected void onGroupCreated(final Group group)
 	{
+		onGroupModified(group.getId());
 		getBackend().createGroup(group);
 	}
 
@@ -236,30 +1094,264 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	 */
 	protected void onGroupRemoved(final Group group)
 	{
-		for (final Group g : cache.values())
+		for (final Group g : group.getInheritors().toArray(new Group[0]))
 		{
-			if (g.isInherited(group))
-			{
-				g.uninherit(group);
-			}
+			g.uninherit(group);
 		}
 
+		group.detachFromParents();
+		onGroupModified(group.getId());
 		getBackend().removeGroup(group);
 	}
 
+	/**
+	 * Prepares a permission for repeated checks, splitting it into segments once.
+	 *
+	 * <p>
+	 * Plugins that check a fixed permission should prepare it once and keep the key.  Permissions checked by string are prepared
+	 * automatically, and up to {@link #MAX_PREPARED_KEYS} of them are kept, favoring those checked most often.
+	 * </p>
+	 *
+	 * @param permission the permission to prepare
+	 * @return the prepared permission
+	 */
+	public PermissionKey prepare(final String permission)
+	{
+		assert permission != null;
+
+		final PermissionKey key = preparedKeys.get(permission);
+		return key != null ? key : preparedKeys.put(permission, new PermissionKey(permission));
+	}
+
 	/**
 	 * @{inheritDoc}
 	 */
 	@Override
 	public boolean playerHas(final String world, final String player, final String permission)
 	{
+		return playerHas(world, player, prepare(permission));
+	}
+
+	/**
+	 * Determines whether a player has a prepared permission.
+	 *
+	 * @param player the player
+	 * @param key the permission to check
+	 * @return true if the player has the permission; otherwise, false
+	 */
+	public boolean playerHas(final Player player, final PermissionKey key)
+	{
+		return playerHas(player.getWorld().getName(), player.getName(), key);
+	}
+
+	/**
+	 * Determines whether a player has a prepared permission.
+	 *
+	 * @param world world name, not ID
+	 * @param player the player's name
+	 * @param key the permission to check
+	 * @return true if the player has the permission; otherwise, false
+	 */
+	public boolean playerHas(final String world, final String player, final PermissionKey key)
+	{
+		assert key != null;
+
+		final PermissionsSnapshot current = snapshot;
+		if (current != null)
+		{
+			// Players whose groups weren't cached when the snapshot was published fall back to the live model, which loads them.
+			final Rule rule = current.getRule(getGroupId(world, GroupType.USER, player), key);
+			if (rule != null)
+			{
+				return rule.getEffect() == NodeEffect.ALLOW;
+			}
+		}
+
+		final PermissionsImage mapped = image;
+		if (mapped != null)
+		{
+			final int number = getImageNumber(mapped, getGroupId(world, GroupType.USER, player));
+			if (number >= 0)
+			{
+				return mapped.getRule(number, key).getEffect() == NodeEffect.ALLOW;
+			}
+		}
+
 		final Group group = getGroupOrDefault(world, GroupType.USER, player);
 		if (group == null)
 		{
 			return false;
 		}
 
-		return group.getRule(permission).getEffect() == NodeEffect.ALLOW;
+		return group.getEffectivePermissions().getRule(key).getEffect() == NodeEffect.ALLOW;
+	}
+
+	/**
+	 * Determines which of many permissions a player has, resolving the player's groups once for all of them.
+	 *
+	 * @param world world name, not ID
+	 * @param player the player's name
+	 * @param permissions the permissions to check
+	 * @return whether the player has each permission, in the order given
+	 */
+	public boolean[] playerHasAll(final String world, final String player, final String[] permissions)
+	{
+		return playerHasAll(world, player, new PermissionQuery(permissions));
+	}
+
+	/**
+	 * Determines which permissions of a prepared query a player has, resolving the player's groups once and walking each permission tree
+	 * once for all of them.  Preparing the query once and reusing it, such as for every player who opens a menu, also saves splitting
+	 * the permissions on each call.
+	 *
+	 * @param world world name, not ID
+	 * @param player the player's name
+	 * @param query the permissions to check
+	 * @return whether the player has each permission, in the query's order
+	 */
+	public boolean[] playerHasAll(final String world, final String player, final PermissionQuery query)
+	{
+		assert query != null;
+
+		final PermissionsSnapshot current = snapshot;
+		if (current != null)
+		{
+			final long[] rules = current.getPackedRules(getGroupId(world, GroupType.USER, player), query);
+			if (rules != null)
+			{
+				return isAllowed(rules);
+			}
+		}
+
+		final PermissionsImage mapped = image;
+		if (mapped != null)
+		{
+			final int number = getImageNumber(mapped, getGroupId(world, GroupType.USER, player));
+			if (number >= 0)
+			{
+				return isAllowed(mapped.getPackedRules(number, query));
+			}
+		}
+
+		final Group group = getGroupOrDefault(world, GroupType.USER, player);
+		if (group == null)
+		{
+			return new boolean[query.size()];
+		}
+
+		return isAllowed(group.getEffectivePermissions().getPackedRules(query));
+	}
+
+	/**
+	 * Determines which packed rules allow their permission.
+	 *
+	 * @param rules the {@link Rule#pack() packed} rules
+	 * @return whether each rule allows its permission
+	 */
+	private static boolean[] isAllowed(final long[] rules)
+	{
+		final boolean[] allowed = new boolean[rules.length];
+		for (int i = 0; i < rules.length; i++)
+		{
+			allowed[i] = Rule.getEffect(rules[i]) == NodeEffect.ALLOW;
+		}
+
+		return allowed;
+	}
+
+	/**
+	 * Finds the loaded groups whose own permission trees grant or deny a permission, directly or through a wildcard.
+	 *
+	 * <p>
+	 * Groups are found through the {@link PermissionIndex}, so the time taken depends on the number of groups found rather than the
+	 * number loaded.  Inherited permissions are not considered; each rule is the one the group's own tree gives.
+	 * </p>
+	 *
+	 * @param permission the permission to look up
+	 * @return the rule each group's tree gives the permission, by group
+	 */
+	public Map<GroupId, Rule> getGroupsWith(final String permission)
+	{
+		final int[] segments = prepare(permission).getSegments();
+		final Map<GroupId, Rule> groups = new HashMap<>();
+
+		for (final GroupId id : permissionIndex.getGroups(segments, segments.length))
+		{
+			final Group group = cache.peek(id);
+			if (group != null)
+			{
+				final Rule rule = group.getPermissions().getRule(segments, segments.length);
+				if (rule.getEffect() != NodeEffect.NONE)
+				{
+					groups.put(id, rule);
+				}
+			}
+		}
+
+		return groups;
+	}
+
+	/**
+	 * Finds the players in a world who have a permission, among those whose groups are pinned, such as online players.
+	 *
+	 * <p>
+	 * Only the groups that grant or deny the permission, and the groups that inherit from them, are visited; every player reached is
+	 * then checked with {@link #playerHas(String, String, PermissionKey)}.  If the default group is reached, players who have no group
+	 * of their own are checked as well.
+	 * </p>
+	 *
+	 * @param world world name, not ID
+	 * @param permission the permission to look up
+	 * @return the names of the players who have the permission
+	 */
+	public List<String> getPlayersWith(final String world, final String permission)
+	{
+		final String worldId = getWorldId(world);
+		final PermissionKey key = prepare(permission);
+		final int[] segments = key.getSegments();
+
+		final Set<Group> reached = new HashSet<>();
+		for (final GroupId id : permissionIndex.getGroups(segments, segments.length))
+		{
+			final Group group = cache.peek(id);
+			if (group != null && reached.add(group))
+			{
+				reached.addAll(group.getDescendants());
+			}
+		}
+
+		final Set<GroupId> candidates = new HashSet<>();
+		for (final Group group : reached)
+		{
+			final GroupId id = group.getId();
+			if (id.getType() == GroupType.USER && worldId.equals(id.getWorld()) && cache.isPinned(id))
+			{
+				candidates.add(id);
+			}
+		}
+
+		final Group fallback = cache.peek(getDefaultGroupId());
+		if (fallback != null && reached.contains(fallback))
+		{
+			for (final GroupId id : cache.getPinned(worldId))
+			{
+				if (id.getType() == GroupType.USER && cache.peek(id) == null)
+				{
+					candidates.add(id);
+				}
+			}
+		}
+
+		final List<String> players = new ArrayList<>();
+		for (final GroupId id : candidates)
+		{
+			if (playerHas(world, id.getName(), key))
+			{
+				players.add(id.getName());
+			}
+		}
+
+		return players;
 	}
 
 	/**
@@ -295,13 +1387,49 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	@Override
 	public boolean groupHas(String world, String group, String permission)
 	{
+		return groupHas(world, group, prepare(permission));
+	}
+
+	/**
+	 * Determines whether a group has a prepared permission.
+	 *
+	 * @param world world name, not ID
+	 * @param group the group's name
+	 * @param key the permission to check
+	 * @return true if the group has the permission; otherwise, false
+	 */
+	public boolean groupHas(final String world, final String group, final PermissionKey key)
+	{
+		assert key != null;
+
+		final PermissionsSnapshot current = snapshot;
+		if (current != null)
+		{
+			// Groups that weren't cached when the snapshot was published fall back to the live model, which loads them.
+			final Rule rule = current.getRule(getGroupId(world, GroupType.NORMAL, group), key);
+			if (rule != null)
+			{
+				return rule.getEffect() == NodeEffect.ALLOW;
+			}
+		}
+
+		final PermissionsImage mapped = image;
+		if (mapped != null)
+		{
+			final int number = getImageNumber(mapped, getGroupId(world, GroupType.NORMAL, group));
+			if (number >= 0)
+			{
+				return mapped.getRule(number, key).getEffect() == NodeEffect.ALLOW;
+			}
+		}
+
 		final Group g = getGroup(world, GroupType.NORMAL, group);
 		if (g == null)
 		{
 			return false;
 		}
 
-		return g.getRule(permission).getEffect() == NodeEffect.ALLOW;
+		return g.getRule(key).getEffect() == NodeEffect.ALLOW;
 	}
 
 	/**
@@ -342,9 +1470,31 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	@Override
 	public boolean playerInGroup(String world, String player, String group)
 	{
+		final PermissionsSnapshot current = snapshot;
+		if (current != null)
+		{
+			// A snapshot that includes the player's group includes every group it inherits from; otherwise, fall back.
+			final GroupId id = getGroupId(world, GroupType.USER, player);
+			if (current.contains(id))
+			{
+				return current.isMemberOf(id, getGroupId(world, GroupType.NORMAL, group));
+			}
+		}
+
+		final PermissionsImage mapped = image;
+		if (mapped != null)
+		{
+			final int number = getImageNumber(mapped, getGroupId(world, GroupType.USER, player));
+			final int inherited = number >= 0 ? mapped.getGroupNumber(getGroupId(world, GroupType.NORMAL, group)) : -1;
+			if (inherited >= 0)
+			{
+				return mapped.isMemberOf(number, inherited);
+			}
+		}
+
 		final Group g = getGroup(world, GroupType.NORMAL, group);
 		final Group user = getGroup(world, GroupType.USER, player);
-		return g != null && user != null && user.isInherited(user);
+		return g != null && user != null && user.isMemberOf(g);
 	}
 
 	/**
@@ -375,9 +1525,23 @@ public abstract class PermissionsManager extends Permission implements IPermissi
 	@Override
 	public String[] getPlayerGroups(String world, String player)
 	{
+		final PermissionsSnapshot current = snapshot;
+		if (current != null)
+		{
+			final String[] names = current.getGroupNames(getGroupId(world, GroupType.USER, player));
+			if (names != null)
+			{
+				return names;
+			}
+		}
+
 		final Group user = getGroup(world, GroupType.USER, player);
-		final Set<String> groups = user.getGroupNames();
-		return groups.toArray(new String[groups.size()]);
+		if (user == null)
+		{
+			return new String[0];
+		}
+
+		return groupIndex.getNames(user.getMembership());
 	}
 
 	/**
@@ -0,0 +1,474 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+
+/**
+ * Immutable, compacted copy of the whole permission model at one point in time.
+ *
+ * <p>
+ * Every permission tree is packed into a few shared arrays.  Nodes are numbered breadth-first, so the children of a node occupy a
+ * contiguous run of node numbers, sorted by segment identifier and searched by bisection.  Inheritance is flattened into a lineage
+ * per group.  Since nothing changes after construction, a snapshot can be read from any thread without locking.
+ * </p>
+ */
+public final class PermissionsSnapshot
+{
+	/**
+	 * Marks a node that cannot have children, or a missing wildcard child.
+	 */
+	static final int NONE = -1;
+
+	/**
+	 * Gets the epoch of the snapshot.  Each published snapshot has a higher epoch than the last.
+	 *
+	 * @return the snapshot's epoch
+	 */
+	@Getter
+	private final long epoch;
+
+	/**
+	 * Group numbers by identifier.
+	 */
+	private final Map<GroupId, Integer> groupNumbers;
+
+	/**
+	 * Group identifiers by group number.
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final GroupId[] groupIds;
+
+	/**
+	 * Root node number of each group's tree, by group number.
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final int[] roots;
+
+	/**
+	 * Each group's number followed by the numbers of all inherited groups, by group number.
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final int[][] lineages;
+
+	/**
+	 * Segment identifier of each node.
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final int[] segments;
+
+	/**
+	 * Number of each node's first child.
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final int[] firstChildren;
+
+	/**
+	 * Number of children of each node, or {@link #NONE} if the node cannot have children.
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final int[] childCounts;
+
+	/**
+	 * Number of each node's wildcard child, or {@link #NONE} if it has none.
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final int[] wildcards;
+
+	/**
+	 * {@link Rule#pack() Packed} rule of each node.
+	 */
+	@Getter(AccessLevel.PACKAGE)
+	private final long[] rules;
+
+	/**
+	 * Compiles a snapshot of a set of groups and every group they inherit from.
+	 *
+	 * <p>
+	 * The groups should not change while the snapshot is compiled; otherwise, the snapshot may reflect some changes but not others.
+	 * </p>
+	 *
+	 * @param epoch the epoch of the snapshot
+	 * @param groups the groups to include
+	 */
+	public PermissionsSnapshot(final long epoch, final Collection<Group> groups)
+	{
+		assert groups != null;
+
+		this.epoch = epoch;
+
+		// Inherited groups may not be among those provided, so they are appended as they are found.
+		final Map<GroupId, Group> byId = new LinkedHashMap<>(groups.size() * 2);
+		for (final Group group : groups)
+		{
+			if (!byId.containsKey(group.getId()))
+			{
+				byId.put(group.getId(), group);
+			}
+		}
+
+		final List<Group> included = new ArrayList<>(byId.values());
+		for (int i = 0; i < included.size(); i++)
+		{
+			for (final Group inherited : included.get(i).getLineage())
+			{
+				if (!byId.containsKey(inherited.getId()))
+				{
+					byId.put(inherited.getId(), inherited);
+					included.add(inherited);
+				}
+			}
+		}
+
+		groupNumbers = new HashMap<>(included.size() * 2);
+		for (int i = 0; i < included.size(); i++)
+		{
+			groupNumbers.put(included.get(i).getId(), i);
+		}
+
+		final int groupCount = included.size();
+		groupIds = new GroupId[groupCount];
+		roots = new int[groupCount];
+		lineages = new int[groupCount][];
+
+		final List<NodeTree> nodes = new ArrayList<>();
+		for (int i = 0; i < groupCount; i++)
+		{
+			final Group group = included.get(i);
+			groupIds[i] = group.getId();
+			roots[i] = nodes.size();
+			nodes.add(group.getPermissions());
+
+			final Group[] lineage = group.getLineage();
+			final int[] numbers = new int[lineage.length];
+			for (int j = 0; j < lineage.length; j++)
+			{
+				numbers[j] = groupNumbers.get(lineage[j].getId());
+			}
+			lineages[i] = numbers;
+		}
+
+		// Roots are numbered first; every other node is numbered as its parent is visited, breadth-first.
+		int count = nodes.size();
+		int[] segments = new int[Math.max(16, count * 4)];
+		int[] firstChildren = new int[segments.length];
+		int[] childCounts = new int[segments.length];
+		int[] wildcards = new int[segments.length];
+		long[] rules = new long[segments.length];
+
+		for (int n = 0; n < nodes.size(); n++)
+		{
+			final NodeTree node = nodes.get(n);
+			final NodeChildren children = node.getChildren();
+
+			segments[n] = node.getInfo().getSegment();
+			rules[n] = node.getInfo().getPackedRule();
+			firstChildren[n] = count;
+			childCounts[n] = NONE;
+			wildcards[n] = NONE;
+
+			if (children == null)
+			{
+				continue;
+			}
+
+			final NodeTree[] sorted = getSortedChildren(children);
+			childCounts[n] = sorted.length;
+			if (count + sorted.length > segments.length)
+			{
+				final int capacity = Math.max(segments.length * 2, count + sorted.length);
+				segments = Arrays.copyOf(segments, capacity);
+				firstChildren = Arrays.copyOf(firstChildren, capacity);
+				childCounts = Arrays.copyOf(childCounts, capacity);
+				wildcards = Arrays.copyOf(wildcards, capacity);
+				rules = Arrays.copyOf(rules, capacity);
+			}
+
+			for (final NodeTree child : sorted)
+			{
+				if (child.getInfo().isAll())
+				{
+					wildcards[n] = count;
+				}
+
+				nodes.add(child);
+				count++;
+			}
+		}
+
+		this.segments = Arrays.copyOf(segments, count);
+		this.firstChildren = Arrays.copyOf(firstChildren, count);
+		this.childCounts = Arrays.copyOf(childCounts, count);
+		this.wildcards = Arrays.copyOf(wildcards, count);
+		this.rules = Arrays.copyOf(rules, count);
+	}
+
+	/**
+	 * Gets the children of a node, sorted by segment identifier.
+	 *
+	 * @param children the node's children
+	 * @return the children in ascending order of segment identifier
+	 */
+	private static NodeTree[] getSortedChildren(final NodeChildren children)
+	{
+		final NodeTree[] sorted = new NodeTree[children.size()];
+		int count = 0;
+		for (int i = 0; i < children.capacity() && count < sorted.length; i++)
+		{
+			final NodeTree child = children.getAt(i);
+			if (child != null)
+			{
+				sorted[count++] = child;
+			}
+		}
+
+		// Children are few and usually sorted already, so insertion sort is fine.
+		for (int i = 1; i < count; i++)
+		{
+			final NodeTree child = sorted[i];
+			final int segment = child.getInfo().getSegment();
+			int j = i - 1;
+
+			while (j >= 0 && sorted[j].getInfo().getSegment() > segment)
+			{
+				sorted[j + 1] = sorted[j];
+				j--;
+			}
+
+			sorted[j + 1] = child;
+		}
+
+		return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+	}
+
+	/**
+	 * Gets the number of groups in the snapshot.
+	 *
+	 * @return the number of groups
+	 */
+	public int getGroupCount()
+	{
+		return groupIds.length;
+	}
+
+	/**
+	 * Gets the number of permission nodes in the snapshot, including each group's root node.
+	 *
+	 * @return the number of nodes
+	 */
+	public int getNodeCount()
+	{
+		return segments.length;
+	}
+
+	/**
+	 * Determines whether the snapshot includes a group.
+	 *
+	 * @param id the group's identifier
+	 * @return true if the group was included when the snapshot was compiled; otherwise, false
+	 */
+	public boolean contains(final GroupId id)
+	{
+		return groupNumbers.containsKey(id);
+	}
+
+	/**
+	 * Determines whether a group is, or inherits from, another group.
+	 *
+	 * @param id the group's identifier
+	 * @param inherited the identifier of the group that may be inherited
+	 * @return true if both groups are included and {@code id} is or inherits from {@code inherited}; otherwise, false
+	 */
+	public boolean isMemberOf(final GroupId id, final GroupId inherited)
+	{
+		final Integer number = groupNumbers.get(id);
+		final Integer target = groupNumbers.get(inherited);
+		if (number == null || target == null)
+		{
+			return false;
+		}
+
+		for (final int n : lineages[number])
+		{
+			if (n == target)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gets the canonical names of the normal groups that a group is or inherits from.
+	 *
+	 * @param id the group's identifier
+	 * @return the canonical names, in lineage order, or {@literal null} if the group is not included in the snapshot
+	 */
+	public String[] getGroupNames(final GroupId id)
+	{
+		final Integer number = groupNumbers.get(id);
+		if (number == null)
+		{
+			return null;
+		}
+
+		final List<String> names = new ArrayList<>();
+		for (final int n : lineages[number])
+		{
+			if (groupIds[n].getType() == GroupType.NORMAL)
+			{
+				names.add(groupIds[n].getCanonicalName());
+			}
+		}
+
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Determines whether a group permits or denies the specified permission, including all inherited groups.
+	 *
+	 * @param id the group's identifier
+	 * @param permission the permission to assess
+	 * @return the dominant rule among all contributing groups, or {@literal null} if the group is not included in the snapshot
+	 */
+	public Rule getRule(final GroupId id, final String permission)
+	{
+		assert permission != null;
+
+		final Integer number = groupNumbers.get(id);
+		if (number == null)
+		{
+			return null;
+		}
+
+		final int[] path = new int[NodeTree.MAX_DEPTH + 1];
+		return getRule(number, path, PathTokenizer.tokenize(permission, path));
+	}
+
+	/**
+	 * Determines whether a group permits or denies a prepared permission, including all inherited groups.
+	 *
+	 * @param id the group's identifier
+	 * @param key the permission to assess
+	 * @return the dominant rule among all contributing groups, or {@literal null} if the group is not included in the snapshot
+	 */
+	public Rule getRule(final GroupId id, final PermissionKey key)
+	{
+		assert key != null;
+
+		final Integer number = groupNumbers.get(id);
+		if (number == null)
+		{
+			return null;
+		}
+
+		final int[] path = key.getSegments();
+		return getRule(number, path, path.length);
+	}
+
+	/**
+	 * Determines whether a group permits or denies a permission, including all inherited groups.
+	 *
+	 * @param number the group's number
+	 * @param path the permission to assess, as ordered segment identifiers
+	 * @param length the number of segments in {@code path} to assess
+	 * @return the dominant rule among all contributing groups
+	 */
+	private Rule getRule(final int number, final int[] path, final int length)
+	{
+		long effective = Rule.NONE_PACKED;
+
+		for (final int n : lineages[number])
+		{
+			effective = Math.max(effective, getPackedRule(roots[n], path, length));
+		}
+
+		return Rule.unpack(effective);
+	}
+
+	/**
+	 * Determines whether a group permits or denies each permission of a query, including all inherited groups.
+	 *
+	 * @param id the group's identifier
+	 * @param query the permissions to assess
+	 * @return the dominant {@link Rule#pack() packed} rule of each permission, in the query's order, or {@literal null} if the group is
+	 * not included in the snapshot
+	 */
+	public long[] getPackedRules(final GroupId id, final PermissionQuery query)
+	{
+		assert query != null;
+
+		final Integer number = groupNumbers.get(id);
+		if (number == null)
+		{
+			return null;
+		}
+
+		final PermissionQuery.Paths paths = query.getPaths();
+		final long[] results = new long[query.size()];
+
+		for (final int n : lineages[number])
+		{
+			for (int k = 0; k < paths.segments.length; k++)
+			{
+				final int[] path = paths.segments[k];
+				final int index = paths.order[k];
+				results[index] = Math.max(results[index], getPackedRule(roots[n], path, path.length));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Determines whether a single packed tree permits or denies the specified permission.
+	 *
+	 * <p>
+	 * Mirrors {@link NodeTree#getPackedRule(int[], int)}.
+	 * </p>
+	 *
+	 * @param root the number of the tree's root node
+	 * @param path the permission to assess, as ordered segment identifiers
+	 * @param length the number of segments in {@code path} to assess
+	 * @return a packed rule based on the tree's effect on the permission
+	 */
+	private long getPackedRule(final int root, final int[] path, final int length)
+	{
+		long effective = Rule.NONE_PACKED;
+		int node = root;
+
+		for (int i = 0; i < length; i++)
+		{
+			final int count = childCounts[node];
+			if (count == NONE)
+			{
+				return effective;
+			}
+
+			final int wildcard = wildcards[node];
+			if (wildcard != NONE)
+			{
+				effective = Math.max(effective, rules[wildcard]);
+			}
+
+			final int first = firstChildren[node];
+			final int child = Arrays.binarySearch(segments, first, first + count, path[i]);
+			if (child < 0)
+			{
+				return effective;
+			}
+
+			node = child;
+		}
+
+		return Math.max(effective, rules[node]);
+	}
+}
@@ -1,8 +1,6 @@
 package co.e2m.mc.entercraft.permissions.api;
 
-import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -10,6 +8,11 @@ import lombok.EqualsAndHashCode;
 
 /**
  * The result of applying a permission tree to a single permission.
+ *
+ * <p>
+ * Hot paths work with rules {@link #pack() packed} into a {@code long}, whose natural order is the order of {@link #compareTo(Rule)},
+ * so the dominant rule is found with {@link Math#max(long, long)}.  Rules are unpacked only when they are handed to callers.
+ * </p>
  */
 @Data
 @AllArgsConstructor
@@ -21,6 +24,28 @@ public final class Rule implements Comparable<Rule>
 	 */
 	public static final Rule NONE = new Rule(NodeEffect.NONE, 0);
 
+	/**
+	 * The packed form of {@link #NONE}, which is lower than that of any other rule.
+	 */
+	public static final long NONE_PACKED = 0;
+
+	/**
+	 * The lowest priority of the rules kept by {@link #unpack(long)}.
+	 */
+	private static final int MIN_CACHED_PRIORITY = -128;
+
+	/**
+	 * The highest priority of the rules kept by {@link #unpack(long)}.
+	 */
+	private static final int MAX_CACHED_PRIORITY = 1023;
+
+	private static final NodeEffect[] EFFECTS = NodeEffect.values();
+
+	/**
+	 * Unpacked rules with common priorities, by effect ordinal and priority, filled as they are first unpacked.
+	 */
+	private static final Rule[][] unpacked = new Rule[EFFECTS.length][MAX_CACHED_PRIORITY - MIN_CACHED_PRIORITY + 1];
+
 	/**
 	 * Gets the applicable effect of the rule.
 	 *
@@ -47,26 +72,95 @@ public final class Rule implements Comparable<Rule>
 	{
 		assert o != null;
 
-		if (equals(o))
+		return Long.compare(pack(), o.pack());
+	}
+
+	/**
+	 * Packs the rule into a number, such that packed rules order as {@link #compareTo(Rule)} orders rules.
+	 *
+	 * @return the packed rule
+	 */
+	public long pack()
+	{
+		return pack(effect, priority);
+	}
+
+	/**
+	 * Packs a rule into a number, such that packed rules order as {@link #compareTo(Rule)} orders rules.
+	 *
+	 * <p>
+	 * {@link #NONE} packs to {@link #NONE_PACKED}, below every other rule.  Every other rule packs to one more than its priority, offset
+	 * to be non-negative, followed by two bits of effect ordinal, so higher priorities win and ties go to the later effect.
+	 * </p>
+	 *
+	 * @param effect the effect of the rule
+	 * @param priority the priority of the rule
+	 * @return the packed rule
+	 */
+	public static long pack(final NodeEffect effect, final int priority)
+	{
+		assert effect != null;
+
+		if (effect == NodeEffect.NONE && priority == 0)
 		{
-			return 0;
+			return NONE_PACKED;
 		}
 
-		if (equals(NONE))
+		return ((((long)priority - Integer.MIN_VALUE) << 2) | effect.ordinal()) + 1;
+	}
+
+	/**
+	 * Gets the effect of a packed rule.
+	 *
+	 * @param packed the packed rule
+	 * @return the rule's effect
+	 */
+	public static NodeEffect getEffect(final long packed)
+	{
+		return packed == NONE_PACKED ? NodeEffect.NONE : EFFECTS[(int)((packed - 1) & 3)];
+	}
+
+	/**
+	 * Gets the priority of a packed rule.
+	 *
+	 * @param packed the packed rule
+	 * @return the rule's priority
+	 */
+	public static int getPriority(final long packed)
+	{
+		return packed == NONE_PACKED ? 0 : (int)(((packed - 1) >>> 2) + Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Unpacks a rule packed by {@link #pack()}.  Rules with common priorities are kept, so unpacking them does not allocate.
+	 *
+	 * @param packed the packed rule
+	 * @return the rule
+	 */
+	public static Rule unpack(final long packed)
+	{
+		if (packed == NONE_PACKED)
 		{
-			return -1;
+			return NONE;
 		}
-		if (Objects.equals(o, NONE))
+
+		final NodeEffect effect = getEffect(packed);
+		final int priority = getPriority(packed);
+		if (priority < MIN_CACHED_PRIORITY || priority > MAX_CACHED_PRIORITY)
 		{
-			return 1;
+			return new Rule(effect, priority);
 		}
 
-		if (priority != o.priority)
+		final Rule[] cache = unpacked[effect.ordinal()];
+		Rule rule = cache[priority - MIN_CACHED_PRIORITY];
+		if (rule == null)
 		{
-			return priority - o.priority;
+			// Benign race; rules are immutable, so any copy will do.
+			rule = new Rule(effect, priority);
+			cache[priority - MIN_CACHED_PRIORITY] = rule;
 		}
 
-		return effect.compareTo(o.effect);
+		return rule;
 	}
 
 	/**
@@ -77,12 +171,32 @@ public final class Rule implements Comparable<Rule>
 	 */
 	public static Rule getEffective(final List<Rule> rules)
 	{
-		if (rules == null || rules.isEmpty())
+		if (rules == null)
 		{
 			return Rule.NONE;
 		}
 
-		Collections.sort(rules);
-		return rules.get(rules.size() - 1);
+		Rule effective = Rule.NONE;
+		for (int i = 0; i < rules.size(); i++)
+		{
+			effective = getEffective(effective, rules.get(i));
+		}
+
+		return effective;
+	}
+
+	/**
+	 * Determines the effective rule from a pair of rules.
+	 *
+	 * @param a one rule to assess
+	 * @param b the other rule to assess
+	 * @return the dominant rule; {@code a} if the rules are identical
+	 */
+	public static Rule getEffective(final Rule a, final Rule b)
+	{
+		assert a != null;
+		assert b != null;
+
+		return b.compareTo(a) > 0 ? b : a;
 	}
 }
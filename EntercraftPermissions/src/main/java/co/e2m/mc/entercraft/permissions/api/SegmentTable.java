@@ -0,0 +1,291 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import co.e2m.mc.entercraft.i18n.I18n;
+import java.util.Arrays;
+
+
+/**
+ * Maps permission path segments to canonical, densely allocated integer identifiers.
+ *
+ * <p>
+ * The table is shared by every permission tree, much like {@link String#intern()}.  Identifiers are never reused or released, so they
+ * can be stored and compared freely.  Lookups are lock-free; only interning a previously unseen segment takes a lock.
+ * </p>
+ */
+public final class SegmentTable
+{
+	/**
+	 * Identifies a segment that has never been interned.  It matches no node, but may still be matched by a wildcard.
+	 */
+	public static final int UNKNOWN = -1;
+
+	/**
+	 * Initial number of segments the table can hold before growing.
+	 */
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * Guards all changes to the table.
+	 */
+	private static final Object lock = new Object();
+
+	/**
+	 * Segment names by identifier.  Entries below {@link #size} are always populated.
+	 */
+	private static volatile String[] names = new String[INITIAL_CAPACITY];
+
+	/**
+	 * Open-addressing hash table of identifiers, offset by one so that zero marks an empty slot.
+	 */
+	private static volatile int[] slots = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * Number of interned segments.  Written last, so that readers never observe a partially interned segment.
+	 */
+	private static volatile int size;
+
+	/**
+	 * Static class; do not instantiate.
+	 */
+	private SegmentTable()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Gets the number of interned segments.
+	 *
+	 * <p>
+	 * The number only ever grows, so it can be used to detect whether previously unknown segments may have been interned since.
+	 * </p>
+	 *
+	 * @return the number of interned segments
+	 */
+	public static int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Gets the canonical name of a segment.
+	 *
+	 * @param id the segment's identifier
+	 * @return the canonical, lowercase name of the segment, or {@literal null} if the identifier is unknown
+	 */
+	public static String getName(final int id)
+	{
+		if (id < 0 || id >= size)
+		{
+			return null;
+		}
+
+		return names[id];
+	}
+
+	/**
+	 * Gets the identifier of a segment, allocating a new identifier if the segment has never been seen.
+	 *
+	 * @param segment the segment; converted to lowercase if necessary
+	 * @return the segment's identifier
+	 */
+	public static int intern(final String segment)
+	{
+		assert segment != null;
+
+		return intern(segment, 0, segment.length());
+	}
+
+	/**
+	 * Gets the identifier of a segment, allocating a new identifier if the segment has never been seen.
+	 *
+	 * @param text text containing the segment; converted to lowercase if necessary
+	 * @param start index of the first character of the segment
+	 * @param end index after the last character of the segment
+	 * @return the segment's identifier
+	 */
+	public static int intern(final CharSequence text, final int start, final int end)
+	{
+		final int id = find(text, start, end);
+		if (id != UNKNOWN)
+		{
+			return id;
+		}
+
+		final String name = text.subSequence(start, end).toString().toLowerCase(I18n.INVARIANT_LOCALE);
+
+		synchronized (lock)
+		{
+			final int existing = find(name, 0, name.length());
+			if (existing != UNKNOWN)
+			{
+				return existing;
+			}
+
+			final int newId = size;
+			if (newId >= names.length)
+			{
+				grow();
+			}
+
+			names[newId] = name;
+			insert(slots, name.hashCode(), newId);
+			size = newId + 1;
+			return newId;
+		}
+	}
+
+	/**
+	 * Gets the identifier of a segment without interning it.
+	 *
+	 * <p>
+	 * ASCII segments are lowercased on the fly, so no objects are allocated.
+	 * </p>
+	 *
+	 * @param text text containing the segment; compared case-insensitively
+	 * @param start index of the first character of the segment
+	 * @param end index after the last character of the segment
+	 * @return the segment's identifier, or {@link #UNKNOWN} if it has never been interned
+	 */
+	public static int find(final CharSequence text, final int start, final int end)
+	{
+		assert text != null;
+		assert start >= 0 && start <= end && end <= text.length();
+
+		int hash = 0;
+		for (int i = start; i < end; i++)
+		{
+			final char c = text.charAt(i);
+			if (c >= 0x80)
+			{
+				final String name = text.subSequence(start, end).toString().toLowerCase(I18n.INVARIANT_LOCALE);
+				return findLowercase(name, 0, name.length(), name.hashCode());
+			}
+
+			hash = 31 * hash + toLowerAscii(c);
+		}
+
+		return findLowercase(text, start, end, hash);
+	}
+
+	/**
+	 * Looks up a segment whose non-ASCII characters, if any, are already lowercase.
+	 *
+	 * @param text text containing the segment
+	 * @param start index of the first character of the segment
+	 * @param end index after the last character of the segment
+	 * @param hash the {@link String#hashCode()} of the lowercase segment
+	 * @return the segment's identifier, or {@link #UNKNOWN} if it has never been interned
+	 */
+	private static int findLowercase(final CharSequence text, final int start, final int end, final int hash)
+	{
+		final int count = size;
+		final int[] table = slots;
+		final String[] known = names;
+		final int mask = table.length - 1;
+
+		for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask)
+		{
+			final int id = table[slot] - 1;
+			if (id < 0)
+			{
+				return UNKNOWN;
+			}
+			if (id >= count)
+			{
+				continue;
+			}
+
+			final String name = known[id];
+			if (name.hashCode() == hash && regionEquals(name, text, start, end))
+			{
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Compares a lowercase segment name with a range of text, ignoring ASCII case in the text.
+	 *
+	 * @param name the lowercase segment name
+	 * @param text text containing the segment
+	 * @param start index of the first character of the segment
+	 * @param end index after the last character of the segment
+	 * @return true if the name matches the text; otherwise, false
+	 */
+	private static boolean regionEquals(final String name, final CharSequence text, final int start, final int end)
+	{
+		if (name.length() != end - start)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < name.length(); i++)
+		{
+			if (name.charAt(i) != toLowerAscii(text.charAt(start + i)))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Doubles the capacity of the table.  Must be called while holding {@link #lock}.
+	 */
+	private static void grow()
+	{
+		final String[] newNames = Arrays.copyOf(names, names.length * 2);
+		final int[] newSlots = new int[newNames.length * 2];
+
+		for (int id = 0; id < size; id++)
+		{
+			insert(newSlots, newNames[id].hashCode(), id);
+		}
+
+		names = newNames;
+		slots = newSlots;
+	}
+
+	/**
+	 * Places an identifier in the first free slot for its hash.
+	 *
+	 * @param table the hash table to modify
+	 * @param hash the {@link String#hashCode()} of the segment
+	 * @param id the segment's identifier
+	 */
+	private static void insert(final int[] table, final int hash, final int id)
+	{
+		final int mask = table.length - 1;
+		int slot = spread(hash) & mask;
+
+		while (table[slot] != 0)
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		table[slot] = id + 1;
+	}
+
+	/**
+	 * Spreads the high bits of a hash code into the low bits used for slot selection.
+	 *
+	 * @param hash a hash code
+	 * @return the spread hash code
+	 */
+	private static int spread(final int hash)
+	{
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Converts an ASCII character to lowercase.
+	 *
+	 * @param c the character to convert
+	 * @return the lowercase character, or {@code c} if it is not an uppercase ASCII letter
+	 */
+	private static char toLowerAscii(final char c)
+	{
+		return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+	}
+}
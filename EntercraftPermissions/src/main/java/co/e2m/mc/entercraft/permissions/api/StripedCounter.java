@@ -0,0 +1,56 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A counter that is cheap to increment from many threads at once, for statistics kept on hot paths.
+ *
+ * <p>
+ * Each thread increments one of several cells, spaced a cache line apart so that threads on different cores rarely contend for the
+ * same line.  Reading the count sums every cell, so it is only approximate while increments are in progress.
+ * </p>
+ */
+final class StripedCounter
+{
+	/**
+	 * Number of cells.  A power of two.
+	 */
+	private static final int CELLS = 16;
+
+	/**
+	 * Number of array elements per cell, so that each cell has a 64-byte cache line to itself.
+	 */
+	private static final int SPACING = 8;
+
+	/**
+	 * Counts, one every {@link #SPACING} elements.
+	 */
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * SPACING);
+
+	/**
+	 * Adds one to the count.
+	 */
+	void increment()
+	{
+		final long thread = Thread.currentThread().getId();
+		final int hash = (int)(thread ^ (thread >>> 32)) * 0x9E3779B9;
+		cells.incrementAndGet(((hash >>> 16) & (CELLS - 1)) * SPACING);
+	}
+
+	/**
+	 * Gets the count.
+	 *
+	 * @return the sum of every cell
+	 */
+	long get()
+	{
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++)
+		{
+			sum += cells.get(i * SPACING);
+		}
+
+		return sum;
+	}
+}
@@ -2,6 +2,7 @@
 package co.e2m.mc.entercraft.permissions.api.plugin;
 
 import co.e2m.mc.entercraft.api.IComponentsPlugin;
+import co.e2m.mc.entercraft.permissions.api.PermissionsManager;
 import co.e2m.mc.entercraft.permissions.api.commands.IPermissionsCommand;
 
 
@@ -16,4 +17,11 @@ public interface IEntercraftPermissionsPlugin extends IComponentsPlugin
 	 * @return the command wrapper component
 	 */
 	IPermissionsCommand getCommandWrapper();
+
+	/**
+	 * Gets the permissions manager, which answers permission checks and manages groups.
+	 *
+	 * @return the permissions manager, or {@literal null} if the plugin failed to load its backend
+	 */
+	PermissionsManager getPermissionsManager();
 }
@@ -0,0 +1,235 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.permissions.api.BatchAdapter;
+import co.e2m.mc.entercraft.permissions.api.ChangeSet;
+import co.e2m.mc.entercraft.permissions.api.Group;
+import co.e2m.mc.entercraft.permissions.api.GroupId;
+import co.e2m.mc.entercraft.permissions.api.GroupRecord;
+import co.e2m.mc.entercraft.permissions.api.IBatchPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.IChangeFeedBackend;
+import co.e2m.mc.entercraft.permissions.api.ILoadingPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.IInvalidationChannel;
+import co.e2m.mc.entercraft.permissions.api.IPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.Invalidation;
+import co.e2m.mc.entercraft.permissions.api.Mutation;
+import co.e2m.mc.entercraft.permissions.api.NodeInfo;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import lombok.Getter;
+
+
+/**
+ * Decorates a backend so that every write is announced to other servers on an invalidation channel, once it has been written.
+ *
+ * <p>
+ * A batch is announced as a whole, with one invalidation per group.  To announce changes only once they are durable, place this
+ * decorator between a {@link WriteBehindBackend} and the backend it writes to.
+ * </p>
+ */
+public class InvalidatingBackend implements IBatchPermissionsBackend, IChangeFeedBackend, ILoadingPermissionsBackend
+{
+	/**
+	 * Used to generate change versions.
+	 */
+	private static final Random random = new Random();
+
+	/**
+	 * Gets the backend to which writes are passed.
+	 *
+	 * @return the wrapped backend
+	 */
+	@Getter
+	private final IPermissionsBackend backend;
+
+	/**
+	 * Gets the channel on which writes are announced.
+	 *
+	 * @return the invalidation channel
+	 */
+	@Getter
+	private final IInvalidationChannel channel;
+
+	/**
+	 * Instantiates a new decorator.
+	 *
+	 * @param backend the backend to which writes are passed
+	 * @param channel the channel on which writes are announced
+	 */
+	public InvalidatingBackend(final IPermissionsBackend backend, final IInvalidationChannel channel)
+	{
+		assert backend != null;
+		assert channel != null;
+
+		this.backend = backend;
+		this.channel = channel;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Nothing is announced if the batch fails.
+	 * </p>
+	 */
+	@Override
+	public void apply(final List<Mutation> mutations)
+	{
+		BatchAdapter.of(backend).apply(mutations);
+
+		final List<Invalidation> invalidations = new ArrayList<>(mutations.size());
+		for (final Mutation mutation : mutations)
+		{
+			invalidations.add(new Invalidation(mutation.getGroupId(), random.nextLong()));
+		}
+
+		channel.publish(Invalidation.coalesce(invalidations));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Reports the wrapped backend's feed, if it has one.
+	 * </p>
+	 */
+	@Override
+	public long getChangeVersion()
+	{
+		return backend instanceof IChangeFeedBackend ? ((IChangeFeedBackend)backend).getChangeVersion() : -1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Reports the wrapped backend's feed, if it has one.
+	 * </p>
+	 */
+	@Override
+	public ChangeSet getChangesSince(final long version)
+	{
+		return backend instanceof IChangeFeedBackend ? ((IChangeFeedBackend)backend).getChangesSince(version) : null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public GroupRecord loadGroup(final GroupId id)
+	{
+		return backend instanceof ILoadingPermissionsBackend ? ((ILoadingPermissionsBackend)backend).loadGroup(id) : null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createGroup(final Group group)
+	{
+		write(Mutation.createGroup(group));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroup(final Group group)
+	{
+		write(Mutation.removeGroup(group));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createNode(final NodeInfo node)
+	{
+		write(Mutation.createNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeNode(final NodeInfo node)
+	{
+		write(Mutation.removeNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateNode(final NodeInfo node)
+	{
+		write(Mutation.updateNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addInheritedGroup(final Group group, final Group inheritedGroup)
+	{
+		write(Mutation.inheritance(group, inheritedGroup, true));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeInheritedGroup(final Group group, final Group inheritedGroup)
+	{
+		write(Mutation.inheritance(group, inheritedGroup, false));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updatePrimaryParent(final Group group, final Group primaryParent)
+	{
+		write(Mutation.updatePrimaryParent(group, primaryParent));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void addGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		write(Mutation.setGroupData(group, key, type, value, false));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void updateGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		write(Mutation.setGroupData(group, key, type, value, true));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroupData(final Group group, final String key)
+	{
+		write(Mutation.removeGroupData(group, key));
+	}
+
+	/**
+	 * Passes a single write to the backend, then announces it.
+	 *
+	 * @param mutation the write
+	 */
+	private void write(final Mutation mutation)
+	{
+		mutation.apply(backend);
+		channel.publish(Collections.singletonList(new Invalidation(mutation.getGroupId(), random.nextLong())));
+	}
+}
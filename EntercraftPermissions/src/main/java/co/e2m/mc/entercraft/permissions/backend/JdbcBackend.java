@@ -0,0 +1,1423 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.api.Component;
+import co.e2m.mc.entercraft.api.IComponentsPlugin;
+import co.e2m.mc.entercraft.i18n.Formats;
+import static co.e2m.mc.entercraft.i18n.I18n.i;
+import co.e2m.mc.entercraft.permissions.api.Change;
+import co.e2m.mc.entercraft.permissions.api.ChangeSet;
+import co.e2m.mc.entercraft.permissions.api.Group;
+import co.e2m.mc.entercraft.permissions.api.GroupId;
+import co.e2m.mc.entercraft.permissions.api.GroupRecord;
+import co.e2m.mc.entercraft.permissions.api.GroupType;
+import co.e2m.mc.entercraft.permissions.api.IBatchPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.IChangeFeedBackend;
+import co.e2m.mc.entercraft.permissions.api.ILoadingPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.Mutation;
+import co.e2m.mc.entercraft.permissions.api.NodeEffect;
+import co.e2m.mc.entercraft.permissions.api.NodeInfo;
+import co.e2m.mc.entercraft.permissions.api.Rule;
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import javax.sql.DataSource;
+import lombok.Getter;
+
+
+/**
+ * A backend that stores groups in a relational database over JDBC.
+ *
+ * <p>
+ * Groups, nodes, inheritance and metadata are kept in four tables, whose names share a configurable prefix.  Nodes are stored by the
+ * dot-separated names along their paths, so a subtree is removed by a single prefix match.  The schema is created on enable if it does
+ * not yet exist, using only portable SQL, so any embedded or standalone database with a JDBC driver will do.
+ * </p>
+ *
+ * <p>
+ * Each batch of mutations runs in one transaction on one connection.  Consecutive mutations that share a statement are sent to the
+ * database together with {@link PreparedStatement#executeBatch()}, so a bulk change costs a handful of round trips.  Connections are
+ * kept in a small pool and reused.
+ * </p>
+ *
+ * <p>
+ * Calls block until the database has answered.  To write asynchronously, wrap this backend in a {@link WriteBehindBackend}, which hands
+ * it whole batches from its writer thread.  {@link #loadGroups(GroupType)} fetches every group of a type with four set-based queries,
+ * and its result can be passed to {@link co.e2m.mc.entercraft.permissions.api.PermissionsManager#preload(java.util.Collection)}.
+ * </p>
+ *
+ * <p>
+ * Every batch also records, in a fifth table, one numbered change per group it wrote, within the same transaction.  That change feed
+ * lets {@link co.e2m.mc.entercraft.permissions.api.PermissionsManager#synchronize()} reload only the groups written since it last ran,
+ * including by other servers.  Old changes are discarded with {@link #pruneChanges(int)}.
+ * </p>
+ */
+public class JdbcBackend extends Component implements IBatchPermissionsBackend, IChangeFeedBackend, ILoadingPermissionsBackend
+{
+	/**
+	 * Default prefix of table names.
+	 */
+	public static final String DEFAULT_TABLE_PREFIX = "entercraft_";
+
+	/**
+	 * Default maximum number of open connections.
+	 */
+	public static final int DEFAULT_POOL_SIZE = 4;
+
+	/**
+	 * Separates names in a stored node path.
+	 */
+	private static final char PATH_SEPARATOR = '.';
+
+	/**
+	 * Splits a stored node path into names.
+	 */
+	private static final Pattern PATH_SPLIT = Pattern.compile(Pattern.quote(String.valueOf(PATH_SEPARATOR)));
+
+	/**
+	 * Escapes wildcards in {@code LIKE} patterns.
+	 */
+	private static final char LIKE_ESCAPE = '!';
+
+	/**
+	 * Columns that identify a group.
+	 */
+	private static final String GROUP_KEY = "world = ? AND group_type = ? AND group_name = ?";
+
+	/**
+	 * Number of times a batch is applied before giving up on recording its changes in the feed.
+	 */
+	private static final int FEED_ATTEMPTS = 5;
+
+	/**
+	 * Source of connections, or {@literal null} if connections are opened by URL.
+	 */
+	private final DataSource dataSource;
+
+	/**
+	 * JDBC URL, or {@literal null} if connections come from a data source.
+	 */
+	private final String url;
+
+	/**
+	 * Connection properties, such as credentials, or {@literal null} if connections come from a data source.
+	 */
+	private final Properties properties;
+
+	/**
+	 * Gets the prefix of table names.
+	 *
+	 * @return the table prefix
+	 */
+	@Getter
+	private final String tablePrefix;
+
+	/**
+	 * Gets the maximum number of open connections.
+	 *
+	 * @return the pool size
+	 */
+	@Getter
+	private final int poolSize;
+
+	/**
+	 * Open connections that are not in use.
+	 */
+	private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+
+	/**
+	 * Limits the number of connections in use.
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * Whether the pool has been closed, so returned connections must be closed too.
+	 */
+	private volatile boolean isClosed;
+
+	private final String groupsTable;
+	private final String nodesTable;
+	private final String inheritanceTable;
+	private final String dataTable;
+	private final String changesTable;
+
+	/**
+	 * Instantiates a new JDBC backend that takes connections from a data source.
+	 *
+	 * @param plugin the plugin with which this component is associated
+	 * @param dataSource the source of connections
+	 * @param tablePrefix the prefix of table names
+	 * @param poolSize the maximum number of open connections
+	 */
+	public JdbcBackend(final IComponentsPlugin plugin, final DataSource dataSource, final String tablePrefix, final int poolSize)
+	{
+		this(plugin, dataSource, null, null, tablePrefix, poolSize);
+
+		assert dataSource != null;
+	}
+
+	/**
+	 * Instantiates a new JDBC backend that opens connections by URL.
+	 *
+	 * @param plugin the plugin with which this component is associated
+	 * @param url the JDBC URL of the database
+	 * @param properties the connection properties, such as credentials
+	 * @param tablePrefix the prefix of table names
+	 * @param poolSize the maximum number of open connections
+	 */
+	public JdbcBackend(final IComponentsPlugin plugin, final String url, final Properties properties, final String tablePrefix,
+		final int poolSize)
+	{
+		this(plugin, null, url, properties == null ? new Properties() : properties, tablePrefix, poolSize);
+
+		assert url != null;
+	}
+
+	/**
+	 * Instantiates a new JDBC backend that opens connections by URL, with the default table prefix and pool size.
+	 *
+	 * @param plugin the plugin with which this component is associated
+	 * @param url the JDBC URL of the database
+	 * @param properties the connection properties, such as credentials
+	 */
+	public JdbcBackend(final IComponentsPlugin plugin, final String url, final Properties properties)
+	{
+		this(plugin, url, properties, DEFAULT_TABLE_PREFIX, DEFAULT_POOL_SIZE);
+	}
+
+	private JdbcBackend(final IComponentsPlugin plugin, final DataSource dataSource, final String url, final Properties properties,
+		final String tablePrefix, final int poolSize)
+	{
+		super(plugin);
+
+		assert tablePrefix != null;
+		assert poolSize > 0;
+
+		this.dataSource = dataSource;
+		this.url = url;
+		this.properties = properties;
+		this.tablePrefix = tablePrefix;
+		this.poolSize = poolSize;
+		this.permits = new Semaphore(poolSize, true);
+
+		groupsTable = tablePrefix + "groups";
+		nodesTable = tablePrefix + "nodes";
+		inheritanceTable = tablePrefix + "inheritance";
+		dataTable = tablePrefix + "data";
+		changesTable = tablePrefix + "changes";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Creates the schema if it does not yet exist.
+	 * </p>
+	 */
+	@Override
+	public void onEnable()
+	{
+		isClosed = false;
+
+		try
+		{
+			createSchema();
+		}
+		catch (SQLException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Sql_SchemaFailed, tablePrefix), ex);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Closes idle connections.  Connections in use are closed when they are returned.
+	 * </p>
+	 */
+	@Override
+	public void onDisable()
+	{
+		isClosed = true;
+
+		Connection connection;
+		while ((connection = idle.poll()) != null)
+		{
+			close(connection);
+		}
+	}
+
+	/**
+	 * Creates the tables if they do not yet exist.
+	 *
+	 * @throws SQLException if the schema cannot be created
+	 */
+	public void createSchema() throws SQLException
+	{
+		final String[] statements = {
+			"CREATE TABLE IF NOT EXISTS " + groupsTable + " ("
+				+ "world VARCHAR(64) NOT NULL, group_type VARCHAR(8) NOT NULL, group_name VARCHAR(64) NOT NULL, "
+				+ "primary_world VARCHAR(64), primary_type VARCHAR(8), primary_name VARCHAR(64), "
+				+ "PRIMARY KEY (world, group_type, group_name))",
+			"CREATE TABLE IF NOT EXISTS " + nodesTable + " ("
+				+ "world VARCHAR(64) NOT NULL, group_type VARCHAR(8) NOT NULL, group_name VARCHAR(64) NOT NULL, "
+				+ "node_path VARCHAR(255) NOT NULL, node_depth INTEGER NOT NULL, effect VARCHAR(8) NOT NULL, priority INTEGER NOT NULL, "
+				+ "PRIMARY KEY (world, group_type, group_name, node_path))",
+			"CREATE TABLE IF NOT EXISTS " + inheritanceTable + " ("
+				+ "world VARCHAR(64) NOT NULL, group_type VARCHAR(8) NOT NULL, group_name VARCHAR(64) NOT NULL, "
+				+ "parent_world VARCHAR(64) NOT NULL, parent_type VARCHAR(8) NOT NULL, parent_name VARCHAR(64) NOT NULL, "
+				+ "sort_order INTEGER NOT NULL, "
+				+ "PRIMARY KEY (world, group_type, group_name, parent_world, parent_type, parent_name))",
+			"CREATE TABLE IF NOT EXISTS " + dataTable + " ("
+				+ "world VARCHAR(64) NOT NULL, group_type VARCHAR(8) NOT NULL, group_name VARCHAR(64) NOT NULL, "
+				+ "data_key VARCHAR(64) NOT NULL, data_value BLOB NOT NULL, "
+				+ "PRIMARY KEY (world, group_type, group_name, data_key))",
+			"CREATE TABLE IF NOT EXISTS " + changesTable + " ("
+				+ "change_version BIGINT NOT NULL, "
+				+ "world VARCHAR(64) NOT NULL, group_type VARCHAR(8) NOT NULL, group_name VARCHAR(64) NOT NULL, "
+				+ "change_type VARCHAR(32) NOT NULL, "
+				+ "PRIMARY KEY (change_version))",
+		};
+
+		final Connection connection = borrow();
+		boolean isBroken = true;
+		try (final Statement statement = connection.createStatement())
+		{
+			for (final String sql : statements)
+			{
+				statement.executeUpdate(sql);
+			}
+
+			isBroken = false;
+		}
+		finally
+		{
+			release(connection, isBroken);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * The whole batch runs in one transaction.  If any statement fails, the transaction is rolled back and an
+	 * {@link IllegalStateException} is thrown; a {@link WriteBehindBackend} logs the failure and moves on to its next batch.  Feed
+	 * versions are numbered after the latest one in the feed, so two servers committing at once may claim the same versions.  Likewise,
+	 * two servers adding the same row at once may both find it absent, and one then violates the row's key.  The batch that loses either
+	 * race is rolled back and applied again, up to {@link #FEED_ATTEMPTS} times in all, by which time the other server's rows are
+	 * visible.
+	 * </p>
+	 */
+	@Override
+	public void apply(final List<Mutation> mutations)
+	{
+		if (mutations.isEmpty())
+		{
+			return;
+		}
+
+		int attempt = 1;
+		while (!apply(mutations, attempt < FEED_ATTEMPTS))
+		{
+			// Another server recorded its changes first; the next attempt numbers ours after them.
+			attempt++;
+		}
+	}
+
+	/**
+	 * Applies a batch of mutations in one transaction.
+	 *
+	 * @param mutations the mutations to apply, in order
+	 * @param canRetry whether a failure to record the changes, or a conflicting addition, may be retried
+	 * @return true if the batch was committed; false if it was rolled back because another server wrote the same rows or claimed the
+	 * same feed versions first
+	 */
+	private boolean apply(final List<Mutation> mutations, final boolean canRetry)
+	{
+		final Connection connection;
+		try
+		{
+			connection = borrow();
+		}
+		catch (SQLException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Backend_BatchFailed, mutations.size()), ex);
+		}
+
+		boolean isBroken = true;
+		boolean isConflict = false;
+		try
+		{
+			connection.setAutoCommit(false);
+
+			final Batch batch = new Batch(connection);
+			try
+			{
+				final Map<GroupId, Mutation.Type> changed = new LinkedHashMap<>();
+				try
+				{
+					for (final Mutation mutation : mutations)
+					{
+						add(batch, mutation);
+
+						changed.remove(mutation.getGroupId());
+						changed.put(mutation.getGroupId(), mutation.getType());
+					}
+
+					batch.flush();
+				}
+				catch (SQLException ex)
+				{
+					isConflict = canRetry && isConstraintViolation(ex);
+					throw ex;
+				}
+
+				try
+				{
+					recordChanges(batch, changed);
+				}
+				catch (SQLException ex)
+				{
+					isConflict = canRetry;
+					throw ex;
+				}
+			}
+			finally
+			{
+				batch.close();
+			}
+
+			connection.commit();
+			connection.setAutoCommit(true);
+			isBroken = false;
+			return true;
+		}
+		catch (SQLException | IOException ex)
+		{
+			isBroken = !rollback(connection);
+			if (isConflict)
+			{
+				return false;
+			}
+
+			throw new IllegalStateException(i(Formats.Error_Backend_BatchFailed, mutations.size()), ex);
+		}
+		finally
+		{
+			release(connection, isBroken);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getChangeVersion()
+	{
+		try
+		{
+			return getChangeBounds()[1];
+		}
+		catch (SQLException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Sql_ReadFailed, changesTable), ex);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ChangeSet getChangesSince(final long version)
+	{
+		final List<Change> changes = new ArrayList<>();
+		long latest = version;
+
+		final Connection connection;
+		try
+		{
+			connection = borrow();
+		}
+		catch (SQLException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Sql_ReadFailed, changesTable), ex);
+		}
+
+		boolean isBroken = true;
+		try
+		{
+			final long[] bounds = getChangeBounds(connection);
+			if (version > bounds[1] || (bounds[0] > version + 1 && bounds[1] > version))
+			{
+				// Either the changes were pruned past the caller's version, or the caller saw another database.
+				isBroken = false;
+				return null;
+			}
+
+			try (final PreparedStatement statement = connection.prepareStatement("SELECT change_version, world, group_type, group_name, "
+				+ "change_type FROM " + changesTable + " WHERE change_version > ? ORDER BY change_version"))
+			{
+				statement.setLong(1, version);
+				try (final ResultSet rows = statement.executeQuery())
+				{
+					while (rows.next())
+					{
+						latest = rows.getLong(1);
+						changes.add(new Change(latest, getGroup(rows, 2), Mutation.Type.valueOf(rows.getString(5))));
+					}
+				}
+			}
+
+			isBroken = false;
+		}
+		catch (SQLException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Sql_ReadFailed, changesTable), ex);
+		}
+		finally
+		{
+			release(connection, isBroken);
+		}
+
+		return new ChangeSet(latest, changes);
+	}
+
+	/**
+	 * Discards all but the most recent changes from the change feed.  Servers that last synchronized before the oldest kept change will
+	 * reload every cached group on their next synchronization.
+	 *
+	 * @param keep the number of changes to keep; at least one, so that the feed's version survives
+	 * @return the number of changes discarded
+	 */
+	public int pruneChanges(final int keep)
+	{
+		assert keep > 0;
+
+		final Connection connection;
+		try
+		{
+			connection = borrow();
+		}
+		catch (SQLException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Sql_ReadFailed, changesTable), ex);
+		}
+
+		boolean isBroken = true;
+		try
+		{
+			final long latest = getChangeBounds(connection)[1];
+			final int pruned;
+			try (final PreparedStatement statement = connection.prepareStatement("DELETE FROM " + changesTable
+				+ " WHERE change_version <= ?"))
+			{
+				statement.setLong(1, latest - keep);
+				pruned = statement.executeUpdate();
+			}
+
+			isBroken = false;
+			return pruned;
+		}
+		catch (SQLException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Sql_ReadFailed, changesTable), ex);
+		}
+		finally
+		{
+			release(connection, isBroken);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public GroupRecord loadGroup(final GroupId id)
+	{
+		final Map<GroupId, GroupRecord> records;
+		try
+		{
+			records = load(" WHERE " + GROUP_KEY, id.getWorld(), id.getType().toString(), id.getName());
+		}
+		catch (SQLException | IOException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Sql_ReadFailed, id.getCanonicalName()), ex);
+		}
+
+		return records.get(id);
+	}
+
+	/**
+	 * Loads every group of a type with four set-based queries, rather than one set per group.
+	 *
+	 * @param type the type of group to load, or {@literal null} to load every group
+	 * @return the groups' persisted state, in no particular order
+	 */
+	public List<GroupRecord> loadGroups(final GroupType type)
+	{
+		final Map<GroupId, GroupRecord> records;
+		try
+		{
+			records = type == null ? load("") : load(" WHERE group_type = ?", type.toString());
+		}
+		catch (SQLException | IOException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Sql_ReadFailed, type == null ? "*" : type.toString()), ex);
+		}
+
+		return new ArrayList<>(records.values());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createGroup(final Group group)
+	{
+		apply(Collections.singletonList(Mutation.createGroup(group)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroup(final Group group)
+	{
+		apply(Collections.singletonList(Mutation.removeGroup(group)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createNode(final NodeInfo node)
+	{
+		apply(Collections.singletonList(Mutation.createNode(node)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeNode(final NodeInfo node)
+	{
+		apply(Collections.singletonList(Mutation.removeNode(node)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateNode(final NodeInfo node)
+	{
+		apply(Collections.singletonList(Mutation.updateNode(node)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addInheritedGroup(final Group group, final Group inheritedGroup)
+	{
+		apply(Collections.singletonList(Mutation.inheritance(group, inheritedGroup, true)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeInheritedGroup(final Group group, final Group inheritedGroup)
+	{
+		apply(Collections.singletonList(Mutation.inheritance(group, inheritedGroup, false)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updatePrimaryParent(final Group group, final Group primaryParent)
+	{
+		apply(Collections.singletonList(Mutation.updatePrimaryParent(group, primaryParent)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void addGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		apply(Collections.singletonList(Mutation.setGroupData(group, key, type, value, false)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void updateGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		apply(Collections.singletonList(Mutation.setGroupData(group, key, type, value, true)));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroupData(final Group group, final String key)
+	{
+		apply(Collections.singletonList(Mutation.removeGroupData(group, key)));
+	}
+
+	/**
+	 * Adds the statements for a mutation to a batch.
+	 *
+	 * <p>
+	 * Additions are idempotent, since another server may have written the same row first.  Rows are inserted only if they are absent,
+	 * using an aggregate over the row's key that yields one row only when the count is zero.  A node or metadata value that already
+	 * exists is then updated by a follow-up statement, so its values are the ones being added.
+	 * </p>
+	 *
+	 * @param batch the batch being built
+	 * @param mutation the mutation to add
+	 * @throws SQLException if a statement cannot be prepared or executed
+	 * @throws IOException if a metadata value cannot be serialized
+	 */
+	private void add(final Batch batch, final Mutation mutation) throws SQLException, IOException
+	{
+		final GroupId id = mutation.getGroupId();
+		final PreparedStatement statement;
+
+		switch (mutation.getType())
+		{
+		case CREATE_GROUP:
+			statement = batch.next("INSERT INTO " + groupsTable + " (world, group_type, group_name)"
+				+ " SELECT ?, ?, ? FROM " + groupsTable + " WHERE " + GROUP_KEY + " HAVING COUNT(*) = 0");
+			setGroup(statement, 1, id);
+			setGroup(statement, 4, id);
+			break;
+
+		case REMOVE_GROUP:
+			for (final String table : Arrays.asList(nodesTable, inheritanceTable, dataTable))
+			{
+				final PreparedStatement delete = batch.next("DELETE FROM " + table + " WHERE " + GROUP_KEY);
+				setGroup(delete, 1, id);
+				delete.addBatch();
+			}
+
+			statement = batch.next("DELETE FROM " + groupsTable + " WHERE " + GROUP_KEY);
+			setGroup(statement, 1, id);
+			break;
+
+		case CREATE_NODE:
+		{
+			final NodeInfo node = mutation.getNode();
+			final List<String> path = getPath(node);
+			final PreparedStatement[] statements = batch.next("INSERT INTO " + nodesTable
+				+ " (world, group_type, group_name, node_path, node_depth, effect, priority) SELECT ?, ?, ?, ?, ?, ?, ? FROM " + nodesTable
+				+ " WHERE " + GROUP_KEY + " AND node_path = ? HAVING COUNT(*) = 0", updateNodeSql());
+			statement = statements[0];
+			setGroup(statement, 1, id);
+			statement.setString(4, joinPath(path));
+			statement.setInt(5, path.size());
+			statement.setString(6, node.getEffect().name());
+			statement.setInt(7, node.getPriority());
+			setGroup(statement, 8, id);
+			statement.setString(11, joinPath(path));
+			bindNodeUpdate(statements[1], id, node);
+			statements[1].addBatch();
+			break;
+		}
+
+		case UPDATE_NODE:
+		{
+			statement = batch.next(updateNodeSql());
+			bindNodeUpdate(statement, id, mutation.getNode());
+			break;
+		}
+
+		case REMOVE_NODE:
+		{
+			final String path = joinPath(getPath(mutation.getNode()));
+			statement = batch.next("DELETE FROM " + nodesTable + " WHERE " + GROUP_KEY
+				+ " AND (node_path = ? OR node_path LIKE ? ESCAPE '" + LIKE_ESCAPE + "')");
+			setGroup(statement, 1, id);
+			statement.setString(4, path);
+			statement.setString(5, escapeLike(path) + PATH_SEPARATOR + '%');
+			break;
+		}
+
+		case ADD_INHERITED_GROUP:
+			statement = batch.next("INSERT INTO " + inheritanceTable
+				+ " (world, group_type, group_name, parent_world, parent_type, parent_name, sort_order)"
+				+ " SELECT ?, ?, ?, ?, ?, ?, COALESCE(MAX(sort_order), 0) + 1 FROM " + inheritanceTable + " WHERE " + GROUP_KEY
+				+ " HAVING COALESCE(SUM(CASE WHEN parent_world = ? AND parent_type = ? AND parent_name = ? THEN 1 ELSE 0 END), 0) = 0");
+			setGroup(statement, 1, id);
+			setGroup(statement, 4, mutation.getOther().getId());
+			setGroup(statement, 7, id);
+			setGroup(statement, 10, mutation.getOther().getId());
+			break;
+
+		case REMOVE_INHERITED_GROUP:
+			statement = batch.next("DELETE FROM " + inheritanceTable + " WHERE " + GROUP_KEY
+				+ " AND parent_world = ? AND parent_type = ? AND parent_name = ?");
+			setGroup(statement, 1, id);
+			setGroup(statement, 4, mutation.getOther().getId());
+			break;
+
+		case UPDATE_PRIMARY_PARENT:
+			statement = batch.next("UPDATE " + groupsTable + " SET primary_world = ?, primary_type = ?, primary_name = ? WHERE " + GROUP_KEY);
+			if (mutation.getOther() == null)
+			{
+				statement.setNull(1, Types.VARCHAR);
+				statement.setNull(2, Types.VARCHAR);
+				statement.setNull(3, Types.VARCHAR);
+			}
+			else
+			{
+				setGroup(statement, 1, mutation.getOther().getId());
+			}
+			setGroup(statement, 4, id);
+			break;
+
+		case ADD_GROUP_DATA:
+		{
+			final byte[] value = ValueCodecs.encode(mutation.getValue());
+			final PreparedStatement[] statements = batch.next("INSERT INTO " + dataTable
+				+ " (world, group_type, group_name, data_key, data_value) SELECT ?, ?, ?, ?, ? FROM " + dataTable
+				+ " WHERE " + GROUP_KEY + " AND data_key = ? HAVING COUNT(*) = 0", updateDataSql());
+			statement = statements[0];
+			setGroup(statement, 1, id);
+			statement.setString(4, mutation.getKey());
+			statement.setBytes(5, value);
+			setGroup(statement, 6, id);
+			statement.setString(9, mutation.getKey());
+			bindDataUpdate(statements[1], id, mutation.getKey(), value);
+			statements[1].addBatch();
+			break;
+		}
+
+		case UPDATE_GROUP_DATA:
+			statement = batch.next(updateDataSql());
+			bindDataUpdate(statement, id, mutation.getKey(), ValueCodecs.encode(mutation.getValue()));
+			break;
+
+		case REMOVE_GROUP_DATA:
+			statement = batch.next("DELETE FROM " + dataTable + " WHERE " + GROUP_KEY + " AND data_key = ?");
+			setGroup(statement, 1, id);
+			statement.setString(4, mutation.getKey());
+			break;
+
+		default:
+			throw new IllegalStateException(mutation.getType().name());
+		}
+
+		statement.addBatch();
+	}
+
+	/**
+	 * Gets the statement that updates a node's rule.
+	 *
+	 * @return the statement's SQL
+	 */
+	private String updateNodeSql()
+	{
+		return "UPDATE " + nodesTable + " SET effect = ?, priority = ? WHERE " + GROUP_KEY + " AND node_path = ?";
+	}
+
+	/**
+	 * Binds a row of the statement from {@link #updateNodeSql()}.
+	 *
+	 * @param statement the statement
+	 * @param id the node's group
+	 * @param node the node
+	 * @throws SQLException if the row cannot be bound
+	 */
+	private static void bindNodeUpdate(final PreparedStatement statement, final GroupId id, final NodeInfo node) throws SQLException
+	{
+		statement.setString(1, node.getEffect().name());
+		statement.setInt(2, node.getPriority());
+		setGroup(statement, 3, id);
+		statement.setString(6, joinPath(getPath(node)));
+	}
+
+	/**
+	 * Gets the statement that updates a metadata value.
+	 *
+	 * @return the statement's SQL
+	 */
+	private String updateDataSql()
+	{
+		return "UPDATE " + dataTable + " SET data_value = ? WHERE " + GROUP_KEY + " AND data_key = ?";
+	}
+
+	/**
+	 * Binds a row of the statement from {@link #updateDataSql()}.
+	 *
+	 * @param statement the statement
+	 * @param id the value's group
+	 * @param key the value's key
+	 * @param value the serialized value
+	 * @throws SQLException if the row cannot be bound
+	 */
+	private static void bindDataUpdate(final PreparedStatement statement, final GroupId id, final String key, final byte[] value)
+		throws SQLException
+	{
+		statement.setBytes(1, value);
+		setGroup(statement, 2, id);
+		statement.setString(5, key);
+	}
+
+	/**
+	 * Records one change per written group, numbered after the latest change in the feed.
+	 *
+	 * @param batch the batch's transaction
+	 * @param changed the last mutation type of each written group, in order of their last mutation
+	 * @throws SQLException if the changes cannot be recorded
+	 */
+	private void recordChanges(final Batch batch, final Map<GroupId, Mutation.Type> changed) throws SQLException
+	{
+		long version = getChangeBounds(batch.getConnection())[1];
+
+		final PreparedStatement statement = batch.next("INSERT INTO " + changesTable
+			+ " (change_version, world, group_type, group_name, change_type) VALUES (?, ?, ?, ?, ?)");
+		for (final Map.Entry<GroupId, Mutation.Type> entry : changed.entrySet())
+		{
+			statement.setLong(1, ++version);
+			setGroup(statement, 2, entry.getKey());
+			statement.setString(5, entry.getValue().name());
+			statement.addBatch();
+		}
+
+		batch.flush();
+	}
+
+	/**
+	 * Gets the oldest and latest versions in the change feed, on a connection from the pool.
+	 *
+	 * @return the oldest and latest versions, or zeroes if the feed is empty
+	 * @throws SQLException if the feed cannot be read
+	 */
+	private long[] getChangeBounds() throws SQLException
+	{
+		final Connection connection = borrow();
+		boolean isBroken = true;
+		try
+		{
+			final long[] bounds = getChangeBounds(connection);
+			isBroken = false;
+			return bounds;
+		}
+		finally
+		{
+			release(connection, isBroken);
+		}
+	}
+
+	/**
+	 * Gets the oldest and latest versions in the change feed.
+	 *
+	 * @param connection the connection on which to read the feed
+	 * @return the oldest and latest versions, or zeroes if the feed is empty
+	 * @throws SQLException if the feed cannot be read
+	 */
+	private long[] getChangeBounds(final Connection connection) throws SQLException
+	{
+		try (final PreparedStatement statement = prepare(connection,
+			"SELECT MIN(change_version), MAX(change_version) FROM " + changesTable);
+			final ResultSet rows = statement.executeQuery())
+		{
+			return rows.next() ? new long[] { rows.getLong(1), rows.getLong(2) } : new long[2];
+		}
+	}
+
+	/**
+	 * Determines whether a statement failed because it violated an integrity constraint, such as a row's key.
+	 *
+	 * @param ex the statement's failure
+	 * @return true if the failure, or any failure chained to it, is an integrity constraint violation; otherwise, false
+	 */
+	private static boolean isConstraintViolation(final SQLException ex)
+	{
+		for (SQLException cause = ex; cause != null; cause = cause.getNextException())
+		{
+			final String state = cause.getSQLState();
+			if (cause instanceof SQLIntegrityConstraintViolationException || (state != null && state.startsWith("23")))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Loads groups, with one query per table.
+	 *
+	 * <p>
+	 * The queries run in one read-only transaction at {@link Connection#TRANSACTION_REPEATABLE_READ} or stricter, so that a group
+	 * written concurrently is seen either whole or not at all.
+	 * </p>
+	 *
+	 * @param where the condition on the group columns, including the {@code WHERE} keyword, or an empty string
+	 * @param parameters the condition's parameters
+	 * @return the groups' persisted state by identifier
+	 * @throws SQLException if a query fails
+	 * @throws IOException if a metadata value cannot be deserialized
+	 */
+	private Map<GroupId, GroupRecord> load(final String where, final String... parameters) throws SQLException, IOException
+	{
+		final Map<GroupId, GroupRecord> records = new HashMap<>();
+		final Map<GroupId, Map<List<String>, Rule>> nodes = new HashMap<>();
+
+		final Connection connection = borrow();
+		final int isolation = connection.getTransactionIsolation();
+		boolean isBroken = true;
+		try
+		{
+			connection.setReadOnly(true);
+			connection.setTransactionIsolation(connection.getMetaData().supportsTransactionIsolationLevel(
+				Connection.TRANSACTION_REPEATABLE_READ) ? Connection.TRANSACTION_REPEATABLE_READ : Connection.TRANSACTION_SERIALIZABLE);
+			connection.setAutoCommit(false);
+
+			try (final PreparedStatement statement = prepare(connection,
+				"SELECT world, group_type, group_name, primary_world, primary_type, primary_name FROM "
+				+ groupsTable + where, parameters);
+				final ResultSet rows = statement.executeQuery())
+			{
+				while (rows.next())
+				{
+					final GroupRecord record = new GroupRecord(getGroup(rows, 1));
+					record.setPrimaryParent(rows.getString(6) == null ? null : getGroup(rows, 4));
+					records.put(record.getId(), record);
+				}
+			}
+
+			try (final PreparedStatement statement = prepare(connection,
+				"SELECT world, group_type, group_name, node_path, effect, priority FROM "
+				+ nodesTable + where + " ORDER BY node_depth", parameters);
+				final ResultSet rows = statement.executeQuery())
+			{
+				while (rows.next())
+				{
+					final GroupId id = getGroup(rows, 1);
+					if (!records.containsKey(id))
+					{
+						continue;
+					}
+
+					Map<List<String>, Rule> paths = nodes.get(id);
+					if (paths == null)
+					{
+						paths = new LinkedHashMap<>();
+						nodes.put(id, paths);
+					}
+
+					final NodeEffect effect = NodeEffect.valueOf(rows.getString(5));
+					paths.put(Arrays.asList(PATH_SPLIT.split(rows.getString(4))), new Rule(effect, rows.getInt(6)));
+				}
+			}
+
+			try (final PreparedStatement statement = prepare(connection,
+				"SELECT world, group_type, group_name, parent_world, parent_type, parent_name FROM "
+				+ inheritanceTable + where + " ORDER BY sort_order", parameters);
+				final ResultSet rows = statement.executeQuery())
+			{
+				while (rows.next())
+				{
+					final GroupRecord record = records.get(getGroup(rows, 1));
+					if (record != null)
+					{
+						record.getParents().add(getGroup(rows, 4));
+					}
+				}
+			}
+
+			try (final PreparedStatement statement = prepare(connection,
+				"SELECT world, group_type, group_name, data_key, data_value FROM "
+				+ dataTable + where, parameters);
+				final ResultSet rows = statement.executeQuery())
+			{
+				while (rows.next())
+				{
+					final GroupRecord record = records.get(getGroup(rows, 1));
+					if (record != null)
+					{
+						record.getData().put(rows.getString(4), ValueCodecs.decode(rows.getBytes(5)));
+					}
+				}
+			}
+
+			connection.commit();
+			connection.setAutoCommit(true);
+			connection.setTransactionIsolation(isolation);
+			connection.setReadOnly(false);
+			isBroken = false;
+		}
+		catch (SQLException | IOException | RuntimeException ex)
+		{
+			rollback(connection);
+			throw ex;
+		}
+		finally
+		{
+			release(connection, isBroken);
+		}
+
+		for (final Map.Entry<GroupId, Map<List<String>, Rule>> entry : nodes.entrySet())
+		{
+			records.get(entry.getKey()).addNodes(entry.getValue());
+		}
+
+		return records;
+	}
+
+	/**
+	 * Prepares a query.
+	 *
+	 * @param connection the connection on which to run the query
+	 * @param sql the query
+	 * @param parameters the query's string parameters
+	 * @return the query's statement, with its parameters set
+	 * @throws SQLException if the query cannot be prepared
+	 */
+	private static PreparedStatement prepare(final Connection connection, final String sql, final String... parameters) throws SQLException
+	{
+		final PreparedStatement statement = connection.prepareStatement(sql);
+		try
+		{
+			for (int index = 0; index < parameters.length; index++)
+			{
+				statement.setString(index + 1, parameters[index]);
+			}
+
+			return statement;
+		}
+		catch (SQLException ex)
+		{
+			statement.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Takes a connection from the pool, opening one if none are idle.  Blocks while every connection is in use.
+	 *
+	 * @return a connection in auto-commit mode
+	 * @throws SQLException if a connection cannot be opened
+	 */
+	private Connection borrow() throws SQLException
+	{
+		permits.acquireUninterruptibly();
+		try
+		{
+			Connection connection;
+			while ((connection = idle.poll()) != null)
+			{
+				if (!connection.isClosed())
+				{
+					return connection;
+				}
+			}
+
+			return dataSource != null ? dataSource.getConnection() : DriverManager.getConnection(url, properties);
+		}
+		catch (SQLException | RuntimeException ex)
+		{
+			permits.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool.
+	 *
+	 * @param connection the connection to return
+	 * @param isBroken true if the connection failed and must be discarded
+	 */
+	private void release(final Connection connection, final boolean isBroken)
+	{
+		if (isBroken || isClosed)
+		{
+			close(connection);
+		}
+		else
+		{
+			idle.offer(connection);
+		}
+
+		permits.release();
+	}
+
+	/**
+	 * Rolls back the current transaction and restores auto-commit mode.
+	 *
+	 * @param connection the connection to roll back
+	 * @return true if the connection can be reused
+	 */
+	private boolean rollback(final Connection connection)
+	{
+		try
+		{
+			connection.rollback();
+			connection.setAutoCommit(true);
+			return true;
+		}
+		catch (SQLException ex)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Closes a connection, logging any failure.
+	 *
+	 * @param connection the connection to close
+	 */
+	private void close(final Connection connection)
+	{
+		try
+		{
+			connection.close();
+		}
+		catch (SQLException ex)
+		{
+			getLogger().log(Level.WARNING, i(Formats.Error_Sql_CloseFailed), ex);
+		}
+	}
+
+	/**
+	 * Binds the columns that identify a group.
+	 *
+	 * @param statement the statement to bind
+	 * @param index the index of the world parameter, followed by the type and name
+	 * @param id the group's identifier
+	 * @throws SQLException if a parameter cannot be bound
+	 */
+	private static void setGroup(final PreparedStatement statement, final int index, final GroupId id) throws SQLException
+	{
+		statement.setString(index, id.getWorld());
+		statement.setString(index + 1, id.getType().toString());
+		statement.setString(index + 2, id.getName());
+	}
+
+	/**
+	 * Reads the columns that identify a group.
+	 *
+	 * @param rows the current row
+	 * @param index the index of the world column, followed by the type and name
+	 * @return the group's identifier
+	 * @throws SQLException if a column cannot be read
+	 */
+	private static GroupId getGroup(final ResultSet rows, final int index) throws SQLException
+	{
+		return new GroupId(rows.getString(index), GroupType.parse(rows.getString(index + 1), GroupType.NORMAL), rows.getString(index + 2));
+	}
+
+	/**
+	 * Gets the names along a node's path, excluding the root node.
+	 *
+	 * @param node the node
+	 * @return the names of the node's ancestors and the node itself
+	 */
+	private static List<String> getPath(final NodeInfo node)
+	{
+		final List<NodeInfo> path = node.getPath();
+		final List<String> names = new ArrayList<>(path.size());
+
+		for (final NodeInfo info : path)
+		{
+			if (!info.isRoot())
+			{
+				names.add(info.getName());
+			}
+		}
+
+		return names;
+	}
+
+	/**
+	 * Joins the names along a node's path into the stored form.
+	 *
+	 * @param path the names along the path
+	 * @return the dot-separated path
+	 */
+	private static String joinPath(final List<String> path)
+	{
+		final StringBuilder builder = new StringBuilder(path.size() * 8);
+		for (final String name : path)
+		{
+			if (builder.length() > 0)
+			{
+				builder.append(PATH_SEPARATOR);
+			}
+			builder.append(name);
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Escapes the wildcards in a literal {@code LIKE} pattern.
+	 *
+	 * @param literal the literal text
+	 * @return the escaped text
+	 */
+	private static String escapeLike(final String literal)
+	{
+		final StringBuilder builder = new StringBuilder(literal.length() + 4);
+		for (int index = 0; index < literal.length(); index++)
+		{
+			final char c = literal.charAt(index);
+			if (c == LIKE_ESCAPE || c == '%' || c == '_')
+			{
+				builder.append(LIKE_ESCAPE);
+			}
+			builder.append(c);
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Groups consecutive rows that share a statement into one JDBC batch.
+	 *
+	 * <p>
+	 * A statement's pending rows are executed as soon as a row for a different statement is added, so rows reach the database in the
+	 * order of their mutations.  A statement may have a follow-up statement, whose rows are executed right after its own.  Prepared
+	 * statements are reused for the whole batch.
+	 * </p>
+	 */
+	private static final class Batch
+	{
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements = new HashMap<>();
+		private PreparedStatement current;
+		private PreparedStatement currentFollowUp;
+
+		Batch(final Connection connection)
+		{
+			this.connection = connection;
+		}
+
+		/**
+		 * Gets the connection on which the batch runs, for reads within its transaction.
+		 *
+		 * @return the batch's connection
+		 */
+		Connection getConnection()
+		{
+			return connection;
+		}
+
+		/**
+		 * Gets the statement for the next row, executing the rows pending for any other statement.
+		 *
+		 * @param sql the statement's SQL
+		 * @return the prepared statement, ready to be bound
+		 * @throws SQLException if the statement cannot be prepared, or pending rows fail
+		 */
+		PreparedStatement next(final String sql) throws SQLException
+		{
+			final PreparedStatement statement = prepare(sql);
+			if (current != statement)
+			{
+				flush();
+				current = statement;
+			}
+
+			return statement;
+		}
+
+		/**
+		 * Gets the statement for the next row, along with a follow-up statement that is executed for the same rows right after it.  The
+		 * rows pending for any other statement are executed first.  The caller adds a row to each.
+		 *
+		 * @param sql the statement's SQL
+		 * @param followUpSql the follow-up statement's SQL
+		 * @return the prepared statement and its follow-up, ready to be bound
+		 * @throws SQLException if a statement cannot be prepared, or pending rows fail
+		 */
+		PreparedStatement[] next(final String sql, final String followUpSql) throws SQLException
+		{
+			final PreparedStatement statement = next(sql);
+			currentFollowUp = prepare(followUpSql);
+			return new PreparedStatement[] { statement, currentFollowUp };
+		}
+
+		/**
+		 * Gets a prepared statement, preparing it on first use.
+		 *
+		 * @param sql the statement's SQL
+		 * @return the prepared statement
+		 * @throws SQLException if the statement cannot be prepared
+		 */
+		private PreparedStatement prepare(final String sql) throws SQLException
+		{
+			PreparedStatement statement = statements.get(sql);
+			if (statement == null)
+			{
+				statement = connection.prepareStatement(sql);
+				statements.put(sql, statement);
+			}
+
+			return statement;
+		}
+
+		/**
+		 * Executes the pending rows.
+		 *
+		 * @throws SQLException if a row fails
+		 */
+		void flush() throws SQLException
+		{
+			if (current != null)
+			{
+				current.executeBatch();
+				if (currentFollowUp != null)
+				{
+					currentFollowUp.executeBatch();
+				}
+
+				current = null;
+				currentFollowUp = null;
+			}
+		}
+
+		/**
+		 * Closes every statement.
+		 */
+		void close()
+		{
+			for (final PreparedStatement statement : statements.values())
+			{
+				try
+				{
+					statement.close();
+				}
+				catch (SQLException ex)
+				{
+					// The connection is being committed or discarded anyway.
+				}
+			}
+		}
+	}
+}
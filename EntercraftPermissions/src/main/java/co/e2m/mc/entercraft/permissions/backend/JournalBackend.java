@@ -0,0 +1,1448 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.api.Component;
+import co.e2m.mc.entercraft.api.IComponentsPlugin;
+import co.e2m.mc.entercraft.i18n.Formats;
+import static co.e2m.mc.entercraft.i18n.I18n.i;
+import co.e2m.mc.entercraft.permissions.api.Group;
+import co.e2m.mc.entercraft.permissions.api.GroupId;
+import co.e2m.mc.entercraft.permissions.api.GroupRecord;
+import co.e2m.mc.entercraft.permissions.api.GroupType;
+import co.e2m.mc.entercraft.permissions.api.IBatchPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.ILoadingPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.Mutation;
+import co.e2m.mc.entercraft.permissions.api.NodeEffect;
+import co.e2m.mc.entercraft.permissions.api.NodeInfo;
+import co.e2m.mc.entercraft.permissions.api.Rule;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import lombok.Getter;
+import lombok.Setter;
+
+
+/**
+ * A file-based backend that appends every mutation to a journal, and periodically compacts the journal into a snapshot.
+ *
+ * <p>
+ * Each mutation is encoded as a compact binary record, framed by its length and CRC-32 checksum, and buffered.  A background thread
+ * appends buffered records to the journal and forces them to disk in groups, so that many mutations share one fsync.  Once the journal
+ * grows past a threshold, the whole state is written to a new snapshot file, which atomically replaces the previous one, and the journal
+ * is truncated.  Both files carry a generation number, so a journal left over from before a compaction is ignored.
+ * </p>
+ *
+ * <p>
+ * On enable, the snapshot is read and the journal is replayed on top of it.  Records at the end of the journal that are incomplete or
+ * fail their checksum, as left by a crash, are discarded.  The state is then held in memory to serve loads, so disk I/O is sequential
+ * only.
+ * </p>
+ */
+public class JournalBackend extends Component implements IBatchPermissionsBackend, ILoadingPermissionsBackend
+{
+	/**
+	 * Name of the journal file.
+	 */
+	public static final String JOURNAL_FILE = "permissions.journal";
+
+	/**
+	 * Name of the snapshot file.
+	 */
+	public static final String SNAPSHOT_FILE = "permissions.snapshot";
+
+	/**
+	 * Default time between group commits, in milliseconds.
+	 */
+	public static final long DEFAULT_SYNC_INTERVAL = 50;
+
+	/**
+	 * Default journal size, in bytes, beyond which the journal is compacted.
+	 */
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 8L << 20;
+
+	/**
+	 * Identifies a journal file.
+	 */
+	private static final int JOURNAL_MAGIC = 0x45434a4c;
+
+	/**
+	 * Identifies a snapshot file.
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x4543534e;
+
+	/**
+	 * Version of the file format.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Size of a file header: magic number, format version and generation.
+	 */
+	private static final int HEADER_SIZE = 16;
+
+	/**
+	 * Size of a record's frame: payload length and checksum.
+	 */
+	private static final int FRAME_SIZE = 8;
+
+	/**
+	 * Largest plausible record payload.  A larger length can only come from a damaged frame.
+	 */
+	private static final int MAX_RECORD_SIZE = 16 << 20;
+
+	/**
+	 * Mutation types by ordinal.
+	 */
+	private static final Mutation.Type[] MUTATION_TYPES = Mutation.Type.values();
+
+	/**
+	 * Group types by ordinal.
+	 */
+	private static final GroupType[] GROUP_TYPES = GroupType.values();
+
+	/**
+	 * Node effects by ordinal.
+	 */
+	private static final NodeEffect[] EFFECTS = NodeEffect.values();
+
+	/**
+	 * Gets the directory holding the journal and snapshot files.
+	 *
+	 * @return the data directory
+	 */
+	@Getter
+	private final File directory;
+
+	/**
+	 * Persisted state by group.  Guarded by {@code this}.
+	 */
+	private final Map<GroupId, GroupState> groups = new HashMap<>();
+
+	/**
+	 * Framed records that have not yet been appended to the journal.  Guarded by {@code this}.
+	 */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * Serializes file I/O.  May be acquired before, but never while holding, {@code this}.
+	 */
+	private final Object ioLock = new Object();
+
+	/**
+	 * Open journal file, or {@literal null} if the backend is not enabled.  Guarded by {@link #ioLock}.
+	 */
+	private FileChannel journal;
+
+	/**
+	 * Whether the state has been loaded and mutations are accepted.  Guarded by {@code this}.
+	 */
+	private boolean isOpen;
+
+	/**
+	 * Background thread that commits buffered records, or {@literal null} if it is not running.  Guarded by {@code this}.
+	 */
+	private Thread syncer;
+
+	/**
+	 * Gets the generation of the current snapshot and journal.  Incremented by each compaction.
+	 *
+	 * @return the current generation
+	 */
+	@Getter
+	private volatile long generation;
+
+	/**
+	 * Gets the size of the journal file, in bytes, including its header but not records still buffered.
+	 *
+	 * @return the journal's size
+	 */
+	@Getter
+	private volatile long journalSize;
+
+	/**
+	 * Whether the journal may end in a partial record, or lack its header, after a failed write that could not be undone.  Records
+	 * appended after that point would be lost on replay, so the next sync compacts instead.  Guarded by {@link #ioLock}.
+	 */
+	private boolean isJournalDamaged;
+
+	/**
+	 * Gets the time between group commits, in milliseconds.
+	 *
+	 * @return the sync interval
+	 */
+	@Getter
+	/**
+	 * Sets the time between group commits, in milliseconds.  Takes effect after the next commit.
+	 *
+	 * @param syncInterval the sync interval
+	 */
+	@Setter
+	private volatile long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+	/**
+	 * Gets the journal size, in bytes, beyond which the journal is compacted.
+	 *
+	 * @return the compaction threshold
+	 */
+	@Getter
+	/**
+	 * Sets the journal size, in bytes, beyond which the journal is compacted.
+	 *
+	 * @param compactionThreshold the compaction threshold
+	 */
+	@Setter
+	private volatile long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	/**
+	 * Instantiates a new journal backend.
+	 *
+	 * @param plugin the plugin with which this component is associated
+	 * @param directory the directory in which to keep the journal and snapshot files
+	 */
+	public JournalBackend(final IComponentsPlugin plugin, final File directory)
+	{
+		super(plugin);
+
+		assert directory != null;
+
+		this.directory = directory;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Reads the snapshot, replays the journal, then starts committing in the background.
+	 * </p>
+	 */
+	@Override
+	public void onEnable()
+	{
+		synchronized (ioLock)
+		{
+			if (journal != null)
+			{
+				return;
+			}
+
+			try
+			{
+				open();
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException(i(Formats.Error_Journal_ReadFailed, directory), ex);
+			}
+		}
+
+		synchronized (this)
+		{
+			syncer = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					commitPeriodically();
+				}
+			}, "EntercraftPermissions-Journal");
+			syncer.setDaemon(true);
+			syncer.start();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Stops committing in the background, commits every buffered record and closes the journal.
+	 * </p>
+	 */
+	@Override
+	public void onDisable()
+	{
+		final Thread stopping;
+		synchronized (this)
+		{
+			stopping = syncer;
+			syncer = null;
+			notifyAll();
+		}
+
+		if (stopping != null)
+		{
+			try
+			{
+				stopping.join();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (ioLock)
+		{
+			sync();
+
+			synchronized (this)
+			{
+				isOpen = false;
+				groups.clear();
+				pending.reset();
+			}
+
+			if (journal != null)
+			{
+				try
+				{
+					journal.close();
+				}
+				catch (IOException ex)
+				{
+					getLogger().log(Level.SEVERE, i(Formats.Error_Journal_WriteFailed, JOURNAL_FILE), ex);
+				}
+
+				journal = null;
+			}
+		}
+	}
+
+	/**
+	 * Commits buffered records every {@link #getSyncInterval()} milliseconds until the syncer is stopped.
+	 */
+	private void commitPeriodically()
+	{
+		final Thread self = Thread.currentThread();
+
+		while (true)
+		{
+			synchronized (this)
+			{
+				if (syncer != self)
+				{
+					return;
+				}
+
+				try
+				{
+					wait(Math.max(1, syncInterval));
+				}
+				catch (InterruptedException ex)
+				{
+					return;
+				}
+
+				if (syncer != self)
+				{
+					return;
+				}
+			}
+
+			sync();
+		}
+	}
+
+	/**
+	 * Loads the snapshot and replays the journal.  Must be called while holding {@link #ioLock}.
+	 *
+	 * @throws IOException if either file cannot be read, or the journal cannot be repaired
+	 */
+	private void open() throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException(i(Formats.Error_Generic_CannotOpenFile, directory));
+		}
+
+		final Map<GroupId, GroupState> loaded = new HashMap<>();
+		long snapshotGeneration = 0;
+
+		final File snapshotFile = new File(directory, SNAPSHOT_FILE);
+		if (snapshotFile.isFile())
+		{
+			try (final InputStream stream = new BufferedInputStream(Files.newInputStream(snapshotFile.toPath())))
+			{
+				final DataInputStream in = new DataInputStream(stream);
+				snapshotGeneration = readHeader(in, SNAPSHOT_MAGIC);
+
+				final RecordReader reader = new RecordReader(in);
+				byte[] payload;
+				while ((payload = reader.next()) != null)
+				{
+					readGroup(payload, loaded);
+				}
+
+				// Snapshots replace each other atomically, so damage here is not a torn write, and must not be papered over.
+				if (reader.isDamaged())
+				{
+					throw new IOException(i(Formats.Error_Journal_DamagedRecord, HEADER_SIZE + reader.getOffset(), SNAPSHOT_FILE));
+				}
+			}
+		}
+
+		final FileChannel channel = FileChannel.open(new File(directory, JOURNAL_FILE).toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long end = 0;
+
+		try
+		{
+
+			if (channel.size() > 0)
+			{
+				// The stream is not closed, since that would close the channel.
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+				long journalGeneration;
+				try
+				{
+					journalGeneration = readHeader(in, JOURNAL_MAGIC);
+				}
+				catch (IOException ex)
+				{
+					// A crash while the journal was being restarted can leave its header torn.  Records are only appended after a header
+					// has been forced to disk, so the file holds nothing that isn't already in the snapshot.
+					getLogger().log(Level.WARNING, i(Formats.Error_Journal_DamagedHeader, JOURNAL_FILE), ex);
+					journalGeneration = -1;
+				}
+
+				if (journalGeneration > snapshotGeneration)
+				{
+					throw new IOException(i(Formats.Error_Journal_ReadFailed, SNAPSHOT_FILE));
+				}
+
+				// An older journal was already folded into the snapshot before the crash that kept it from being truncated.
+				if (journalGeneration == snapshotGeneration)
+				{
+					final RecordReader reader = new RecordReader(in);
+					byte[] payload;
+					while ((payload = reader.next()) != null)
+					{
+						replay(payload, loaded);
+					}
+
+					end = HEADER_SIZE + reader.getOffset();
+					if (reader.isDamaged())
+					{
+						getLogger().log(Level.WARNING, i(Formats.Error_Journal_DamagedRecord, end, JOURNAL_FILE));
+					}
+				}
+			}
+
+			if (end == 0)
+			{
+				channel.truncate(0);
+				write(channel.position(0), header(JOURNAL_MAGIC, snapshotGeneration));
+				end = HEADER_SIZE;
+			}
+			else
+			{
+				channel.truncate(end);
+				channel.position(end);
+			}
+
+			channel.force(true);
+		}
+		catch (IOException | RuntimeException ex)
+		{
+			channel.close();
+			throw ex;
+		}
+
+		journal = channel;
+		generation = snapshotGeneration;
+		journalSize = end;
+
+		synchronized (this)
+		{
+			groups.clear();
+			groups.putAll(loaded);
+			pending.reset();
+			isOpen = true;
+		}
+	}
+
+	/**
+	 * Appends every buffered record to the journal and forces it to disk, then compacts the journal if it has grown too large.
+	 *
+	 * <p>
+	 * Records are buffered as mutations arrive and committed in the background, so this is only needed to make recent mutations durable
+	 * immediately.
+	 * </p>
+	 */
+	public void sync()
+	{
+		synchronized (ioLock)
+		{
+			if (journal == null)
+			{
+				return;
+			}
+
+			if (isJournalDamaged)
+			{
+				compact();
+				return;
+			}
+
+			final byte[] records;
+			synchronized (this)
+			{
+				records = pending.toByteArray();
+				pending.reset();
+			}
+
+			if (records.length > 0)
+			{
+				try
+				{
+					write(journal, records);
+					journal.force(false);
+					journalSize += records.length;
+				}
+				catch (IOException ex)
+				{
+					getLogger().log(Level.SEVERE, i(Formats.Error_Journal_WriteFailed, JOURNAL_FILE), ex);
+					restore(records);
+					return;
+				}
+			}
+
+			if (journalSize > compactionThreshold)
+			{
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Writes the whole state to a new snapshot, then truncates the journal.
+	 *
+	 * <p>
+	 * Buffered records are appended to the old journal first, so that a crash before the new snapshot is in place loses nothing.  Once
+	 * the snapshot has replaced the old one, the journal is restarted with the new generation; a crash in between leaves a journal of
+	 * the old generation, which is ignored.
+	 * </p>
+	 */
+	public void compact()
+	{
+		synchronized (ioLock)
+		{
+			if (journal == null)
+			{
+				return;
+			}
+
+			final byte[] tail;
+			final Map<GroupId, GroupState> frozen;
+			final long next = generation + 1;
+			synchronized (this)
+			{
+				tail = pending.toByteArray();
+				pending.reset();
+				frozen = freeze();
+			}
+
+			// Encoded without holding the lock, so that mutations aren't stalled for the whole encode.
+			final byte[] image;
+			try
+			{
+				image = encodeSnapshot(frozen);
+			}
+			finally
+			{
+				thaw(frozen);
+			}
+
+			boolean isAppended = false;
+			boolean isReplaced = false;
+			try
+			{
+				write(journal, tail);
+				journal.force(false);
+				journalSize += tail.length;
+				isAppended = true;
+
+				final File temporary = new File(directory, SNAPSHOT_FILE + ".tmp");
+				try (final FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING))
+				{
+					write(channel, header(SNAPSHOT_MAGIC, next));
+					write(channel, image);
+					channel.force(true);
+				}
+
+				Files.move(temporary.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE);
+				generation = next;
+				isReplaced = true;
+
+				journal.truncate(0);
+				write(journal.position(0), header(JOURNAL_MAGIC, next));
+				journal.force(true);
+				journalSize = HEADER_SIZE;
+				isJournalDamaged = false;
+			}
+			catch (IOException ex)
+			{
+				getLogger().log(Level.SEVERE, i(Formats.Error_Journal_WriteFailed, SNAPSHOT_FILE), ex);
+
+				if (!isAppended)
+				{
+					restore(tail);
+				}
+				else if (isReplaced)
+				{
+					// The new snapshot holds everything, but the journal could not be restarted for its generation.
+					isJournalDamaged = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Undoes a failed append to the journal.  Anything written past the last complete record is cut off, and the records are buffered
+	 * again, ahead of those buffered since, so that the next sync appends them.  Must be called while holding {@link #ioLock}.
+	 *
+	 * @param records the records that could not be appended
+	 */
+	private void restore(final byte[] records)
+	{
+		try
+		{
+			journal.truncate(journalSize);
+			journal.position(journalSize);
+		}
+		catch (IOException ex)
+		{
+			getLogger().log(Level.SEVERE, i(Formats.Error_Journal_WriteFailed, JOURNAL_FILE), ex);
+			isJournalDamaged = true;
+		}
+
+		synchronized (this)
+		{
+			final byte[] later = pending.toByteArray();
+			pending.reset();
+			pending.write(records, 0, records.length);
+			pending.write(later, 0, later.length);
+		}
+	}
+
+	/**
+	 * Encodes a mutation, applies it to the in-memory state and buffers it for the journal.
+	 *
+	 * @param mutation the mutation to record
+	 */
+	private void append(final Mutation mutation)
+	{
+		final byte[] payload = encode(mutation);
+
+		synchronized (this)
+		{
+			if (!isOpen)
+			{
+				throw new IllegalStateException(i(Formats.Error_Backend_WriteFailed, mutation.getType()));
+			}
+
+			// The state is only ever changed by replaying records, so that it cannot drift from what a restart would load.
+			try
+			{
+				replay(payload, groups);
+				writeRecord(new DataOutputStream(pending), payload);
+			}
+			catch (IOException ex)
+			{
+				throw new IllegalStateException(i(Formats.Error_Backend_WriteFailed, mutation.getType()), ex);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * The whole batch is buffered at once, so it is committed by a single fsync.
+	 * </p>
+	 */
+	@Override
+	public synchronized void apply(final List<Mutation> mutations)
+	{
+		for (final Mutation mutation : mutations)
+		{
+			append(mutation);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized GroupRecord loadGroup(final GroupId id)
+	{
+		final GroupState state = groups.get(id);
+		return state == null ? null : state.toRecord(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createGroup(final Group group)
+	{
+		append(Mutation.createGroup(group));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroup(final Group group)
+	{
+		append(Mutation.removeGroup(group));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createNode(final NodeInfo node)
+	{
+		append(Mutation.createNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeNode(final NodeInfo node)
+	{
+		append(Mutation.removeNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateNode(final NodeInfo node)
+	{
+		append(Mutation.updateNode(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addInheritedGroup(final Group parent, final Group child)
+	{
+		append(Mutation.inheritance(parent, child, true));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeInheritedGroup(final Group parent, final Group child)
+	{
+		append(Mutation.inheritance(parent, child, false));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updatePrimaryParent(final Group self, final Group parent)
+	{
+		append(Mutation.updatePrimaryParent(self, parent));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void addGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		append(Mutation.setGroupData(group, key, type, value, false));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void updateGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		append(Mutation.setGroupData(group, key, type, value, true));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroupData(final Group group, final String key)
+	{
+		append(Mutation.removeGroupData(group, key));
+	}
+
+	/**
+	 * Encodes a mutation as a record payload.
+	 *
+	 * @param mutation the mutation to encode
+	 * @return the encoded mutation
+	 */
+	private static byte[] encode(final Mutation mutation)
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		final DataOutputStream out = new DataOutputStream(bytes);
+
+		try
+		{
+			out.writeByte(mutation.getType().ordinal());
+			writeGroupId(out, mutation.getGroupId());
+
+			switch (mutation.getType())
+			{
+			case CREATE_NODE:
+			case UPDATE_NODE:
+				writePath(out, getPath(mutation.getNode()));
+				out.writeByte(mutation.getNode().getEffect().ordinal());
+				out.writeInt(mutation.getNode().getPriority());
+				break;
+
+			case REMOVE_NODE:
+				writePath(out, getPath(mutation.getNode()));
+				break;
+
+			case ADD_INHERITED_GROUP:
+			case REMOVE_INHERITED_GROUP:
+				writeGroupId(out, mutation.getOther().getId());
+				break;
+
+			case UPDATE_PRIMARY_PARENT:
+				out.writeBoolean(mutation.getOther() != null);
+				if (mutation.getOther() != null)
+				{
+					writeGroupId(out, mutation.getOther().getId());
+				}
+				break;
+
+			case ADD_GROUP_DATA:
+			case UPDATE_GROUP_DATA:
+				out.writeUTF(mutation.getKey());
+				writeValue(out, mutation.getValue());
+				break;
+
+			case REMOVE_GROUP_DATA:
+				out.writeUTF(mutation.getKey());
+				break;
+
+			default:
+				break;
+			}
+		}
+		catch (IOException ex)
+		{
+			// Only an unserializable metadata value can fail here, since the stream is in memory.
+			throw new IllegalArgumentException(i(Formats.Error_Backend_WriteFailed, mutation.getType()), ex);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Applies an encoded mutation to a state.
+	 *
+	 * @param payload the encoded mutation
+	 * @param groups the state to modify
+	 * @throws IOException if the payload is malformed
+	 */
+	private static void replay(final byte[] payload, final Map<GroupId, GroupState> groups) throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		final Mutation.Type type = MUTATION_TYPES[readOrdinal(in, MUTATION_TYPES.length)];
+		final GroupId id = readGroupId(in);
+
+		if (type == Mutation.Type.REMOVE_GROUP)
+		{
+			groups.remove(id);
+			return;
+		}
+
+		// Changes to a group that was never created still take effect, as they would have in the live model.
+		GroupState state = groups.get(id);
+		if (state == null)
+		{
+			state = new GroupState();
+			groups.put(id, state);
+		}
+		else if (state.isShared)
+		{
+			// A compaction is encoding this state; it must see the state as it was when the compaction began.
+			state = state.copy();
+			groups.put(id, state);
+		}
+
+		switch (type)
+		{
+		case CREATE_NODE:
+		case UPDATE_NODE:
+			state.nodes.put(readPath(in), new Rule(EFFECTS[readOrdinal(in, EFFECTS.length)], in.readInt()));
+			break;
+
+		case REMOVE_NODE:
+			state.removeNodes(readPath(in));
+			break;
+
+		case ADD_INHERITED_GROUP:
+			final GroupId parent = readGroupId(in);
+			if (!state.parents.contains(parent))
+			{
+				state.parents.add(parent);
+			}
+			break;
+
+		case REMOVE_INHERITED_GROUP:
+			state.parents.remove(readGroupId(in));
+			break;
+
+		case UPDATE_PRIMARY_PARENT:
+			state.primaryParent = in.readBoolean() ? readGroupId(in) : null;
+			break;
+
+		case ADD_GROUP_DATA:
+		case UPDATE_GROUP_DATA:
+			state.data.put(in.readUTF(), readValue(in));
+			break;
+
+		case REMOVE_GROUP_DATA:
+			state.data.remove(in.readUTF());
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Takes a copy of the whole state for encoding.  The groups' states are shared with the copy rather than copied, and marked so that
+	 * {@link #replay(byte[], Map)} copies each before changing it.  Must be called while synchronized.
+	 *
+	 * @return the state at this point
+	 */
+	private Map<GroupId, GroupState> freeze()
+	{
+		for (final GroupState state : groups.values())
+		{
+			state.isShared = true;
+		}
+
+		return new HashMap<>(groups);
+	}
+
+	/**
+	 * Releases states taken by {@link #freeze()} once they have been encoded, so that states that haven't been copied meanwhile can be
+	 * changed in place again.
+	 *
+	 * @param frozen the state that was taken
+	 */
+	private synchronized void thaw(final Map<GroupId, GroupState> frozen)
+	{
+		for (final GroupState state : frozen.values())
+		{
+			state.isShared = false;
+		}
+	}
+
+	/**
+	 * Encodes the whole state as a sequence of framed group records.  The states must not change while they are encoded.
+	 *
+	 * @param groups the state to encode
+	 * @return the encoded state
+	 */
+	private static byte[] encodeSnapshot(final Map<GroupId, GroupState> groups)
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		final DataOutputStream snapshot = new DataOutputStream(bytes);
+		final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+		final DataOutputStream out = new DataOutputStream(record);
+
+		try
+		{
+			for (final Map.Entry<GroupId, GroupState> entry : groups.entrySet())
+			{
+				final GroupState state = entry.getValue();
+				record.reset();
+
+				writeGroupId(out, entry.getKey());
+				out.writeInt(state.parents.size());
+				for (final GroupId parent : state.parents)
+				{
+					writeGroupId(out, parent);
+				}
+
+				out.writeBoolean(state.primaryParent != null);
+				if (state.primaryParent != null)
+				{
+					writeGroupId(out, state.primaryParent);
+				}
+
+				out.writeInt(state.data.size());
+				for (final Map.Entry<String, Serializable> data : state.data.entrySet())
+				{
+					out.writeUTF(data.getKey());
+					writeValue(out, data.getValue());
+				}
+
+				out.writeInt(state.nodes.size());
+				for (final Map.Entry<List<String>, Rule> node : state.nodes.entrySet())
+				{
+					writePath(out, node.getKey());
+					out.writeByte(node.getValue().getEffect().ordinal());
+					out.writeInt(node.getValue().getPriority());
+				}
+
+				writeRecord(snapshot, record.toByteArray());
+			}
+		}
+		catch (IOException ex)
+		{
+			// Values were serializable when they were journaled, and the streams are in memory.
+			throw new IllegalStateException(ex);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a group record from a snapshot.
+	 *
+	 * @param payload the encoded group
+	 * @param groups the state to which the group is added
+	 * @throws IOException if the payload is malformed
+	 */
+	private static void readGroup(final byte[] payload, final Map<GroupId, GroupState> groups) throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		final GroupId id = readGroupId(in);
+		final GroupState state = new GroupState();
+
+		for (int i = in.readInt(); i > 0; i--)
+		{
+			state.parents.add(readGroupId(in));
+		}
+
+		state.primaryParent = in.readBoolean() ? readGroupId(in) : null;
+
+		for (int i = in.readInt(); i > 0; i--)
+		{
+			state.data.put(in.readUTF(), readValue(in));
+		}
+
+		for (int i = in.readInt(); i > 0; i--)
+		{
+			state.nodes.put(readPath(in), new Rule(EFFECTS[readOrdinal(in, EFFECTS.length)], in.readInt()));
+		}
+
+		groups.put(id, state);
+	}
+
+	/**
+	 * Gets the names along a node's path, excluding the root node.
+	 *
+	 * @param node the node
+	 * @return the names of the node's ancestors and the node itself
+	 */
+	private static List<String> getPath(final NodeInfo node)
+	{
+		final List<NodeInfo> path = node.getPath();
+		final List<String> names = new ArrayList<>(path.size());
+
+		for (final NodeInfo info : path)
+		{
+			if (!info.isRoot())
+			{
+				names.add(info.getName());
+			}
+		}
+
+		return names;
+	}
+
+	/**
+	 * Encodes a file header.
+	 *
+	 * @param magic the file type's magic number
+	 * @param generation the file's generation
+	 * @return the encoded header
+	 */
+	private static byte[] header(final int magic, final long generation)
+	{
+		return ByteBuffer.allocate(HEADER_SIZE).putInt(magic).putInt(FORMAT_VERSION).putLong(generation).array();
+	}
+
+	/**
+	 * Reads and verifies a file header.
+	 *
+	 * @param in the file's contents
+	 * @param magic the expected magic number
+	 * @return the file's generation
+	 * @throws IOException if the header is missing, or the file is of the wrong type or version
+	 */
+	private static long readHeader(final DataInputStream in, final int magic) throws IOException
+	{
+		if (in.readInt() != magic || in.readInt() != FORMAT_VERSION)
+		{
+			throw new IOException(i(Formats.Error_Journal_ReadFailed, magic == JOURNAL_MAGIC ? JOURNAL_FILE : SNAPSHOT_FILE));
+		}
+
+		return in.readLong();
+	}
+
+	/**
+	 * Writes a framed record.
+	 *
+	 * @param out the stream to which the record is written
+	 * @param payload the record's payload
+	 * @throws IOException if the stream cannot be written
+	 */
+	private static void writeRecord(final DataOutputStream out, final byte[] payload) throws IOException
+	{
+		final CRC32 checksum = new CRC32();
+		checksum.update(payload);
+
+		out.writeInt(payload.length);
+		out.writeInt((int)checksum.getValue());
+		out.write(payload);
+	}
+
+	/**
+	 * Writes all bytes to a channel at its current position.
+	 *
+	 * @param channel the channel to write
+	 * @param bytes the bytes to write
+	 * @throws IOException if the channel cannot be written
+	 */
+	private static void write(final FileChannel channel, final byte[] bytes) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Writes a group identifier.
+	 *
+	 * @param out the stream to write
+	 * @param id the identifier to write
+	 * @throws IOException if the stream cannot be written
+	 */
+	private static void writeGroupId(final DataOutputStream out, final GroupId id) throws IOException
+	{
+		out.writeUTF(id.getWorld());
+		out.writeByte(id.getType().ordinal());
+		out.writeUTF(id.getName());
+	}
+
+	/**
+	 * Reads a group identifier.
+	 *
+	 * @param in the stream to read
+	 * @return the identifier
+	 * @throws IOException if the stream cannot be read
+	 */
+	private static GroupId readGroupId(final DataInputStream in) throws IOException
+	{
+		final String world = in.readUTF();
+		final GroupType type = GROUP_TYPES[readOrdinal(in, GROUP_TYPES.length)];
+		return new GroupId(world, type, in.readUTF());
+	}
+
+	/**
+	 * Writes the names along a node's path.
+	 *
+	 * @param out the stream to write
+	 * @param path the names to write
+	 * @throws IOException if the stream cannot be written
+	 */
+	private static void writePath(final DataOutputStream out, final List<String> path) throws IOException
+	{
+		out.writeByte(path.size());
+		for (final String name : path)
+		{
+			out.writeUTF(name);
+		}
+	}
+
+	/**
+	 * Reads the names along a node's path.
+	 *
+	 * @param in the stream to read
+	 * @return the names
+	 * @throws IOException if the stream cannot be read
+	 */
+	private static List<String> readPath(final DataInputStream in) throws IOException
+	{
+		final int length = in.readUnsignedByte();
+		final List<String> path = new ArrayList<>(length);
+		for (int i = 0; i < length; i++)
+		{
+			path.add(in.readUTF());
+		}
+
+		return path;
+	}
+
+	/**
+	 * Writes a metadata value.
+	 *
+	 * @param out the stream to write
+	 * @param value the value to write
+	 * @throws IOException if the stream cannot be written, or the value cannot be encoded
+	 */
+	private static void writeValue(final DataOutputStream out, final Serializable value) throws IOException
+	{
+		final byte[] bytes = ValueCodecs.encode(value);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a metadata value.
+	 *
+	 * @param in the stream to read
+	 * @return the value
+	 * @throws IOException if the stream cannot be read, or the value cannot be decoded
+	 */
+	private static Serializable readValue(final DataInputStream in) throws IOException
+	{
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return ValueCodecs.decode(bytes);
+	}
+
+	/**
+	 * Reads an enumeration ordinal.
+	 *
+	 * @param in the stream to read
+	 * @param count the number of constants
+	 * @return the ordinal
+	 * @throws IOException if the stream cannot be read, or the ordinal is out of range
+	 */
+	private static int readOrdinal(final DataInputStream in, final int count) throws IOException
+	{
+		final int ordinal = in.readUnsignedByte();
+		if (ordinal >= count)
+		{
+			throw new IOException(Integer.toString(ordinal));
+		}
+
+		return ordinal;
+	}
+
+	/**
+	 * Reads framed records until the end of a stream, or the first damaged record.
+	 */
+	private static final class RecordReader
+	{
+		/**
+		 * The stream to read.
+		 */
+		private final DataInputStream in;
+
+		/**
+		 * Gets the number of bytes consumed by intact records.
+		 *
+		 * @return the offset just past the last intact record
+		 */
+		@Getter
+		private long offset;
+
+		/**
+		 * Gets whether reading stopped at a damaged or incomplete record, rather than at the end of the stream.
+		 *
+		 * @return true if a damaged record was found; otherwise, false
+		 */
+		@Getter
+		private boolean isDamaged;
+
+		/**
+		 * Instantiates a new reader.
+		 *
+		 * @param in the stream to read
+		 */
+		private RecordReader(final DataInputStream in)
+		{
+			this.in = in;
+		}
+
+		/**
+		 * Reads the next record.
+		 *
+		 * @return the record's payload, or {@literal null} if no intact record is left
+		 * @throws IOException if the stream cannot be read
+		 */
+		private byte[] next() throws IOException
+		{
+			if (isDamaged)
+			{
+				return null;
+			}
+
+			final byte[] frame = new byte[FRAME_SIZE];
+			final int read = readFully(frame);
+			if (read == 0)
+			{
+				return null;
+			}
+
+			final ByteBuffer header = ByteBuffer.wrap(frame);
+			final int length = header.getInt();
+			final int expected = header.getInt();
+			if (read < FRAME_SIZE || length < 0 || length > MAX_RECORD_SIZE)
+			{
+				isDamaged = true;
+				return null;
+			}
+
+			final byte[] payload = new byte[length];
+			if (readFully(payload) < length)
+			{
+				isDamaged = true;
+				return null;
+			}
+
+			final CRC32 checksum = new CRC32();
+			checksum.update(payload);
+			if ((int)checksum.getValue() != expected)
+			{
+				isDamaged = true;
+				return null;
+			}
+
+			offset += FRAME_SIZE + length;
+			return payload;
+		}
+
+		/**
+		 * Reads as many bytes as are available, up to the length of a buffer.
+		 *
+		 * @param buffer the buffer to fill
+		 * @return the number of bytes read, which is less than the buffer's length only at the end of the stream
+		 * @throws IOException if the stream cannot be read
+		 */
+		private int readFully(final byte[] buffer) throws IOException
+		{
+			int total = 0;
+			while (total < buffer.length)
+			{
+				final int count = in.read(buffer, total, buffer.length - total);
+				if (count < 0)
+				{
+					break;
+				}
+
+				total += count;
+			}
+
+			return total;
+		}
+	}
+
+	/**
+	 * Persisted state of a group.
+	 */
+	private static final class GroupState
+	{
+		/**
+		 * Directly inherited groups, in inheritance order.
+		 */
+		private final List<GroupId> parents = new ArrayList<>();
+
+		/**
+		 * Primary parent, or {@literal null} if there is none.
+		 */
+		private GroupId primaryParent;
+
+		/**
+		 * Metadata, in insertion order.
+		 */
+		private final Map<String, Serializable> data = new LinkedHashMap<>();
+
+		/**
+		 * Node rules by the names along their paths, excluding the root node.  Ancestors are always created before their descendants,
+		 * and insertion order is kept, so ancestors come first.
+		 */
+		private final Map<List<String>, Rule> nodes = new LinkedHashMap<>();
+
+		/**
+		 * Whether a compaction may be encoding this state, so that it must be copied rather than changed.  Guarded by the backend.
+		 */
+		private boolean isShared;
+
+		/**
+		 * Copies this state.
+		 *
+		 * @return a new, unshared state with the same contents
+		 */
+		private GroupState copy()
+		{
+			final GroupState copy = new GroupState();
+			copy.parents.addAll(parents);
+			copy.primaryParent = primaryParent;
+			copy.data.putAll(data);
+			copy.nodes.putAll(nodes);
+			return copy;
+		}
+
+		/**
+		 * Removes a node and all of its descendants.
+		 *
+		 * @param path the names along the node's path
+		 */
+		private void removeNodes(final List<String> path)
+		{
+			final Iterator<List<String>> iterator = nodes.keySet().iterator();
+			while (iterator.hasNext())
+			{
+				final List<String> key = iterator.next();
+				if (key.size() >= path.size() && key.subList(0, path.size()).equals(path))
+				{
+					iterator.remove();
+				}
+			}
+		}
+
+		/**
+		 * Creates a record of this state.
+		 *
+		 * @param id the group's identifier
+		 * @return a new record, with new node objects
+		 */
+		private GroupRecord toRecord(final GroupId id)
+		{
+			final GroupRecord record = new GroupRecord(id);
+			record.getParents().addAll(parents);
+			record.setPrimaryParent(primaryParent);
+			record.getData().putAll(data);
+
+			record.addNodes(nodes);
+			return record;
+		}
+	}
+}
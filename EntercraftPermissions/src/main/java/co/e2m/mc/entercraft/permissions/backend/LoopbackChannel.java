@@ -0,0 +1,99 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.permissions.api.IInvalidationChannel;
+import co.e2m.mc.entercraft.permissions.api.IInvalidationListener;
+import co.e2m.mc.entercraft.permissions.api.Invalidation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * An in-process invalidation channel, for several managers in one JVM, such as in tests.
+ *
+ * <p>
+ * Channels created by {@link #connect()} form a group.  Invalidations published on one channel are coalesced and delivered to the
+ * listeners of every other channel in the group, synchronously, on the publishing thread.
+ * </p>
+ */
+public class LoopbackChannel implements IInvalidationChannel
+{
+	/**
+	 * Every connected channel in the group, including this one.
+	 */
+	private final List<LoopbackChannel> peers;
+
+	/**
+	 * Listener to which invalidations are delivered, or {@literal null}.
+	 */
+	private volatile IInvalidationListener listener;
+
+	/**
+	 * Instantiates a new channel in a group of its own.
+	 */
+	public LoopbackChannel()
+	{
+		this(new CopyOnWriteArrayList<LoopbackChannel>());
+	}
+
+	/**
+	 * Instantiates a new channel and joins it to a group.
+	 *
+	 * @param peers the group's channels
+	 */
+	private LoopbackChannel(final List<LoopbackChannel> peers)
+	{
+		this.peers = peers;
+		peers.add(this);
+	}
+
+	/**
+	 * Creates another channel in this channel's group.
+	 *
+	 * @return a new channel connected to this one
+	 */
+	public LoopbackChannel connect()
+	{
+		return new LoopbackChannel(peers);
+	}
+
+	/**
+	 * Leaves the group.  Invalidations are no longer received, and published ones reach nobody.
+	 */
+	public void close()
+	{
+		peers.remove(this);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void publish(final Collection<Invalidation> invalidations)
+	{
+		if (invalidations.isEmpty() || !peers.contains(this))
+		{
+			return;
+		}
+
+		final List<Invalidation> coalesced = new ArrayList<>(Invalidation.coalesce(invalidations));
+		for (final LoopbackChannel peer : peers)
+		{
+			final IInvalidationListener target = peer.listener;
+			if (peer != this && target != null)
+			{
+				target.onInvalidated(coalesced);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setListener(final IInvalidationListener listener)
+	{
+		this.listener = listener;
+	}
+}
@@ -0,0 +1,493 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.api.Component;
+import co.e2m.mc.entercraft.api.IComponentsPlugin;
+import co.e2m.mc.entercraft.i18n.Formats;
+import static co.e2m.mc.entercraft.i18n.I18n.i;
+import co.e2m.mc.entercraft.permissions.api.GroupId;
+import co.e2m.mc.entercraft.permissions.api.GroupType;
+import co.e2m.mc.entercraft.permissions.api.IInvalidationChannel;
+import co.e2m.mc.entercraft.permissions.api.IInvalidationListener;
+import co.e2m.mc.entercraft.permissions.api.Invalidation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import lombok.Getter;
+import lombok.Setter;
+
+
+/**
+ * An invalidation channel that sends UDP datagrams to every server on a LAN, by multicast or broadcast.
+ *
+ * <p>
+ * Published invalidations are held for a short linger time, so that a burst of changes is coalesced into one invalidation per group and
+ * sent in as few datagrams as possible.  Each datagram carries a random identifier of its sender, so that servers ignore their own
+ * datagrams.  Delivery is best-effort: a lost datagram leaves the other servers stale until the group changes again.
+ * </p>
+ */
+public class UdpInvalidationChannel extends Component implements IInvalidationChannel
+{
+	/**
+	 * Default time to hold published invalidations before sending them, in milliseconds.
+	 */
+	public static final long DEFAULT_LINGER = 20;
+
+	/**
+	 * Largest datagram to send, chosen to avoid fragmentation on typical networks.
+	 */
+	private static final int MAX_PACKET_SIZE = 1400;
+
+	/**
+	 * Size of a datagram's header: magic number, format version, sender and count.
+	 */
+	private static final int HEADER_SIZE = 15;
+
+	/**
+	 * Identifies an invalidation datagram.
+	 */
+	private static final int PACKET_MAGIC = 0x45434956;
+
+	/**
+	 * Version of the datagram format.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Gets the multicast group, or broadcast address, and port to which invalidations are sent.
+	 *
+	 * @return the channel's address
+	 */
+	@Getter
+	private final InetSocketAddress address;
+
+	/**
+	 * Identifies this server's datagrams.
+	 */
+	private final long origin = new Random().nextLong();
+
+	/**
+	 * Invalidations waiting to be sent, by group.  Guarded by {@code this}.
+	 */
+	private final Map<GroupId, Invalidation> pending = new LinkedHashMap<>();
+
+	/**
+	 * Listener to which received invalidations are delivered, or {@literal null}.
+	 */
+	private volatile IInvalidationListener listener;
+
+	/**
+	 * Open socket, or {@literal null} if the channel is not enabled.  Guarded by {@code this}.
+	 */
+	private MulticastSocket socket;
+
+	/**
+	 * Background threads that send and receive datagrams, or {@literal null} if they are not running.  Guarded by {@code this}.
+	 */
+	private Thread sender, receiver;
+
+	/**
+	 * Gets the time to hold published invalidations before sending them, in milliseconds.
+	 *
+	 * @return the linger time
+	 */
+	@Getter
+	/**
+	 * Sets the time to hold published invalidations before sending them, in milliseconds.
+	 *
+	 * @param linger the linger time
+	 */
+	@Setter
+	private volatile long linger = DEFAULT_LINGER;
+
+	/**
+	 * Instantiates a new UDP invalidation channel.
+	 *
+	 * @param plugin the plugin with which this component is associated
+	 * @param address the multicast group, or broadcast address, and port shared by every server
+	 */
+	public UdpInvalidationChannel(final IComponentsPlugin plugin, final InetSocketAddress address)
+	{
+		super(plugin);
+
+		assert address != null;
+
+		this.address = address;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Opens the socket, joining the multicast group if necessary, then starts sending and receiving in the background.
+	 * </p>
+	 */
+	@Override
+	public synchronized void onEnable()
+	{
+		if (socket != null)
+		{
+			return;
+		}
+
+		final MulticastSocket opened;
+		try
+		{
+			opened = new MulticastSocket(address.getPort());
+			if (address.getAddress().isMulticastAddress())
+			{
+				opened.setTimeToLive(1);
+				opened.joinGroup(address.getAddress());
+			}
+			else
+			{
+				opened.setBroadcast(true);
+			}
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException(i(Formats.Error_Invalidation_OpenFailed, address), ex);
+		}
+
+		socket = opened;
+		sender = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				sendPeriodically(opened);
+			}
+		}, "EntercraftPermissions-InvalidationSender");
+		receiver = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				receive(opened);
+			}
+		}, "EntercraftPermissions-InvalidationReceiver");
+		sender.setDaemon(true);
+		receiver.setDaemon(true);
+		sender.start();
+		receiver.start();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Sends every pending invalidation, then closes the socket.
+	 * </p>
+	 */
+	@Override
+	public void onDisable()
+	{
+		final MulticastSocket closing;
+		final Thread[] stopping;
+		synchronized (this)
+		{
+			closing = socket;
+			stopping = new Thread[] { sender, receiver };
+			socket = null;
+			sender = null;
+			receiver = null;
+			notifyAll();
+		}
+
+		if (closing == null)
+		{
+			return;
+		}
+
+		join(stopping[0]);
+		closing.close();
+		join(stopping[1]);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Invalidations are dropped while the channel is not enabled.
+	 * </p>
+	 */
+	@Override
+	public synchronized void publish(final Collection<Invalidation> invalidations)
+	{
+		if (socket == null || invalidations.isEmpty())
+		{
+			return;
+		}
+
+		final boolean wasEmpty = pending.isEmpty();
+		for (final Invalidation invalidation : invalidations)
+		{
+			// Re-inserted so that the group is sent in the order of its latest change.
+			pending.remove(invalidation.getId());
+			pending.put(invalidation.getId(), invalidation);
+		}
+
+		if (wasEmpty)
+		{
+			notifyAll();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setListener(final IInvalidationListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Waits for a thread to stop.
+	 *
+	 * @param thread the thread, or {@literal null}
+	 */
+	private static void join(final Thread thread)
+	{
+		if (thread == null)
+		{
+			return;
+		}
+
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sends pending invalidations once they have lingered, until the channel is disabled.
+	 *
+	 * @param socket the socket on which to send
+	 */
+	private void sendPeriodically(final MulticastSocket socket)
+	{
+		while (true)
+		{
+			final boolean isOpen;
+			synchronized (this)
+			{
+				try
+				{
+					while (pending.isEmpty() && this.socket == socket)
+					{
+						wait();
+					}
+				}
+				catch (InterruptedException ex)
+				{
+					return;
+				}
+
+				isOpen = this.socket == socket;
+			}
+
+			if (isOpen && linger > 0)
+			{
+				try
+				{
+					Thread.sleep(linger);
+				}
+				catch (InterruptedException ex)
+				{
+					return;
+				}
+			}
+
+			final List<Invalidation> batch;
+			synchronized (this)
+			{
+				batch = new ArrayList<>(pending.values());
+				pending.clear();
+			}
+
+			send(socket, batch);
+
+			if (!isOpen)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends invalidations in as few datagrams as possible.
+	 *
+	 * @param socket the socket on which to send
+	 * @param invalidations the invalidations to send
+	 */
+	private void send(final MulticastSocket socket, final List<Invalidation> invalidations)
+	{
+		try
+		{
+			final ByteArrayOutputStream packet = new ByteArrayOutputStream(MAX_PACKET_SIZE);
+			final ByteArrayOutputStream entry = new ByteArrayOutputStream(64);
+			final DataOutputStream out = new DataOutputStream(entry);
+			int count = 0;
+
+			for (final Invalidation invalidation : invalidations)
+			{
+				entry.reset();
+				final GroupId id = invalidation.getId();
+				out.writeUTF(id.getWorld());
+				out.writeUTF(id.getType().toString());
+				out.writeUTF(id.getName());
+				out.writeLong(invalidation.getVersion());
+
+				if (count > 0 && HEADER_SIZE + packet.size() + entry.size() > MAX_PACKET_SIZE)
+				{
+					sendPacket(socket, packet, count);
+					packet.reset();
+					count = 0;
+				}
+
+				entry.writeTo(packet);
+				count++;
+			}
+
+			if (count > 0)
+			{
+				sendPacket(socket, packet, count);
+			}
+		}
+		catch (IOException ex)
+		{
+			getLogger().log(Level.WARNING, i(Formats.Error_Invalidation_SendFailed, address), ex);
+		}
+	}
+
+	/**
+	 * Sends one datagram.
+	 *
+	 * @param socket the socket on which to send
+	 * @param entries the encoded invalidations
+	 * @param count the number of encoded invalidations
+	 * @throws IOException if the datagram cannot be sent
+	 */
+	private void sendPacket(final MulticastSocket socket, final ByteArrayOutputStream entries, final int count) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + entries.size());
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(PACKET_MAGIC);
+		out.writeByte(FORMAT_VERSION);
+		out.writeLong(origin);
+		out.writeShort(count);
+		entries.writeTo(out);
+
+		final byte[] data = bytes.toByteArray();
+		socket.send(new DatagramPacket(data, data.length, address));
+	}
+
+	/**
+	 * Receives datagrams and delivers their invalidations to the listener, until the socket is closed.
+	 *
+	 * @param socket the socket on which to receive
+	 */
+	private void receive(final MulticastSocket socket)
+	{
+		final byte[] buffer = new byte[65536];
+		final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+		while (true)
+		{
+			packet.setLength(buffer.length);
+			try
+			{
+				socket.receive(packet);
+			}
+			catch (IOException ex)
+			{
+				if (socket.isClosed())
+				{
+					return;
+				}
+
+				getLogger().log(Level.WARNING, i(Formats.Error_Invalidation_ReceiveFailed, address), ex);
+				continue;
+			}
+
+			final List<Invalidation> invalidations;
+			try
+			{
+				invalidations = decode(packet);
+			}
+			catch (IOException ex)
+			{
+				getLogger().log(Level.WARNING, i(Formats.Error_Invalidation_MalformedPacket, packet.getSocketAddress()), ex);
+				continue;
+			}
+
+			final IInvalidationListener target = listener;
+			if (invalidations != null && target != null)
+			{
+				try
+				{
+					target.onInvalidated(Invalidation.coalesce(invalidations));
+				}
+				catch (RuntimeException ex)
+				{
+					getLogger().log(Level.SEVERE, i(Formats.Error_Invalidation_ReceiveFailed, address), ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes a datagram.
+	 *
+	 * @param packet the received datagram
+	 * @return the datagram's invalidations, or {@literal null} if this server sent it
+	 * @throws IOException if the datagram is malformed
+	 */
+	private List<Invalidation> decode(final DatagramPacket packet) throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+		if (in.readInt() != PACKET_MAGIC || in.readUnsignedByte() != FORMAT_VERSION)
+		{
+			throw new IOException(i(Formats.Error_Invalidation_MalformedPacket, packet.getSocketAddress()));
+		}
+
+		if (in.readLong() == origin)
+		{
+			return null;
+		}
+
+		final int count = in.readUnsignedShort();
+		final List<Invalidation> invalidations = new ArrayList<>(count);
+		for (int n = 0; n < count; n++)
+		{
+			final String world = in.readUTF();
+			final GroupType type = GroupType.parse(in.readUTF(), null);
+			final String name = in.readUTF();
+			final long version = in.readLong();
+			if (type == null)
+			{
+				throw new IOException(i(Formats.Error_Invalidation_MalformedPacket, packet.getSocketAddress()));
+			}
+
+			invalidations.add(new Invalidation(new GroupId(world, type, name), version));
+		}
+
+		return invalidations;
+	}
+}
@@ -0,0 +1,484 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.i18n.Formats;
+import static co.e2m.mc.entercraft.i18n.I18n.i;
+import co.e2m.mc.entercraft.permissions.api.IValueCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Converts group metadata values to and from bytes for storage.
+ *
+ * <p>
+ * Each encoded value starts with a one-byte tag naming its codec, followed by the codec's compact encoding.  Codecs are built in for
+ * {@link String}, {@link Integer}, {@link Long}, {@link Boolean}, {@link Double}, {@link UUID}, and {@link ArrayList}s of up to
+ * {@link #MAX_LIST_SIZE} such values; integers are written as variable-length numbers, so small ones take a byte or two.  More codecs
+ * can be added with {@link #register(int, IValueCodec)}.
+ * </p>
+ *
+ * <p>
+ * Any other value is written with Java serialization, whose stream magic begins with a byte no codec may use as its tag.  Values
+ * stored before codecs were introduced are therefore still read.
+ * </p>
+ */
+public final class ValueCodecs
+{
+	/**
+	 * The lowest tag available to codecs registered by other plugins.  Lower tags are reserved for built-in codecs.
+	 */
+	public static final int FIRST_CUSTOM_TAG = 64;
+
+	/**
+	 * The largest list encoded by the list codec.  Longer lists are written with Java serialization.
+	 */
+	public static final int MAX_LIST_SIZE = 255;
+
+	/**
+	 * The first byte of Java serialization's stream magic, which marks a value written with Java serialization.
+	 */
+	private static final int SERIALIZED_TAG = (ObjectStreamConstants.STREAM_MAGIC >> 8) & 0xFF;
+
+	private static final int NULL_TAG = 0;
+	private static final int STRING_TAG = 1;
+	private static final int INTEGER_TAG = 2;
+	private static final int LONG_TAG = 3;
+	private static final int BOOLEAN_TAG = 4;
+	private static final int DOUBLE_TAG = 5;
+	private static final int UUID_TAG = 6;
+	private static final int LIST_TAG = 7;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Codecs by tag.
+	 */
+	private static final AtomicReferenceArray<IValueCodec<?>> codecs = new AtomicReferenceArray<>(256);
+
+	/**
+	 * Tags by the exact class of the values their codecs encode.
+	 */
+	private static final ConcurrentMap<Class<?>, Integer> tags = new ConcurrentHashMap<>();
+
+	static
+	{
+		register(STRING_TAG, new IValueCodec<String>()
+		{
+			@Override
+			public Class<String> getType()
+			{
+				return String.class;
+			}
+
+			@Override
+			public void write(final DataOutput out, final String value) throws IOException
+			{
+				final byte[] bytes = value.getBytes(UTF_8);
+				writeVarLong(out, bytes.length);
+				out.write(bytes);
+			}
+
+			@Override
+			public String read(final DataInput in) throws IOException
+			{
+				final byte[] bytes = new byte[readLength(in)];
+				in.readFully(bytes);
+				return new String(bytes, UTF_8);
+			}
+		});
+
+		register(INTEGER_TAG, new IValueCodec<Integer>()
+		{
+			@Override
+			public Class<Integer> getType()
+			{
+				return Integer.class;
+			}
+
+			@Override
+			public void write(final DataOutput out, final Integer value) throws IOException
+			{
+				writeVarLong(out, zigZag(value));
+			}
+
+			@Override
+			public Integer read(final DataInput in) throws IOException
+			{
+				return (int)unZigZag(readVarLong(in));
+			}
+		});
+
+		register(LONG_TAG, new IValueCodec<Long>()
+		{
+			@Override
+			public Class<Long> getType()
+			{
+				return Long.class;
+			}
+
+			@Override
+			public void write(final DataOutput out, final Long value) throws IOException
+			{
+				writeVarLong(out, zigZag(value));
+			}
+
+			@Override
+			public Long read(final DataInput in) throws IOException
+			{
+				return unZigZag(readVarLong(in));
+			}
+		});
+
+		register(BOOLEAN_TAG, new IValueCodec<Boolean>()
+		{
+			@Override
+			public Class<Boolean> getType()
+			{
+				return Boolean.class;
+			}
+
+			@Override
+			public void write(final DataOutput out, final Boolean value) throws IOException
+			{
+				out.writeBoolean(value);
+			}
+
+			@Override
+			public Boolean read(final DataInput in) throws IOException
+			{
+				return in.readBoolean();
+			}
+		});
+
+		register(DOUBLE_TAG, new IValueCodec<Double>()
+		{
+			@Override
+			public Class<Double> getType()
+			{
+				return Double.class;
+			}
+
+			@Override
+			public void write(final DataOutput out, final Double value) throws IOException
+			{
+				out.writeDouble(value);
+			}
+
+			@Override
+			public Double read(final DataInput in) throws IOException
+			{
+				return in.readDouble();
+			}
+		});
+
+		register(UUID_TAG, new IValueCodec<UUID>()
+		{
+			@Override
+			public Class<UUID> getType()
+			{
+				return UUID.class;
+			}
+
+			@Override
+			public void write(final DataOutput out, final UUID value) throws IOException
+			{
+				out.writeLong(value.getMostSignificantBits());
+				out.writeLong(value.getLeastSignificantBits());
+			}
+
+			@Override
+			public UUID read(final DataInput in) throws IOException
+			{
+				return new UUID(in.readLong(), in.readLong());
+			}
+		});
+	}
+
+	/**
+	 * Static class; do not instantiate.
+	 */
+	private ValueCodecs()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Registers a codec.  Values whose class is exactly the codec's type are encoded with it from then on.
+	 *
+	 * <p>
+	 * A tag is written along with every value, so it must never be reused for another type once values have been stored with it.
+	 * </p>
+	 *
+	 * @param tag the codec's tag, from {@link #FIRST_CUSTOM_TAG} to 255, excluding 172
+	 * @param codec the codec
+	 * @throws IllegalArgumentException if the tag is already in use
+	 */
+	public static void register(final int tag, final IValueCodec<?> codec)
+	{
+		assert tag > NULL_TAG && tag < codecs.length() && tag != SERIALIZED_TAG && tag != LIST_TAG;
+		assert codec != null;
+
+		if (!codecs.compareAndSet(tag, null, codec))
+		{
+			throw new IllegalArgumentException(i(Formats.Error_Codec_TagInUse, tag));
+		}
+
+		tags.put(codec.getType(), tag);
+	}
+
+	/**
+	 * Encodes a metadata value.
+	 *
+	 * @param value the value to encode
+	 * @return the encoded value
+	 * @throws IOException if the value cannot be serialized
+	 */
+	public static byte[] encode(final Serializable value) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+
+		if (isEncodable(value, 0))
+		{
+			try (final DataOutputStream out = new DataOutputStream(bytes))
+			{
+				write(out, value);
+			}
+		}
+		else
+		{
+			try (final ObjectOutputStream objects = new ObjectOutputStream(bytes))
+			{
+				objects.writeObject(value);
+			}
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a metadata value.
+	 *
+	 * @param bytes the encoded value
+	 * @return the value
+	 * @throws IOException if the value cannot be deserialized
+	 */
+	public static Serializable decode(final byte[] bytes) throws IOException
+	{
+		if (bytes.length > 0 && (bytes[0] & 0xFF) == SERIALIZED_TAG)
+		{
+			try (final ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+			{
+				return (Serializable)objects.readObject();
+			}
+			catch (ClassNotFoundException | ClassCastException ex)
+			{
+				throw new IOException(ex);
+			}
+		}
+
+		return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	/**
+	 * Determines whether a value can be written by codecs alone.
+	 *
+	 * @param value the value
+	 * @param depth the nesting depth of the value within lists
+	 * @return true if every part of the value has a codec; false if it must be serialized
+	 */
+	private static boolean isEncodable(final Object value, final int depth)
+	{
+		if (value == null)
+		{
+			return depth > 0;
+		}
+
+		if (value.getClass() != ArrayList.class)
+		{
+			return tags.containsKey(value.getClass());
+		}
+
+		final List<?> list = (List<?>)value;
+		if (list.size() > MAX_LIST_SIZE || depth > 0)
+		{
+			return false;
+		}
+
+		for (final Object element : list)
+		{
+			if (!isEncodable(element, depth + 1))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes a tagged value that {@link #isEncodable(Object, int)}.
+	 *
+	 * @param out the output to write
+	 * @param value the value to write
+	 * @throws IOException if the output cannot be written
+	 */
+	@SuppressWarnings("unchecked")
+	private static void write(final DataOutput out, final Object value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeByte(NULL_TAG);
+			return;
+		}
+
+		if (value.getClass() == ArrayList.class)
+		{
+			final List<?> list = (List<?>)value;
+			out.writeByte(LIST_TAG);
+			writeVarLong(out, list.size());
+			for (final Object element : list)
+			{
+				write(out, element);
+			}
+			return;
+		}
+
+		final int tag = tags.get(value.getClass());
+		out.writeByte(tag);
+		((IValueCodec<Serializable>)codecs.get(tag)).write(out, (Serializable)value);
+	}
+
+	/**
+	 * Reads a tagged value.
+	 *
+	 * @param in the input to read
+	 * @return the value
+	 * @throws IOException if the input cannot be read, or names an unknown codec
+	 */
+	private static Serializable read(final DataInput in) throws IOException
+	{
+		final int tag = in.readUnsignedByte();
+		switch (tag)
+		{
+		case NULL_TAG:
+			return null;
+
+		case LIST_TAG:
+		{
+			final int size = readLength(in);
+			final ArrayList<Serializable> list = new ArrayList<>(size);
+			for (int index = 0; index < size; index++)
+			{
+				list.add(read(in));
+			}
+			return list;
+		}
+
+		default:
+		{
+			final IValueCodec<?> codec = codecs.get(tag);
+			if (codec == null)
+			{
+				throw new IOException(i(Formats.Error_Codec_UnknownTag, tag));
+			}
+			return codec.read(in);
+		}
+		}
+	}
+
+	/**
+	 * Writes an unsigned number in as few bytes as it needs, seven bits per byte, least significant first.
+	 *
+	 * @param out the output to write
+	 * @param value the number, treated as unsigned
+	 * @throws IOException if the output cannot be written
+	 */
+	private static void writeVarLong(final DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	/**
+	 * Reads an unsigned number written by {@link #writeVarLong(DataOutput, long)}.
+	 *
+	 * @param in the input to read
+	 * @return the number
+	 * @throws IOException if the input cannot be read, or the number is too long
+	 */
+	private static long readVarLong(final DataInput in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			final int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+
+		throw new IOException(i(Formats.Error_Codec_Malformed));
+	}
+
+	/**
+	 * Reads a length written by {@link #writeVarLong(DataOutput, long)}.
+	 *
+	 * @param in the input to read
+	 * @return the length
+	 * @throws IOException if the input cannot be read, or the length is out of range
+	 */
+	private static int readLength(final DataInput in) throws IOException
+	{
+		final long length = readVarLong(in);
+		if (length > Integer.MAX_VALUE)
+		{
+			throw new IOException(i(Formats.Error_Codec_Malformed));
+		}
+
+		return (int)length;
+	}
+
+	/**
+	 * Maps signed numbers to unsigned ones so that numbers near zero stay small.
+	 *
+	 * @param value the signed number
+	 * @return the unsigned number
+	 */
+	private static long zigZag(final long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Reverses {@link #zigZag(long)}.
+	 *
+	 * @param value the unsigned number
+	 * @return the signed number
+	 */
+	private static long unZigZag(final long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
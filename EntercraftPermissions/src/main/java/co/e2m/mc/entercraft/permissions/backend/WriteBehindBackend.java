@@ -0,0 +1,914 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.api.Component;
+import co.e2m.mc.entercraft.api.IComponentsPlugin;
+import co.e2m.mc.entercraft.i18n.Formats;
+import static co.e2m.mc.entercraft.i18n.I18n.i;
+import co.e2m.mc.entercraft.permissions.api.ChangeSet;
+import co.e2m.mc.entercraft.permissions.api.Group;
+import co.e2m.mc.entercraft.permissions.api.GroupId;
+import co.e2m.mc.entercraft.permissions.api.GroupRecord;
+import co.e2m.mc.entercraft.permissions.api.IBatchPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.IChangeFeedBackend;
+import co.e2m.mc.entercraft.permissions.api.ILoadingPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.IPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.Mutation;
+import co.e2m.mc.entercraft.permissions.api.NodeInfo;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import lombok.Getter;
+
+
+/**
+ * Decorates a backend so that mutations are queued and written by a background thread, in order.
+ *
+ * <p>
+ * Redundant mutations that are still queued are coalesced: a node or group that is created and removed again before it is written is
+ * never written at all, descendants of a removed node are not written, repeated node updates are written once, and repeated metadata
+ * updates on one key only write the last value.  The queue is bounded; once it is full, callers wait for the worker to catch up.
+ * </p>
+ *
+ * <p>
+ * Until the component is enabled, and after it is disabled, mutations are passed straight to the wrapped backend.  Disabling the
+ * component flushes the queue.
+ * </p>
+ */
+public class WriteBehindBackend extends Component implements IBatchPermissionsBackend, IChangeFeedBackend, ILoadingPermissionsBackend
+{
+	/**
+	 * Default maximum number of queued mutations.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Maximum number of mutations the worker takes from the queue at once.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * Gets the backend to which mutations are written.
+	 *
+	 * @return the wrapped backend
+	 */
+	@Getter
+	private final IPermissionsBackend backend;
+
+	/**
+	 * Gets the maximum number of queued mutations.
+	 *
+	 * @return the queue capacity
+	 */
+	@Getter
+	private final int capacity;
+
+	/**
+	 * Queued mutations, oldest first.  Cancelled entries are skipped by the worker.  Guarded by {@code this}.
+	 */
+	private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+	/**
+	 * Latest queued mutation per coalescing key.  Guarded by {@code this}.
+	 */
+	private final Map<String, Pending> latest = new HashMap<>();
+
+	/**
+	 * Number of queued or in-flight mutations per group.  Guarded by {@code this}.
+	 */
+	private final Map<GroupId, int[]> pendingGroups = new HashMap<>();
+
+	/**
+	 * Gets the number of queued mutations that have not been cancelled.
+	 *
+	 * @return the queue depth
+	 */
+	@Getter
+	private volatile int queueDepth;
+
+	/**
+	 * Number of mutations taken by the worker but not yet written.  Guarded by {@code this}.
+	 */
+	private int inFlight;
+
+	/**
+	 * Gets the number of mutations written to the wrapped backend by the worker.
+	 *
+	 * @return the number of written mutations
+	 */
+	@Getter
+	private volatile long writtenCount;
+
+	/**
+	 * Gets the number of mutations that were dropped or merged because they were redundant.
+	 *
+	 * @return the number of coalesced mutations
+	 */
+	@Getter
+	private volatile long coalescedCount;
+
+	/**
+	 * Sum of the delays between queuing and writing mutations, in nanoseconds.
+	 */
+	private long totalLatency;
+
+	/**
+	 * Gets the longest delay between queuing and writing a mutation.
+	 *
+	 * @return the maximum flush latency, in nanoseconds
+	 */
+	@Getter
+	private volatile long maxLatency;
+
+	/**
+	 * The background thread, or {@literal null} if mutations are written synchronously.
+	 */
+	private Thread worker;
+
+	/**
+	 * Instantiates a write-behind decorator with the default capacity.
+	 *
+	 * @param plugin the associated plugin
+	 * @param backend the backend to which mutations are written
+	 */
+	public WriteBehindBackend(final IComponentsPlugin plugin, final IPermissionsBackend backend)
+	{
+		this(plugin, backend, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a write-behind decorator.
+	 *
+	 * @param plugin the associated plugin
+	 * @param backend the backend to which mutations are written
+	 * @param capacity the maximum number of queued mutations
+	 */
+	public WriteBehindBackend(final IComponentsPlugin plugin, final IPermissionsBackend backend, final int capacity)
+	{
+		super(plugin);
+
+		assert backend != null;
+		assert capacity > 0;
+
+		this.backend = backend;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void onEnable()
+	{
+		if (worker != null)
+		{
+			return;
+		}
+
+		worker = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drain();
+			}
+		}, "EntercraftPermissions-WriteBehind");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Waits for every queued mutation to be written, then stops the worker.
+	 * </p>
+	 */
+	@Override
+	public void onDisable()
+	{
+		final Thread stopping;
+		synchronized (this)
+		{
+			stopping = worker;
+			worker = null;
+			notifyAll();
+		}
+
+		if (stopping != null)
+		{
+			try
+			{
+				stopping.join();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Anything queued after the worker stopped is written here.
+		writeAll();
+	}
+
+	/**
+	 * Waits until every mutation queued so far has been written.
+	 */
+	public synchronized void flush()
+	{
+		boolean isInterrupted = false;
+
+		while ((queueDepth > 0 || inFlight > 0) && worker != null)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ex)
+			{
+				isInterrupted = true;
+			}
+		}
+
+		if (isInterrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the average delay between queuing and writing mutations.
+	 *
+	 * @return the average flush latency, in nanoseconds
+	 */
+	public synchronized long getAverageLatency()
+	{
+		return writtenCount == 0 ? 0 : totalLatency / writtenCount;
+	}
+
+	/**
+	 * Takes batches of mutations from the queue and writes them until the component is disabled and the queue is empty.
+	 */
+	private void drain()
+	{
+		final List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+		final Thread self = Thread.currentThread();
+
+		while (true)
+		{
+			synchronized (this)
+			{
+				while (queueDepth == 0 && worker == self)
+				{
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException ex)
+					{
+						// Keep draining; the worker only stops once disabled.
+					}
+				}
+
+				if (queueDepth == 0)
+				{
+					return;
+				}
+
+				take(batch);
+			}
+
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Writes every queued mutation on the calling thread.
+	 */
+	private void writeAll()
+	{
+		final List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+
+		while (true)
+		{
+			synchronized (this)
+			{
+				if (queueDepth == 0)
+				{
+					return;
+				}
+
+				take(batch);
+			}
+
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Moves up to {@link #BATCH_SIZE} live mutations from the queue into a batch.  Must be called while synchronized.
+	 *
+	 * @param batch receives the mutations
+	 */
+	private void take(final List<Pending> batch)
+	{
+		while (batch.size() < BATCH_SIZE && !queue.isEmpty())
+		{
+			final Pending pending = queue.poll();
+			if (pending.isCancelled)
+			{
+				continue;
+			}
+
+			if (pending.key != null && latest.get(pending.key) == pending)
+			{
+				latest.remove(pending.key);
+			}
+
+			batch.add(pending);
+		}
+
+		queueDepth -= batch.size();
+		inFlight += batch.size();
+		notifyAll();
+	}
+
+	/**
+	 * Writes a batch of mutations to the wrapped backend, in order, as a single call if the backend supports batches.
+	 *
+	 * @param batch the mutations to write
+	 */
+	private void write(final List<Pending> batch)
+	{
+		if (backend instanceof IBatchPermissionsBackend)
+		{
+			final List<Mutation> mutations = new ArrayList<>(batch.size());
+			for (final Pending pending : batch)
+			{
+				mutations.add(pending.mutation);
+			}
+
+			try
+			{
+				((IBatchPermissionsBackend)backend).apply(mutations);
+			}
+			catch (RuntimeException ex)
+			{
+				getLogger().log(Level.SEVERE, i(Formats.Error_Backend_BatchFailed, mutations.size()), ex);
+			}
+		}
+		else
+		{
+			for (final Pending pending : batch)
+			{
+				try
+				{
+					pending.mutation.apply(backend);
+				}
+				catch (RuntimeException ex)
+				{
+					getLogger().log(Level.SEVERE, i(Formats.Error_Backend_WriteFailed, pending.mutation.getType()), ex);
+				}
+			}
+		}
+
+		long latency = 0;
+		long maximum = 0;
+
+		for (final Pending pending : batch)
+		{
+			final long delay = System.nanoTime() - pending.queuedAt;
+			latency += delay;
+			maximum = Math.max(maximum, delay);
+		}
+
+		synchronized (this)
+		{
+			for (final Pending pending : batch)
+			{
+				release(pending);
+			}
+
+			inFlight -= batch.size();
+			writtenCount += batch.size();
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, maximum);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Queues a mutation, or writes it immediately if the worker is not running and nothing is left to write.  Must be called while
+	 * synchronized.
+	 *
+	 * @param mutation the mutation to queue
+	 * @param key the coalescing key, or {@literal null} if the mutation is never coalesced
+	 */
+	private void enqueue(final Mutation mutation, final String key)
+	{
+		if (worker == null && queueDepth == 0 && inFlight == 0)
+		{
+			mutation.apply(backend);
+			return;
+		}
+
+		boolean isInterrupted = false;
+		while (queueDepth >= capacity && worker != null)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ex)
+			{
+				isInterrupted = true;
+			}
+		}
+
+		if (isInterrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		final Pending pending = new Pending(mutation, key);
+		queue.add(pending);
+		queueDepth++;
+
+		final int[] count = pendingGroups.get(pending.groupId);
+		if (count == null)
+		{
+			pendingGroups.put(pending.groupId, new int[] { 1 });
+		}
+		else
+		{
+			count[0]++;
+		}
+
+		if (key != null)
+		{
+			latest.put(key, pending);
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Cancels a queued mutation.  Must be called while synchronized.
+	 *
+	 * @param pending the mutation to cancel
+	 */
+	private void cancel(final Pending pending)
+	{
+		pending.isCancelled = true;
+		queueDepth--;
+		coalescedCount++;
+		release(pending);
+
+		if (pending.key != null && latest.get(pending.key) == pending)
+		{
+			latest.remove(pending.key);
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Stops counting a mutation as pending for its group.  Must be called while synchronized.
+	 *
+	 * @param pending the mutation that was written or cancelled
+	 */
+	private void release(final Pending pending)
+	{
+		final int[] count = pendingGroups.get(pending.groupId);
+		if (count != null && --count[0] == 0)
+		{
+			pendingGroups.remove(pending.groupId);
+		}
+	}
+
+	/**
+	 * Gets the latest queued mutation for a key, if it is of one of the specified types.
+	 *
+	 * @param key the coalescing key
+	 * @param types acceptable mutation types
+	 * @return the queued mutation, or {@literal null} if there is none of the specified types
+	 */
+	private Pending getLatest(final String key, final Mutation.Type... types)
+	{
+		final Pending pending = latest.get(key);
+		if (pending != null)
+		{
+			for (final Mutation.Type type : types)
+			{
+				if (pending.mutation.getType() == type)
+				{
+					return pending;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the coalescing key of a group.
+	 *
+	 * @param id the group's identifier
+	 * @return the coalescing key
+	 */
+	private static String groupKey(final GroupId id)
+	{
+		return "G\0" + id.getCanonicalName();
+	}
+
+	/**
+	 * Gets the coalescing key of a node.  Keys of descendants start with the key of the node followed by a period.
+	 *
+	 * @param node the node
+	 * @return the coalescing key
+	 */
+	private static String nodeKey(final NodeInfo node)
+	{
+		final StringBuilder key = new StringBuilder("N\0").append(node.getGroup().getCanonicalName()).append('\0');
+		for (final NodeInfo ancestor : node.getAncestors())
+		{
+			if (!ancestor.isRoot())
+			{
+				key.append(ancestor.getName()).append('.');
+			}
+		}
+
+		return key.append(node.getName()).toString();
+	}
+
+	/**
+	 * Gets the coalescing key of a metadata entry.
+	 *
+	 * @param group the group
+	 * @param key the metadata key
+	 * @return the coalescing key
+	 */
+	private static String dataKey(final Group group, final String key)
+	{
+		return "D\0" + group.getId().getCanonicalName() + '\0' + key;
+	}
+
+	/**
+	 * Gets the coalescing key of an inheritance relationship.
+	 *
+	 * @param group the inheriting group
+	 * @param other the inherited group
+	 * @return the coalescing key
+	 */
+	private static String inheritanceKey(final Group group, final Group other)
+	{
+		return "I\0" + group.getId().getCanonicalName() + '\0' + other.getId().getCanonicalName();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Reports the wrapped backend's feed, if it has one.
+	 * </p>
+	 */
+	@Override
+	public long getChangeVersion()
+	{
+		return backend instanceof IChangeFeedBackend ? ((IChangeFeedBackend)backend).getChangeVersion() : -1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Reports the wrapped backend's feed, if it has one.  Queued mutations are not reported until they are written.
+	 * </p>
+	 */
+	@Override
+	public ChangeSet getChangesSince(final long version)
+	{
+		return backend instanceof IChangeFeedBackend ? ((IChangeFeedBackend)backend).getChangesSince(version) : null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Waits until mutations queued for the group are written, so the loaded state reflects them.  Mutations of other groups are not
+	 * waited for.
+	 * </p>
+	 */
+	@Override
+	public GroupRecord loadGroup(final GroupId id)
+	{
+		synchronized (this)
+		{
+			boolean isInterrupted = false;
+
+			while (pendingGroups.containsKey(id) && worker != null)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException ex)
+				{
+					isInterrupted = true;
+				}
+			}
+
+			if (isInterrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		return backend instanceof ILoadingPermissionsBackend ? ((ILoadingPermissionsBackend)backend).loadGroup(id) : null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Each mutation is queued and coalesced as if it had been called individually.
+	 * </p>
+	 */
+	@Override
+	public synchronized void apply(final List<Mutation> mutations)
+	{
+		for (final Mutation mutation : mutations)
+		{
+			mutation.apply(this);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void createGroup(final Group group)
+	{
+		enqueue(Mutation.createGroup(group), groupKey(group.getId()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void removeGroup(final Group group)
+	{
+		final Pending created = getLatest(groupKey(group.getId()), Mutation.Type.CREATE_GROUP);
+
+		// Nothing queued for the group needs to be written once it is removed, except inheritance changes in other groups.  An earlier
+		// removal is kept, since it may remove a copy of the group that already exists in the backend, before it was created again.
+		for (final Iterator<Pending> it = queue.iterator(); it.hasNext();)
+		{
+			final Pending pending = it.next();
+			if (!pending.isCancelled && pending.mutation.getGroupId().equals(group.getId())
+				&& pending.mutation.getType() != Mutation.Type.REMOVE_GROUP)
+			{
+				cancel(pending);
+			}
+		}
+
+		if (created == null)
+		{
+			enqueue(Mutation.removeGroup(group), groupKey(group.getId()));
+		}
+		else
+		{
+			coalescedCount++;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void createNode(final NodeInfo node)
+	{
+		enqueue(Mutation.createNode(node), nodeKey(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void removeNode(final NodeInfo node)
+	{
+		final String key = nodeKey(node);
+		final String prefix = key + '.';
+		final Pending created = getLatest(key, Mutation.Type.CREATE_NODE);
+
+		// Queued creations and updates of the node and its descendants are moot.
+		for (final Iterator<Pending> it = queue.iterator(); it.hasNext();)
+		{
+			final Pending pending = it.next();
+			final Mutation.Type type = pending.mutation.getType();
+			if (!pending.isCancelled && (type == Mutation.Type.CREATE_NODE || type == Mutation.Type.UPDATE_NODE)
+				&& (key.equals(pending.key) || pending.key.startsWith(prefix)))
+			{
+				cancel(pending);
+			}
+		}
+
+		if (created == null)
+		{
+			enqueue(Mutation.removeNode(node), key);
+		}
+		else
+		{
+			coalescedCount++;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void updateNode(final NodeInfo node)
+	{
+		final String key = nodeKey(node);
+
+		// Nodes are written by reference, so a queued creation or update will already carry the change.
+		if (getLatest(key, Mutation.Type.CREATE_NODE, Mutation.Type.UPDATE_NODE) != null)
+		{
+			coalescedCount++;
+			return;
+		}
+
+		enqueue(Mutation.updateNode(node), key);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void addInheritedGroup(final Group parent, final Group child)
+	{
+		final String key = inheritanceKey(parent, child);
+		final Pending removed = getLatest(key, Mutation.Type.REMOVE_INHERITED_GROUP);
+
+		if (removed != null)
+		{
+			cancel(removed);
+			coalescedCount++;
+			return;
+		}
+
+		enqueue(Mutation.inheritance(parent, child, true), key);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void removeInheritedGroup(final Group parent, final Group child)
+	{
+		final String key = inheritanceKey(parent, child);
+		final Pending added = getLatest(key, Mutation.Type.ADD_INHERITED_GROUP);
+
+		if (added != null)
+		{
+			cancel(added);
+			coalescedCount++;
+			return;
+		}
+
+		enqueue(Mutation.inheritance(parent, child, false), key);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void updatePrimaryParent(final Group self, final Group parent)
+	{
+		final String key = "P\0" + self.getId().getCanonicalName();
+		final Pending previous = getLatest(key, Mutation.Type.UPDATE_PRIMARY_PARENT);
+
+		if (previous != null)
+		{
+			cancel(previous);
+		}
+
+		enqueue(Mutation.updatePrimaryParent(self, parent), key);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized <T extends Serializable> void addGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		final String dataKey = dataKey(group, key);
+		final Pending removed = getLatest(dataKey, Mutation.Type.REMOVE_GROUP_DATA);
+
+		// The key still exists in the backend until the queued removal is written, so this is an update.
+		if (removed != null)
+		{
+			cancel(removed);
+			enqueue(Mutation.setGroupData(group, key, type, value, true), dataKey);
+			return;
+		}
+
+		enqueue(Mutation.setGroupData(group, key, type, value, false), dataKey);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized <T extends Serializable> void updateGroupData(final Group group, final String key, final Class<T> type,
+		final T value)
+	{
+		final String dataKey = dataKey(group, key);
+		final Pending previous = getLatest(dataKey, Mutation.Type.ADD_GROUP_DATA, Mutation.Type.UPDATE_GROUP_DATA);
+
+		if (previous != null)
+		{
+			// Keep the original position and kind, so that an addition is still written as an addition.
+			previous.mutation = Mutation.setGroupData(group, key, type, value,
+				previous.mutation.getType() == Mutation.Type.UPDATE_GROUP_DATA);
+			coalescedCount++;
+			return;
+		}
+
+		enqueue(Mutation.setGroupData(group, key, type, value, true), dataKey);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void removeGroupData(final Group group, final String key)
+	{
+		final String dataKey = dataKey(group, key);
+		final Pending previous = getLatest(dataKey, Mutation.Type.ADD_GROUP_DATA, Mutation.Type.UPDATE_GROUP_DATA);
+
+		if (previous != null)
+		{
+			final boolean isAdded = previous.mutation.getType() == Mutation.Type.ADD_GROUP_DATA;
+			cancel(previous);
+
+			if (isAdded)
+			{
+				coalescedCount++;
+				return;
+			}
+		}
+
+		enqueue(Mutation.removeGroupData(group, key), dataKey);
+	}
+
+	/**
+	 * A queued mutation.
+	 */
+	private static final class Pending
+	{
+		/**
+		 * The mutation to write.  Replaced when later updates are merged into it.
+		 */
+		private Mutation mutation;
+
+		/**
+		 * The coalescing key, or {@literal null} if the mutation is never coalesced.
+		 */
+		private final String key;
+
+		/**
+		 * Identifier of the group affected by the mutation.
+		 */
+		private final GroupId groupId;
+
+		/**
+		 * Time at which the mutation was queued, from {@link System#nanoTime()}.
+		 */
+		private final long queuedAt = System.nanoTime();
+
+		/**
+		 * Whether the mutation was made redundant and must not be written.
+		 */
+		private boolean isCancelled;
+
+		/**
+		 * Instantiates a queued mutation.
+		 *
+		 * @param mutation the mutation to write
+		 * @param key the coalescing key
+		 */
+		Pending(final Mutation mutation, final String key)
+		{
+			this.mutation = mutation;
+			this.key = key;
+			this.groupId = mutation.getGroupId();
+		}
+	}
+}
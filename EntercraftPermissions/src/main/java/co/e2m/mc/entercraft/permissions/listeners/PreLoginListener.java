@@ -0,0 +1,289 @@
+package co.e2m.mc.entercraft.permissions.listeners;
+
+import co.e2m.mc.entercraft.api.Component;
+import co.e2m.mc.entercraft.api.IComponentsPlugin;
+import co.e2m.mc.entercraft.i18n.Formats;
+import static co.e2m.mc.entercraft.i18n.I18n.i;
+import co.e2m.mc.entercraft.permissions.api.Group;
+import co.e2m.mc.entercraft.permissions.api.PermissionsManager;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import lombok.Getter;
+import lombok.Setter;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+
+/**
+ * Loads a player's permissions while the player is still logging in, so that the first check after joining needs no I/O.
+ *
+ * <p>
+ * During the asynchronous pre-login, the player's group is pinned on the login thread, then loaded on a loading thread along with every
+ * group it inherits from, and compiled.  If that takes longer than {@link #getTimeout()}, the player is either let in, with checks
+ * answered by the default group until loading completes, or turned away, depending on {@link #isDefaultFallback()}.  The group is
+ * unpinned once the player quits or is refused.  Pins are counted, so a player who reconnects while the old session is still closing
+ * stays pinned.
+ * </p>
+ */
+public class PreLoginListener extends Component implements Listener
+{
+	/**
+	 * Default time to wait for a player's permissions to load, in milliseconds.
+	 */
+	public static final long DEFAULT_TIMEOUT = 2000;
+
+	/**
+	 * Gets the manager whose groups are preloaded.
+	 *
+	 * @return the permissions manager
+	 */
+	@Getter
+	private final PermissionsManager manager;
+
+	/**
+	 * Gets the time to wait for a player's permissions to load before logging in proceeds without them.
+	 *
+	 * @return the timeout, in milliseconds
+	 */
+	@Getter
+	/**
+	 * Sets the time to wait for a player's permissions to load before logging in proceeds without them.
+	 *
+	 * @param timeout the timeout, in milliseconds
+	 */
+	@Setter
+	private volatile long timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Gets whether players whose permissions didn't load in time are let in with the default group's permissions.
+	 *
+	 * @return true to fall back to the default group; false to refuse the login
+	 */
+	@Getter
+	/**
+	 * Sets whether players whose permissions didn't load in time are let in with the default group's permissions.
+	 *
+	 * @param defaultFallback true to fall back to the default group; false to refuse the login
+	 */
+	@Setter
+	private volatile boolean defaultFallback = true;
+
+	/**
+	 * Gets the name of the world whose groups are preloaded.
+	 *
+	 * @return the world name, or {@literal null} for the default world
+	 */
+	@Getter
+	/**
+	 * Sets the name of the world whose groups are preloaded.
+	 *
+	 * @param world the world name, or {@literal null} for the default world
+	 */
+	@Setter
+	private volatile String world;
+
+	/**
+	 * Loads groups, so that a slow load can be abandoned by the login thread.  {@literal null} if the listener is not enabled.
+	 */
+	private volatile ExecutorService executor;
+
+	/**
+	 * Pre-login events for which the player's group was pinned, until the pre-login's outcome is known.
+	 */
+	private final Set<AsyncPlayerPreLoginEvent> pinned = Collections.newSetFromMap(new ConcurrentHashMap<AsyncPlayerPreLoginEvent, Boolean>());
+
+	/**
+	 * Instantiates a new pre-login listener.
+	 *
+	 * @param plugin the plugin with which this component is associated
+	 * @param manager the manager whose groups are preloaded
+	 */
+	public PreLoginListener(final IComponentsPlugin plugin, final PermissionsManager manager)
+	{
+		super(plugin);
+
+		assert manager != null;
+
+		this.manager = manager;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Starts the loading threads and registers the listener.
+	 * </p>
+	 */
+	@Override
+	public synchronized void onEnable()
+	{
+		if (executor != null)
+		{
+			return;
+		}
+
+		executor = Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				final Thread thread = new Thread(runnable, "EntercraftPermissions-Preload");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		if (getPlugin() != null)
+		{
+			getPlugin().getServer().getPluginManager().registerEvents(this, getPlugin());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>
+	 * Unregisters the listener and abandons loads in progress.
+	 * </p>
+	 */
+	@Override
+	public synchronized void onDisable()
+	{
+		HandlerList.unregisterAll(this);
+
+		if (executor != null)
+		{
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Preloads the permissions of a player who is about to log in.  Runs late, so that logins refused by other plugins are skipped.
+	 *
+	 * @param event the pre-login event
+	 */
+	@EventHandler(priority = EventPriority.HIGHEST)
+	public void onAsyncPlayerPreLogin(final AsyncPlayerPreLoginEvent event)
+	{
+		final ExecutorService loader = executor;
+		if (loader == null || event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+		{
+			return;
+		}
+
+		final String player = event.getName();
+		final String preloadWorld = world;
+		final Future<Group> loading;
+
+		// Pinned here rather than by the loader, so that the pin exists before the outcome can be decided, even if the load is late.
+		manager.pinPlayer(preloadWorld, player);
+		pinned.add(event);
+		try
+		{
+			loading = loader.submit(new Callable<Group>()
+			{
+				@Override
+				public Group call()
+				{
+					return manager.preloadPlayer(preloadWorld, player);
+				}
+			});
+		}
+		catch (RejectedExecutionException ex)
+		{
+			pinned.remove(event);
+			manager.unpinPlayer(preloadWorld, player);
+			return;
+		}
+
+		try
+		{
+			loading.get(timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException ex)
+		{
+			getLogger().log(Level.WARNING, i(Formats.Error_Preload_TimedOut, player, timeout));
+			fallBack(event);
+		}
+		catch (ExecutionException ex)
+		{
+			getLogger().log(Level.SEVERE, i(Formats.Error_Preload_Failed, player), ex.getCause());
+			fallBack(event);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Unpins the group of a player whose pre-login was refused after the group was pinned, whether by this listener or by another
+	 * plugin.
+	 *
+	 * @param event the pre-login event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onAsyncPlayerPreLoginResult(final AsyncPlayerPreLoginEvent event)
+	{
+		if (pinned.remove(event) && event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+		{
+			manager.unpinPlayer(world, event.getName());
+		}
+	}
+
+	/**
+	 * Unpins the group of a player whose login was refused after pre-login.
+	 *
+	 * @param event the login event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerLogin(final PlayerLoginEvent event)
+	{
+		if (event.getResult() != PlayerLoginEvent.Result.ALLOWED)
+		{
+			manager.unpinPlayer(world, event.getPlayer().getName());
+		}
+	}
+
+	/**
+	 * Unpins the group of a player who left.
+	 *
+	 * @param event the quit event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(final PlayerQuitEvent event)
+	{
+		manager.unpinPlayer(world, event.getPlayer().getName());
+	}
+
+	/**
+	 * Handles a player whose permissions couldn't be preloaded, either letting the player in with the default group or refusing them.
+	 *
+	 * @param event the pre-login event
+	 */
+	private void fallBack(final AsyncPlayerPreLoginEvent event)
+	{
+		// A refused player's group is unpinned once the pre-login's outcome is final.
+		if (!defaultFallback)
+		{
+			event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, i(Formats.Preload_Kick));
+		}
+	}
+}
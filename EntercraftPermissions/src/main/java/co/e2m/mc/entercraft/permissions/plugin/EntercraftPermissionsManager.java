@@ -0,0 +1,60 @@
+package co.e2m.mc.entercraft.permissions.plugin;
+
+import co.e2m.mc.entercraft.api.IComponentsPlugin;
+import co.e2m.mc.entercraft.permissions.api.IPermissionsBackend;
+import co.e2m.mc.entercraft.permissions.api.PermissionsManager;
+import lombok.Getter;
+
+
+/**
+ * Permissions manager of the EntercraftPermissions plugin, which keeps its groups in the plugin's backend.
+ */
+public class EntercraftPermissionsManager extends PermissionsManager
+{
+	/**
+	 * The plugin that owns this manager.
+	 */
+	private final transient IComponentsPlugin plugin;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Getter
+	/**
+	 * The backend in which groups are kept.
+	 */
+	private final transient IPermissionsBackend backend;
+
+	/**
+	 * Instantiates a new permissions manager.
+	 *
+	 * @param plugin the plugin that owns this manager
+	 * @param backend the backend in which groups are kept
+	 */
+	public EntercraftPermissionsManager(final IComponentsPlugin plugin, final IPermissionsBackend backend)
+	{
+		assert plugin != null;
+		assert backend != null;
+
+		this.plugin = plugin;
+		this.backend = backend;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName()
+	{
+		return plugin.getName();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEnabled()
+	{
+		return plugin.isEnabled();
+	}
+}
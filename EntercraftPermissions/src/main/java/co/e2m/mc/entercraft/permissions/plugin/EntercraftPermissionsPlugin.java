@@ -1,9 +1,12 @@
 package co.e2m.mc.entercraft.permissions.plugin;
 
 import co.e2m.mc.entercraft.ComponentsPlugin;
+import co.e2m.mc.entercraft.permissions.api.PermissionsManager;
 import co.e2m.mc.entercraft.permissions.api.plugin.IEntercraftPermissionsPlugin;
 import co.e2m.mc.entercraft.permissions.api.commands.IPermissionsCommand;
+import co.e2m.mc.entercraft.permissions.backend.JournalBackend;
 import co.e2m.mc.entercraft.permissions.commands.PermissionsCommand;
+import co.e2m.mc.entercraft.permissions.listeners.PreLoginListener;
 import lombok.Getter;
 
 
@@ -21,6 +24,15 @@ public final class EntercraftPermissionsPlugin extends ComponentsPlugin implemen
 	 */
 	private transient IPermissionsCommand commandWrapper;
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Getter
+	/**
+	 * The permissions manager, or {@literal null} if the backend failed to load.
+	 */
+	private transient PermissionsManager permissionsManager;
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -30,5 +42,12 @@ public final class EntercraftPermissionsPlugin extends ComponentsPlugin implemen
 		super.onLoadComponents();
 
 		commandWrapper = addComponent(new PermissionsCommand(this));
+
+		final JournalBackend backend = addComponent(new JournalBackend(this, getDataFolder()));
+		if (backend != null)
+		{
+			permissionsManager = new EntercraftPermissionsManager(this, backend);
+			addComponent(new PreLoginListener(this, permissionsManager));
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that {@link ClockCache} stays within its capacity and keeps the entries in use.
+ */
+public class ClockCacheTest extends TestCase
+{
+	public void testStaysWithinCapacity()
+	{
+		final ClockCache<Integer, String> cache = new ClockCache<>(100);
+		for (int i = 0; i < 10000; i++)
+		{
+			assertEquals("v" + i, cache.put(i, "v" + i));
+			assertTrue(cache.size() <= 100);
+		}
+
+		assertEquals(100, cache.size());
+		assertEquals("v9999", cache.get(9999));
+	}
+
+	public void testKeepsEntriesInUse()
+	{
+		final ClockCache<Integer, Integer> cache = new ClockCache<>(64);
+		for (int hot = 0; hot < 16; hot++)
+		{
+			cache.put(hot, hot);
+		}
+
+		// A stream of keys used once each, with the hot keys looked up in between.
+		for (int cold = 1000; cold < 20000; cold++)
+		{
+			cache.put(cold, cold);
+			for (int hot = 0; hot < 16; hot++)
+			{
+				assertEquals(Integer.valueOf(hot), cache.get(hot));
+			}
+		}
+	}
+
+	public void testPutKeepsExistingValue()
+	{
+		final ClockCache<String, String> cache = new ClockCache<>(4);
+		assertEquals("first", cache.put("key", "first"));
+		assertEquals("first", cache.put("key", "second"));
+		assertEquals("first", cache.get("key"));
+		assertEquals(1, cache.size());
+	}
+
+	public void testRemoveAndClear()
+	{
+		final ClockCache<Integer, Integer> cache = new ClockCache<>(8);
+		for (int i = 0; i < 8; i++)
+		{
+			cache.put(i, i);
+		}
+
+		cache.remove(3);
+		cache.remove(42);
+		assertNull(cache.get(3));
+		assertEquals(7, cache.size());
+
+		// The freed slot is reused without evicting anything.
+		cache.put(8, 8);
+		assertEquals(8, cache.size());
+		for (int i = 0; i <= 8; i++)
+		{
+			assertEquals(i == 3 ? null : Integer.valueOf(i), cache.get(i));
+		}
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get(0));
+		cache.put(0, 0);
+		assertEquals(Integer.valueOf(0), cache.get(0));
+	}
+
+	public void testCapacityChanges()
+	{
+		final ClockCache<Integer, Integer> cache = new ClockCache<>(50);
+		for (int i = 0; i < 50; i++)
+		{
+			cache.put(i, i);
+		}
+
+		cache.setCapacity(10);
+		cache.put(100, 100);
+		assertEquals(10, cache.size());
+		assertEquals(Integer.valueOf(100), cache.get(100));
+
+		cache.setCapacity(1000);
+		final Random random = new Random(6);
+		for (int i = 0; i < 5000; i++)
+		{
+			cache.put(random.nextInt(), i);
+		}
+		assertEquals(1000, cache.size());
+	}
+}
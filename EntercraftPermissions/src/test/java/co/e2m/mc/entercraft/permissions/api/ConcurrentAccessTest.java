@@ -0,0 +1,106 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that permissions can be checked from many threads while groups are changed.
+ */
+public class ConcurrentAccessTest extends TestCase
+{
+	private static final int READERS = 4;
+	private static final long DURATION = 500;
+
+	public void testChecksDuringChanges() throws InterruptedException
+	{
+		final TestPermissionsManager manager = new TestPermissionsManager(new RecordingBackend());
+		final Group base = manager.create(GroupType.NORMAL, "base");
+		base.getPermissions().addPath("stable.perm");
+		final Group extra = manager.create(GroupType.NORMAL, "extra");
+		extra.getPermissions().addPath("extra.perm");
+		final Group player = manager.create(GroupType.USER, "player");
+		player.inherit(base);
+
+		final AtomicBoolean isRunning = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final List<Thread> threads = new ArrayList<>();
+
+		for (int i = 0; i < READERS; i++)
+		{
+			threads.add(new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while (isRunning.get())
+						{
+							if (!manager.playerHas((String)null, "player", "stable.perm"))
+							{
+								throw new AssertionError("Lost a permission that never changed");
+							}
+
+							manager.playerHas((String)null, "player", "toggled.perm");
+							manager.playerHas((String)null, "player", "extra.perm");
+						}
+					}
+					catch (Throwable ex)
+					{
+						failure.compareAndSet(null, ex);
+					}
+				}
+			}));
+		}
+
+		threads.add(new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for (int round = 0; isRunning.get(); round++)
+					{
+						player.getPermissions().addPath("toggled.perm");
+						player.inherit(extra);
+						player.getPermissions().addPath("toggled.perm." + round);
+						player.getPermissions().removePath("toggled");
+						player.uninherit(extra);
+					}
+				}
+				catch (Throwable ex)
+				{
+					failure.compareAndSet(null, ex);
+				}
+			}
+		}));
+
+		for (final Thread thread : threads)
+		{
+			thread.start();
+		}
+		Thread.sleep(DURATION);
+		isRunning.set(false);
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		if (failure.get() != null)
+		{
+			throw new AssertionError(failure.get());
+		}
+
+		assertTrue(manager.playerHas((String)null, "player", "stable.perm"));
+		assertFalse(manager.playerHas((String)null, "player", "toggled.perm"));
+		assertFalse(manager.playerHas((String)null, "player", "extra.perm"));
+
+		player.inherit(extra);
+		assertTrue(manager.playerHas((String)null, "player", "extra.perm"));
+	}
+}
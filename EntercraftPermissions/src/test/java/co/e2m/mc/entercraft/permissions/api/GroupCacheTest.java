@@ -0,0 +1,52 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that {@link GroupCache} only unloads worlds that have gone without players and lookups for the idle timeout.
+ */
+public class GroupCacheTest extends TestCase
+{
+	private static final long TIMEOUT = 1500;
+
+	private final TestPermissionsManager manager = new TestPermissionsManager(new RecordingBackend());
+	private final GroupId id = new GroupId("world", GroupType.NORMAL, "group");
+
+	@Override
+	protected void setUp()
+	{
+		manager.getCache().setWorldIdleTimeout(TIMEOUT);
+		manager.getGroupOrCreate(id);
+	}
+
+	public void testUnloadsIdleWorld() throws InterruptedException
+	{
+		assertEquals(0, manager.unloadIdleWorlds());
+
+		Thread.sleep(TIMEOUT + 100);
+		assertEquals(1, manager.unloadIdleWorlds());
+		assertNull(manager.getCache().peek(id));
+	}
+
+	public void testKeepsWorldWithLookups() throws InterruptedException
+	{
+		Thread.sleep(TIMEOUT - 400);
+		assertNotNull(manager.getCache().get(id));
+
+		Thread.sleep(800);
+		assertEquals("looked up within the timeout", 0, manager.unloadIdleWorlds());
+		assertNotNull(manager.getCache().peek(id));
+	}
+
+	public void testKeepsWorldWithPins() throws InterruptedException
+	{
+		manager.getCache().pin(id);
+
+		Thread.sleep(TIMEOUT + 100);
+		assertEquals(0, manager.unloadIdleWorlds());
+
+		manager.getCache().unpin(id);
+		assertEquals("the last player left just now", 0, manager.unloadIdleWorlds());
+	}
+}
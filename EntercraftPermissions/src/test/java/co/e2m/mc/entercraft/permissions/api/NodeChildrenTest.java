@@ -0,0 +1,160 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests {@link NodeChildren} against a map, across every container it adapts between.
+ */
+public class NodeChildrenTest extends TestCase
+{
+	private final TestPermissionsManager manager = new TestPermissionsManager(new RecordingBackend());
+	private final GroupId group = new GroupId("world", GroupType.NORMAL, "group");
+
+	private NodeTree createNode()
+	{
+		return NodeTree.createRoot(manager, group);
+	}
+
+	private static void assertContents(final Map<Integer, NodeTree> expected, final NodeChildren children)
+	{
+		assertEquals(expected.size(), children.size());
+		for (final Map.Entry<Integer, NodeTree> entry : expected.entrySet())
+		{
+			assertSame(entry.getValue(), children.get(entry.getKey()));
+		}
+
+		int found = 0;
+		for (int slot = 0; slot < children.capacity(); slot++)
+		{
+			final NodeTree node = children.getAt(slot);
+			if (node != null)
+			{
+				assertTrue(expected.containsValue(node));
+				found++;
+			}
+		}
+		assertEquals(expected.size(), found);
+		assertNull(children.get(SegmentTable.UNKNOWN));
+	}
+
+	public void testRandomChangesMatchMap()
+	{
+		final Random random = new Random(4);
+		final Map<Integer, NodeTree> expected = new HashMap<>();
+		NodeChildren children = NodeChildren.EMPTY;
+
+		for (int step = 0; step < 20000; step++)
+		{
+			// Drift between small and large sizes, so that every container is grown into and shrunk out of.
+			final int range = (step / 2000) % 2 == 0 ? 12 : 200;
+			final int segment = random.nextInt(range);
+
+			final NodeChildren before = children;
+			final int beforeSize = before.size();
+			if (random.nextInt(3) == 0)
+			{
+				expected.remove(segment);
+				children = children.remove(segment);
+			}
+			else
+			{
+				final NodeTree node = createNode();
+				expected.put(segment, node);
+				children = children.put(segment, node);
+			}
+
+			assertEquals(beforeSize, before.size());
+			assertContents(expected, children);
+		}
+	}
+
+	public void testContainersAdaptToSize()
+	{
+		NodeChildren children = NodeChildren.EMPTY;
+		assertEquals(0, children.capacity());
+
+		children = children.put(1, createNode());
+		assertEquals(1, children.capacity());
+
+		for (int segment = 2; segment <= NodeChildren.MAX_SORTED; segment++)
+		{
+			children = children.put(segment, createNode());
+			assertEquals(segment, children.capacity());
+		}
+
+		children = children.put(NodeChildren.MAX_SORTED + 1, createNode());
+		assertTrue(children.capacity() > children.size());
+
+		for (int segment = NodeChildren.MAX_SORTED + 1; segment > NodeChildren.MIN_HASHED; segment--)
+		{
+			children = children.remove(segment);
+		}
+		assertEquals(NodeChildren.MIN_HASHED, children.capacity());
+
+		for (int segment = NodeChildren.MIN_HASHED; segment > 1; segment--)
+		{
+			children = children.remove(segment);
+		}
+		assertEquals(1, children.capacity());
+		assertSame(NodeChildren.EMPTY, children.remove(1));
+	}
+
+	public void testBulkLoadUpdatesInPlace()
+	{
+		final Object builder = new Object();
+		final Map<Integer, NodeTree> expected = new HashMap<>();
+		NodeChildren children = NodeChildren.EMPTY;
+		int copies = 0;
+
+		for (int segment = 0; segment < 1000; segment++)
+		{
+			final NodeTree node = createNode();
+			final NodeChildren next = children.put(segment, node, builder);
+			if (next != children)
+			{
+				copies++;
+			}
+
+			children = next;
+			expected.put(segment, node);
+		}
+
+		assertContents(expected, children);
+		assertTrue("copied " + copies + " times", copies < 2 * NodeChildren.MAX_SORTED);
+
+		// Once published, the table is copied on write again.
+		final NodeChildren published = children;
+		final NodeChildren changed = published.put(1000, createNode());
+		assertNotSame(published, changed);
+		assertNull(published.get(1000));
+		assertNotSame(published, published.put(1001, createNode(), new Object()));
+		assertNull(published.get(1001));
+	}
+
+	public void testBulkLoadedTreeMatchesIncrementalTree()
+	{
+		final String[] paths = new String[500];
+		for (int i = 0; i < paths.length; i++)
+		{
+			paths[i] = "wide." + i + (i % 3 == 0 ? ".-deep" : "");
+		}
+
+		final NodeTree bulk = NodeTree.parseTree(manager, group, paths);
+		final NodeTree incremental = createNode();
+		for (final String path : paths)
+		{
+			incremental.addPath(path);
+		}
+
+		for (int i = 0; i < paths.length; i++)
+		{
+			assertEquals(incremental.getRule("wide." + i), bulk.getRule("wide." + i));
+			assertEquals(incremental.getRule("wide." + i + ".deep"), bulk.getRule("wide." + i + ".deep"));
+		}
+		assertEquals(paths.length, bulk.getTree().get("wide").getTree().size());
+	}
+}
@@ -0,0 +1,191 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests rule resolution by {@link NodeTree} and {@link PermissionAutomaton} against the original recursive resolution, over randomly
+ * generated trees.
+ */
+public class NodeTreeTest extends TestCase
+{
+	private static final String[] TREE_SEGMENTS = { "a", "b", "c", NodeInfo.ALL_NAME };
+	private static final String[] QUERY_SEGMENTS = { "a", "b", "c", "d" };
+	private static final int TREES = 200;
+
+	private final TestPermissionsManager manager = new TestPermissionsManager(new RecordingBackend());
+	private final GroupId group = new GroupId("world", GroupType.NORMAL, "group");
+
+	/**
+	 * Resolves a rule as {@link NodeTree#getRule(String[])} did before it was rewritten: recursively, collecting the rules of the exact
+	 * child and any wildcard child at each level and taking the dominant one.
+	 */
+	private static Rule getBaselineRule(final NodeTree node, final String[] names, final int index)
+	{
+		if (index >= names.length)
+		{
+			return node.getInfo().getRule();
+		}
+
+		final Map<String, NodeTree> tree = node.getTree();
+		final List<Rule> rules = new ArrayList<>();
+
+		final NodeTree child = tree.get(names[index]);
+		if (child != null)
+		{
+			rules.add(getBaselineRule(child, names, index + 1));
+		}
+
+		final NodeTree all = tree.get(NodeInfo.ALL_NAME);
+		if (all != null)
+		{
+			rules.add(all.getInfo().getRule());
+		}
+
+		if (rules.isEmpty())
+		{
+			return Rule.NONE;
+		}
+
+		Collections.sort(rules);
+		return rules.get(rules.size() - 1);
+	}
+
+	private NodeTree createTree(final Random random)
+	{
+		final String[] paths = new String[1 + random.nextInt(12)];
+		for (int i = 0; i < paths.length; i++)
+		{
+			final StringBuilder path = new StringBuilder();
+			final int depth = 1 + random.nextInt(4);
+			for (int level = 0; level < depth; level++)
+			{
+				if (level > 0)
+				{
+					path.append(PathTokenizer.SEPARATOR);
+				}
+				if (random.nextInt(4) == 0)
+				{
+					path.append(random.nextInt(2400)).append(PathTokenizer.PRIORITY_SEPARATOR);
+				}
+				if (random.nextInt(3) == 0)
+				{
+					path.append(NodeInfo.EXCLUDE_PREFIX);
+				}
+				path.append(TREE_SEGMENTS[random.nextInt(TREE_SEGMENTS.length)]);
+			}
+			paths[i] = path.toString();
+		}
+
+		return NodeTree.parseTree(manager, group, paths);
+	}
+
+	/**
+	 * Gets every query of one to five segments.
+	 */
+	private static List<String[]> getQueries()
+	{
+		final List<String[]> queries = new ArrayList<>();
+		List<String[]> previous = Collections.singletonList(new String[0]);
+		for (int depth = 1; depth <= 5; depth++)
+		{
+			final List<String[]> current = new ArrayList<>();
+			for (final String[] prefix : previous)
+			{
+				for (final String segment : QUERY_SEGMENTS)
+				{
+					final String[] query = Arrays.copyOf(prefix, depth);
+					query[depth - 1] = segment;
+					current.add(query);
+				}
+			}
+
+			queries.addAll(current);
+			previous = current;
+		}
+
+		return queries;
+	}
+
+	private static String join(final String[] names)
+	{
+		final StringBuilder builder = new StringBuilder();
+		for (final String name : names)
+		{
+			builder.append(builder.length() == 0 ? "" : ".").append(name);
+		}
+
+		return builder.toString();
+	}
+
+	public void testGetRuleMatchesBaseline()
+	{
+		final Random random = new Random(1);
+		final List<String[]> queries = getQueries();
+
+		for (int i = 0; i < TREES; i++)
+		{
+			final NodeTree tree = createTree(random);
+			for (final String[] query : queries)
+			{
+				final String permission = join(query);
+				final Rule expected = getBaselineRule(tree, query, 0);
+				assertEquals(permission, expected, tree.getRule(permission));
+				assertEquals(permission, expected, tree.getRule(query));
+			}
+		}
+	}
+
+	public void testAutomatonMatchesGetRule()
+	{
+		final Random random = new Random(2);
+		final List<String[]> queries = getQueries();
+
+		for (int i = 0; i < TREES; i++)
+		{
+			final NodeTree tree = createTree(random);
+			final PermissionAutomaton automaton = tree.compile();
+			for (final String[] query : queries)
+			{
+				final String permission = join(query);
+				assertEquals(permission, tree.getRule(permission), automaton.getRule(permission));
+			}
+		}
+	}
+
+	public void testAutomatonMergesTrees()
+	{
+		final Random random = new Random(3);
+		final List<String[]> queries = getQueries();
+
+		for (int i = 0; i < TREES; i++)
+		{
+			final NodeTree first = createTree(random);
+			final NodeTree second = createTree(random);
+			final PermissionAutomaton automaton = PermissionAutomaton.compile(Arrays.asList(first, second));
+			for (final String[] query : queries)
+			{
+				final String permission = join(query);
+				assertEquals(permission, Rule.getEffective(first.getRule(permission), second.getRule(permission)),
+					automaton.getRule(permission));
+			}
+		}
+	}
+
+	public void testCompiledTreeIgnoresLaterChanges()
+	{
+		final NodeTree tree = NodeTree.parseTree(manager, group, new String[] { "a.b" });
+		final PermissionAutomaton automaton = tree.compile();
+		tree.addPath("a.-c");
+
+		assertEquals(NodeEffect.ALLOW, automaton.getRule("a.b").getEffect());
+		assertEquals(Rule.NONE, automaton.getRule("a.c"));
+		assertEquals(NodeEffect.DENY, tree.getRule("a.c").getEffect());
+	}
+}
@@ -0,0 +1,152 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import co.e2m.mc.entercraft.i18n.I18n;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests {@link PathTokenizer} against the regular expressions that parsed paths before it.
+ */
+public class PathTokenizerTest extends TestCase
+{
+	private static final Pattern PATH_REGEX = Pattern.compile("\\.+");
+	private static final Pattern PRIORITY_REGEX = Pattern.compile(":+");
+	private static final char[] ALPHABET = { 'a', 'B', 'c', '.', '.', ':', ':', '-', '-', '+', '0', '1', '9' };
+
+	/**
+	 * Parses a path as before, except that empty segments are dropped.  A leading period used to produce an empty first segment, which
+	 * the tokenizer skips like any other empty segment.
+	 *
+	 * @return the name, effect, and priority or {@literal null} of each segment
+	 */
+	private static List<Object[]> parseBaseline(final String path)
+	{
+		final List<Object[]> segments = new ArrayList<>();
+		for (final String text : PATH_REGEX.split(path))
+		{
+			if (text.isEmpty())
+			{
+				continue;
+			}
+
+			String name = text.toLowerCase(I18n.INVARIANT_LOCALE);
+			final String[] tokens = PRIORITY_REGEX.split(name, 2);
+
+			Integer priority = null;
+			if (tokens.length >= 2)
+			{
+				try
+				{
+					priority = Integer.parseInt(tokens[0]);
+				}
+				catch (final NumberFormatException ex)
+				{
+					priority = null;
+				}
+
+				name = tokens[1];
+			}
+
+			NodeEffect effect = NodeEffect.ALLOW;
+			if (name.startsWith(NodeInfo.EXCLUDE_PREFIX))
+			{
+				effect = NodeEffect.DENY;
+				name = name.substring(1);
+			}
+
+			segments.add(new Object[] { name, effect, priority });
+		}
+
+		return segments;
+	}
+
+	private static List<Object[]> parse(final String path)
+	{
+		final List<Object[]> segments = new ArrayList<>();
+		final PathTokenizer tokens = new PathTokenizer(path, false);
+		while (tokens.next())
+		{
+			segments.add(new Object[] { tokens.getName(), tokens.getEffect(), tokens.isPrioritized() ? tokens.getPriority() : null });
+		}
+
+		return segments;
+	}
+
+	private static void assertParsedAsBaseline(final String path)
+	{
+		final List<Object[]> expected = parseBaseline(path);
+		final List<Object[]> actual = parse(path);
+
+		assertEquals(path, expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+		{
+			for (int part = 0; part < 3; part++)
+			{
+				assertEquals(path, expected.get(i)[part], actual.get(i)[part]);
+			}
+		}
+	}
+
+	public void testKnownPaths()
+	{
+		final String[] paths = {
+			"", ".", "a", "a.b.c", "..a...b..", "A.B", "-a", "500:a", "500:-a", "-500:a", "+500:a", "500::a", ":a", "::a", "5:", "-",
+			"a:b:c", "x:y", "-:a", "2147483647:a", "2147483648:a", "-2147483648:a", "-2147483649:a", "99999999999999999999:a",
+			"a.500:-b.*", "0:*",
+		};
+
+		for (final String path : paths)
+		{
+			assertParsedAsBaseline(path);
+		}
+	}
+
+	public void testRandomPaths()
+	{
+		final Random random = new Random(5);
+		for (int round = 0; round < 20000; round++)
+		{
+			final char[] path = new char[random.nextInt(14)];
+			for (int i = 0; i < path.length; i++)
+			{
+				path[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+			}
+
+			assertParsedAsBaseline(new String(path));
+		}
+	}
+
+	public void testSingleSegmentKeepsPeriods()
+	{
+		final PathTokenizer tokens = new PathTokenizer("10:-a.b", true);
+		assertTrue(tokens.next());
+		assertEquals("a.b", tokens.getName());
+		assertEquals(NodeEffect.DENY, tokens.getEffect());
+		assertEquals(10, tokens.getPriority());
+		assertFalse(tokens.next());
+	}
+
+	public void testTokenizeMatchesNames()
+	{
+		final int[] segments = new int[NodeTree.MAX_DEPTH + 1];
+		final int known = SegmentTable.intern("tokenizer-test-known");
+
+		assertEquals(0, PathTokenizer.tokenize("..", segments));
+		assertEquals(3, PathTokenizer.tokenize(".Tokenizer-Test-Known..tokenizer-test-unknown.tokenizer-test-known", segments));
+		assertEquals(known, segments[0]);
+		assertEquals(SegmentTable.UNKNOWN, segments[1]);
+		assertEquals(known, segments[2]);
+
+		final StringBuilder deep = new StringBuilder("a");
+		for (int i = 0; i < NodeTree.MAX_DEPTH + 5; i++)
+		{
+			deep.append(".a");
+		}
+		assertEquals(NodeTree.MAX_DEPTH + 1, PathTokenizer.tokenize(deep.toString(), segments));
+		assertEquals(SegmentTable.UNKNOWN, segments[NodeTree.MAX_DEPTH]);
+	}
+}
@@ -0,0 +1,93 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.Collections;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that {@link PermissionIndex} finds the groups with nodes along a permission's path, and prunes paths that fall out of use.
+ */
+public class PermissionIndexTest extends TestCase
+{
+	private final TestPermissionsManager manager = new TestPermissionsManager(new RecordingBackend());
+
+	private PermissionIndex getIndex()
+	{
+		return manager.getPermissionIndex();
+	}
+
+	private boolean isFound(final Group group, final String permission)
+	{
+		final int[] segments = new int[NodeTree.MAX_DEPTH + 1];
+		final int length = PathTokenizer.tokenize(permission, segments);
+		return getIndex().getGroups(segments, length).contains(group.getId());
+	}
+
+	public void testFindsExactAndWildcardNodes()
+	{
+		final Group exact = manager.create(GroupType.NORMAL, "exact");
+		final Group wildcard = manager.create(GroupType.NORMAL, "wildcard");
+		exact.getPermissions().addPath("a.b.c");
+		wildcard.getPermissions().addPath("a." + NodeInfo.ALL_NAME);
+
+		assertTrue(isFound(exact, "a.b.c"));
+		assertFalse(isFound(exact, "a.d"));
+		assertTrue(isFound(wildcard, "a.b.c"));
+		assertTrue(isFound(wildcard, "a.d"));
+		assertFalse(isFound(wildcard, "b"));
+	}
+
+	public void testPrunesRemovedPaths()
+	{
+		final Group group = manager.create(GroupType.NORMAL, "group");
+		final int initial = getIndex().size();
+
+		group.getPermissions().addPath("x.y.z");
+		group.getPermissions().addPath("x.w");
+		assertEquals(initial + 4, getIndex().size());
+
+		group.getPermissions().removePath("x.y.z");
+		assertEquals("z is pruned, y stays for its own node", initial + 3, getIndex().size());
+		assertTrue(isFound(group, "x.y"));
+		assertFalse(isFound(group, "x.y.z"));
+
+		group.getPermissions().removePath("x.y");
+		group.getPermissions().removePath("x.w");
+		assertEquals("x stays for its own node", initial + 1, getIndex().size());
+
+		group.getPermissions().removePath("x");
+		assertEquals(initial, getIndex().size());
+	}
+
+	public void testKeepsPathsSharedWithOtherGroups()
+	{
+		final Group first = manager.create(GroupType.NORMAL, "first");
+		final Group second = manager.create(GroupType.NORMAL, "second");
+		final int initial = getIndex().size();
+
+		first.getPermissions().addPath("s.t");
+		second.getPermissions().addPath("s.t");
+		first.getPermissions().removePath("s");
+		assertEquals(initial + 2, getIndex().size());
+		assertTrue(isFound(second, "s.t"));
+		assertFalse(isFound(first, "s.t"));
+
+		second.getPermissions().removePath("s");
+		assertEquals(initial, getIndex().size());
+	}
+
+	public void testReindexesAfterPruning()
+	{
+		final Group group = manager.create(GroupType.NORMAL, "group");
+		final int initial = getIndex().size();
+
+		for (int i = 0; i < 3; i++)
+		{
+			group.getPermissions().addPath("p.q");
+			assertTrue(isFound(group, "p.q"));
+			group.getPermissions().removePath("p");
+			assertEquals(initial, getIndex().size());
+			assertEquals(Collections.<GroupId>emptySet(), getIndex().getGroups(new int[0], 0));
+		}
+	}
+}
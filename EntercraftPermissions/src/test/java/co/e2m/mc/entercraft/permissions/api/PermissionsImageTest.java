@@ -0,0 +1,124 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import co.e2m.mc.entercraft.i18n.I18n;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that {@link PermissionsImage} answers lookups from a written image, and rejects damaged images when they are mapped.
+ */
+public class PermissionsImageTest extends TestCase
+{
+	private final TestPermissionsManager manager = new TestPermissionsManager(new RecordingBackend());
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		I18n.setPrimary(new I18n(null));
+		file = File.createTempFile("permissions", ".image");
+
+		final Group parent = manager.create(GroupType.NORMAL, "parent");
+		parent.getPermissions().addPath("a.b");
+		parent.getPermissions().addPath("c." + NodeInfo.ALL_NAME);
+		final Group child = manager.create(GroupType.NORMAL, "child");
+		child.getPermissions().addPath("a.-b");
+		child.inherit(parent);
+
+		PermissionsImage.write(file, Arrays.asList(parent, child));
+	}
+
+	@Override
+	protected void tearDown()
+	{
+		file.delete();
+	}
+
+	/**
+	 * Rewrites the image's trailing checksum to match its contents.
+	 */
+	private static void fixChecksum(final byte[] bytes)
+	{
+		final CRC32 checksum = new CRC32();
+		checksum.update(bytes, 0, bytes.length - 4);
+		ByteBuffer.wrap(bytes).putInt(bytes.length - 4, (int)checksum.getValue());
+	}
+
+	private void assertRejected(final byte[] bytes) throws IOException
+	{
+		Files.write(file.toPath(), bytes);
+		try
+		{
+			PermissionsImage.map(file);
+			fail("mapped a damaged image");
+		}
+		catch (final IOException e)
+		{
+			// Expected.
+		}
+	}
+
+	public void testLookups() throws IOException
+	{
+		final PermissionsImage image = PermissionsImage.map(file);
+		final int parent = image.getGroupNumber(manager.get(GroupType.NORMAL, "parent").getId());
+		final int child = image.getGroupNumber(manager.get(GroupType.NORMAL, "child").getId());
+
+		assertEquals(2, image.getGroupCount());
+		assertTrue(image.isMemberOf(child, parent));
+		assertFalse(image.isMemberOf(parent, child));
+		assertEquals(NodeEffect.ALLOW, image.getRule(parent, "a.b").getEffect());
+		assertEquals(NodeEffect.DENY, image.getRule(child, "a.b").getEffect());
+		assertEquals(NodeEffect.ALLOW, image.getRule(child, "c.d").getEffect());
+		assertEquals(NodeEffect.NONE, image.getRule(child, "d").getEffect());
+		assertEquals(-1, image.getGroupNumber(new GroupId("world", GroupType.NORMAL, "missing")));
+	}
+
+	public void testRejectsFlippedByte() throws IOException
+	{
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		for (int offset = 0; offset < bytes.length; offset += 7)
+		{
+			final byte[] damaged = bytes.clone();
+			damaged[offset] ^= 0x10;
+			assertRejected(damaged);
+		}
+	}
+
+	public void testRejectsTruncatedImage() throws IOException
+	{
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		for (final int length : new int[] { 0, 3, 40, bytes.length / 2, bytes.length - 1 })
+		{
+			assertRejected(Arrays.copyOf(bytes, length));
+		}
+	}
+
+	public void testRejectsBadOffsetsDespiteChecksum() throws IOException
+	{
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+
+		// Header offsets of the directory, lineage pool, node records and name pool.
+		for (int field = 24; field <= 36; field += 4)
+		{
+			final byte[] damaged = bytes.clone();
+			final ByteBuffer view = ByteBuffer.wrap(damaged);
+			view.putInt(field, view.getInt(field) + 4);
+			fixChecksum(damaged);
+			assertRejected(damaged);
+		}
+
+		// The first directory entry's root node.
+		final byte[] damaged = bytes.clone();
+		final ByteBuffer view = ByteBuffer.wrap(damaged);
+		view.putInt(view.getInt(24) + 12, Integer.MAX_VALUE);
+		fixChecksum(damaged);
+		assertRejected(damaged);
+	}
+}
@@ -0,0 +1,202 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Backend for tests, which keeps nothing and records a line for each mutation it receives.
+ *
+ * <p>
+ * Lines name the mutation's type and what it applies to, such as {@code CREATE_NODE a.b} or {@code UPDATE_GROUP_DATA key=value}.
+ * </p>
+ */
+public class RecordingBackend implements IBatchPermissionsBackend
+{
+	/**
+	 * Recorded lines, oldest first.  Guarded by {@code this}.
+	 */
+	private final List<String> log = new ArrayList<>();
+
+	/**
+	 * Number of batches received.  Guarded by {@code this}.
+	 */
+	private int batches;
+
+	/**
+	 * Gets the lines recorded so far.
+	 *
+	 * @return a copy of the recorded lines, oldest first
+	 */
+	public synchronized List<String> getLog()
+	{
+		return new ArrayList<>(log);
+	}
+
+	/**
+	 * Gets the number of batches received so far.
+	 *
+	 * @return the number of calls to {@link #apply(List)}
+	 */
+	public synchronized int getBatches()
+	{
+		return batches;
+	}
+
+	/**
+	 * Forgets every line recorded so far.
+	 */
+	public synchronized void clear()
+	{
+		log.clear();
+		batches = 0;
+	}
+
+	/**
+	 * Records a line.
+	 *
+	 * @param type the mutation's type
+	 * @param subject what the mutation applies to
+	 */
+	private synchronized void record(final Mutation.Type type, final String subject)
+	{
+		log.add(type.name() + ' ' + subject);
+	}
+
+	/**
+	 * Describes a node by its path.
+	 *
+	 * @param node the node
+	 * @return the period-delimited names along the node's path, excluding the root node
+	 */
+	private static String describe(final NodeInfo node)
+	{
+		final StringBuilder builder = new StringBuilder();
+		for (final NodeInfo step : node.getPath())
+		{
+			if (!step.isRoot())
+			{
+				builder.append(builder.length() == 0 ? "" : ".").append(step.getName());
+			}
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void apply(final List<Mutation> mutations)
+	{
+		synchronized (this)
+		{
+			batches++;
+		}
+
+		for (final Mutation mutation : mutations)
+		{
+			mutation.apply(this);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createGroup(final Group group)
+	{
+		record(Mutation.Type.CREATE_GROUP, group.getId().getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void createNode(final NodeInfo node)
+	{
+		record(Mutation.Type.CREATE_NODE, describe(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroup(final Group group)
+	{
+		record(Mutation.Type.REMOVE_GROUP, group.getId().getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeNode(final NodeInfo node)
+	{
+		record(Mutation.Type.REMOVE_NODE, describe(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateNode(final NodeInfo node)
+	{
+		record(Mutation.Type.UPDATE_NODE, describe(node));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addInheritedGroup(final Group parent, final Group child)
+	{
+		record(Mutation.Type.ADD_INHERITED_GROUP, parent.getId().getName() + ' ' + child.getId().getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeInheritedGroup(final Group parent, final Group child)
+	{
+		record(Mutation.Type.REMOVE_INHERITED_GROUP, parent.getId().getName() + ' ' + child.getId().getName());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updatePrimaryParent(final Group self, final Group parent)
+	{
+		record(Mutation.Type.UPDATE_PRIMARY_PARENT, self.getId().getName() + ' ' + (parent == null ? null : parent.getId().getName()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void addGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		record(Mutation.Type.ADD_GROUP_DATA, key + '=' + value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T extends Serializable> void updateGroupData(final Group group, final String key, final Class<T> type, final T value)
+	{
+		record(Mutation.Type.UPDATE_GROUP_DATA, key + '=' + value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeGroupData(final Group group, final String key)
+	{
+		record(Mutation.Type.REMOVE_GROUP_DATA, key);
+	}
+}
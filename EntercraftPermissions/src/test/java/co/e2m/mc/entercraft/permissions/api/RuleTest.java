@@ -0,0 +1,127 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests {@link Rule}, particularly that packed rules order as rules were ordered before they could be packed.
+ */
+public class RuleTest extends TestCase
+{
+	private static final int[] PRIORITIES = {
+		Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -129, -128, -1, 0, 1, 900, 1000, 1023, 1024, 1100, Integer.MAX_VALUE - 1,
+		Integer.MAX_VALUE,
+	};
+
+	/**
+	 * Orders rules as {@link Rule#compareTo(Rule)} did before rules were packed.  That compared priorities by subtracting them, which
+	 * overflows at the extremes, so they are compared here as the subtraction was meant to.
+	 */
+	private static final Comparator<Rule> BASELINE = new Comparator<Rule>()
+	{
+		@Override
+		public int compare(final Rule a, final Rule b)
+		{
+			if (a.equals(b))
+			{
+				return 0;
+			}
+
+			if (a.equals(Rule.NONE))
+			{
+				return -1;
+			}
+			if (b.equals(Rule.NONE))
+			{
+				return 1;
+			}
+
+			if (a.getPriority() != b.getPriority())
+			{
+				return Integer.compare(a.getPriority(), b.getPriority());
+			}
+
+			return a.getEffect().compareTo(b.getEffect());
+		}
+	};
+
+	private static List<Rule> getSamples()
+	{
+		final List<Rule> rules = new ArrayList<>();
+		for (final NodeEffect effect : NodeEffect.values())
+		{
+			for (final int priority : PRIORITIES)
+			{
+				rules.add(new Rule(effect, priority));
+			}
+		}
+
+		return rules;
+	}
+
+	public void testPackOrdersAsBaseline()
+	{
+		final List<Rule> rules = getSamples();
+		for (final Rule a : rules)
+		{
+			for (final Rule b : rules)
+			{
+				final int expected = Integer.signum(BASELINE.compare(a, b));
+				assertEquals(a + " vs " + b, expected, Long.signum(Long.compare(a.pack(), b.pack())));
+				assertEquals(a + " vs " + b, expected, Integer.signum(a.compareTo(b)));
+			}
+		}
+	}
+
+	public void testNonePacksLowest()
+	{
+		assertEquals(Rule.NONE_PACKED, Rule.NONE.pack());
+		for (final Rule rule : getSamples())
+		{
+			if (!rule.equals(Rule.NONE))
+			{
+				assertTrue(rule.toString(), rule.pack() > Rule.NONE_PACKED);
+			}
+		}
+	}
+
+	public void testUnpackRoundTrips()
+	{
+		for (final Rule rule : getSamples())
+		{
+			final long packed = rule.pack();
+			assertEquals(rule, Rule.unpack(packed));
+			assertEquals(rule.getEffect(), Rule.getEffect(packed));
+			assertEquals(rule.getPriority(), Rule.getPriority(packed));
+		}
+
+		assertSame(Rule.NONE, Rule.unpack(Rule.NONE_PACKED));
+		assertSame(Rule.unpack(Rule.pack(NodeEffect.ALLOW, 1000)), Rule.unpack(Rule.pack(NodeEffect.ALLOW, 1000)));
+	}
+
+	public void testGetEffectiveMatchesSort()
+	{
+		final Random random = new Random(2);
+		final List<Rule> samples = getSamples();
+
+		for (int round = 0; round < 1000; round++)
+		{
+			final List<Rule> rules = new ArrayList<>();
+			final int count = random.nextInt(6);
+			for (int i = 0; i < count; i++)
+			{
+				rules.add(samples.get(random.nextInt(samples.size())));
+			}
+
+			final Rule expected = rules.isEmpty() ? Rule.NONE : Collections.max(rules, BASELINE);
+			assertEquals(rules.toString(), expected, Rule.getEffective(rules));
+		}
+
+		assertEquals(Rule.NONE, Rule.getEffective((List<Rule>)null));
+	}
+}
@@ -0,0 +1,73 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import lombok.Getter;
+
+
+/**
+ * Permissions manager for tests, which keeps its groups in a given backend and exposes group creation.
+ */
+public class TestPermissionsManager extends PermissionsManager
+{
+	/**
+	 * {@inheritDoc}
+	 */
+	@Getter
+	/**
+	 * The backend in which groups are kept.
+	 */
+	private final transient IPermissionsBackend backend;
+
+	/**
+	 * Instantiates a new permissions manager for tests.
+	 *
+	 * @param backend the backend in which groups are kept
+	 */
+	public TestPermissionsManager(final IPermissionsBackend backend)
+	{
+		assert backend != null;
+
+		this.backend = backend;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getName()
+	{
+		return "EntercraftPermissionsTest";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEnabled()
+	{
+		return true;
+	}
+
+	/**
+	 * Gets a group in the default world, creating it if it doesn't already exist.
+	 *
+	 * @param type group type
+	 * @param name relative group name
+	 * @return the group
+	 */
+	public Group create(final GroupType type, final String name)
+	{
+		return getGroupOrCreate(null, type, name);
+	}
+
+	/**
+	 * Gets a group in the default world.
+	 *
+	 * @param type group type
+	 * @param name relative group name
+	 * @return the group, or {@literal null} if it does not exist
+	 */
+	public Group get(final GroupType type, final String name)
+	{
+		return getGroup(null, type, name);
+	}
+}
@@ -0,0 +1,76 @@
+package co.e2m.mc.entercraft.permissions.api;
+
+import co.e2m.mc.entercraft.api.IComponentsPlugin;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+
+/**
+ * Stands in for the plugin that owns a component in tests, which run without a server.
+ *
+ * <p>
+ * Only the plugin's name, state and logger are provided.  Every other method returns {@literal null} or false.
+ * </p>
+ */
+public final class TestPlugin implements InvocationHandler
+{
+	/**
+	 * Name reported by the plugin.
+	 */
+	public static final String NAME = "EntercraftPermissionsTest";
+
+	/**
+	 * Logger returned by the plugin.
+	 */
+	private final Logger logger = Logger.getLogger(NAME);
+
+	private TestPlugin()
+	{
+	}
+
+	/**
+	 * Creates a stand-in plugin.
+	 *
+	 * @return a plugin that is always enabled
+	 */
+	public static IComponentsPlugin create()
+	{
+		return (IComponentsPlugin)Proxy.newProxyInstance(TestPlugin.class.getClassLoader(), new Class<?>[] { IComponentsPlugin.class },
+			new TestPlugin());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object invoke(final Object proxy, final Method method, final Object[] args)
+	{
+		switch (method.getName())
+		{
+		case "getName":
+			return NAME;
+
+		case "isEnabled":
+			return true;
+
+		case "getLogger":
+			return logger;
+
+		case "toString":
+			return NAME;
+
+		case "hashCode":
+			return System.identityHashCode(proxy);
+
+		case "equals":
+			return proxy == args[0];
+
+		default:
+			break;
+		}
+
+		return method.getReturnType() == boolean.class ? false : null;
+	}
+}
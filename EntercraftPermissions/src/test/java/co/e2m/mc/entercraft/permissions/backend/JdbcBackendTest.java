@@ -0,0 +1,119 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.permissions.api.ChangeSet;
+import co.e2m.mc.entercraft.permissions.api.Group;
+import co.e2m.mc.entercraft.permissions.api.GroupId;
+import co.e2m.mc.entercraft.permissions.api.GroupRecord;
+import co.e2m.mc.entercraft.permissions.api.GroupType;
+import co.e2m.mc.entercraft.permissions.api.Mutation;
+import co.e2m.mc.entercraft.permissions.api.NodeEffect;
+import co.e2m.mc.entercraft.permissions.api.NodeInfo;
+import co.e2m.mc.entercraft.permissions.api.TestPermissionsManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests {@link JdbcBackend} against an in-memory H2 database.
+ */
+public class JdbcBackendTest extends TestCase
+{
+	private JdbcBackend backend;
+	private TestPermissionsManager manager;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		Class.forName("org.h2.Driver");
+		backend = new JdbcBackend(null, "jdbc:h2:mem:" + getName(), null);
+		backend.onEnable();
+		manager = new TestPermissionsManager(backend);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		backend.onDisable();
+	}
+
+	/**
+	 * Loads a group through a second manager, as another server would.
+	 */
+	public void testRoundTrip()
+	{
+		final Group parent = manager.create(GroupType.NORMAL, "parent");
+		parent.getPermissions().addPath("parent.perm");
+		final Group child = manager.create(GroupType.NORMAL, "child");
+		child.inherit(parent);
+		child.setPrimaryParent(parent);
+		child.getPermissions().addPath("a");
+		child.getPermissions().addPath("a.-b");
+		child.setData("title", String.class, "Knight");
+
+		final GroupRecord record = backend.loadGroup(child.getId());
+		assertNotNull(record);
+		assertEquals(Collections.singletonList(parent.getId()), record.getParents());
+		assertEquals(parent.getId(), record.getPrimaryParent());
+		assertEquals("Knight", record.getData().get("title"));
+		assertEquals(2, record.getNodes().size());
+		assertNull(backend.loadGroup(new GroupId(child.getId().getWorld(), GroupType.NORMAL, "nobody")));
+
+		final List<GroupRecord> records = backend.loadGroups(GroupType.NORMAL);
+		assertEquals(2, records.size());
+
+		final TestPermissionsManager other = new TestPermissionsManager(backend);
+		other.preload(records);
+		assertTrue(other.groupHas((String)null, "child", "parent.perm"));
+		assertTrue(other.groupHas((String)null, "child", "a"));
+		assertFalse(other.groupHas((String)null, "child", "a.b"));
+		assertEquals("Knight", other.get(GroupType.NORMAL, "child").getData("title", String.class));
+	}
+
+	/**
+	 * Adds the same rows twice in one batch, as two servers racing to add them would.
+	 */
+	public void testDuplicateAdditions()
+	{
+		final Group group = manager.create(GroupType.NORMAL, "group");
+		final List<NodeInfo> ancestors = new ArrayList<>();
+		final List<Mutation> mutations = Arrays.asList(
+			Mutation.createGroup(group),
+			Mutation.createNode(new NodeInfo("x", NodeEffect.ALLOW, 1, ancestors, group.getId())),
+			Mutation.createNode(new NodeInfo("x", NodeEffect.DENY, 2, ancestors, group.getId())),
+			Mutation.setGroupData(group, "k", String.class, "first", false),
+			Mutation.setGroupData(group, "k", String.class, "second", false));
+		backend.apply(mutations);
+
+		final GroupRecord record = backend.loadGroup(group.getId());
+		assertEquals(1, record.getNodes().size());
+		assertEquals(NodeEffect.DENY, record.getNodes().get(0).getEffect());
+		assertEquals(2, record.getNodes().get(0).getPriority());
+		assertEquals("second", record.getData().get("k"));
+	}
+
+	/**
+	 * Reads back the changes that batches record in the feed.
+	 */
+	public void testChangeFeed()
+	{
+		final long start = backend.getChangeVersion();
+		final Group first = manager.create(GroupType.NORMAL, "first");
+		final long middle = backend.getChangeVersion();
+		final Group second = manager.create(GroupType.NORMAL, "second");
+		second.getPermissions().addPath("perm");
+
+		assertTrue(middle > start);
+		final ChangeSet all = backend.getChangesSince(start);
+		assertEquals(Arrays.asList(first.getId(), second.getId()), new ArrayList<>(all.getChangedGroups()));
+		assertEquals(backend.getChangeVersion(), all.getVersion());
+		assertEquals(Collections.singleton(second.getId()), backend.getChangesSince(middle).getChangedGroups());
+		assertTrue(backend.getChangesSince(all.getVersion()).getChanges().isEmpty());
+
+		backend.pruneChanges(1);
+		assertNull(backend.getChangesSince(start));
+		assertEquals(Collections.singleton(second.getId()), backend.getChangesSince(all.getVersion() - 1).getChangedGroups());
+	}
+}
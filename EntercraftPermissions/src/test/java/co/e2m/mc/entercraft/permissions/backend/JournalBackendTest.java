@@ -0,0 +1,190 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.i18n.I18n;
+import co.e2m.mc.entercraft.permissions.api.Group;
+import co.e2m.mc.entercraft.permissions.api.GroupId;
+import co.e2m.mc.entercraft.permissions.api.GroupRecord;
+import co.e2m.mc.entercraft.permissions.api.GroupType;
+import co.e2m.mc.entercraft.permissions.api.NodeEffect;
+import co.e2m.mc.entercraft.permissions.api.Rule;
+import co.e2m.mc.entercraft.permissions.api.TestPermissionsManager;
+import co.e2m.mc.entercraft.permissions.api.TestPlugin;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that {@link JournalBackend} replays its journal, and recovers from journals cut short by a crash.
+ */
+public class JournalBackendTest extends TestCase
+{
+	private File directory;
+	private File journal;
+	private JournalBackend backend;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		I18n.setPrimary(new I18n(null));
+		directory = Files.createTempDirectory("journal").toFile();
+		journal = new File(directory, JournalBackend.JOURNAL_FILE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		if (backend != null)
+		{
+			backend.onDisable();
+		}
+
+		for (final File file : directory.listFiles())
+		{
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Closes the current backend, if any, and opens the journal again.
+	 */
+	private TestPermissionsManager reopen()
+	{
+		if (backend != null)
+		{
+			backend.onDisable();
+		}
+
+		backend = new JournalBackend(TestPlugin.create(), directory);
+		backend.onEnable();
+		return new TestPermissionsManager(backend);
+	}
+
+	/**
+	 * Writes a parent group and a group with nodes, inheritance and metadata.
+	 *
+	 * @return the identifier of the group
+	 */
+	private GroupId writeGroups()
+	{
+		final TestPermissionsManager manager = reopen();
+		final Group parent = manager.create(GroupType.NORMAL, "parent");
+		parent.getPermissions().addPath("parent.perm");
+
+		final Group group = manager.create(GroupType.NORMAL, "group");
+		group.getPermissions().addPaths(new String[] { "a.b.c", "a.-d", "300:e" });
+		group.getPermissions().removePath("a.b");
+		group.inherit(parent);
+		group.setPrimaryParent(parent);
+		group.setData("prefix", String.class, "[G]");
+		group.setData("count", Integer.class, 5);
+		group.removeData("count");
+		return group.getId();
+	}
+
+	private static void assertGroups(final TestPermissionsManager manager)
+	{
+		final Group group = manager.get(GroupType.NORMAL, "group");
+		assertNotNull(group);
+		assertEquals(Rule.NONE, group.getPermissions().getRule("a.b.c"));
+		assertEquals(NodeEffect.ALLOW, group.getPermissions().getRule("a").getEffect());
+		assertEquals(NodeEffect.DENY, group.getPermissions().getRule("a.d").getEffect());
+		assertEquals(300, group.getPermissions().getRule("e").getPriority());
+		assertEquals("[G]", group.getData("prefix", String.class));
+		assertNull(group.getData("count", Integer.class));
+		assertEquals("parent", group.getPrimaryParent().getId().getName());
+		assertTrue(manager.groupHas((String)null, "group", "parent.perm"));
+	}
+
+	public void testReplay()
+	{
+		writeGroups();
+		assertGroups(reopen());
+	}
+
+	public void testTornRecordIsTruncated() throws IOException
+	{
+		writeGroups();
+		backend.onDisable();
+		backend = null;
+
+		final long length = journal.length();
+		try (final FileOutputStream out = new FileOutputStream(journal, true))
+		{
+			// A frame that promises more bytes than follow it.
+			out.write(new byte[] { 0, 0, 0, 20, 1, 2, 3 });
+		}
+
+		final TestPermissionsManager manager = reopen();
+		assertEquals(length, journal.length());
+		assertGroups(manager);
+
+		// Records written after the truncation replay too.
+		manager.get(GroupType.NORMAL, "group").getPermissions().addPath("f");
+		assertEquals(NodeEffect.ALLOW, reopen().get(GroupType.NORMAL, "group").getPermissions().getRule("f").getEffect());
+	}
+
+	public void testCorruptRecordIsTruncated() throws IOException
+	{
+		writeGroups();
+		backend.onDisable();
+		backend = null;
+
+		final long length = journal.length();
+		try (final FileOutputStream out = new FileOutputStream(journal, true))
+		{
+			// A whole frame whose checksum does not match its payload.
+			out.write(new byte[] { 0, 0, 0, 4, 0, 0, 0, 0, 1, 2, 3, 4 });
+		}
+
+		assertGroups(reopen());
+		assertEquals(length, journal.length());
+	}
+
+	public void testCompactionKeepsState()
+	{
+		writeGroups();
+		backend.compact();
+		assertEquals(1, backend.getGeneration());
+
+		reopen().get(GroupType.NORMAL, "group").getPermissions().addPath("f");
+		final TestPermissionsManager manager = reopen();
+		assertGroups(manager);
+		assertEquals(NodeEffect.ALLOW, manager.get(GroupType.NORMAL, "group").getPermissions().getRule("f").getEffect());
+	}
+
+	public void testDamagedHeaderIsDiscarded() throws IOException
+	{
+		writeGroups();
+		backend.compact();
+		reopen().get(GroupType.NORMAL, "group").getPermissions().addPath("f");
+		backend.onDisable();
+		backend = null;
+
+		try (final RandomAccessFile file = new RandomAccessFile(journal, "rw"))
+		{
+			file.setLength(7);
+		}
+
+		// The snapshot survives; only the records after it are lost.
+		final TestPermissionsManager manager = reopen();
+		assertGroups(manager);
+		assertEquals(Rule.NONE, manager.get(GroupType.NORMAL, "group").getPermissions().getRule("f"));
+
+		manager.get(GroupType.NORMAL, "group").getPermissions().addPath("g");
+		assertEquals(NodeEffect.ALLOW, reopen().get(GroupType.NORMAL, "group").getPermissions().getRule("g").getEffect());
+	}
+
+	public void testRecordLoadsWithoutManager()
+	{
+		final GroupId id = writeGroups();
+		reopen();
+		final GroupRecord record = backend.loadGroup(id);
+		assertEquals(1, record.getParents().size());
+		assertEquals("[G]", record.getData().get("prefix"));
+	}
+}
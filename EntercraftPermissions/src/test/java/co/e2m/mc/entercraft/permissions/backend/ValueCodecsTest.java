@@ -0,0 +1,195 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.i18n.I18n;
+import co.e2m.mc.entercraft.permissions.api.IValueCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.UUID;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that {@link ValueCodecs} round-trips metadata values, compactly where it has codecs for them.
+ */
+public class ValueCodecsTest extends TestCase
+{
+	/**
+	 * Tag of the codec registered by {@link #testCustomCodec()}.  Registrations last for the life of the class loader.
+	 */
+	private static final int POINT_TAG = ValueCodecs.FIRST_CUSTOM_TAG + 7;
+
+	/**
+	 * Value type without a built-in codec.
+	 */
+	private static final class Point implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final int x;
+		final int y;
+
+		Point(final int x, final int y)
+		{
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			return o instanceof Point && ((Point)o).x == x && ((Point)o).y == y;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return x * 31 + y;
+		}
+	}
+
+	private static final IValueCodec<Point> POINT_CODEC = new IValueCodec<Point>()
+	{
+		@Override
+		public Class<Point> getType()
+		{
+			return Point.class;
+		}
+
+		@Override
+		public void write(final DataOutput out, final Point value) throws IOException
+		{
+			out.writeInt(value.x);
+			out.writeInt(value.y);
+		}
+
+		@Override
+		public Point read(final DataInput in) throws IOException
+		{
+			return new Point(in.readInt(), in.readInt());
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		I18n.setPrimary(new I18n(null));
+	}
+
+	private static byte[] serialize(final Serializable value) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream out = new ObjectOutputStream(bytes))
+		{
+			out.writeObject(value);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static Serializable roundTrip(final Serializable value) throws IOException
+	{
+		final Serializable decoded = ValueCodecs.decode(ValueCodecs.encode(value));
+		assertEquals(value, decoded);
+		return decoded;
+	}
+
+	public void testBuiltInTypes() throws IOException
+	{
+		final Serializable[] values = {
+			"", "prefix", "\u00e9\u4e2d\ud83d\ude00", Integer.MIN_VALUE, -1, 0, 1, 127, 128, Integer.MAX_VALUE, Long.MIN_VALUE, -1L, 0L,
+			Long.MAX_VALUE, true, false, 0.0, -0.0, 1.5, Double.MAX_VALUE, Double.MIN_VALUE, Double.NEGATIVE_INFINITY, Double.NaN,
+			UUID.randomUUID(), new UUID(0, 0),
+		};
+
+		for (final Serializable value : values)
+		{
+			assertSame(value.getClass(), roundTrip(value).getClass());
+		}
+
+		assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits((Double)roundTrip(-0.0)));
+	}
+
+	public void testLists() throws IOException
+	{
+		roundTrip(new ArrayList<Serializable>());
+		roundTrip(new ArrayList<Serializable>(Arrays.<Serializable>asList("a", 1, 2L, true, 3.0, null, UUID.randomUUID())));
+
+		final ArrayList<Serializable> largest = new ArrayList<>(Collections.<Serializable>nCopies(ValueCodecs.MAX_LIST_SIZE, 7));
+		roundTrip(largest);
+	}
+
+	public void testCodecsAreCompact() throws IOException
+	{
+		assertEquals(2, ValueCodecs.encode(1).length);
+		assertEquals(2, ValueCodecs.encode(true).length);
+		assertEquals(17, ValueCodecs.encode(UUID.randomUUID()).length);
+		assertEquals(8, ValueCodecs.encode("prefix").length);
+
+		final ArrayList<Serializable> list = new ArrayList<Serializable>(Arrays.<Serializable>asList("a", "b", 1, 2));
+		assertTrue(ValueCodecs.encode(list).length * 4 < serialize(list).length);
+	}
+
+	public void testOtherValuesAreSerialized() throws IOException
+	{
+		final ArrayList<Serializable> tooLong = new ArrayList<>(Collections.<Serializable>nCopies(ValueCodecs.MAX_LIST_SIZE + 1, 7));
+		final ArrayList<Serializable> nested = new ArrayList<Serializable>(Collections.singletonList(new ArrayList<Serializable>()));
+		final LinkedList<Serializable> linked = new LinkedList<Serializable>(Arrays.<Serializable>asList("a", 1));
+		final ArrayList<Serializable> mixed = new ArrayList<Serializable>(Arrays.<Serializable>asList("a", new Date(0)));
+
+		for (final Serializable value : new Serializable[] { tooLong, nested, linked, mixed, new Date(0), (short)1 })
+		{
+			assertTrue(Arrays.equals(serialize(value), ValueCodecs.encode(value)));
+			assertSame(value.getClass(), roundTrip(value).getClass());
+		}
+	}
+
+	public void testSerializedValuesAreRead() throws IOException
+	{
+		for (final Serializable value : new Serializable[] { "legacy", 5, 5L, true, 2.5, UUID.randomUUID() })
+		{
+			assertEquals(value, ValueCodecs.decode(serialize(value)));
+		}
+	}
+
+	public void testUnknownTagIsRejected()
+	{
+		try
+		{
+			ValueCodecs.decode(new byte[] { (byte)(ValueCodecs.FIRST_CUSTOM_TAG + 100) });
+			fail();
+		}
+		catch (IOException ex)
+		{
+			// Expected.
+		}
+	}
+
+	public void testCustomCodec() throws IOException
+	{
+		final Point point = new Point(3, -4);
+
+		ValueCodecs.register(POINT_TAG, POINT_CODEC);
+		assertEquals(9, ValueCodecs.encode(point).length);
+		roundTrip(point);
+		roundTrip(new ArrayList<Serializable>(Arrays.<Serializable>asList(point, "a")));
+
+		try
+		{
+			ValueCodecs.register(POINT_TAG, POINT_CODEC);
+			fail();
+		}
+		catch (IllegalArgumentException ex)
+		{
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package co.e2m.mc.entercraft.permissions.backend;
+
+import co.e2m.mc.entercraft.i18n.I18n;
+import co.e2m.mc.entercraft.permissions.api.Group;
+import co.e2m.mc.entercraft.permissions.api.GroupType;
+import co.e2m.mc.entercraft.permissions.api.Mutation;
+import co.e2m.mc.entercraft.permissions.api.RecordingBackend;
+import co.e2m.mc.entercraft.permissions.api.TestPermissionsManager;
+import co.e2m.mc.entercraft.permissions.api.TestPlugin;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that {@link WriteBehindBackend} coalesces mutations that are still queued.
+ *
+ * <p>
+ * The wrapped backend holds up the first batch it is given, so that every later mutation stays queued until the test lets it go.
+ * </p>
+ */
+public class WriteBehindBackendTest extends TestCase
+{
+	/**
+	 * Backend that blocks in its first batch until released.
+	 */
+	private static class GatedBackend extends RecordingBackend
+	{
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+
+		@Override
+		public void apply(final List<Mutation> mutations)
+		{
+			entered.countDown();
+			try
+			{
+				released.await();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			super.apply(mutations);
+		}
+	}
+
+	private GatedBackend recording;
+	private WriteBehindBackend backend;
+	private TestPermissionsManager manager;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		I18n.setPrimary(new I18n(null));
+		recording = new GatedBackend();
+		backend = new WriteBehindBackend(TestPlugin.create(), recording);
+		backend.onEnable();
+		manager = new TestPermissionsManager(backend);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		recording.released.countDown();
+		backend.onDisable();
+	}
+
+	/**
+	 * Queues the creation of a group, and waits until the worker is held up writing it.
+	 */
+	private Group createHeldGroup(final String name) throws InterruptedException
+	{
+		final Group group = manager.create(GroupType.NORMAL, name);
+		assertTrue(recording.entered.await(10, TimeUnit.SECONDS));
+		return group;
+	}
+
+	private List<String> release()
+	{
+		recording.released.countDown();
+		backend.flush();
+		return recording.getLog();
+	}
+
+	public void testCreatedAndRemovedNodesAreNotWritten() throws Exception
+	{
+		final Group group = createHeldGroup("group");
+		group.getPermissions().addPath("a.b.c");
+		group.getPermissions().addPath("d");
+		group.getPermissions().removePath("a");
+
+		assertEquals(Arrays.asList("CREATE_GROUP group", "CREATE_NODE d"), release());
+		// Three creations were cancelled, and the removal was dropped.
+		assertEquals(4, backend.getCoalescedCount());
+	}
+
+	public void testWrittenNodeRemovalIsWritten() throws Exception
+	{
+		final Group group = createHeldGroup("group");
+		release();
+
+		group.getPermissions().addPath("a");
+		backend.flush();
+		group.getPermissions().removePath("a");
+		backend.flush();
+
+		assertEquals(Arrays.asList("CREATE_GROUP group", "CREATE_NODE a", "REMOVE_NODE a"), recording.getLog());
+	}
+
+	public void testMetadataWritesLastValue() throws Exception
+	{
+		final Group group = createHeldGroup("group");
+		group.setData("added", String.class, "1");
+		group.setData("added", String.class, "2");
+		group.setData("removed", String.class, "1");
+		group.removeData("removed");
+
+		assertEquals(Arrays.asList("CREATE_GROUP group", "ADD_GROUP_DATA added=2"), release());
+	}
+
+	public void testInheritanceTogglesCancel() throws Exception
+	{
+		final Group parent = createHeldGroup("parent");
+		final Group child = manager.create(GroupType.NORMAL, "child");
+		child.inherit(parent);
+		child.uninherit(parent);
+
+		assertEquals(Arrays.asList("CREATE_GROUP parent", "CREATE_GROUP child"), release());
+	}
+
+	public void testRemovedGroupIsNotWritten() throws Exception
+	{
+		createHeldGroup("held");
+		final Group group = manager.create(GroupType.NORMAL, "group");
+		group.getPermissions().addPath("a");
+		group.setData("key", String.class, "value");
+		backend.removeGroup(group);
+
+		assertEquals(Arrays.asList("CREATE_GROUP held"), release());
+	}
+
+	public void testDisableWritesQueue() throws Exception
+	{
+		final Group group = createHeldGroup("group");
+		group.getPermissions().addPath("a");
+
+		recording.released.countDown();
+		backend.onDisable();
+		assertEquals(Arrays.asList("CREATE_GROUP group", "CREATE_NODE a"), recording.getLog());
+
+		// Once disabled, mutations pass straight through.
+		group.getPermissions().addPath("b");
+		assertEquals("CREATE_NODE b", recording.getLog().get(2));
+	}
+}